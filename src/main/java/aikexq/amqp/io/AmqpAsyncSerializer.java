@@ -0,0 +1,123 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the encoding and decoding of an AmqpSerializer on an executor, so
+ * that threads doing I/O are not held up by large messages. A buffer
+ * passed to these methods must not be used by the caller until the
+ * returned future completes.
+ * <p>This class and AmqpDecodingProcessor require Java 9 or later; the
+ * rest of the library does not depend on them.</p>
+ */
+public class AmqpAsyncSerializer {
+    private final AmqpSerializer serializer;
+    private final Executor executor;
+    
+    /**
+     * Creates an asynchronous serializer.
+     * @param serializer The serializer doing the work.
+     * @param executor The executor running the work.
+     */
+    public AmqpAsyncSerializer(AmqpSerializer serializer, Executor executor) {
+        this.serializer = serializer;
+        this.executor = executor;
+    }
+    
+    public AmqpSerializer getSerializer() {
+        return this.serializer;
+    }
+    
+    public Executor getExecutor() {
+        return this.executor;
+    }
+    
+    /**
+     * Encodes an object graph into a buffer.
+     * @param buffer Buffer to save the bytes. The buffer's position is
+     * advanced after bytes are written.
+     * @param graph Object to be encoded.
+     * @return A future completed with the buffer.
+     */
+    public CompletableFuture<ByteBuffer> writeObjectAsync(final ByteBuffer buffer,
+            final Object graph) {
+        return CompletableFuture.supplyAsync(new Supplier<ByteBuffer>() {
+            @Override
+            public ByteBuffer get() {
+                serializer.writeObject(buffer, graph);
+                return buffer;
+            }
+        }, this.executor);
+    }
+    
+    /**
+     * Encodes an object graph into a new buffer of the encoded size.
+     * @param graph Object to be encoded.
+     * @return A future completed with a buffer whose position is zero
+     * and limit is the encoded size.
+     */
+    public CompletableFuture<ByteBuffer> writeObjectAsync(final Object graph) {
+        return CompletableFuture.supplyAsync(new Supplier<ByteBuffer>() {
+            @Override
+            public ByteBuffer get() {
+                int size = serializer.getCustomType().estimateSize(graph);
+                ByteArrayWriter writer = new ByteArrayWriter(size > 0 ? size : 256);
+                serializer.writeObject(writer, graph);
+                return ByteBuffer.wrap(writer.array(), 0, writer.position());
+            }
+        }, this.executor);
+    }
+    
+    /**
+     * Decodes an object of the specified type from a buffer.
+     * @param <T> Expected type of the object.
+     * @param c Class of the type.
+     * @param buffer Buffer to read bytes. The buffer's position is
+     * advanced after bytes are read.
+     * @return A future completed with the object.
+     */
+    public <T> CompletableFuture<T> readObjectAsync(final Class<T> c, final ByteBuffer buffer) {
+        return CompletableFuture.supplyAsync(new Supplier<T>() {
+            @Override
+            public T get() {
+                return serializer.readObject(c, buffer);
+            }
+        }, this.executor);
+    }
+    
+    /**
+     * Creates a processor decoding buffers into objects on the executor
+     * of this serializer.
+     * @param <T> Type of the objects.
+     * @param c Class of the type.
+     * @param maxInFlight Maximum number of buffers requested from the
+     * upstream publisher and not yet published as objects.
+     * @param keyOf Function returning the ordering key of a buffer, or
+     * null if objects may be published in any order.
+     * @return The processor.
+     */
+    public <T> AmqpDecodingProcessor<T> newDecodingProcessor(Class<T> c, int maxInFlight,
+            Function<ByteBuffer, ?> keyOf) {
+        return new AmqpDecodingProcessor<>(this.serializer, c, this.executor, maxInFlight, keyOf);
+    }
+}
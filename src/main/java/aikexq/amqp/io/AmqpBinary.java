@@ -0,0 +1,364 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A binary value whose bytes are not held in a byte array, for members
+ * too large to materialize. A member of this type is encoded as an AMQP
+ * binary and its bytes are taken from a ByteBuffer, a region of a file
+ * or an InputStream. When written to an AmqpGatheringWriter, the bytes
+ * are referenced rather than copied.
+ * <p>On decoding, the value is a slice of the input where the reader
+ * supports it, so it is valid only while the input is not reused. Values
+ * above the spill threshold of the serializer are copied to a temporary
+ * file that is deleted when the value is closed.</p>
+ */
+public abstract class AmqpBinary implements Closeable {
+    private static final int CHUNK = 64 * 1024;
+    
+    /**
+     * Creates a binary value of the bytes in an array.
+     * @param bytes The array.
+     * @return The value.
+     */
+    public static AmqpBinary of(byte[] bytes) {
+        return new BufferBinary(ByteBuffer.wrap(bytes));
+    }
+    
+    /**
+     * Creates a binary value of the bytes between the position and the
+     * limit of a buffer. The buffer's position is not changed.
+     * @param buffer The buffer.
+     * @return The value.
+     */
+    public static AmqpBinary of(ByteBuffer buffer) {
+        return new BufferBinary(buffer.slice());
+    }
+    
+    /**
+     * Creates a binary value of a region of a file. The channel is not
+     * closed by the value.
+     * @param channel The file.
+     * @param position Position of the first byte in the file.
+     * @param length Number of bytes.
+     * @return The value.
+     */
+    public static AmqpBinary of(FileChannel channel, long position, long length) {
+        return new FileBinary(channel, position, checkLength(length), false);
+    }
+    
+    /**
+     * Creates a binary value of the next bytes of a stream. The bytes can
+     * be consumed only once, and the stream is not closed by the value.
+     * @param stream The stream.
+     * @param length Number of bytes to take from the stream.
+     * @return The value.
+     */
+    public static AmqpBinary of(InputStream stream, long length) {
+        return new StreamBinary(stream, checkLength(length));
+    }
+    
+    /**
+     * Reads a binary value into a temporary file.
+     * @param reader The reader positioned at the first byte of the value.
+     * @param length Number of bytes.
+     * @param directory Directory of the file, or null for the default
+     * temporary directory.
+     * @return The value. Closing it deletes the file.
+     * @throws IOException
+     */
+    static AmqpBinary spill(AmqpReader reader, int length, Path directory) throws IOException {
+        reader.require(length);
+        Path path = directory == null
+                ? Files.createTempFile("amqp", ".bin")
+                : Files.createTempFile(directory, "amqp", ".bin");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            byte[] chunk = new byte[Math.min(CHUNK, length)];
+            int remaining = length;
+            while (remaining > 0) {
+                int n = Math.min(chunk.length, remaining);
+                reader.get(chunk, 0, n);
+                ByteBuffer b = ByteBuffer.wrap(chunk, 0, n);
+                while (b.hasRemaining()) {
+                    channel.write(b);
+                }
+                remaining -= n;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new FileBinary(channel, 0, length, true);
+    }
+    
+    private static int checkLength(long length) {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new AmqpIoException("Invalid binary length " + length);
+        }
+        return (int)length;
+    }
+    
+    /**
+     * Gets the number of bytes.
+     * @return The length.
+     */
+    public abstract int length();
+    
+    /**
+     * Gets the bytes as a buffer. A file region is mapped into memory;
+     * a stream is read into a new buffer.
+     * @return A read-only buffer of the bytes.
+     * @throws IOException
+     */
+    public abstract ByteBuffer asByteBuffer() throws IOException;
+    
+    /**
+     * Writes the bytes to a channel. A file region is transferred with
+     * FileChannel.transferTo.
+     * @param channel The channel.
+     * @throws IOException
+     */
+    public abstract void transferTo(WritableByteChannel channel) throws IOException;
+    
+    /**
+     * Returns true if the bytes are in memory, so asByteBuffer does not
+     * map or read anything.
+     */
+    boolean isBuffer() {
+        return false;
+    }
+    
+    /**
+     * Copies the bytes to a writer.
+     * @param writer The writer.
+     * @throws IOException
+     */
+    abstract void copyTo(AmqpWriter writer) throws IOException;
+    
+    /**
+     * Gets the bytes as a new array.
+     * @return The array.
+     * @throws IOException
+     */
+    public byte[] toByteArray() throws IOException {
+        byte[] bytes = new byte[this.length()];
+        this.asByteBuffer().get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Releases a temporary file holding the bytes. Values created by the
+     * application hold no resources.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+    }
+    
+    private static class BufferBinary extends AmqpBinary {
+        private final ByteBuffer buffer;
+        
+        public BufferBinary(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int length() {
+            return this.buffer.remaining();
+        }
+
+        @Override
+        boolean isBuffer() {
+            return true;
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return this.buffer.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void transferTo(WritableByteChannel channel) throws IOException {
+            ByteBuffer b = this.buffer.duplicate();
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+        }
+
+        @Override
+        void copyTo(AmqpWriter writer) {
+            if (this.buffer.hasArray()) {
+                writer.put(this.buffer.array(),
+                        this.buffer.arrayOffset() + this.buffer.position(), this.length());
+                return;
+            }
+            ByteBuffer b = this.buffer.duplicate();
+            byte[] chunk = new byte[Math.min(CHUNK, b.remaining())];
+            while (b.hasRemaining()) {
+                int n = Math.min(chunk.length, b.remaining());
+                b.get(chunk, 0, n);
+                writer.put(chunk, 0, n);
+            }
+        }
+    }
+    
+    private static class FileBinary extends AmqpBinary {
+        private final FileChannel channel;
+        private final long position;
+        private final int length;
+        private final boolean owned;
+        
+        public FileBinary(FileChannel channel, long position, int length, boolean owned) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.owned = owned;
+        }
+
+        @Override
+        public int length() {
+            return this.length;
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() throws IOException {
+            return this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, this.length);
+        }
+
+        @Override
+        public void transferTo(WritableByteChannel channel) throws IOException {
+            long pos = this.position;
+            long end = pos + this.length;
+            while (pos < end) {
+                long n = this.channel.transferTo(pos, end - pos, channel);
+                if (n <= 0) {
+                    throw new AmqpIoException("File ended before the binary value");
+                }
+                pos += n;
+            }
+        }
+
+        @Override
+        void copyTo(AmqpWriter writer) throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate(Math.min(CHUNK, this.length));
+            long pos = this.position;
+            long end = pos + this.length;
+            while (pos < end) {
+                chunk.clear();
+                chunk.limit((int)Math.min(chunk.capacity(), end - pos));
+                int n = this.channel.read(chunk, pos);
+                if (n <= 0) {
+                    throw new AmqpIoException("File ended before the binary value");
+                }
+                writer.put(chunk.array(), 0, n);
+                pos += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.owned) {
+                this.channel.close();
+            }
+        }
+    }
+    
+    private static class StreamBinary extends AmqpBinary {
+        private final InputStream stream;
+        private final int length;
+        private ByteBuffer buffer;
+        
+        public StreamBinary(InputStream stream, int length) {
+            this.stream = stream;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return this.length;
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() throws IOException {
+            if (this.buffer == null) {
+                byte[] bytes = new byte[this.length];
+                int pos = 0;
+                while (pos < bytes.length) {
+                    pos += this.read(bytes, pos, bytes.length - pos);
+                }
+                this.buffer = ByteBuffer.wrap(bytes);
+            }
+            return this.buffer.asReadOnlyBuffer();
+        }
+
+        @Override
+        public void transferTo(WritableByteChannel channel) throws IOException {
+            if (this.buffer != null) {
+                ByteBuffer b = this.buffer.duplicate();
+                while (b.hasRemaining()) {
+                    channel.write(b);
+                }
+                return;
+            }
+            byte[] chunk = new byte[Math.min(CHUNK, this.length)];
+            int remaining = this.length;
+            while (remaining > 0) {
+                int n = this.read(chunk, 0, Math.min(chunk.length, remaining));
+                ByteBuffer b = ByteBuffer.wrap(chunk, 0, n);
+                while (b.hasRemaining()) {
+                    channel.write(b);
+                }
+                remaining -= n;
+            }
+        }
+
+        @Override
+        void copyTo(AmqpWriter writer) throws IOException {
+            if (this.buffer != null) {
+                writer.put(this.buffer.array(), 0, this.length);
+                return;
+            }
+            byte[] chunk = new byte[Math.min(CHUNK, this.length)];
+            int remaining = this.length;
+            while (remaining > 0) {
+                int n = this.read(chunk, 0, Math.min(chunk.length, remaining));
+                writer.put(chunk, 0, n);
+                remaining -= n;
+            }
+        }
+        
+        private int read(byte[] bytes, int offset, int length) throws IOException {
+            int n = this.stream.read(bytes, offset, length);
+            if (n < 0) {
+                throw new AmqpIoException("Stream ended before the binary value");
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes values of one class by hand instead of by
+ * reflection. A codec is registered with
+ * {@link AmqpSerializer#registerCodec(AmqpCodec)}, or listed in
+ * META-INF/services/aikexq.amqp.io.AmqpCodec to be registered with every
+ * serializer created afterwards, and is consulted before any other
+ * encoder for exactly its class.
+ * <p>A codec writes and reads one complete AMQP value, constructor
+ * included, and is never given null. The static helpers write and read
+ * values the way the built-in encoders do, and
+ * {@link #writeObject(AmqpWriter, Object, Context)} and
+ * {@link #readObject(Class, AmqpReader)} hand nested values back to
+ * the serializer.</p>
+ * <p>The following codec encodes a value class as a described list:</p>
+ * <pre><code>
+ *   public class MoneyCodec extends AmqpCodec&lt;Money&gt; {
+ *       private static final byte[] DESCRIPTOR = descriptor("example:money");
+ *       
+ *       public MoneyCodec() {
+ *           super(Money.class);
+ *       }
+ *       
+ *       public void encode(AmqpWriter writer, Money value, Context context) {
+ *           writer.put(DESCRIPTOR);
+ *           int list = beginList(writer);
+ *           writeLong(writer, value.cents());
+ *           writeString(writer, value.currency());
+ *           endList(writer, list, 2);
+ *       }
+ *       
+ *       public Money decode(AmqpReader reader) throws Exception {
+ *           skipDescriptor(reader);
+ *           readListCount(reader);
+ *           return new Money(readLong(reader), readString(reader));
+ *       }
+ *   }
+ * </code></pre>
+ * @param <T> The class of the values.
+ */
+public abstract class AmqpCodec<T> {
+    private final Class<T> type;
+    private CustomType customType;
+    
+    /**
+     * Identifies the encoding in progress. It is passed from
+     * {@link #encode(AmqpWriter, Object, Context)} to
+     * {@link #writeObject(AmqpWriter, Object, Context)} so that cyclic
+     * references through the codec are still detected.
+     */
+    public static abstract class Context {
+        Context() {
+        }
+    }
+    
+    /**
+     * Creates a codec.
+     * @param type The class of the values. Subclasses are not covered.
+     */
+    protected AmqpCodec(Class<T> type) {
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+        this.type = type;
+    }
+    
+    /**
+     * Gets the class of the values.
+     * @return The class.
+     */
+    public final Class<T> getType() {
+        return this.type;
+    }
+    
+    /**
+     * Writes a value.
+     * @param writer The writer.
+     * @param value The value, not null.
+     * @param context The encoding in progress.
+     * @throws Exception
+     */
+    public abstract void encode(AmqpWriter writer, T value, Context context) throws Exception;
+    
+    /**
+     * Reads a value written by {@link #encode(AmqpWriter, Object, Context)}.
+     * @param reader The reader, positioned at the constructor of a value
+     * that is not null.
+     * @return The value.
+     * @throws Exception
+     */
+    public abstract T decode(AmqpReader reader) throws Exception;
+    
+    /**
+     * Estimates the encoded size of a value, used to size buffers that
+     * the serializer allocates for it.
+     * @param value The value.
+     * @return The size in bytes, or -1 if unknown.
+     */
+    public int estimateSize(T value) {
+        return -1;
+    }
+    
+    synchronized void bind(CustomType customType) {
+        if (this.customType != null && this.customType != customType) {
+            throw new AmqpIoException("Codec of " + this.type.getName()
+                    + " is registered with another serializer");
+        }
+        this.customType = customType;
+    }
+    
+    /**
+     * Writes a nested value with the encoder the serializer has for it.
+     * @param writer The writer.
+     * @param value The value, or null.
+     * @param context The context given to encode.
+     * @throws Exception
+     */
+    protected final void writeObject(AmqpWriter writer, Object value, Context context) throws Exception {
+        this.customType.writeObject(writer, value, (ObjectPath)context);
+    }
+    
+    /**
+     * Reads a nested value with the decoder the serializer has for a class.
+     * @param <V> The class.
+     * @param c The class, or Object.class to decode by format code.
+     * @param reader The reader.
+     * @return The value, or null.
+     * @throws Exception
+     */
+    protected final <V> V readObject(Class<V> c, AmqpReader reader) throws Exception {
+        return (V)this.customType.readObject(c, reader);
+    }
+    
+    /**
+     * Encodes a descriptor, to be written before the value it describes.
+     * @param symbol The descriptor symbol.
+     * @return The described type constructor and the symbol.
+     */
+    protected static byte[] descriptor(String symbol) {
+        byte[] name = symbol.getBytes(StandardCharsets.US_ASCII);
+        ByteArrayWriter writer = new ByteArrayWriter(name.length + 6);
+        writer.put(FormatCode._described);
+        if (name.length < 256) {
+            writer.put(FormatCode._symbol8);
+            writer.put((byte)name.length);
+        } else {
+            writer.put(FormatCode._symbol32);
+            writer.putInt(name.length);
+        }
+        writer.put(name);
+        return Arrays.copyOf(writer.array(), writer.position());
+    }
+    
+    /**
+     * Skips the described type constructor and the descriptor.
+     * @param reader The reader.
+     * @throws Exception
+     */
+    protected static void skipDescriptor(AmqpReader reader) throws Exception {
+        FormatCode.assertEqual(FormatCode._described, reader.get());
+        PrimitiveType.skipObject(reader);
+    }
+    
+    /**
+     * Starts a list32. Items are written next and the list is completed
+     * by {@link #endList(AmqpWriter, int, int)}.
+     * @param writer The writer.
+     * @return The position to pass to endList.
+     */
+    protected static int beginList(AmqpWriter writer) {
+        writer.put(FormatCode._list32);
+        int position = writer.position();
+        writer.putInt(0);
+        writer.putInt(0);
+        return position;
+    }
+    
+    /**
+     * Completes a list started by {@link #beginList(AmqpWriter)}.
+     * @param writer The writer.
+     * @param position The position returned by beginList.
+     * @param count The number of items written.
+     */
+    protected static void endList(AmqpWriter writer, int position, int count) {
+        writer.putInt(position, writer.position() - position - 4);
+        writer.putInt(position + 4, count);
+    }
+    
+    /**
+     * Reads the constructor, size and count of a list. Items follow.
+     * @param reader The reader.
+     * @return The number of items.
+     * @throws Exception
+     */
+    protected static int readListCount(AmqpReader reader) throws Exception {
+        byte code = reader.get();
+        if (code == FormatCode._list0) {
+            return 0;
+        }
+        if (code == FormatCode._list8) {
+            reader.require(reader.get() & 0xff);
+            return reader.get() & 0xff;
+        }
+        FormatCode.assertEqual(FormatCode._list32, code);
+        reader.require(reader.getInt());
+        return reader.getInt();
+    }
+    
+    protected static void writeNull(AmqpWriter writer) {
+        writer.put(FormatCode._null);
+    }
+    
+    protected static void writeBoolean(AmqpWriter writer, boolean value) {
+        PrimitiveType.writeBoolean(writer, value);
+    }
+    
+    protected static void writeByte(AmqpWriter writer, byte value) {
+        PrimitiveType.writeByte(writer, value);
+    }
+    
+    protected static void writeShort(AmqpWriter writer, short value) {
+        PrimitiveType.writeShort(writer, value);
+    }
+    
+    protected static void writeInt(AmqpWriter writer, int value) {
+        PrimitiveType.writeInt(writer, value);
+    }
+    
+    protected static void writeLong(AmqpWriter writer, long value) {
+        PrimitiveType.writeLong(writer, value);
+    }
+    
+    protected static void writeFloat(AmqpWriter writer, float value) {
+        PrimitiveType.writeFloat(writer, value);
+    }
+    
+    protected static void writeDouble(AmqpWriter writer, double value) {
+        PrimitiveType.writeDouble(writer, value);
+    }
+    
+    protected static void writeChar(AmqpWriter writer, char value) {
+        PrimitiveType.writeChar(writer, value);
+    }
+    
+    /**
+     * Writes milliseconds since the Unix epoch as a timestamp.
+     */
+    protected static void writeTimestamp(AmqpWriter writer, long value) {
+        PrimitiveType.writeTimestamp(writer, value);
+    }
+    
+    /**
+     * Writes a string, or null, as UTF-8 without an intermediate array.
+     */
+    protected static void writeString(AmqpWriter writer, String value) {
+        if (value == null) {
+            writer.put(FormatCode._null);
+        } else {
+            writer.put(FormatCode._string32);
+            PrimitiveType.writeUtf8(writer, value);
+        }
+    }
+    
+    /**
+     * Writes a decimal, or null, as a decimal128.
+     */
+    protected static void writeDecimal(AmqpWriter writer, BigDecimal value) {
+        if (value == null) {
+            writer.put(FormatCode._null);
+        } else {
+            writer.put(FormatCode._decimal128);
+            PrimitiveType.writeDecimal128(writer, value);
+        }
+    }
+    
+    protected static boolean readBoolean(AmqpReader reader) throws Exception {
+        return PrimitiveType.readBoolean(reader, reader.get());
+    }
+    
+    protected static byte readByte(AmqpReader reader) throws Exception {
+        return PrimitiveType.readByte(reader, reader.get());
+    }
+    
+    protected static short readShort(AmqpReader reader) throws Exception {
+        return PrimitiveType.readShort(reader, reader.get());
+    }
+    
+    protected static int readInt(AmqpReader reader) throws Exception {
+        return PrimitiveType.readInt(reader, reader.get());
+    }
+    
+    protected static long readLong(AmqpReader reader) throws Exception {
+        return PrimitiveType.readLong(reader, reader.get());
+    }
+    
+    protected static float readFloat(AmqpReader reader) throws Exception {
+        return PrimitiveType.readFloat(reader, reader.get());
+    }
+    
+    protected static double readDouble(AmqpReader reader) throws Exception {
+        return PrimitiveType.readDouble(reader, reader.get());
+    }
+    
+    protected static char readChar(AmqpReader reader) throws Exception {
+        return PrimitiveType.readChar(reader, reader.get());
+    }
+    
+    protected static long readTimestamp(AmqpReader reader) throws Exception {
+        return PrimitiveType.readTimestamp(reader, reader.get());
+    }
+    
+    /**
+     * Reads a string or symbol.
+     * @return The string, or null.
+     */
+    protected static String readString(AmqpReader reader) throws Exception {
+        byte code = reader.get();
+        if (code == FormatCode._null) {
+            return null;
+        }
+        int length;
+        if (code == FormatCode._string8 || code == FormatCode._symbol8) {
+            length = reader.get() & 0xff;
+        } else {
+            if (code != FormatCode._symbol32) {
+                FormatCode.assertEqual(FormatCode._string32, code);
+            }
+            length = reader.getInt();
+        }
+        return PrimitiveType.readString(reader, length, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Reads a decimal in any decimal or integer encoding.
+     * @return The decimal, or null.
+     */
+    protected static BigDecimal readDecimal(AmqpReader reader) throws Exception {
+        byte code = reader.get();
+        return code == FormatCode._null ? null : PrimitiveType.readDecimal(reader, code);
+    }
+}
@@ -42,4 +42,23 @@ public @interface AmqpContract {
      * @return The encoding type of the value.
      */
     EncodingType type() default EncodingType.DescribedList;
-}
\ No newline at end of file
+
+    /**
+     * Defines the version of the contract. Values of a version above 0
+     * are written with the descriptor name followed by ":v" and the
+     * version, so that readers of other versions can translate them.
+     * @return The version of the contract.
+     */
+    int version() default 0;
+
+    /**
+     * Defines whether the encoded bytes of an instance may be cached by
+     * the serializer and copied in whenever the same instance is written
+     * again, once the cache is enabled with
+     * {@link AmqpSerializer#setEncodedCache(int, int)}. Set it only on classes whose instances do not change once
+     * written, or invalidate an instance after changing it.
+     * @return True if the encoded bytes may be cached.
+     * @see AmqpSerializer#invalidate(Object)
+     */
+    boolean cacheable() default false;
+}
@@ -0,0 +1,210 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A processor decoding a stream of buffers into objects. Each buffer holds
+ * one encoded object and is decoded on the executor; a buffer must not be
+ * reused by the upstream publisher once it is passed to onNext.
+ * <p>At most maxInFlight buffers are requested from the upstream publisher
+ * before their objects are published, and an object is published only
+ * when subscribers have demand for it, so a slow subscriber slows down the
+ * upstream publisher. Without a key function objects are published in the
+ * order decoding completes. With a key function buffers of the same key
+ * are decoded one after another and their objects are published in the
+ * order the buffers arrived, while buffers of different keys are decoded
+ * in parallel.</p>
+ * <p>The first decoding error cancels the upstream subscription and is
+ * passed to subscribers after the objects already decoded.</p>
+ * @param <T> Type of the objects.
+ */
+public class AmqpDecodingProcessor<T> implements Flow.Processor<ByteBuffer, T> {
+    private final AmqpSerializer serializer;
+    private final Class<T> type;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final Function<ByteBuffer, ?> keyOf;
+    private final SubmissionPublisher<T> publisher;
+    private final HashMap<Object, ArrayDeque<ByteBuffer>> queues;
+    private final AtomicInteger inFlight;
+    private Flow.Subscription subscription;
+    private volatile boolean done;
+    private volatile Throwable failure;
+    
+    /**
+     * Creates a decoding processor.
+     * @param serializer The serializer decoding the buffers.
+     * @param c Class of the objects.
+     * @param executor The executor running the decoding and delivering
+     * objects to subscribers.
+     * @param maxInFlight Maximum number of buffers requested from the
+     * upstream publisher and not yet published as objects.
+     * @param keyOf Function returning the ordering key of a buffer, or
+     * null if objects may be published in any order.
+     */
+    public AmqpDecodingProcessor(AmqpSerializer serializer, Class<T> c, Executor executor,
+            int maxInFlight, Function<ByteBuffer, ?> keyOf) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        
+        this.serializer = serializer;
+        this.type = c;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.keyOf = keyOf;
+        this.publisher = new SubmissionPublisher<>(executor, maxInFlight);
+        this.queues = new HashMap<>();
+        this.inFlight = new AtomicInteger();
+    }
+    
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        this.publisher.subscribe(subscriber);
+    }
+    
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        
+        this.subscription = subscription;
+        subscription.request(this.maxInFlight);
+    }
+    
+    @Override
+    public void onNext(final ByteBuffer item) {
+        if (this.failure != null) {
+            return;
+        }
+        
+        this.inFlight.incrementAndGet();
+        if (this.keyOf == null) {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decode(item);
+                    finish();
+                }
+            });
+            return;
+        }
+        
+        final Object key = this.keyOf.apply(item);
+        synchronized (this.queues) {
+            ArrayDeque<ByteBuffer> queue = this.queues.get(key);
+            if (queue != null) {
+                queue.add(item);
+                return;
+            }
+            
+            this.queues.put(key, new ArrayDeque<ByteBuffer>());
+        }
+        
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain(key, item);
+            }
+        });
+    }
+    
+    @Override
+    public void onError(Throwable throwable) {
+        this.failure = throwable;
+        this.done = true;
+        this.tryClose();
+    }
+    
+    @Override
+    public void onComplete() {
+        this.done = true;
+        this.tryClose();
+    }
+    
+    private void drain(Object key, ByteBuffer item) {
+        while (item != null) {
+            this.decode(item);
+            synchronized (this.queues) {
+                ArrayDeque<ByteBuffer> queue = this.queues.get(key);
+                item = queue.poll();
+                if (item == null) {
+                    this.queues.remove(key);
+                }
+            }
+            
+            this.finish();
+        }
+    }
+    
+    private void decode(ByteBuffer item) {
+        if (this.failure != null) {
+            return;
+        }
+        
+        try {
+            T value = this.serializer.readObject(this.type, item);
+            this.publisher.submit(value);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (this.failure == null) {
+                    this.failure = e;
+                    this.done = true;
+                }
+            }
+            
+            this.subscription.cancel();
+        }
+    }
+    
+    private void finish() {
+        if (this.inFlight.decrementAndGet() == 0 && this.done) {
+            this.tryClose();
+        } else if (!this.done) {
+            this.subscription.request(1);
+        }
+    }
+    
+    private void tryClose() {
+        if (this.inFlight.get() != 0) {
+            return;
+        }
+        
+        synchronized (this) {
+            if (this.publisher.isClosed()) {
+                return;
+            }
+            
+            if (this.failure != null) {
+                this.publisher.closeExceptionally(this.failure);
+            } else {
+                this.publisher.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,517 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Edits encoded values of a custom type in place, without decoding them.
+ * The buffer holds one encoded value between its position and limit.
+ * <p>Members are located by their index in the encoding plan, which is
+ * returned by indexOf and indexOfOrder. Fixed-width members are
+ * overwritten in the width they were encoded with. Elements are appended
+ * to or removed from list and map members encoded as list32 and map32,
+ * moving the bytes that follow and updating the size and count headers
+ * of the member and of the custom type.</p>
+ * <p>Methods that change a value return false without changing anything
+ * if the change needs the value to be encoded again: the new value does
+ * not fit in the encoded width, the member is absent or null, a header
+ * is not 32-bit, or the buffer capacity cannot hold the extra bytes. In
+ * the last case the edit can be retried with a larger copy of the
+ * buffer.</p>
+ * <p>A value in a checksum envelope is edited inside it, and the checksum
+ * is computed again after each change.</p>
+ */
+public class AmqpEditor {
+    private final AmqpSerializer serializer;
+    private final CustomType.Plan plan;
+    
+    /**
+     * Creates an editor for the values of a custom type.
+     * @param serializer The serializer encoding the values.
+     * @param c Class of the custom type.
+     * @throws AmqpIoException
+     */
+    public AmqpEditor(AmqpSerializer serializer, Class c) throws AmqpIoException {
+        this.serializer = serializer;
+        try {
+            this.plan = serializer.getCustomType().getPlan(c);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Gets the index of a member by name.
+     * @param name The member name.
+     * @return The index, or -1 if there is no such member.
+     */
+    public int indexOf(String name) {
+        return this.plan.indexOf(name);
+    }
+    
+    /**
+     * Gets the index of a member by its AmqpMember order.
+     * @param order The order.
+     * @return The index, or -1 if there is no such member.
+     */
+    public int indexOfOrder(int order) {
+        return this.plan.indexOfOrder(order);
+    }
+    
+    /**
+     * Overwrites an integer or timestamp member.
+     * @param buffer The encoded value.
+     * @param member Index of the member.
+     * @param value The new value.
+     * @return True if the member was overwritten, false if the value
+     * needs to be encoded again.
+     * @throws AmqpIoException
+     */
+    public boolean setLong(ByteBuffer buffer, int member, long value) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            int pos = this.locate(cache, reader, member);
+            if (pos < 0) {
+                return false;
+            }
+            byte code = reader.get(pos);
+            int width;
+            switch (code & 0xff) {
+                case 0x43:  // uint0
+                case 0x44:  // ulong0
+                    width = 0;
+                    if (value != 0) {
+                        return false;
+                    }
+                    break;
+                case 0x51:  // byte
+                case 0x54:  // small int
+                case 0x55:  // small long
+                    width = 1;
+                    if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
+                        return false;
+                    }
+                    break;
+                case 0x50:  // ubyte
+                case 0x52:  // small uint
+                case 0x53:  // small ulong
+                    width = 1;
+                    if (value < 0 || value > 0xff) {
+                        return false;
+                    }
+                    break;
+                case 0x61:  // short
+                    width = 2;
+                    if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                        return false;
+                    }
+                    break;
+                case 0x60:  // ushort
+                    width = 2;
+                    if (value < 0 || value > 0xffff) {
+                        return false;
+                    }
+                    break;
+                case 0x71:  // int
+                    width = 4;
+                    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                        return false;
+                    }
+                    break;
+                case 0x70:  // uint
+                    width = 4;
+                    if (value < 0 || value > 0xffffffffL) {
+                        return false;
+                    }
+                    break;
+                case 0x80:  // ulong
+                    width = 8;
+                    if (value < 0) {
+                        return false;
+                    }
+                    break;
+                case 0x81:  // long
+                case 0x83:  // timestamp
+                    width = 8;
+                    break;
+                case 0x40:  // null
+                    return false;
+                default:
+                    throw this.notOfType(member, "an integer");
+            }
+            put(buffer, buffer.position() + pos + 1, value, width);
+            this.seal(buffer, cache, 0);
+            return true;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Overwrites a floating point member.
+     * @param buffer The encoded value.
+     * @param member Index of the member.
+     * @param value The new value. A member encoded as float is
+     * overwritten only if the value is exact as a float.
+     * @return True if the member was overwritten, false if the value
+     * needs to be encoded again.
+     * @throws AmqpIoException
+     */
+    public boolean setDouble(ByteBuffer buffer, int member, double value) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            int pos = this.locate(cache, reader, member);
+            if (pos < 0) {
+                return false;
+            }
+            byte code = reader.get(pos);
+            if (code == FormatCode._double) {
+                put(buffer, buffer.position() + pos + 1, Double.doubleToRawLongBits(value), 8);
+            } else if (code == FormatCode._float) {
+                float f = (float)value;
+                if (f != value && !Double.isNaN(value)) {
+                    return false;
+                }
+                put(buffer, buffer.position() + pos + 1, Float.floatToRawIntBits(f), 4);
+            } else if (code == FormatCode._null) {
+                return false;
+            } else {
+                throw this.notOfType(member, "a floating point number");
+            }
+            this.seal(buffer, cache, 0);
+            return true;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Overwrites a boolean member.
+     * @param buffer The encoded value.
+     * @param member Index of the member.
+     * @param value The new value.
+     * @return True if the member was overwritten, false if the value
+     * needs to be encoded again.
+     * @throws AmqpIoException
+     */
+    public boolean setBoolean(ByteBuffer buffer, int member, boolean value) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            int pos = this.locate(cache, reader, member);
+            if (pos < 0) {
+                return false;
+            }
+            byte code = reader.get(pos);
+            if (code == FormatCode._boolTrue || code == FormatCode._boolFalse) {
+                put(buffer, buffer.position() + pos,
+                        value ? FormatCode._boolTrue : FormatCode._boolFalse, 1);
+            } else if (code == FormatCode._bool) {
+                put(buffer, buffer.position() + pos + 1, value ? 1 : 0, 1);
+            } else if (code == FormatCode._null) {
+                return false;
+            } else {
+                throw this.notOfType(member, "a boolean");
+            }
+            this.seal(buffer, cache, 0);
+            return true;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Appends an element to a list member. The buffer's limit is moved
+     * past the extra bytes.
+     * @param buffer The encoded value.
+     * @param member Index of the member.
+     * @param element The element to append.
+     * @return True if the element was appended, false if the value needs
+     * to be encoded again or the buffer capacity is too small.
+     * @throws AmqpIoException
+     */
+    public boolean appendElement(ByteBuffer buffer, int member, Object element)
+            throws AmqpIoException {
+        return this.append(buffer, member, FormatCode._list32, 1, null, false, element);
+    }
+    
+    /**
+     * Appends an entry to a map member. The key must not be in the map
+     * yet. The buffer's limit is moved past the extra bytes.
+     * @param buffer The encoded value.
+     * @param member Index of the member.
+     * @param key The key of the entry.
+     * @param value The value of the entry.
+     * @return True if the entry was appended, false if the value needs
+     * to be encoded again or the buffer capacity is too small.
+     * @throws AmqpIoException
+     */
+    public boolean appendEntry(ByteBuffer buffer, int member, Object key, Object value)
+            throws AmqpIoException {
+        return this.append(buffer, member, FormatCode._map32, 2, key, true, value);
+    }
+    
+    /**
+     * Removes an element from a list member. The buffer's limit is moved
+     * back by the bytes removed.
+     * @param buffer The encoded value.
+     * @param member Index of the member.
+     * @param index Index of the element.
+     * @return True if the element was removed, false if the list has no
+     * such element or needs to be encoded again.
+     * @throws AmqpIoException
+     */
+    public boolean removeElement(ByteBuffer buffer, int member, int index)
+            throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            CustomType.Plan.Value encoded = this.open(cache, reader);
+            int body = encoded.body;
+            int pos = locate(encoded, member);
+            if (pos < 0 || reader.get(pos) != FormatCode._list32 ||
+                !isHeader32(reader, body)) {
+                return false;
+            }
+            reader.position(pos + 1);
+            reader.getInt();
+            int count = reader.getInt();
+            if (index < 0 || index >= count) {
+                return false;
+            }
+            for (int i = 0; i < index; i++) {
+                PrimitiveType.skipObject(reader);
+            }
+            int start = reader.position();
+            PrimitiveType.skipObject(reader);
+            this.remove(buffer, cache, reader, body, pos, start, reader.position() - start, 1);
+            return true;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Removes an entry with a string or symbol key from a map member. The
+     * buffer's limit is moved back by the bytes removed.
+     * @param buffer The encoded value.
+     * @param member Index of the member.
+     * @param key The key of the entry.
+     * @return True if the entry was removed, false if the map has no
+     * such entry or needs to be encoded again.
+     * @throws AmqpIoException
+     */
+    public boolean removeEntry(ByteBuffer buffer, int member, String key)
+            throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            CustomType.Plan.Value encoded = this.open(cache, reader);
+            int body = encoded.body;
+            int pos = locate(encoded, member);
+            if (pos < 0 || reader.get(pos) != FormatCode._map32 ||
+                !isHeader32(reader, body)) {
+                return false;
+            }
+            reader.position(pos + 1);
+            reader.getInt();
+            int count = reader.getInt();
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < count / 2; i++) {
+                int start = reader.position();
+                boolean found = CustomType.Plan.matchesKey(reader, bytes);
+                reader.position(start);
+                PrimitiveType.skipObject(reader);
+                PrimitiveType.skipObject(reader);
+                if (found) {
+                    this.remove(buffer, cache, reader, body, pos, start,
+                            reader.position() - start, 2);
+                    return true;
+                }
+            }
+            return false;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    private boolean append(ByteBuffer buffer, int member, byte listCode, int items,
+            Object key, boolean hasKey, Object value) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            CustomType.Plan.Value encoded = this.open(cache, reader);
+            int body = encoded.body;
+            int pos = locate(encoded, member);
+            if (pos < 0 || reader.get(pos) != listCode || !isHeader32(reader, body)) {
+                return false;
+            }
+            reader.position(pos + 1);
+            int end = reader.position() + 4 + reader.getInt();
+            
+            ByteArrayWriter scratch = cache.scratch();
+            CustomType customType = this.serializer.getCustomType();
+            if (hasKey) {
+                customType.writeObject(scratch, key, cache.path());
+            }
+            customType.writeObject(scratch, value, cache.path());
+            int length = scratch.position();
+            if (buffer.capacity() - buffer.limit() < length) {
+                return false;
+            }
+            
+            int base = buffer.position();
+            buffer.limit(buffer.limit() + length);
+            move(buffer, base + end, base + end + length, buffer.limit() - base - end - length);
+            byte[] bytes = scratch.array();
+            for (int i = 0; i < length; i++) {
+                buffer.put(base + end + i, bytes[i]);
+            }
+            this.resize(buffer, reader, body, pos, length, items);
+            this.seal(buffer, cache, length);
+            return true;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    private void remove(ByteBuffer buffer, BufferCache cache, AmqpReader reader, int body,
+            int pos, int start, int length, int items) throws Exception {
+        int base = buffer.position();
+        move(buffer, base + start + length, base + start,
+                buffer.limit() - base - start - length);
+        buffer.limit(buffer.limit() - length);
+        this.resize(buffer, reader, body, pos, -length, -items);
+        this.seal(buffer, cache, -length);
+    }
+    
+    /**
+     * Updates the checksum envelope around an edited value, if any. The
+     * trailer follows the value, so it was moved with the bytes.
+     */
+    private void seal(ByteBuffer buffer, BufferCache cache, int delta) throws Exception {
+        if (ChecksumEnvelope.matches(cache.reader(buffer))) {
+            ChecksumEnvelope.reseal(buffer, delta, cache, this.serializer.getChecksumType());
+        }
+    }
+    
+    /**
+     * Adds to the size of the custom type and to the size and count of a
+     * member. The reader still sees the headers, which precede the moved
+     * bytes.
+     */
+    private void resize(ByteBuffer buffer, AmqpReader reader, int body, int pos,
+            int delta, int items) {
+        int base = buffer.position();
+        put(buffer, base + body + 1, getInt(reader, body + 1) + delta, 4);
+        put(buffer, base + pos + 1, getInt(reader, pos + 1) + delta, 4);
+        put(buffer, base + pos + 5, getInt(reader, pos + 5) + items, 4);
+    }
+    
+    /**
+     * Opens the value, verifying its checksum first, since an edit seals
+     * the value again and must not cover corrupted bytes.
+     */
+    private CustomType.Plan.Value open(BufferCache cache, AmqpReader reader) throws Exception {
+        CustomType.Plan.Value value = this.plan.open(reader, cache,
+                this.serializer.getChecksumType(), false);
+        if (value == null) {
+            throw new AmqpIoException("Not a value of " + this.plan.name);
+        }
+        value.verify();
+        return value;
+    }
+    
+    private int locate(BufferCache cache, AmqpReader reader, int member) throws Exception {
+        return locate(this.open(cache, reader), member);
+    }
+    
+    /**
+     * Finds a member.
+     * @return The position of the format code of the member, or -1 if it
+     * is absent.
+     */
+    private static int locate(CustomType.Plan.Value value, int member) throws Exception {
+        return value.seek(member) ? value.reader.position() : -1;
+    }
+    
+    private static boolean isHeader32(AmqpReader reader, int body) {
+        byte code = reader.get(body);
+        return code == FormatCode._list32 || code == FormatCode._map32;
+    }
+    
+    private static int getInt(AmqpReader reader, int pos) {
+        return (reader.get(pos) & 0xff) << 24 | (reader.get(pos + 1) & 0xff) << 16 |
+                (reader.get(pos + 2) & 0xff) << 8 | (reader.get(pos + 3) & 0xff);
+    }
+    
+    private static void put(ByteBuffer buffer, int index, long value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            buffer.put(index + i, (byte)value);
+            value >>>= 8;
+        }
+    }
+    
+    private static void move(ByteBuffer buffer, int from, int to, int length) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            System.arraycopy(buffer.array(), offset + from, buffer.array(), offset + to, length);
+        } else if (to > from) {
+            for (int i = length - 1; i >= 0; i--) {
+                buffer.put(to + i, buffer.get(from + i));
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer.put(to + i, buffer.get(from + i));
+            }
+        }
+    }
+    
+    private AmqpIoException notOfType(int member, String type) {
+        return new AmqpIoException("Member " + this.plan.names[member] + " is not " + type);
+    }
+}
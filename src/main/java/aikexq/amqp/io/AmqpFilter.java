@@ -0,0 +1,681 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A predicate compiled against the encoding plan of a custom type and
+ * evaluated on encoded values without decoding them. Members are found in
+ * one pass over the value, which stops after the last member the predicate
+ * uses, and are compared in place with no objects created.
+ * <pre>
+ * AmqpFilter filter = new AmqpFilter(serializer, Reading.class,
+ *     AmqpFilter.and(AmqpFilter.gt("count", 10), AmqpFilter.startsWith("unit", "k")));
+ * if (filter.matches(buffer)) {
+ *     Reading r = serializer.readObject(Reading.class, buffer);
+ * }
+ * </pre>
+ * <p>Integer, timestamp and floating point members are compared as
+ * numbers whatever their encoding. Strings and symbols are compared by
+ * their UTF-8 bytes. A comparison with a member that is absent, null or
+ * of another type is false. A value that is not of the custom type does
+ * not match.</p>
+ */
+public class AmqpFilter {
+    private static final int EQ = 0;
+    private static final int NE = 1;
+    private static final int LT = 2;
+    private static final int LE = 3;
+    private static final int GT = 4;
+    private static final int GE = 5;
+    private static final int PREFIX = 6;
+    private static final int MAX_LEAVES = 64;
+    
+    private final AmqpSerializer serializer;
+    private final CustomType.Plan plan;
+    private final SymbolTable symbols;
+    private final Test[][] tests;
+    private final int[][] bits;
+    private final int lastMember;
+    private final long absentBits;
+    private final Node root;
+    private final ArrayList<Test> leaves;
+    private final ArrayList<Integer> members;
+    
+    /**
+     * Compiles a predicate for values of a custom type.
+     * @param serializer The serializer encoding the values.
+     * @param c Class of the custom type.
+     * @param predicate The predicate.
+     * @throws AmqpIoException
+     */
+    public AmqpFilter(AmqpSerializer serializer, Class c, Predicate predicate)
+            throws AmqpIoException {
+        this.serializer = serializer;
+        try {
+            this.plan = serializer.getCustomType().getPlan(c);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        }
+        this.symbols = this.plan.map ? new SymbolTable(this.plan.names) : null;
+        this.leaves = new ArrayList<>();
+        this.members = new ArrayList<>();
+        this.root = predicate.compile(this);
+        
+        int count = this.plan.names.length;
+        int last = -1;
+        long absent = 0;
+        int[] perMember = new int[count];
+        for (int i = 0; i < this.leaves.size(); i++) {
+            int member = this.members.get(i);
+            perMember[member]++;
+            last = Math.max(last, member);
+            if (this.leaves.get(i) instanceof NullTest) {
+                absent |= 1L << i;
+            }
+        }
+        this.tests = new Test[count][];
+        this.bits = new int[count][];
+        for (int m = 0; m < count; m++) {
+            if (perMember[m] > 0) {
+                this.tests[m] = new Test[perMember[m]];
+                this.bits[m] = new int[perMember[m]];
+                int n = 0;
+                for (int i = 0; i < this.leaves.size(); i++) {
+                    if (this.members.get(i) == m) {
+                        this.tests[m][n] = this.leaves.get(i);
+                        this.bits[m][n++] = i;
+                    }
+                }
+            }
+        }
+        this.lastMember = last;
+        this.absentBits = absent;
+    }
+    
+    /**
+     * Evaluates the predicate on the encoded value in the buffer. The
+     * buffer's position is not changed.
+     * @param buffer The buffer.
+     * @return True if the value matches.
+     * @throws AmqpIoException
+     */
+    public boolean matches(ByteBuffer buffer) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            return this.matches(cache, cache.reader(buffer));
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Evaluates the predicate on the encoded value in the reader. The
+     * reader's position is not changed.
+     * @param reader The reader.
+     * @return True if the value matches.
+     * @throws AmqpIoException
+     */
+    public boolean matches(AmqpReader reader) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        int start = reader.position();
+        try {
+            return this.matches(cache, reader);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            reader.position(start);
+            cache.release();
+        }
+    }
+    
+    private boolean matches(BufferCache cache, AmqpReader reader) throws Exception {
+        CustomType.Plan.Value value = this.plan.open(reader, cache,
+                this.serializer.getChecksumType(), true);
+        if (value == null) {
+            return false;
+        }
+        boolean match;
+        try {
+            match = this.matches(value);
+        } catch (Exception e) {
+            value.verify(e);
+            throw e;
+        }
+        // a value that does not match is skipped, so only a match needs
+        // the bytes it stopped reading at to be checked
+        if (match) {
+            value.verify();
+        }
+        return match;
+    }
+    
+    private boolean matches(CustomType.Plan.Value value) throws Exception {
+        AmqpReader reader = value.reader;
+        long result = this.absentBits;
+        if (this.plan.map) {
+            for (int i = 0; i < value.count; i++) {
+                int member = this.findKey(reader);
+                if (member >= 0 && this.tests[member] != null) {
+                    result = this.test(reader, member, result);
+                }
+                PrimitiveType.skipObject(reader);
+            }
+        } else {
+            // list items follow the member order in every version, so the
+            // scan stops past the last tested member
+            for (int i = 0; i < value.count; i++) {
+                int member = value.member(i);
+                if (member > this.lastMember) {
+                    break;
+                }
+                if (member >= 0 && this.tests[member] != null) {
+                    result = this.test(reader, member, result);
+                }
+                PrimitiveType.skipObject(reader);
+            }
+        }
+        return this.root.eval(result);
+    }
+    
+    private long test(AmqpReader reader, int member, long result) throws Exception {
+        Test[] t = this.tests[member];
+        int[] b = this.bits[member];
+        int pos = reader.position();
+        for (int i = 0; i < t.length; i++) {
+            reader.position(pos);
+            if (t[i].test(reader)) {
+                result |= 1L << b[i];
+            } else {
+                result &= ~(1L << b[i]);
+            }
+        }
+        reader.position(pos);
+        return result;
+    }
+    
+    /**
+     * Reads a map key and returns the index of its member, or -1.
+     */
+    private int findKey(AmqpReader reader) throws Exception {
+        int len = CustomType.Plan.readKey(reader);
+        return len < 0 ? -1 : this.symbols.find(reader, reader.position() - len, len);
+    }
+    
+    private Node leaf(String member, Test test) {
+        int index = this.plan.indexOf(member);
+        if (index < 0) {
+            throw new AmqpIoException("Unknown member " + member + " of " + this.plan.name);
+        }
+        if (this.leaves.size() == MAX_LEAVES) {
+            throw new AmqpIoException("A filter can have at most " + MAX_LEAVES + " comparisons");
+        }
+        this.leaves.add(test);
+        this.members.add(index);
+        return new LeafNode(this.leaves.size() - 1);
+    }
+    
+    /**
+     * A predicate over the members of a custom type, created by the static
+     * methods of AmqpFilter.
+     */
+    public static abstract class Predicate {
+        Predicate() {
+        }
+        
+        abstract Node compile(AmqpFilter filter);
+    }
+    
+    private static class LeafPredicate extends Predicate {
+        private final String member;
+        private final Test test;
+        
+        LeafPredicate(String member, Test test) {
+            this.member = member;
+            this.test = test;
+        }
+        
+        @Override
+        Node compile(AmqpFilter filter) {
+            return filter.leaf(this.member, this.test);
+        }
+    }
+    
+    private static class LogicalPredicate extends Predicate {
+        private final boolean and;
+        private final Predicate[] operands;
+        
+        LogicalPredicate(boolean and, Predicate[] operands) {
+            this.and = and;
+            this.operands = operands.clone();
+        }
+        
+        @Override
+        Node compile(AmqpFilter filter) {
+            Node[] nodes = new Node[this.operands.length];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = this.operands[i].compile(filter);
+            }
+            return new LogicalNode(this.and, nodes);
+        }
+    }
+    
+    private static class NotPredicate extends Predicate {
+        private final Predicate operand;
+        
+        NotPredicate(Predicate operand) {
+            this.operand = operand;
+        }
+        
+        @Override
+        Node compile(AmqpFilter filter) {
+            return new NotNode(this.operand.compile(filter));
+        }
+    }
+    
+    public static Predicate and(Predicate... operands) {
+        return new LogicalPredicate(true, operands);
+    }
+    
+    public static Predicate or(Predicate... operands) {
+        return new LogicalPredicate(false, operands);
+    }
+    
+    public static Predicate not(Predicate operand) {
+        return new NotPredicate(operand);
+    }
+    
+    public static Predicate eq(String member, long value) {
+        return new LeafPredicate(member, new NumberTest(EQ, value));
+    }
+    
+    public static Predicate ne(String member, long value) {
+        return new LeafPredicate(member, new NumberTest(NE, value));
+    }
+    
+    public static Predicate lt(String member, long value) {
+        return new LeafPredicate(member, new NumberTest(LT, value));
+    }
+    
+    public static Predicate le(String member, long value) {
+        return new LeafPredicate(member, new NumberTest(LE, value));
+    }
+    
+    public static Predicate gt(String member, long value) {
+        return new LeafPredicate(member, new NumberTest(GT, value));
+    }
+    
+    public static Predicate ge(String member, long value) {
+        return new LeafPredicate(member, new NumberTest(GE, value));
+    }
+    
+    public static Predicate eq(String member, double value) {
+        return new LeafPredicate(member, new NumberTest(EQ, value));
+    }
+    
+    public static Predicate ne(String member, double value) {
+        return new LeafPredicate(member, new NumberTest(NE, value));
+    }
+    
+    public static Predicate lt(String member, double value) {
+        return new LeafPredicate(member, new NumberTest(LT, value));
+    }
+    
+    public static Predicate le(String member, double value) {
+        return new LeafPredicate(member, new NumberTest(LE, value));
+    }
+    
+    public static Predicate gt(String member, double value) {
+        return new LeafPredicate(member, new NumberTest(GT, value));
+    }
+    
+    public static Predicate ge(String member, double value) {
+        return new LeafPredicate(member, new NumberTest(GE, value));
+    }
+    
+    public static Predicate eq(String member, boolean value) {
+        return new LeafPredicate(member, new BooleanTest(value));
+    }
+    
+    public static Predicate eq(String member, String value) {
+        return new LeafPredicate(member, new StringTest(EQ, value));
+    }
+    
+    public static Predicate ne(String member, String value) {
+        return new LeafPredicate(member, new StringTest(NE, value));
+    }
+    
+    public static Predicate startsWith(String member, String prefix) {
+        return new LeafPredicate(member, new StringTest(PREFIX, prefix));
+    }
+    
+    public static Predicate in(String member, long... values) {
+        return new LeafPredicate(member, new LongSetTest(values));
+    }
+    
+    public static Predicate in(String member, String... values) {
+        return new LeafPredicate(member, new StringSetTest(values));
+    }
+    
+    /**
+     * Matches a member that is null or absent.
+     * @param member The member name.
+     * @return The predicate.
+     */
+    public static Predicate isNull(String member) {
+        return new LeafPredicate(member, new NullTest());
+    }
+    
+    /**
+     * A node of a compiled predicate, evaluated over the results of its
+     * comparisons held as bits.
+     */
+    static abstract class Node {
+        abstract boolean eval(long results);
+    }
+    
+    private static class LeafNode extends Node {
+        private final int bit;
+        
+        LeafNode(int bit) {
+            this.bit = bit;
+        }
+        
+        @Override
+        boolean eval(long results) {
+            return (results & (1L << this.bit)) != 0;
+        }
+    }
+    
+    private static class LogicalNode extends Node {
+        private final boolean and;
+        private final Node[] operands;
+        
+        LogicalNode(boolean and, Node[] operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+        
+        @Override
+        boolean eval(long results) {
+            for (Node node : this.operands) {
+                if (node.eval(results) != this.and) {
+                    return !this.and;
+                }
+            }
+            return this.and;
+        }
+    }
+    
+    private static class NotNode extends Node {
+        private final Node operand;
+        
+        NotNode(Node operand) {
+            this.operand = operand;
+        }
+        
+        @Override
+        boolean eval(long results) {
+            return !this.operand.eval(results);
+        }
+    }
+    
+    /**
+     * A comparison of a member value. The reader is positioned at the
+     * format code of the value and may be moved anywhere.
+     */
+    private static abstract class Test {
+        abstract boolean test(AmqpReader reader) throws Exception;
+    }
+    
+    private static boolean compare(int op, int c) {
+        switch (op) {
+            case EQ:
+                return c == 0;
+            case NE:
+                return c != 0;
+            case LT:
+                return c < 0;
+            case LE:
+                return c <= 0;
+            case GT:
+                return c > 0;
+            default:
+                return c >= 0;
+        }
+    }
+    
+    private static boolean isIntegral(byte code) {
+        switch (code & 0xff) {
+            case 0x43: case 0x44: case 0x50: case 0x51: case 0x52:
+            case 0x53: case 0x54: case 0x55: case 0x60: case 0x61:
+            case 0x70: case 0x71: case 0x81: case 0x83:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private static class NumberTest extends Test {
+        private final int op;
+        private final boolean floating;
+        private final long longValue;
+        private final double doubleValue;
+        
+        NumberTest(int op, long value) {
+            this.op = op;
+            this.floating = false;
+            this.longValue = value;
+            this.doubleValue = value;
+        }
+        
+        NumberTest(int op, double value) {
+            this.op = op;
+            this.floating = true;
+            this.longValue = 0;
+            this.doubleValue = value;
+        }
+        
+        @Override
+        boolean test(AmqpReader reader) throws Exception {
+            byte code = reader.get();
+            if (code == FormatCode._timestamp) {
+                return this.compareLong(reader.getLong());
+            } else if (isIntegral(code)) {
+                return this.compareLong(PrimitiveType.readIntegral(reader, code));
+            } else if (code == FormatCode._ulong) {
+                long value = reader.getLong();
+                // above Long.MAX_VALUE, greater than any operand
+                return value < 0 ? compare(this.op, 1) : this.compareLong(value);
+            } else if (code == FormatCode._double) {
+                return this.compareDouble(reader.getDouble());
+            } else if (code == FormatCode._float) {
+                return this.compareDouble(reader.getFloat());
+            }
+            return false;
+        }
+        
+        private boolean compareLong(long value) {
+            if (this.floating) {
+                return this.compareDouble(value);
+            }
+            return compare(this.op, value < this.longValue ? -1 : (value == this.longValue ? 0 : 1));
+        }
+        
+        private boolean compareDouble(double value) {
+            if (Double.isNaN(value) || Double.isNaN(this.doubleValue)) {
+                return this.op == NE;
+            }
+            return compare(this.op, value < this.doubleValue ? -1 : (value == this.doubleValue ? 0 : 1));
+        }
+    }
+    
+    private static class BooleanTest extends Test {
+        private final boolean value;
+        
+        BooleanTest(boolean value) {
+            this.value = value;
+        }
+        
+        @Override
+        boolean test(AmqpReader reader) throws Exception {
+            byte code = reader.get();
+            if (code == FormatCode._boolTrue) {
+                return this.value;
+            } else if (code == FormatCode._boolFalse) {
+                return !this.value;
+            } else if (code == FormatCode._bool) {
+                return (reader.get() != 0) == this.value;
+            }
+            return false;
+        }
+    }
+    
+    private static class NullTest extends Test {
+        @Override
+        boolean test(AmqpReader reader) throws Exception {
+            return reader.get() == FormatCode._null;
+        }
+    }
+    
+    private static class LongSetTest extends Test {
+        private final long[] values;
+        
+        LongSetTest(long[] values) {
+            this.values = values.clone();
+            Arrays.sort(this.values);
+        }
+        
+        @Override
+        boolean test(AmqpReader reader) throws Exception {
+            byte code = reader.get();
+            if (code == FormatCode._timestamp) {
+                return Arrays.binarySearch(this.values, reader.getLong()) >= 0;
+            } else if (isIntegral(code)) {
+                return Arrays.binarySearch(this.values,
+                        PrimitiveType.readIntegral(reader, code)) >= 0;
+            } else if (code == FormatCode._ulong) {
+                long value = reader.getLong();
+                return value >= 0 && Arrays.binarySearch(this.values, value) >= 0;
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Reads the header of a string or symbol.
+     * @return The length of the bytes that follow, or -1 for other types.
+     */
+    private static int stringLength(AmqpReader reader) throws Exception {
+        byte code = reader.get();
+        int len;
+        if (code == FormatCode._string8 || code == FormatCode._symbol8) {
+            len = reader.get() & 0xff;
+        } else if (code == FormatCode._string32 || code == FormatCode._symbol32) {
+            len = reader.getInt();
+        } else {
+            return -1;
+        }
+        reader.require(len);
+        return len;
+    }
+    
+    private static boolean equalBytes(AmqpReader reader, int pos, byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            if (reader.get(pos + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static class StringTest extends Test {
+        private final int op;
+        private final byte[] bytes;
+        
+        StringTest(int op, String value) {
+            this.op = op;
+            this.bytes = value.getBytes(StandardCharsets.UTF_8);
+        }
+        
+        @Override
+        boolean test(AmqpReader reader) throws Exception {
+            int len = stringLength(reader);
+            if (len < 0) {
+                return false;
+            }
+            int pos = reader.position();
+            if (this.op == PREFIX) {
+                return len >= this.bytes.length &&
+                        equalBytes(reader, pos, this.bytes, this.bytes.length);
+            }
+            boolean equal = len == this.bytes.length &&
+                    equalBytes(reader, pos, this.bytes, len);
+            return equal == (this.op == EQ);
+        }
+    }
+    
+    private static class StringSetTest extends Test {
+        private final byte[][] values;
+        private final int[] hashes;
+        
+        StringSetTest(String[] values) {
+            this.values = new byte[values.length][];
+            this.hashes = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                this.values[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                int h = 0;
+                for (byte b : this.values[i]) {
+                    h = 31 * h + b;
+                }
+                this.hashes[i] = h;
+            }
+        }
+        
+        @Override
+        boolean test(AmqpReader reader) throws Exception {
+            int len = stringLength(reader);
+            if (len < 0) {
+                return false;
+            }
+            int pos = reader.position();
+            int h = 0;
+            for (int i = 0; i < len; i++) {
+                h = 31 * h + reader.get(pos + i);
+            }
+            for (int i = 0; i < this.values.length; i++) {
+                if (this.hashes[i] == h && this.values[i].length == len &&
+                    equalBytes(reader, pos, this.values[i], len)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
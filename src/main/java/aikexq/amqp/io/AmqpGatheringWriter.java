@@ -0,0 +1,241 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes encoded bytes as a sequence of segments. Bytes written through
+ * the put methods are collected into a growing array, while the bytes of
+ * an AmqpBinary value become a segment of their own that references the
+ * value instead of copying it. The result is taken as a ByteBuffer[] for
+ * a gathering write, or written to a channel, where file regions are
+ * sent with FileChannel.transferTo.
+ */
+public class AmqpGatheringWriter extends AmqpWriter {
+    private byte[] array;
+    private int size;
+    // payloads[i] was inserted after marks[i] bytes of the array
+    private final List<AmqpBinary> payloads;
+    private int[] marks;
+    private long payloadLength;
+    
+    public AmqpGatheringWriter() {
+        this(256);
+    }
+    
+    /**
+     * Creates a writer.
+     * @param capacity Initial capacity of the array for bytes that are
+     * not binary values.
+     */
+    public AmqpGatheringWriter(int capacity) {
+        this.array = new byte[Math.max(capacity, 16)];
+        this.payloads = new ArrayList<>();
+        this.marks = new int[4];
+    }
+    
+    /**
+     * Discards everything written so the writer can be reused.
+     */
+    public void reset() {
+        this.size = 0;
+        this.payloads.clear();
+        this.payloadLength = 0;
+    }
+    
+    /**
+     * Gets the total number of bytes written, including binary values.
+     * @return The number of bytes.
+     */
+    public long length() {
+        return this.size + this.payloadLength;
+    }
+    
+    private int next(int length) {
+        int pos = this.size;
+        if (length > this.array.length - pos) {
+            if (this.length() + length > Integer.MAX_VALUE) {
+                throw new BufferOverflowException();
+            }
+            int capacity = Math.max(this.array.length * 2, pos + length);
+            this.array = Arrays.copyOf(this.array, capacity);
+        }
+        this.size = pos + length;
+        return pos;
+    }
+
+    @Override
+    public int position() {
+        return (int)this.length();
+    }
+
+    @Override
+    public void put(byte value) {
+        int i = this.next(1);
+        this.array[i] = value;
+    }
+
+    @Override
+    public void putShort(short value) {
+        int i = this.next(2);
+        this.array[i] = (byte)(value >> 8);
+        this.array[i + 1] = (byte)value;
+    }
+
+    @Override
+    public void putInt(int value) {
+        int i = this.next(4);
+        store(this.array, i, value);
+    }
+
+    @Override
+    public void putInt(int position, int value) {
+        // skip the binary values written before the position
+        long index = position;
+        long skipped = 0;
+        for (int i = 0; i < this.payloads.size(); i++) {
+            if (this.marks[i] + skipped >= position) {
+                break;
+            }
+            int length = this.payloads.get(i).length();
+            index -= length;
+            skipped += length;
+        }
+        if (index < 0 || index > this.size - 4) {
+            throw new IndexOutOfBoundsException();
+        }
+        store(this.array, (int)index, value);
+    }
+
+    @Override
+    public void putLong(long value) {
+        int i = this.next(8);
+        store(this.array, i, (int)(value >> 32));
+        store(this.array, i + 4, (int)value);
+    }
+
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > src.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int i = this.next(length);
+        System.arraycopy(src, offset, this.array, i, length);
+    }
+
+    @Override
+    public void put(AmqpBinary value) {
+        int count = this.payloads.size();
+        if (count == this.marks.length) {
+            this.marks = Arrays.copyOf(this.marks, count * 2);
+        }
+        if (this.length() + value.length() > Integer.MAX_VALUE) {
+            throw new BufferOverflowException();
+        }
+        this.marks[count] = this.size;
+        this.payloads.add(value);
+        this.payloadLength += value.length();
+    }
+    
+    /**
+     * Gets the written bytes as buffers, to be written in order. Binary
+     * values backed by a file are mapped into memory, and those backed
+     * by a stream are read.
+     * @return The buffers.
+     * @throws IOException
+     */
+    public ByteBuffer[] toBuffers() throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < this.payloads.size(); i++) {
+            if (this.marks[i] > start) {
+                buffers.add(ByteBuffer.wrap(this.array, start, this.marks[i] - start));
+                start = this.marks[i];
+            }
+            buffers.add(this.payloads.get(i).asByteBuffer());
+        }
+        if (this.size > start) {
+            buffers.add(ByteBuffer.wrap(this.array, start, this.size - start));
+        }
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+    
+    /**
+     * Writes all bytes to a channel. Consecutive in-memory segments go
+     * out in one gathering write if the channel supports it, and binary
+     * values backed by a file are transferred by the file channel.
+     * @param channel The channel.
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        List<ByteBuffer> pending = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < this.payloads.size(); i++) {
+            if (this.marks[i] > start) {
+                pending.add(ByteBuffer.wrap(this.array, start, this.marks[i] - start));
+                start = this.marks[i];
+            }
+            AmqpBinary payload = this.payloads.get(i);
+            if (payload.isBuffer()) {
+                pending.add(payload.asByteBuffer());
+            } else {
+                write(channel, pending);
+                payload.transferTo(channel);
+            }
+        }
+        if (this.size > start) {
+            pending.add(ByteBuffer.wrap(this.array, start, this.size - start));
+        }
+        write(channel, pending);
+    }
+    
+    private static void write(WritableByteChannel channel, List<ByteBuffer> buffers)
+            throws IOException {
+        if (buffers.isEmpty()) {
+            return;
+        }
+        if (channel instanceof GatheringByteChannel) {
+            ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+            GatheringByteChannel gathering = (GatheringByteChannel)channel;
+            while (array[array.length - 1].hasRemaining()) {
+                gathering.write(array);
+            }
+        } else {
+            for (ByteBuffer b : buffers) {
+                while (b.hasRemaining()) {
+                    channel.write(b);
+                }
+            }
+        }
+        buffers.clear();
+    }
+    
+    private static void store(byte[] a, int i, int value) {
+        a[i] = (byte)(value >> 24);
+        a[i + 1] = (byte)(value >> 16);
+        a[i + 2] = (byte)(value >> 8);
+        a[i + 3] = (byte)value;
+    }
+}
@@ -0,0 +1,750 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts encoded AMQP values to JSON without decoding them into
+ * objects. The bytes are walked by format code and the JSON text is
+ * written directly to an Appendable, or as UTF-8 to an OutputStream.
+ * <ul>
+ * <li>null, booleans and numbers are written as JSON literals. Timestamps
+ * are milliseconds since the Unix epoch. Floating point infinities and
+ * NaN are written as strings.</li>
+ * <li>Strings, symbols, chars and UUIDs are written as strings, and
+ * binary values as base64 strings.</li>
+ * <li>Lists and arrays are written as arrays, and maps as objects. A key
+ * that is not a string or symbol is written as a string holding its
+ * JSON text.</li>
+ * <li>A described value is written as an object with a "$descriptor"
+ * member and a "$value" member. If the descriptor is a registered
+ * DescribedList contract, or another version of one, the list members
+ * are written as members of the object under their names in that
+ * version instead, and extra list items under "$" and their index.</li>
+ * </ul>
+ * Values compressed by AmqpSerializer.setCompression are inflated first.
+ */
+public class AmqpJsonTranscoder {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    
+    private final AmqpSerializer serializer;
+    private final HashMap<String, CustomType.Plan> registered;
+    private volatile Plans plans;
+    
+    /**
+     * Creates a transcoder with its own serializer for contract lookup.
+     */
+    public AmqpJsonTranscoder() {
+        this(new AmqpSerializer());
+    }
+    
+    /**
+     * Creates a transcoder.
+     * @param serializer The serializer whose contracts are registered.
+     */
+    public AmqpJsonTranscoder(AmqpSerializer serializer) {
+        this.serializer = serializer;
+        this.registered = new HashMap<>();
+        this.plans = new Plans(this.registered);
+    }
+    
+    /**
+     * Member names of the registered DescribedList contracts, looked up by
+     * the descriptor bytes in place. Types encoded as maps carry their
+     * member names in the bytes and have null names. Descriptors of other
+     * versions are looked up by type name, in the newest registered plan.
+     */
+    private static class Plans {
+        public final SymbolTable descriptors;
+        public final String[][] members;
+        public final SymbolTable types;
+        public final CustomType.Plan[] newest;
+        
+        public Plans(Map<String, CustomType.Plan> registered) {
+            String[] names = registered.keySet().toArray(new String[registered.size()]);
+            this.descriptors = new SymbolTable(names);
+            this.members = new String[names.length][];
+            HashMap<String, CustomType.Plan> byType = new HashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                CustomType.Plan plan = registered.get(names[i]);
+                this.members[i] = plan.map ? null : plan.names;
+                CustomType.Plan other = byType.get(plan.name);
+                if (other == null || other.version < plan.version) {
+                    byType.put(plan.name, plan);
+                }
+            }
+            String[] types = byType.keySet().toArray(new String[byType.size()]);
+            this.types = new SymbolTable(types);
+            this.newest = new CustomType.Plan[types.length];
+            for (int i = 0; i < types.length; i++) {
+                this.newest[i] = byType.get(types[i]);
+            }
+        }
+    }
+    
+    /**
+     * Registers a custom type so that its members, and those of the custom
+     * types it references, are written with their names.
+     * @param c Class of the type.
+     * @throws AmqpIoException
+     */
+    public void register(Class c) throws AmqpIoException {
+        try {
+            synchronized (this.registered) {
+                this.serializer.getCustomType().collectPlans(c, this.registered);
+                this.plans = new Plans(this.registered);
+            }
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Writes the value in the buffer as JSON.
+     * @param buffer Buffer to read bytes. The buffer's position is
+     * advanced after bytes are read.
+     * @param out The JSON output.
+     * @throws AmqpIoException
+     */
+    public void transcode(ByteBuffer buffer, Appendable out) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            this.transcode(cache, reader, new AppendableSink(out));
+            BufferCache.advance(buffer, reader);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Writes the value in the reader as JSON.
+     * @param reader Reader of the bytes. The reader's position is
+     * advanced after bytes are read.
+     * @param out The JSON output.
+     * @throws AmqpIoException
+     */
+    public void transcode(AmqpReader reader, Appendable out) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            this.transcode(cache, reader, new AppendableSink(out));
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Writes the value in the buffer as UTF-8 encoded JSON.
+     * @param buffer Buffer to read bytes. The buffer's position is
+     * advanced after bytes are read.
+     * @param out The JSON output. It is not flushed.
+     * @throws AmqpIoException
+     */
+    public void transcode(ByteBuffer buffer, OutputStream out) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            Utf8Sink sink = new Utf8Sink(out, cache.chunk());
+            this.transcode(cache, reader, sink);
+            sink.flush();
+            BufferCache.advance(buffer, reader);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Writes the value in the reader as UTF-8 encoded JSON.
+     * @param reader Reader of the bytes. The reader's position is
+     * advanced after bytes are read.
+     * @param out The JSON output. It is not flushed.
+     * @throws AmqpIoException
+     */
+    public void transcode(AmqpReader reader, OutputStream out) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            Utf8Sink sink = new Utf8Sink(out, cache.chunk());
+            this.transcode(cache, reader, sink);
+            sink.flush();
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    private void transcode(BufferCache cache, AmqpReader reader, Sink out) throws Exception {
+        if (!ChecksumEnvelope.matches(reader)) {
+            this.transcodeBody(cache, reader, out);
+            return;
+        }
+        ChecksumEnvelope envelope = ChecksumEnvelope.open(reader, cache,
+                this.serializer.getChecksumType());
+        try {
+            this.transcodeBody(cache, envelope.value(), out);
+        } catch (Exception e) {
+            envelope.verify(e);
+            throw e;
+        }
+        envelope.verify();
+    }
+    
+    private void transcodeBody(BufferCache cache, AmqpReader reader, Sink out) throws Exception {
+        if (DeflateEnvelope.matches(reader)) {
+            reader = DeflateEnvelope.read(reader, cache);
+        }
+        this.value(reader, reader.get(), out);
+    }
+    
+    private void value(AmqpReader reader, byte code, Sink out) throws Exception {
+        switch (code & 0xff) {
+            case 0x00:  // described
+                int descriptor = reader.position();
+                PrimitiveType.skipObject(reader);
+                this.described(reader, descriptor, reader.get(), out);
+                break;
+            case 0x40:  // null
+                out.put("null");
+                break;
+            case 0x41:  // true
+                out.put("true");
+                break;
+            case 0x42:  // false
+                out.put("false");
+                break;
+            case 0x56:  // boolean
+                out.put(reader.get() != 0 ? "true" : "false");
+                break;
+            case 0x80:  // ulong
+                putUnsigned(out, reader.getLong());
+                break;
+            case 0x43: case 0x44: case 0x50: case 0x51: case 0x52:
+            case 0x53: case 0x54: case 0x55: case 0x60: case 0x61:
+            case 0x70: case 0x71: case 0x81:
+                putLong(out, PrimitiveType.readIntegral(reader, code));
+                break;
+            case 0x83:  // timestamp
+                putLong(out, reader.getLong());
+                break;
+            case 0x72:  // float
+                float f = reader.getFloat();
+                if (Float.isNaN(f) || Float.isInfinite(f)) {
+                    out.put('"');
+                    out.putFloat(f);
+                    out.put('"');
+                } else {
+                    out.putFloat(f);
+                }
+                break;
+            case 0x82:  // double
+                double d = reader.getDouble();
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    out.put('"');
+                    out.putDouble(d);
+                    out.put('"');
+                } else {
+                    out.putDouble(d);
+                }
+                break;
+            case 0x74: case 0x84: case 0x94:  // decimal
+                out.put(PrimitiveType.readDecimal(reader, code).toString());
+                break;
+            case 0x73:  // char
+                out.put('"');
+                putCodePoint(out, reader.getInt());
+                out.put('"');
+                break;
+            case 0x98:  // uuid
+                putUuid(reader, out);
+                break;
+            case 0xa0:  // binary8
+                putBase64(reader, reader.get() & 0xff, out);
+                break;
+            case 0xb0:  // binary32
+                putBase64(reader, reader.getInt(), out);
+                break;
+            case 0xa1:  // string8
+            case 0xa3:  // symbol8
+                putString(reader, reader.get() & 0xff, out);
+                break;
+            case 0xb1:  // string32
+            case 0xb3:  // symbol32
+                putString(reader, reader.getInt(), out);
+                break;
+            case 0x45:  // list0
+                out.put("[]");
+                break;
+            case 0xc0:  // list8
+            case 0xd0:  // list32
+                this.list(reader, count(reader, code), out);
+                break;
+            case 0xc1:  // map8
+            case 0xd1:  // map32
+                this.map(reader, count(reader, code), out);
+                break;
+            case 0xe0:  // array8
+            case 0xf0:  // array32
+                this.array(reader, PrimitiveType.readArrayCount(reader, code), out);
+                break;
+            default:
+                throw new AmqpIoException("Invalid format code " + code);
+        }
+    }
+    
+    private static int count(AmqpReader reader, byte code) {
+        if ((code & 0xf0) == 0xc0) {
+            reader.require(reader.get() & 0xff);
+            return reader.get() & 0xff;
+        }
+        reader.require(reader.getInt());
+        return reader.getInt();
+    }
+    
+    private void list(AmqpReader reader, int count, Sink out) throws Exception {
+        out.put('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.put(',');
+            }
+            this.value(reader, reader.get(), out);
+        }
+        out.put(']');
+    }
+    
+    private void map(AmqpReader reader, int count, Sink out) throws Exception {
+        out.put('{');
+        for (int i = 0; i < count / 2; i++) {
+            if (i > 0) {
+                out.put(',');
+            }
+            byte code = reader.get();
+            switch (code & 0xff) {
+                case 0xa1:
+                case 0xa3:
+                case 0xb1:
+                case 0xb3:
+                    this.value(reader, code, out);
+                    break;
+                default:
+                    out.put('"');
+                    this.value(reader, code, out.escaping());
+                    out.put('"');
+                    break;
+            }
+            out.put(':');
+            this.value(reader, reader.get(), out);
+        }
+        out.put('}');
+    }
+    
+    private void array(AmqpReader reader, int count, Sink out) throws Exception {
+        byte code = reader.get();
+        int descriptor = -1;
+        if (code == FormatCode._described) {
+            descriptor = reader.position();
+            PrimitiveType.skipObject(reader);
+            code = reader.get();
+        }
+        out.put('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.put(',');
+            }
+            if (descriptor >= 0) {
+                this.described(reader, descriptor, code, out);
+            } else {
+                this.value(reader, code, out);
+            }
+        }
+        out.put(']');
+    }
+    
+    /**
+     * Writes a described value whose descriptor starts at the given
+     * position and whose format code has been read.
+     */
+    private void described(AmqpReader reader, int descriptor, byte code, Sink out) throws Exception {
+        out.put("{\"$descriptor\":");
+        int position = reader.position();
+        reader.position(descriptor);
+        this.value(reader, reader.get(), out);
+        reader.position(position);
+        String[] members = code == FormatCode._list8 || code == FormatCode._list32
+                ? this.membersOf(reader, descriptor)
+                : null;
+        if (members == null) {
+            out.put(",\"$value\":");
+            this.value(reader, code, out);
+        } else {
+            int count = count(reader, code);
+            for (int i = 0; i < count; i++) {
+                out.put(',');
+                if (i < members.length) {
+                    putString(out, members[i]);
+                } else {
+                    out.put("\"$");
+                    putLong(out, i);
+                    out.put('"');
+                }
+                out.put(':');
+                this.value(reader, reader.get(), out);
+            }
+        }
+        out.put('}');
+    }
+    
+    private String[] membersOf(AmqpReader reader, int descriptor) {
+        int length;
+        int offset;
+        byte code = reader.get(descriptor);
+        if (code == FormatCode._symbol8) {
+            length = reader.get(descriptor + 1) & 0xff;
+            offset = descriptor + 2;
+        } else if (code == FormatCode._symbol32) {
+            length = (reader.get(descriptor + 1) & 0xff) << 24 |
+                    (reader.get(descriptor + 2) & 0xff) << 16 |
+                    (reader.get(descriptor + 3) & 0xff) << 8 |
+                    (reader.get(descriptor + 4) & 0xff);
+            offset = descriptor + 5;
+        } else {
+            return null;
+        }
+        Plans p = this.plans;
+        int index = p.descriptors.find(reader, offset, length);
+        if (index >= 0) {
+            return p.members[index];
+        }
+        // an unversioned name ending like a version is matched whole
+        int version = 0;
+        index = p.types.find(reader, offset, length);
+        if (index < 0) {
+            int baseLength = CustomType.Plan.baseLength(reader, offset, length);
+            if (baseLength == length) {
+                return null;
+            }
+            version = CustomType.Plan.versionOf(reader, offset, baseLength, length);
+            index = p.types.find(reader, offset, baseLength);
+        }
+        if (index < 0 || p.newest[index].map) {
+            return null;
+        }
+        return p.newest[index].layout(version);
+    }
+    
+    private static void putLong(Sink out, long value) throws IOException {
+        if (value < 0) {
+            out.put('-');
+            // the negation of Long.MIN_VALUE is correct as unsigned
+            value = -value;
+        }
+        putUnsigned(out, value);
+    }
+    
+    private static void putUnsigned(Sink out, long value) throws IOException {
+        long quotient = value >= 0 ? value / 10 : (value >>> 1) / 5;
+        if (quotient != 0) {
+            putUnsigned(out, quotient);
+        }
+        out.put((char)('0' + (int)(value - quotient * 10)));
+    }
+    
+    private static void putUuid(AmqpReader reader, Sink out) throws IOException {
+        reader.require(16);
+        out.put('"');
+        for (int i = 0; i < 16; i++) {
+            if (i == 4 || i == 6 || i == 8 || i == 10) {
+                out.put('-');
+            }
+            int b = reader.get() & 0xff;
+            out.put(HEX[b >>> 4]);
+            out.put(HEX[b & 0xf]);
+        }
+        out.put('"');
+    }
+    
+    private static void putBase64(AmqpReader reader, int length, Sink out) throws IOException {
+        reader.require(length);
+        out.put('"');
+        int i = 0;
+        for (; i + 3 <= length; i += 3) {
+            int bits = (reader.get() & 0xff) << 16 | (reader.get() & 0xff) << 8 |
+                    (reader.get() & 0xff);
+            out.put(BASE64[bits >>> 18]);
+            out.put(BASE64[(bits >>> 12) & 0x3f]);
+            out.put(BASE64[(bits >>> 6) & 0x3f]);
+            out.put(BASE64[bits & 0x3f]);
+        }
+        if (i + 1 == length) {
+            int bits = (reader.get() & 0xff) << 16;
+            out.put(BASE64[bits >>> 18]);
+            out.put(BASE64[(bits >>> 12) & 0x3f]);
+            out.put("==");
+        } else if (i + 2 == length) {
+            int bits = (reader.get() & 0xff) << 16 | (reader.get() & 0xff) << 8;
+            out.put(BASE64[bits >>> 18]);
+            out.put(BASE64[(bits >>> 12) & 0x3f]);
+            out.put(BASE64[(bits >>> 6) & 0x3f]);
+            out.put('=');
+        }
+        out.put('"');
+    }
+    
+    /**
+     * Writes a UTF-8 encoded string as a JSON string, decoding it in
+     * place. Malformed sequences are written as U+FFFD.
+     */
+    private static void putString(AmqpReader reader, int length, Sink out) throws IOException {
+        reader.require(length);
+        int start = reader.position();
+        int end = start + length;
+        out.put('"');
+        int i = start;
+        while (i < end) {
+            int b = reader.get(i++);
+            if (b >= 0) {
+                putChar(out, (char)b);
+                continue;
+            }
+            int extra;
+            int cp;
+            if ((b & 0xe0) == 0xc0) {
+                extra = 1;
+                cp = b & 0x1f;
+            } else if ((b & 0xf0) == 0xe0) {
+                extra = 2;
+                cp = b & 0x0f;
+            } else if ((b & 0xf8) == 0xf0) {
+                extra = 3;
+                cp = b & 0x07;
+            } else {
+                out.put('\ufffd');
+                continue;
+            }
+            int j = 0;
+            while (j < extra && i + j < end && (reader.get(i + j) & 0xc0) == 0x80) {
+                cp = cp << 6 | (reader.get(i + j) & 0x3f);
+                j++;
+            }
+            i += j;
+            putCodePoint(out, j == extra ? cp : 0xfffd);
+        }
+        reader.position(end);
+        out.put('"');
+    }
+    
+    private static void putString(Sink out, String value) throws IOException {
+        out.put('"');
+        for (int i = 0; i < value.length(); i++) {
+            putChar(out, value.charAt(i));
+        }
+        out.put('"');
+    }
+    
+    private static void putCodePoint(Sink out, int cp) throws IOException {
+        if (cp < 0 || cp > 0x10ffff || (cp >= 0xd800 && cp <= 0xdfff)) {
+            out.put('\ufffd');
+        } else if (cp < 0x10000) {
+            putChar(out, (char)cp);
+        } else {
+            cp -= 0x10000;
+            out.put((char)(0xd800 + (cp >>> 10)));
+            out.put((char)(0xdc00 + (cp & 0x3ff)));
+        }
+    }
+    
+    private static void putChar(Sink out, char c) throws IOException {
+        switch (c) {
+            case '"':
+                out.put("\\\"");
+                break;
+            case '\\':
+                out.put("\\\\");
+                break;
+            case '\n':
+                out.put("\\n");
+                break;
+            case '\r':
+                out.put("\\r");
+                break;
+            case '\t':
+                out.put("\\t");
+                break;
+            case '\b':
+                out.put("\\b");
+                break;
+            case '\f':
+                out.put("\\f");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.put("\\u00");
+                    out.put(HEX[c >>> 4]);
+                    out.put(HEX[c & 0xf]);
+                } else {
+                    out.put(c);
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Destination of the JSON text.
+     */
+    private static abstract class Sink {
+        private Sink escaping;
+        
+        public abstract void put(char c) throws IOException;
+        
+        public void put(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                this.put(s.charAt(i));
+            }
+        }
+        
+        public void putFloat(float value) throws IOException {
+            this.put(Float.toString(value));
+        }
+        
+        public void putDouble(double value) throws IOException {
+            this.put(Double.toString(value));
+        }
+        
+        /**
+         * Gets a sink that writes text to this sink as the content of a
+         * JSON string.
+         */
+        public Sink escaping() {
+            if (this.escaping == null) {
+                final Sink target = this;
+                this.escaping = new Sink() {
+                    @Override
+                    public void put(char c) throws IOException {
+                        putChar(target, c);
+                    }
+                };
+            }
+            return this.escaping;
+        }
+    }
+    
+    private static class AppendableSink extends Sink {
+        private final Appendable out;
+        private final StringBuilder builder;
+        
+        public AppendableSink(Appendable out) {
+            this.out = out;
+            this.builder = out instanceof StringBuilder ? (StringBuilder)out : null;
+        }
+        
+        @Override
+        public void put(char c) throws IOException {
+            this.out.append(c);
+        }
+        
+        @Override
+        public void put(String s) throws IOException {
+            this.out.append(s);
+        }
+        
+        @Override
+        public void putFloat(float value) throws IOException {
+            if (this.builder != null) {
+                this.builder.append(value);
+            } else {
+                super.putFloat(value);
+            }
+        }
+        
+        @Override
+        public void putDouble(double value) throws IOException {
+            if (this.builder != null) {
+                this.builder.append(value);
+            } else {
+                super.putDouble(value);
+            }
+        }
+    }
+    
+    private static class Utf8Sink extends Sink {
+        private final OutputStream out;
+        private final byte[] chunk;
+        private int position;
+        private char high;
+        
+        public Utf8Sink(OutputStream out, byte[] chunk) {
+            this.out = out;
+            this.chunk = chunk;
+        }
+        
+        @Override
+        public void put(char c) throws IOException {
+            if (this.position > this.chunk.length - 4) {
+                this.flush();
+            }
+            byte[] b = this.chunk;
+            int p = this.position;
+            if (c < 0x80) {
+                b[p++] = (byte)c;
+            } else if (c < 0x800) {
+                b[p++] = (byte)(0xc0 | (c >>> 6));
+                b[p++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                this.high = c;
+            } else if (Character.isLowSurrogate(c) && this.high != 0) {
+                int cp = Character.toCodePoint(this.high, c);
+                this.high = 0;
+                b[p++] = (byte)(0xf0 | (cp >>> 18));
+                b[p++] = (byte)(0x80 | ((cp >>> 12) & 0x3f));
+                b[p++] = (byte)(0x80 | ((cp >>> 6) & 0x3f));
+                b[p++] = (byte)(0x80 | (cp & 0x3f));
+            } else {
+                b[p++] = (byte)(0xe0 | (c >>> 12));
+                b[p++] = (byte)(0x80 | ((c >>> 6) & 0x3f));
+                b[p++] = (byte)(0x80 | (c & 0x3f));
+            }
+            this.position = p;
+        }
+        
+        public void flush() throws IOException {
+            this.out.write(this.chunk, 0, this.position);
+            this.position = 0;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes the elements of an encoded list or array one at a time, so a
+ * list of any length is read with constant memory. Together with
+ * {@link AmqpReader#wrap(java.nio.channels.ReadableByteChannel, int)} the
+ * list does not even have to fit in memory. Stopping early reads nothing
+ * beyond the last element returned; {@link AmqpListSpliterator} adapts
+ * the iterator to java.util.stream.
+ * <p>The reader is shared with the iterator and is left after the last
+ * element read. The iterator is not thread safe.</p>
+ * @param <T> The type of the elements.
+ */
+public class AmqpListIterator<T> implements Iterator<T> {
+    private final CustomType customType;
+    private final Class<T> c;
+    private final AmqpReader reader;
+    private final int count;
+    // the element constructor of an array, or zero for a list
+    private final byte constructor;
+    private int index;
+    
+    /**
+     * Creates an iterator over a list, array or null value.
+     * @param serializer The serializer of the elements.
+     * @param c Class of the elements, or Object.class to decode them by
+     * format code.
+     * @param reader The reader, positioned at the list.
+     * @throws AmqpIoException if the value is not a list or an array.
+     */
+    public AmqpListIterator(AmqpSerializer serializer, Class<T> c, AmqpReader reader)
+            throws AmqpIoException {
+        this.customType = serializer.getCustomType();
+        this.c = c;
+        this.reader = reader;
+        byte code = reader.get();
+        byte constructor = 0;
+        if (code == FormatCode._null || code == FormatCode._list0) {
+            this.count = 0;
+        } else if (code == FormatCode._list8) {
+            reader.get();
+            this.count = reader.get() & 0xff;
+        } else if (code == FormatCode._list32) {
+            reader.getInt();
+            this.count = reader.getInt();
+        } else if (code == FormatCode._array8 || code == FormatCode._array32) {
+            if (code == FormatCode._array8) {
+                reader.get();
+                this.count = reader.get() & 0xff;
+            } else {
+                reader.getInt();
+                this.count = reader.getInt();
+            }
+            try {
+                constructor = PrimitiveType.readArrayConstructor(reader);
+            } catch (AmqpIoException ioe) {
+                throw ioe;
+            } catch (Exception e) {
+                throw new AmqpIoException(e.getMessage(), e);
+            }
+        } else {
+            throw new AmqpIoException("Not a list: format code " + code);
+        }
+        if (this.count < 0) {
+            throw new AmqpIoException("Invalid count " + this.count);
+        }
+        this.constructor = constructor;
+    }
+    
+    /**
+     * Creates an iterator over a list member of an encoded custom type
+     * value in its current contract version, skipping the members before
+     * it without decoding them. A compressed value is inflated first. A
+     * value with a checksum is verified here, since the iterator may stop
+     * before the end of the value.
+     * @param <T> The type of the elements.
+     * @param serializer The serializer of the value.
+     * @param type Class of the custom type.
+     * @param member Name of the member.
+     * @param c Class of the elements, or Object.class.
+     * @param reader The reader, positioned at the value.
+     * @return The iterator, empty if the member is absent or null.
+     * @throws AmqpIoException
+     */
+    public static <T> AmqpListIterator<T> ofMember(AmqpSerializer serializer, Class type,
+            String member, Class<T> c, AmqpReader reader) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader list = seekMember(serializer, type, member, reader, cache);
+            if (list != null && list != reader) {
+                // an inflated value is held by the cache, which is released
+                // before the iterator is used
+                ByteBuffer copy = ByteBuffer.allocate(list.remaining());
+                copy.put(list.slice(list.remaining())).flip();
+                list = AmqpReader.wrap(copy);
+            }
+            if (list != null) {
+                return new AmqpListIterator<T>(serializer, c, list);
+            }
+            return new AmqpListIterator<T>(serializer, c, AmqpReader.wrap(new byte[] { FormatCode._null }));
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    // opens an encoded custom type value, verifying its checksum, and
+    // returns the reader positioned at a member, or null if it is absent
+    static AmqpReader seekMember(AmqpSerializer serializer, Class type, String member,
+            AmqpReader reader, BufferCache cache) throws Exception {
+        CustomType.Plan plan = serializer.getCustomType().getPlan(type);
+        int index = plan.indexOf(member);
+        if (index < 0) {
+            throw new AmqpIoException("No member " + member + " in " + type.getName());
+        }
+        CustomType.Plan.Value value = plan.open(reader, cache, serializer.getChecksumType(), true);
+        if (value == null) {
+            throw new AmqpIoException("Not a value of " + plan.name);
+        }
+        value.verify();
+        return value.seek(index) ? value.reader : null;
+    }
+    
+    /**
+     * Gets the number of elements of the list.
+     * @return The count.
+     */
+    public int count() {
+        return this.count;
+    }
+    
+    /**
+     * Gets the number of elements not yet returned.
+     * @return The count.
+     */
+    public int remaining() {
+        return this.count - this.index;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.index < this.count;
+    }
+
+    @Override
+    public T next() {
+        if (this.index >= this.count) {
+            throw new NoSuchElementException();
+        }
+        try {
+            Object element = this.constructor == 0
+                    ? this.customType.readObject(this.c, this.reader)
+                    : this.customType.readRaw(this.c, this.reader, this.constructor);
+            this.index++;
+            return (T)element;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,79 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Adapts an {@link AmqpListIterator} to java.util.stream. The stream is
+ * sequential and sized; short-circuiting operations such as findFirst,
+ * anyMatch or limit stop decoding as soon as they are satisfied.
+ * @param <T> The type of the elements.
+ */
+public class AmqpListSpliterator<T> implements Spliterator<T> {
+    private final AmqpListIterator<T> iterator;
+    
+    public AmqpListSpliterator(AmqpListIterator<T> iterator) {
+        this.iterator = iterator;
+    }
+    
+    /**
+     * Creates a sequential stream of the elements of a list.
+     * @param <T> The type of the elements.
+     * @param iterator The iterator over the list.
+     * @return The stream.
+     */
+    public static <T> Stream<T> stream(AmqpListIterator<T> iterator) {
+        return StreamSupport.stream(new AmqpListSpliterator<T>(iterator), false);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (!this.iterator.hasNext()) {
+            return false;
+        }
+        action.accept(this.iterator.next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        while (this.iterator.hasNext()) {
+            action.accept(this.iterator.next());
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        // elements have variable sizes, so the list cannot be split
+        // without reading it
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return this.iterator.remaining();
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED | Spliterator.SIZED;
+    }
+}
@@ -42,4 +42,27 @@ public @interface AmqpMember {
      * @return The order of the field in list.
      */
     int order() default -1;
+
+    /**
+     * The contract version in which the member was added. Values of
+     * older versions do not contain it and leave it at its default.
+     * @return The first version containing the member.
+     */
+    int since() default 0;
+
+    /**
+     * The contract version in which the member was removed. A removed
+     * member is kept in the class only to describe older versions: it
+     * is neither written nor read, and its order is not reused.
+     * @return The first version not containing the member.
+     */
+    int until() default Integer.MAX_VALUE;
+
+    /**
+     * Whether a long member holds milliseconds since the Unix epoch. Such
+     * a member is encoded as an AMQP timestamp instead of a long, without
+     * going through Date. Only valid on fields of type long.
+     * @return True if the member is a timestamp.
+     */
+    boolean timestamp() default false;
 }
\ No newline at end of file
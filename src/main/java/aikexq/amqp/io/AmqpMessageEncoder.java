@@ -0,0 +1,534 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes AMQP 1.0 messages: the header, message-annotations, properties
+ * and application-properties sections followed by the body, written
+ * straight into the target in one pass. The body is an object encoded
+ * by the serializer, either as an amqp-value section or, in the
+ * serialized form, as the binary of a data section. In batch mode
+ * several objects become consecutive data sections of one message.
+ * <p>Header and properties fields are set on the encoder and apply to
+ * every message it encodes until changed; {@link #reset()} clears them.
+ * Sections whose fields are all unset are omitted. An encoder is not
+ * thread safe.</p>
+ * <p>The static read methods skip every section up to the body without
+ * decoding it.</p>
+ */
+public class AmqpMessageEncoder {
+    
+    /**
+     * How the body object is carried.
+     */
+    public enum BodyType {
+        /** An amqp-value section holding the encoded object. */
+        VALUE,
+        /** A data section whose binary is the encoded object. */
+        DATA
+    }
+    
+    private static final byte HEADER = 0x70;
+    private static final byte MESSAGE_ANNOTATIONS = 0x72;
+    private static final byte PROPERTIES = 0x73;
+    private static final byte APPLICATION_PROPERTIES = 0x74;
+    private static final byte DATA = 0x75;
+    private static final byte AMQP_SEQUENCE = 0x76;
+    private static final byte AMQP_VALUE = 0x77;
+    
+    private final AmqpSerializer serializer;
+    private BodyType bodyType = BodyType.VALUE;
+    private Boolean durable;
+    private int priority = -1;
+    private long ttl = -1;
+    private Object messageId;
+    private String to;
+    private String subject;
+    private String replyTo;
+    private Object correlationId;
+    private String contentType;
+    private long creationTime = -1;
+    private String groupId;
+    private Map<String, ?> messageAnnotations;
+    private Map<String, ?> applicationProperties;
+    
+    /**
+     * Creates a message encoder.
+     * @param serializer The serializer encoding bodies and property values.
+     */
+    public AmqpMessageEncoder(AmqpSerializer serializer) {
+        this.serializer = serializer;
+    }
+    
+    /**
+     * Clears all header and properties fields and the annotations and
+     * application properties. The body type is kept.
+     */
+    public void reset() {
+        this.durable = null;
+        this.priority = -1;
+        this.ttl = -1;
+        this.messageId = null;
+        this.to = null;
+        this.subject = null;
+        this.replyTo = null;
+        this.correlationId = null;
+        this.contentType = null;
+        this.creationTime = -1;
+        this.groupId = null;
+        this.messageAnnotations = null;
+        this.applicationProperties = null;
+    }
+    
+    public void setBodyType(BodyType bodyType) {
+        this.bodyType = bodyType;
+    }
+    
+    public void setDurable(boolean durable) {
+        this.durable = durable;
+    }
+    
+    /**
+     * @param priority The priority from 0 to 255.
+     */
+    public void setPriority(int priority) {
+        if (priority < 0 || priority > 255) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        this.priority = priority;
+    }
+    
+    /**
+     * @param ttl The time to live in milliseconds, an unsigned 32-bit
+     * value.
+     */
+    public void setTtl(long ttl) {
+        if (ttl < 0 || ttl > 0xffffffffL) {
+            throw new IllegalArgumentException("Invalid ttl " + ttl);
+        }
+        this.ttl = ttl;
+    }
+    
+    /**
+     * @param messageId A String, UUID, Long or byte[], or null.
+     */
+    public void setMessageId(Object messageId) {
+        this.messageId = messageId;
+    }
+    
+    public void setTo(String to) {
+        this.to = to;
+    }
+    
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+    
+    public void setReplyTo(String replyTo) {
+        this.replyTo = replyTo;
+    }
+    
+    /**
+     * @param correlationId A String, UUID, Long or byte[], or null.
+     */
+    public void setCorrelationId(Object correlationId) {
+        this.correlationId = correlationId;
+    }
+    
+    /**
+     * @param contentType The MIME type, written as a symbol.
+     */
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+    
+    /**
+     * @param creationTime Milliseconds since the Unix epoch.
+     */
+    public void setCreationTime(long creationTime) {
+        this.creationTime = creationTime;
+    }
+    
+    public void setGroupId(String groupId) {
+        this.groupId = groupId;
+    }
+    
+    /**
+     * @param annotations Annotations keyed by symbol, or null.
+     */
+    public void setMessageAnnotations(Map<String, ?> annotations) {
+        this.messageAnnotations = annotations;
+    }
+    
+    /**
+     * @param properties Properties with simple values, or null.
+     */
+    public void setApplicationProperties(Map<String, ?> properties) {
+        this.applicationProperties = properties;
+    }
+    
+    /**
+     * Encodes a message with one body.
+     * @param buffer Buffer to save the bytes. The buffer's position is
+     * advanced after bytes are written.
+     * @param body The body object.
+     * @throws AmqpIoException
+     */
+    public void encode(ByteBuffer buffer, Object body) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpWriter writer = cache.writer(buffer);
+            this.writeMessage(writer, body, null, cache.path());
+            BufferCache.advance(buffer, writer);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Encodes a message with one body.
+     * @param writer Writer to save the bytes.
+     * @param body The body object.
+     * @throws AmqpIoException
+     */
+    public void encode(AmqpWriter writer, Object body) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            this.writeMessage(writer, body, null, cache.path());
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Encodes a batched message whose body is one data section per
+     * object, regardless of the body type.
+     * @param buffer Buffer to save the bytes. The buffer's position is
+     * advanced after bytes are written.
+     * @param bodies The body objects.
+     * @throws AmqpIoException
+     */
+    public void encodeBatch(ByteBuffer buffer, List<?> bodies) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpWriter writer = cache.writer(buffer);
+            this.writeMessage(writer, null, bodies, cache.path());
+            BufferCache.advance(buffer, writer);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Decodes the body of a message, skipping the sections before it. A
+     * data section is decoded from its binary.
+     * @param <T> The type of the body.
+     * @param c Class of the body, or Object.class.
+     * @param buffer The buffer holding the message. Its position is
+     * advanced past the body section.
+     * @param serializer The serializer of the body.
+     * @return The body.
+     * @throws AmqpIoException if the message has no body.
+     */
+    public static <T> T readBody(Class<T> c, ByteBuffer buffer, AmqpSerializer serializer)
+            throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            T body = readBody(c, reader, serializer.getCustomType());
+            BufferCache.advance(buffer, reader);
+            return body;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Decodes every data section of a batched message, skipping the
+     * other sections.
+     * @param <T> The type of the bodies.
+     * @param c Class of the bodies, or Object.class.
+     * @param buffer The buffer holding the message, from its position to
+     * its limit. Its position is advanced to the limit.
+     * @param serializer The serializer of the bodies.
+     * @return The bodies in order.
+     * @throws AmqpIoException
+     */
+    public static <T> List<T> readBatch(Class<T> c, ByteBuffer buffer, AmqpSerializer serializer)
+            throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            CustomType customType = serializer.getCustomType();
+            ArrayList<T> bodies = new ArrayList<>();
+            while (reader.remaining() > 0) {
+                int section = readSection(reader);
+                if (section == DATA) {
+                    bodies.add((T)readData(c, reader, customType));
+                } else {
+                    PrimitiveType.skipObject(reader);
+                }
+            }
+            BufferCache.advance(buffer, reader);
+            return bodies;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    private void writeMessage(AmqpWriter writer, Object body, List<?> bodies,
+            ObjectPath path) throws Exception {
+        CustomType customType = this.serializer.getCustomType();
+        if (this.durable != null || this.priority >= 0 || this.ttl >= 0) {
+            int start = beginSection(writer, HEADER, FormatCode._list32);
+            int count = 0;
+            if (this.durable != null) {
+                PrimitiveType.writeBoolean(writer, this.durable);
+                count = 1;
+            }
+            if (this.priority >= 0) {
+                count = pad(writer, count, 1);
+                writer.put(FormatCode._ubyte);
+                writer.put((byte)this.priority);
+                count++;
+            }
+            if (this.ttl >= 0) {
+                count = pad(writer, count, 2);
+                writer.put(FormatCode._uint);
+                writer.putInt((int)this.ttl);
+                count++;
+            }
+            endSection(writer, start, count);
+        }
+        if (this.messageAnnotations != null) {
+            int start = beginSection(writer, MESSAGE_ANNOTATIONS, FormatCode._map32);
+            for (Map.Entry<String, ?> entry : this.messageAnnotations.entrySet()) {
+                writeSymbol(writer, entry.getKey());
+                customType.writeObject(writer, entry.getValue(), path);
+            }
+            endSection(writer, start, this.messageAnnotations.size() * 2);
+        }
+        this.writeProperties(writer, customType, path);
+        if (this.applicationProperties != null) {
+            writeDescriptor(writer, APPLICATION_PROPERTIES);
+            customType.writeObject(writer, this.applicationProperties, path);
+        }
+        if (bodies != null) {
+            for (int i = 0; i < bodies.size(); i++) {
+                writeData(writer, bodies.get(i), customType, path);
+            }
+        } else if (this.bodyType == BodyType.DATA) {
+            writeData(writer, body, customType, path);
+        } else {
+            writeDescriptor(writer, AMQP_VALUE);
+            customType.writeObject(writer, body, path);
+        }
+    }
+    
+    private void writeProperties(AmqpWriter writer, CustomType customType,
+            ObjectPath path) throws Exception {
+        if (this.messageId == null && this.to == null && this.subject == null &&
+                this.replyTo == null && this.correlationId == null &&
+                this.contentType == null && this.creationTime < 0 && this.groupId == null) {
+            return;
+        }
+        int start = beginSection(writer, PROPERTIES, FormatCode._list32);
+        int count = 0;
+        if (this.messageId != null) {
+            customType.writeObject(writer, this.messageId, path);
+            count = 1;
+        }
+        // user-id is never written
+        if (this.to != null) {
+            count = pad(writer, count, 2);
+            writeString(writer, this.to);
+            count++;
+        }
+        if (this.subject != null) {
+            count = pad(writer, count, 3);
+            writeString(writer, this.subject);
+            count++;
+        }
+        if (this.replyTo != null) {
+            count = pad(writer, count, 4);
+            writeString(writer, this.replyTo);
+            count++;
+        }
+        if (this.correlationId != null) {
+            count = pad(writer, count, 5);
+            customType.writeObject(writer, this.correlationId, path);
+            count++;
+        }
+        if (this.contentType != null) {
+            count = pad(writer, count, 6);
+            writeSymbol(writer, this.contentType);
+            count++;
+        }
+        if (this.creationTime >= 0) {
+            count = pad(writer, count, 9);
+            PrimitiveType.writeTimestamp(writer, this.creationTime);
+            count++;
+        }
+        if (this.groupId != null) {
+            count = pad(writer, count, 10);
+            writeString(writer, this.groupId);
+            count++;
+        }
+        endSection(writer, start, count);
+    }
+    
+    private static void writeData(AmqpWriter writer, Object body, CustomType customType,
+            ObjectPath path) throws Exception {
+        writeDescriptor(writer, DATA);
+        writer.put(FormatCode._binary32);
+        int start = writer.position();
+        writer.putInt(0);
+        customType.writeObject(writer, body, path);
+        writer.putInt(start, writer.position() - start - 4);
+    }
+    
+    private static void writeDescriptor(AmqpWriter writer, byte code) {
+        writer.put(FormatCode._described);
+        writer.put(FormatCode._ulongSmall);
+        writer.put(code);
+    }
+    
+    private static int beginSection(AmqpWriter writer, byte code, byte formatCode) {
+        writeDescriptor(writer, code);
+        writer.put(formatCode);
+        int start = writer.position();
+        writer.putInt(0);
+        writer.putInt(0);
+        return start;
+    }
+    
+    private static void endSection(AmqpWriter writer, int start, int count) {
+        writer.putInt(start, writer.position() - start - 4);
+        writer.putInt(start + 4, count);
+    }
+    
+    // writes nulls for the unset fields before a list position
+    private static int pad(AmqpWriter writer, int count, int position) {
+        while (count < position) {
+            writer.put(FormatCode._null);
+            count++;
+        }
+        return count;
+    }
+    
+    private static void writeString(AmqpWriter writer, String value) {
+        writer.put(FormatCode._string32);
+        PrimitiveType.writeUtf8(writer, value);
+    }
+    
+    private static void writeSymbol(AmqpWriter writer, String value) {
+        writer.put(FormatCode._symbol32);
+        writer.putInt(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            writer.put((byte)value.charAt(i));
+        }
+    }
+    
+    private static <T> T readBody(Class<T> c, AmqpReader reader, CustomType customType)
+            throws Exception {
+        while (reader.remaining() > 0) {
+            int section = readSection(reader);
+            if (section == AMQP_VALUE || section == AMQP_SEQUENCE) {
+                return (T)customType.readObject(c, reader);
+            }
+            if (section == DATA) {
+                return (T)readData(c, reader, customType);
+            }
+            PrimitiveType.skipObject(reader);
+        }
+        throw new AmqpIoException("Message has no body");
+    }
+    
+    private static Object readData(Class c, AmqpReader reader, CustomType customType)
+            throws Exception {
+        byte code = reader.get();
+        int length;
+        if (code == FormatCode._binary8) {
+            length = reader.get() & 0xff;
+        } else {
+            FormatCode.assertEqual(FormatCode._binary32, code);
+            length = reader.getInt();
+        }
+        reader.require(length);
+        int end = reader.position() + length;
+        Object body = customType.readObject(c, reader);
+        reader.position(end);
+        return body;
+    }
+    
+    /**
+     * Reads the descriptor of a section.
+     * @return The section code, or -1 if the descriptor is not known.
+     */
+    private static int readSection(AmqpReader reader) throws Exception {
+        FormatCode.assertEqual(FormatCode._described, reader.get());
+        byte code = reader.get();
+        if (code == FormatCode._ulongSmall) {
+            return reader.get() & 0xff;
+        }
+        if (code == FormatCode._ulong) {
+            long value = reader.getLong();
+            return value >= 0x70 && value <= 0x78 ? (int)value : -1;
+        }
+        if (code == FormatCode._symbol8 || code == FormatCode._symbol32) {
+            int length = code == FormatCode._symbol8 ? reader.get() & 0xff : reader.getInt();
+            String name = reader.getString(length, StandardCharsets.US_ASCII);
+            if (name.equals("amqp:data:binary")) {
+                return DATA;
+            } else if (name.equals("amqp:amqp-value:*")) {
+                return AMQP_VALUE;
+            } else if (name.equals("amqp:amqp-sequence:list")) {
+                return AMQP_SEQUENCE;
+            }
+            return -1;
+        }
+        reader.position(reader.position() - 1);
+        PrimitiveType.skipObject(reader);
+        return -1;
+    }
+}
@@ -0,0 +1,36 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+/**
+ * Supplies instances of a custom type to the decoder. When a pool is set
+ * for a type, the decoder takes an instance from the pool instead of
+ * creating one and overwrites all of its members. The decoder never
+ * returns instances to the pool; the application does that once it is
+ * done with a decoded object.
+ * @param <T> The type of the pooled objects.
+ */
+public interface AmqpObjectPool<T> {
+
+    /**
+     * Gets an instance from the pool.
+     * @return An instance, or null to let the decoder create one.
+     */
+    T acquire();
+}
@@ -0,0 +1,298 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes the elements of a large encoded list, or a batch of values
+ * encoded one after another, on a ForkJoinPool. A structural pass first
+ * finds the offset of every element from the size headers, without
+ * decoding anything; the elements are then decoded in parallel into a
+ * presized array, so the result keeps the encoded order.
+ * <p>Decoding of the elements must be thread safe, which holds for the
+ * built-in decoders but not necessarily for object pools and codecs
+ * registered with the serializer.</p>
+ */
+public class AmqpParallelDecoder {
+    private static final int MIN_TASK = 64;
+    // marks top-level values, which may be in envelopes, in place of an
+    // array constructor; no array has an invalid constructor
+    private static final byte VALUE = FormatCode._invalid;
+    
+    private final AmqpSerializer serializer;
+    private final ForkJoinPool pool;
+    
+    /**
+     * Creates a parallel decoder.
+     * @param serializer The serializer of the elements.
+     * @param pool The pool running the decoding tasks.
+     */
+    public AmqpParallelDecoder(AmqpSerializer serializer, ForkJoinPool pool) {
+        this.serializer = serializer;
+        this.pool = pool;
+    }
+    
+    /**
+     * Decodes an encoded list or array.
+     * @param <T> The type of the elements.
+     * @param c Class of the elements, or Object.class.
+     * @param buffer The buffer, positioned at the list. The position is
+     * advanced past the list.
+     * @return The elements in a fixed-size list.
+     * @throws AmqpIoException
+     */
+    public <T> List<T> readList(Class<T> c, ByteBuffer buffer) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            byte code = reader.get();
+            int count;
+            byte constructor = 0;
+            if (code == FormatCode._null || code == FormatCode._list0) {
+                count = 0;
+            } else if (code == FormatCode._list8) {
+                reader.require(reader.get() & 0xff);
+                count = reader.get() & 0xff;
+            } else if (code == FormatCode._list32) {
+                reader.require(reader.getInt());
+                count = reader.getInt();
+            } else if (code == FormatCode._array8 || code == FormatCode._array32) {
+                count = PrimitiveType.readArrayCount(reader, code);
+                constructor = PrimitiveType.readArrayConstructor(reader);
+            } else {
+                throw new AmqpIoException("Not a list: format code " + code);
+            }
+            // the offsets are allocated before any element was scanned,
+            // so the count is checked against the bytes that can hold them
+            if (count < 0 || count > reader.remaining()) {
+                throw new AmqpIoException("List count " + count + " exceeds the "
+                        + reader.remaining() + " remaining bytes");
+            }
+            int[] offsets = new int[count + 1];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = reader.position();
+                if (constructor == 0) {
+                    PrimitiveType.skipObject(reader);
+                } else {
+                    skipRaw(reader, constructor);
+                }
+            }
+            offsets[count] = reader.position();
+            T[] elements = this.decode(c, buffer, offsets, constructor);
+            BufferCache.advance(buffer, reader);
+            return Arrays.asList(elements);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Decodes a list member of an encoded custom type value in its current
+     * contract version, skipping the members before it without decoding
+     * them. A compressed value is inflated first, and a value with a
+     * checksum is verified before its elements are decoded.
+     * @param <T> The type of the elements.
+     * @param type Class of the custom type.
+     * @param member Name of the member.
+     * @param c Class of the elements, or Object.class.
+     * @param buffer The buffer, positioned at the value. The position is
+     * not changed.
+     * @return The elements in a fixed-size list, empty if the member is
+     * absent or null.
+     * @throws AmqpIoException
+     */
+    public <T> List<T> readMember(Class type, String member, Class<T> c, ByteBuffer buffer)
+            throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = AmqpListIterator.seekMember(this.serializer, type, member,
+                    cache.reader(buffer), cache);
+            if (reader == null) {
+                return Collections.emptyList();
+            }
+            // the slice shares the bytes of the buffer, or of the inflated
+            // value
+            return this.readList(c, reader.slice(reader.remaining()));
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Decodes the values encoded one after another between the position
+     * and the limit of a buffer, such as the records of a file written
+     * by AmqpRecordWriter. Values written with compression or a checksum
+     * are opened as by readObject.
+     * @param <T> The type of the values.
+     * @param c Class of the values, or Object.class.
+     * @param buffer The buffer. The position is advanced to the limit.
+     * @return The values in a fixed-size list.
+     * @throws AmqpIoException
+     */
+    public <T> List<T> readBatch(Class<T> c, ByteBuffer buffer) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            int[] offsets = new int[64];
+            int count = 0;
+            while (reader.remaining() > 0) {
+                if (count == offsets.length - 1) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count++] = reader.position();
+                PrimitiveType.skipObject(reader);
+            }
+            offsets[count] = reader.position();
+            T[] values = this.decode(c, buffer, Arrays.copyOf(offsets, count + 1), VALUE);
+            BufferCache.advance(buffer, reader);
+            return Arrays.asList(values);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    private <T> T[] decode(Class<T> c, ByteBuffer buffer, int[] offsets, byte constructor) {
+        int count = offsets.length - 1;
+        Object[] elements = new Object[count];
+        int grain = Math.max(MIN_TASK, count / (this.pool.getParallelism() * 4));
+        DecodeTask task = new DecodeTask(this.serializer, c, buffer,
+                offsets, constructor, elements, 0, count, grain);
+        if (count <= grain) {
+            task.compute();
+        } else {
+            this.pool.invoke(task);
+        }
+        return (T[])elements;
+    }
+    
+    // skips an array element, whose constructor is shared
+    private static void skipRaw(AmqpReader reader, byte code) {
+        int size;
+        switch ((code & 0xf0) >> 4) {
+            case 0x4:
+                size = 0;
+                break;
+            case 0x5:
+                size = 1;
+                break;
+            case 0x6:
+                size = 2;
+                break;
+            case 0x7:
+                size = 4;
+                break;
+            case 0x8:
+                size = 8;
+                break;
+            case 0x9:
+                size = 16;
+                break;
+            case 0xa:
+            case 0xc:
+            case 0xe:
+                size = reader.get() & 0xff;
+                break;
+            case 0xb:
+            case 0xd:
+            case 0xf:
+                size = reader.getInt();
+                break;
+            default:
+                throw new AmqpIoException("Invalid format code " + code);
+        }
+        reader.require(size);
+        reader.position(reader.position() + size);
+    }
+    
+    private static class DecodeTask extends RecursiveAction {
+        private final AmqpSerializer serializer;
+        private final Class c;
+        private final ByteBuffer buffer;
+        private final int[] offsets;
+        private final byte constructor;
+        private final Object[] elements;
+        private final int from;
+        private final int to;
+        private final int grain;
+        
+        public DecodeTask(AmqpSerializer serializer, Class c, ByteBuffer buffer, int[] offsets,
+                byte constructor, Object[] elements, int from, int to, int grain) {
+            this.serializer = serializer;
+            this.c = c;
+            this.buffer = buffer;
+            this.offsets = offsets;
+            this.constructor = constructor;
+            this.elements = elements;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > this.grain) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new DecodeTask(this.serializer, this.c, this.buffer, this.offsets,
+                                this.constructor, this.elements, this.from, middle, this.grain),
+                        new DecodeTask(this.serializer, this.c, this.buffer, this.offsets,
+                                this.constructor, this.elements, middle, this.to, this.grain));
+                return;
+            }
+            BufferCache cache = BufferCache.acquire();
+            try {
+                // offsets are relative to the buffer position, which the
+                // duplicate keeps
+                AmqpReader reader = cache.reader(this.buffer.duplicate());
+                CustomType customType = this.serializer.getCustomType();
+                for (int i = this.from; i < this.to; i++) {
+                    reader.position(this.offsets[i]);
+                    if (this.constructor == VALUE) {
+                        this.elements[i] = this.serializer.decodeValue(cache, this.c, null, reader);
+                    } else if (this.constructor == 0) {
+                        this.elements[i] = customType.readObject(this.c, reader);
+                    } else {
+                        this.elements[i] = customType.readRaw(this.c, reader, this.constructor);
+                    }
+                }
+            } catch (AmqpIoException ioe) {
+                throw ioe;
+            } catch (Exception e) {
+                throw new AmqpIoException(e.getMessage(), e);
+            } finally {
+                cache.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.Checksum;
+
+/**
+ * Source of encoded bytes for AmqpSerializer. Multi-byte values are read
+ * in network byte order. Positions are relative to where the reader
+ * started. Readers are created by the wrap methods, or by extending this
+ * class for other kinds of storage.
+ */
+public abstract class AmqpReader {
+    private static final int MAX_SCRATCH = 8192;
+    private byte[] scratch;
+    
+    /**
+     * Creates a reader of a byte array.
+     * @param array The array.
+     * @return The reader.
+     */
+    public static AmqpReader wrap(byte[] array) {
+        return new ByteArrayReader(array, 0, array.length);
+    }
+    
+    /**
+     * Creates a reader of a range of a byte array.
+     * @param array The array.
+     * @param offset Offset of the first byte to read.
+     * @param length Number of bytes that can be read.
+     * @return The reader.
+     */
+    public static AmqpReader wrap(byte[] array, int offset, int length) {
+        return new ByteArrayReader(array, offset, length);
+    }
+    
+    /**
+     * Creates a reader of the bytes between the position and the limit
+     * of a buffer. The buffer's position is not changed.
+     * @param buffer The buffer.
+     * @return The reader.
+     */
+    public static AmqpReader wrap(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayReader(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        if (buffer.isDirect() && UnsafeAccess.supportsNative()) {
+            return new NativeReader().reset(buffer);
+        }
+        return new ByteBufferReader(buffer.duplicate().order(ByteOrder.BIG_ENDIAN));
+    }
+    
+    /**
+     * Creates a reader of several buffers read one after another, for
+     * example a message received in several pieces. The bytes between
+     * the position and the limit of each buffer are read in place. The
+     * buffers' positions are not changed.
+     * @param buffers The buffers.
+     * @return The reader.
+     */
+    public static AmqpReader wrap(ByteBuffer... buffers) {
+        if (buffers.length == 1) {
+            return wrap(buffers[0]);
+        }
+        return new CompositeReader(buffers);
+    }
+
+    /**
+     * Creates a reader of a channel that buffers only a window of the
+     * stream, for example to iterate over a list larger than memory with
+     * {@link AmqpListIterator}. Sizes in the stream are not checked
+     * against its length before the bytes are read.
+     * @param channel The channel.
+     * @param capacity Initial size of the window.
+     * @return The reader.
+     */
+    public static AmqpReader wrap(ReadableByteChannel channel, int capacity) {
+        return new ChannelReader(channel, capacity);
+    }
+
+    /**
+     * Gets the current read position.
+     * @return The number of bytes read so far.
+     */
+    public abstract int position();
+
+    /**
+     * Moves the read position, for example to skip a value.
+     * @param position The new position.
+     */
+    public abstract void position(int position);
+
+    /**
+     * Gets the number of bytes that can still be read.
+     * @return The number of remaining bytes.
+     */
+    public abstract int remaining();
+
+    /**
+     * Reads a byte.
+     * @return The value.
+     */
+    public abstract byte get();
+
+    /**
+     * Reads a byte at a position without changing the current position.
+     * @param position The position.
+     * @return The value.
+     */
+    public abstract byte get(int position);
+
+    /**
+     * Reads a 16-bit integer.
+     * @return The value.
+     */
+    public abstract short getShort();
+
+    /**
+     * Reads a 32-bit integer.
+     * @return The value.
+     */
+    public abstract int getInt();
+
+    /**
+     * Reads a 64-bit integer.
+     * @return The value.
+     */
+    public abstract long getLong();
+
+    /**
+     * Reads bytes into an array.
+     * @param dst The destination array.
+     * @param offset Offset in the array of the first byte.
+     * @param length Number of bytes to read.
+     */
+    public abstract void get(byte[] dst, int offset, int length);
+
+    /**
+     * Reads a 32-bit floating point number.
+     * @return The value.
+     */
+    public float getFloat() {
+        return Float.intBitsToFloat(this.getInt());
+    }
+
+    /**
+     * Reads a 64-bit floating point number.
+     * @return The value.
+     */
+    public double getDouble() {
+        return Double.longBitsToDouble(this.getLong());
+    }
+
+    /**
+     * Reads bytes into an array.
+     * @param dst The destination array.
+     */
+    public void get(byte[] dst) {
+        this.get(dst, 0, dst.length);
+    }
+
+    /**
+     * Reads bytes as a buffer. The buffer shares the storage of this
+     * reader where possible, otherwise the bytes are copied.
+     * @param length Number of bytes to read.
+     * @return A buffer whose position is zero and limit is the length.
+     */
+    public ByteBuffer slice(int length) {
+        this.require(length);
+        byte[] bytes = new byte[length];
+        this.get(bytes, 0, length);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Reads encoded characters as a string.
+     * @param length Number of bytes to read.
+     * @param charset Encoding of the characters.
+     * @return The string.
+     */
+    public String getString(int length, Charset charset) {
+        this.require(length);
+        byte[] bytes = length <= MAX_SCRATCH ? this.scratch(length) : new byte[length];
+        this.get(bytes, 0, length);
+        return new String(bytes, 0, length, charset);
+    }
+
+    /**
+     * Gets a reusable array of at least the given length. The array is
+     * overwritten by the next call.
+     * @param length The minimum length.
+     * @return The array.
+     */
+    protected byte[] scratch(int length) {
+        if (this.scratch == null || this.scratch.length < length) {
+            this.scratch = new byte[Math.max(length, 64)];
+        }
+        return this.scratch;
+    }
+
+    /**
+     * Throws if fewer than the given number of bytes remain.
+     * @param length The number of bytes required.
+     */
+    public void require(int length) {
+        if (length < 0 || length > this.remaining()) {
+            throw new AmqpIoException("Value size " + length + " exceeds the " +
+                    this.remaining() + " remaining bytes");
+        }
+    }
+    
+    /**
+     * Checks whether a number of bytes can be read with the unchecked
+     * accessors, which then skip the limit check of each value. Readers
+     * without unchecked accessors return false.
+     * @param size The number of bytes.
+     */
+    boolean available(int size) {
+        return false;
+    }
+    
+    byte getUnchecked() {
+        return this.get();
+    }
+    
+    short getShortUnchecked() {
+        return this.getShort();
+    }
+    
+    int getIntUnchecked() {
+        return this.getInt();
+    }
+    
+    long getLongUnchecked() {
+        return this.getLong();
+    }
+    
+    /**
+     * Checks whether the reader can go back to bytes already read. A
+     * reader streaming from a channel keeps only a few of them.
+     */
+    boolean seekable() {
+        return true;
+    }
+    
+    /**
+     * Feeds bytes already read to a checksum. The current position is
+     * not changed.
+     */
+    void update(Checksum checksum, int position, int length, byte[] chunk) {
+        int current = this.position();
+        this.position(position);
+        while (length > 0) {
+            int n = Math.min(chunk.length, length);
+            this.get(chunk, 0, n);
+            checksum.update(chunk, 0, n);
+            length -= n;
+        }
+        this.position(current);
+    }
+}
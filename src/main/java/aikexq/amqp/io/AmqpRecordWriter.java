@@ -0,0 +1,353 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends encoded records to a file from many threads. Producers claim
+ * slots in a ring of pre-allocated direct buffers and encode into them
+ * in parallel; a single I/O thread writes every run of completed slots
+ * with one gathering write and, if requested, forces the file once per
+ * run, so concurrent producers share the cost of the system calls.
+ * <p>Each record is one AMQP value, so the file can be read back with
+ * successive calls to {@link AmqpSerializer#readObject(Class, AmqpReader)}.
+ * Records are written in the order their slots were claimed. A record
+ * that fails to encode, for example because it does not fit in a slot,
+ * is skipped and its exception is thrown to its producer.</p>
+ * <p>The writer does not close the channel.</p>
+ */
+public class AmqpRecordWriter implements Closeable {
+    
+    /**
+     * How a thread waits for a slot, for records to write, or for a
+     * record to become durable. Under every strategy an interrupt ends
+     * the wait, as described by {@link #write} and {@link #await}.
+     */
+    public enum WaitStrategy {
+        /** Spins on the CPU. Lowest latency, needs a core per thread. */
+        SPIN,
+        /** Yields the CPU between checks. */
+        YIELD,
+        /** Parks for a few microseconds between checks. */
+        PARK,
+        /**
+         * Blocks on a monitor until signaled, or for at most a
+         * millisecond, since a signal sent just before the wait is
+         * missed. Lowest CPU use.
+         */
+        BLOCK
+    }
+    
+    private static final long CLOSED = 1L << 62;
+    private static final long PARK_NANOS = 20000L;
+    
+    private final AmqpSerializer serializer;
+    private final FileChannel channel;
+    private final WaitStrategy waitStrategy;
+    private final boolean sync;
+    private final ByteBuffer[] slots;
+    private final int mask;
+    private final int[] lengths;
+    // sequence of the record last published in each slot
+    private final AtomicLongArray published;
+    // next sequence to claim, with CLOSED set once the writer is closed
+    private final AtomicLong claimed;
+    // records below are written, so their slots are free
+    private volatile long written;
+    // records below are written and, if sync is set, forced
+    private volatile long durable;
+    private volatile Throwable failure;
+    private volatile long commits;
+    private final Object lock;
+    private final AtomicInteger waiters;
+    private final Thread thread;
+    
+    /**
+     * Creates a writer and starts its I/O thread.
+     * @param serializer The serializer encoding the records.
+     * @param channel The channel, positioned where records are appended.
+     * @param slotCount Number of slots in the ring, a power of two.
+     * @param slotSize Size of a slot, the largest encoded record.
+     * @param waitStrategy How threads wait.
+     * @param sync Whether each gathering write is followed by
+     * FileChannel.force, making the records durable.
+     */
+    public AmqpRecordWriter(AmqpSerializer serializer, FileChannel channel,
+            int slotCount, int slotSize, WaitStrategy waitStrategy, boolean sync) {
+        if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        if (slotSize <= 0 || (long)slotCount * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid slot size " + slotSize);
+        }
+        this.serializer = serializer;
+        this.channel = channel;
+        this.waitStrategy = waitStrategy;
+        this.sync = sync;
+        this.slots = new ByteBuffer[slotCount];
+        this.mask = slotCount - 1;
+        this.lengths = new int[slotCount];
+        this.published = new AtomicLongArray(slotCount);
+        ByteBuffer region = ByteBuffer.allocateDirect(slotCount * slotSize);
+        for (int i = 0; i < slotCount; i++) {
+            region.limit((i + 1) * slotSize).position(i * slotSize);
+            this.slots[i] = region.slice();
+            this.published.set(i, -1L);
+        }
+        this.claimed = new AtomicLong();
+        this.lock = new Object();
+        this.waiters = new AtomicInteger();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "amqp-record-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Encodes a record into a slot and queues it for writing. Waits if
+     * every slot is in use. The sequence number is claimed before the
+     * wait and must be published, so an interrupt during the wait is
+     * kept in the thread's interrupt status once the record is queued.
+     * @param record The record.
+     * @return The sequence number of the record, starting at zero.
+     * @throws AmqpIoException if the record cannot be encoded, the writer
+     * is closed, or writing failed.
+     */
+    public long write(Object record) throws AmqpIoException {
+        long sequence = this.claim();
+        int index = (int)sequence & this.mask;
+        boolean interrupted = false;
+        try {
+            while (sequence - this.written >= this.slots.length) {
+                this.checkFailure();
+                try {
+                    this.idle();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ByteBuffer slot = this.slots[index];
+        slot.clear();
+        int length = -1;
+        try {
+            this.serializer.writeObject(slot, record);
+            length = slot.position();
+        } finally {
+            this.lengths[index] = length;
+            this.published.lazySet(index, sequence);
+            this.signal();
+        }
+        return sequence;
+    }
+    
+    /**
+     * Waits until a record is written and, if sync is set, forced.
+     * @param sequence The sequence number returned by write.
+     * @throws AmqpIoException if writing failed, or if the thread was
+     * interrupted, in which case its interrupt status is set.
+     */
+    public void await(long sequence) throws AmqpIoException {
+        while (this.durable <= sequence) {
+            this.checkFailure();
+            if ((this.claimed.get() & ~CLOSED) <= sequence) {
+                throw new IllegalArgumentException("Record " + sequence + " not written");
+            }
+            try {
+                this.idle();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmqpIoException("Interrupted while waiting for record " + sequence, e);
+            }
+        }
+    }
+    
+    /**
+     * Waits until every record written so far is written and, if sync is
+     * set, forced.
+     * @throws AmqpIoException if writing failed, or if the thread was
+     * interrupted, in which case its interrupt status is set.
+     */
+    public void flush() throws AmqpIoException {
+        long sequence = (this.claimed.get() & ~CLOSED) - 1;
+        if (sequence >= 0) {
+            this.await(sequence);
+        }
+    }
+    
+    /**
+     * Gets the number of gathering writes so far. Divided into the
+     * number of records, it gives the average batch size.
+     * @return The number of writes.
+     */
+    public long getCommitCount() {
+        return this.commits;
+    }
+    
+    /**
+     * Rejects further records, waits until queued ones are written and
+     * stops the I/O thread.
+     * @throws IOException if writing failed.
+     */
+    @Override
+    public void close() throws IOException {
+        long c;
+        do {
+            c = this.claimed.get();
+        } while ((c & CLOSED) == 0 && !this.claimed.compareAndSet(c, c | CLOSED));
+        this.signal();
+        boolean interrupted = false;
+        while (this.thread.isAlive()) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.failure != null) {
+            throw new IOException("Record writer failed", this.failure);
+        }
+    }
+    
+    private long claim() {
+        while (true) {
+            long c = this.claimed.get();
+            if ((c & CLOSED) != 0) {
+                throw new AmqpIoException("Record writer is closed");
+            }
+            if (this.claimed.compareAndSet(c, c + 1)) {
+                return c;
+            }
+        }
+    }
+    
+    private void drain() {
+        ByteBuffer[] batch = new ByteBuffer[this.slots.length];
+        long next = 0;
+        try {
+            while (true) {
+                int count = 0;
+                long end = next;
+                while (end - next < this.slots.length &&
+                        this.published.get((int)end & this.mask) == end) {
+                    int index = (int)end & this.mask;
+                    int length = this.lengths[index];
+                    if (length > 0) {
+                        ByteBuffer slot = this.slots[index];
+                        slot.limit(length).position(0);
+                        batch[count++] = slot;
+                    }
+                    end++;
+                }
+                if (end == next) {
+                    long c = this.claimed.get();
+                    if ((c & CLOSED) != 0 && (c & ~CLOSED) == next) {
+                        return;
+                    }
+                    this.idle();
+                    continue;
+                }
+                int first = 0;
+                while (first < count) {
+                    this.channel.write(batch, first, count - first);
+                    while (first < count && !batch[first].hasRemaining()) {
+                        batch[first++] = null;
+                    }
+                }
+                this.commits++;
+                this.written = end;
+                if (this.sync && count > 0) {
+                    this.channel.force(false);
+                }
+                this.durable = end;
+                next = end;
+                this.signal();
+            }
+        } catch (Throwable t) {
+            this.failure = t;
+            this.signal();
+        }
+    }
+    
+    private void checkFailure() {
+        Throwable t = this.failure;
+        if (t != null) {
+            throw new AmqpIoException("Record writer failed: " + t.getMessage(), t);
+        }
+    }
+    
+    /**
+     * Waits once for another thread to make progress.
+     * @throws InterruptedException if the thread is interrupted, whose
+     * interrupt status is then cleared, since a parked or blocked thread
+     * would otherwise return at once from every wait and spin.
+     */
+    private void idle() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        switch (this.waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+            default:
+                // a signal may be missed between the caller's check and
+                // the wait, so waits are bounded
+                synchronized (this.lock) {
+                    this.waiters.incrementAndGet();
+                    try {
+                        this.lock.wait(1);
+                    } finally {
+                        this.waiters.decrementAndGet();
+                    }
+                }
+                break;
+        }
+    }
+    
+    private void signal() {
+        if (this.waitStrategy == WaitStrategy.BLOCK && this.waiters.get() > 0) {
+            synchronized (this.lock) {
+                this.lock.notifyAll();
+            }
+        }
+    }
+}
@@ -17,8 +17,13 @@
 
 package aikexq.amqp.io;
 
+import java.lang.reflect.InvocationTargetException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
 
 /**
  * <p>AmqpSerializer encodes Java objects into bytes and decodes Java object
@@ -28,6 +33,27 @@ import java.util.HashSet;
  * <li>encode: {@code AmqpSerializer.serialize(ByteBuffer, Object)}</li>
  * <li>decode: {@code AmqpSerializer.deserialize(Class<?>, ByteBuffer)}</li>
  * </ul><br>
+ * <p>Members of type AmqpBinary hold large binary values backed by a
+ * ByteBuffer, a file region or a stream. Written to an
+ * AmqpGatheringWriter, their bytes are not copied.</p>
+ * <p>Bytes can also be written to and read from any AmqpWriter and
+ * AmqpReader, such as a range of a byte array, or several ByteBuffers
+ * read as one without copying them together.</p>
+ * <p>Once an encoded cache is set, the encoded bytes of instances of
+ * contracts marked cacheable are kept by identity and copied in when the
+ * same instance is written again.</p>
+ * <p>With a checksum set, encoded values carry a CRC32C or other
+ * checksum trailer that decoding verifies.</p>
+ * <p>AmqpAsyncSerializer runs encoding and decoding on an executor, and
+ * AmqpDecodingProcessor decodes a Flow of buffers with backpressure.
+ * AmqpJsonTranscoder writes encoded values as JSON without decoding
+ * them, AmqpEditor changes members of encoded values in place, and
+ * AmqpFilter evaluates predicates on encoded values. AmqpRecordWriter
+ * appends records to a file from many threads with batched writes, and
+ * AmqpMessageEncoder wraps values in AMQP message sections.
+ * AmqpListIterator decodes the elements of a list one at a time, from a
+ * buffer or from a channel, and AmqpParallelDecoder decodes the elements
+ * of a large list on a ForkJoinPool.</p>
  * <p>Java primitive types are encoded as AMQP types directly.
  * <ul>
  * <li>boolean: a boolean value</li>
@@ -39,6 +65,13 @@ import java.util.HashSet;
  * <li>double: a 64-bit precision IEEE-754 floating point</li>
  * <li>char: utf32 BE encoded Unicode character</li>
  * <li>Date: 64-bit signed integer representing milliseconds since the Unix epoch</li>
+ * <li>Instant, OffsetDateTime, LocalDateTime: a timestamp like Date. The
+ * offset of an OffsetDateTime is not kept, and a LocalDateTime is taken
+ * to be in UTC</li>
+ * <li>Duration: a long number of milliseconds</li>
+ * <li>long members annotated with {@code @AmqpMember(timestamp = true)}:
+ * a timestamp</li>
+ * <li>BigDecimal: a decimal128, rounded to 34 significant digits</li>
  * <li>UUID: UUID as defined in section 4.1.2 of RFC-4122</li>
  * <li>byte[]: array of bytes</li>
  * <li>string: UTF8 Unicode string</li>
@@ -46,6 +79,13 @@ import java.util.HashSet;
  * <li>Map: a map. Key and value must be primitive types</li>
  * </ul>
  * </p>
+ * <p>Fields declared with parameterized collection types, such as
+ * {@code List<Address>}, {@code Set<String>} or {@code Map<String, Address>},
+ * are encoded as AMQP lists and maps whose elements use the encoder of the
+ * declared element type, so elements can be custom types. Sets are encoded
+ * as lists. On decoding, the declared collection class is instantiated if it
+ * is concrete; otherwise ArrayList, HashSet, TreeSet, ArrayDeque, HashMap,
+ * TreeMap or ConcurrentHashMap is used, whichever fits the declared type.</p>
  * <p>A custom type is serialized as an AMQP described type. By default,
  * the descriptor, which is an AMQP symbol, is the full name of the class,
  * and the value is an AMQP list containing values of the non-static
@@ -54,6 +94,13 @@ import java.util.HashSet;
  * <p>Custom types can be Java built-in types or user-defined types. Since
  * each field is implicitly identified by its position, any changes in
  * ordering can cause breaks.</p>
+ * <p>A contract can evolve through versions. Members added or removed in
+ * a version are marked with the since and until attributes of AmqpMember,
+ * and a removed member stays declared so that older values can be read.
+ * Values written by another version are mapped to the members of the
+ * reader through a translation built once per version: removed members
+ * are skipped, members added later keep their defaults, and integer and
+ * floating point members accept any narrower encoding.</p>
  * <p>For example, an AtomicLong object is represented as the following AMQP
  * described list.</p>
  * <pre>{@code
@@ -67,7 +114,12 @@ import java.util.HashSet;
  * data types or implement their own writeObject and readObject methods.
  * The serializer does not invoke the writeObject and readObject because
  * they produce or consume non-AMQP bytes.</p>
- * <p>A class without default constructor is not supported.</p>
+ * <p>On decoding, an object is created by the constructor or static
+ * factory method annotated with AmqpCreator, whose parameters receive the
+ * member values in member order. A record is created by its canonical
+ * constructor. Otherwise the default constructor is called and the fields
+ * are set one by one. A class without default constructor is created
+ * without running any constructor.</p>
  * <p>A class that does special initialization in constructor or readObject
  * method may either fail to be deserialized or not fully initialized after
  * decoding. One such example is the java.net.URI class. After decoding,
@@ -128,10 +180,25 @@ import java.util.HashSet;
  * ChildrenBook or FictionBook instances from the buffer.</p>
  * <p>Cyclic class reference is allowed, but cyclic object reference in
  * encoding is not allowed.</p>
+ * <p>Direct ByteBuffers in big-endian order, and native memory given by
+ * an address and a length, are read and written without going through
+ * the ByteBuffer methods. Every access is still checked against the
+ * available length.</p>
+ * <p>Classes that reflection cannot handle, or that have a better
+ * hand-written layout, can be given an {@link AmqpCodec}.</p>
+ * <p>On runtimes with Flight Recorder, encoder plan builds, large values
+ * and slow calls are reported as events in the "AMQP IO" category. See
+ * {@link #setEventThresholds(int, long)}.</p>
  */
 public class AmqpSerializer {
     private static final AmqpSerializer instance;
     private final CustomType customType = new CustomType();
+    private volatile int compressionThreshold = Integer.MAX_VALUE;
+    private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private volatile Class<? extends Checksum> checksumType;
+    private volatile byte[] checksumName;
+    private volatile int largeValueThreshold = 1024 * 1024;
+    private volatile long slowOperationThreshold = 10000000L;
     
     static {
         instance = new AmqpSerializer();
@@ -161,6 +228,67 @@ public class AmqpSerializer {
         return (T)instance.readObject(c, buffer);
     }
     
+    /**
+     * Encodes an object graph into a writer.
+     * @param writer Writer to save the bytes.
+     * @param graph Object to be encoded.
+     * @throws AmqpIoException
+     */
+    public static void serialize(AmqpWriter writer, Object graph) throws AmqpIoException {
+        instance.writeObject(writer, graph);
+    }
+    
+    /**
+     * Decodes an object of the specified type from a reader.
+     * @param <T> Expected type of the object.
+     * @param c Class of the type.
+     * @param reader Reader of the bytes.
+     * @return Object of type T.
+     * @throws AmqpIoException
+     */
+    public static <T> T deserialize(Class<T> c, AmqpReader reader) throws AmqpIoException {
+        return (T)instance.readObject(c, reader);
+    }
+    
+    /**
+     * Encodes an object graph into native memory.
+     * @param address Address of the first byte to write.
+     * @param length Number of bytes available at the address.
+     * @param graph Object to be encoded.
+     * @return The number of bytes written.
+     * @throws AmqpIoException
+     */
+    public static int serialize(long address, int length, Object graph) throws AmqpIoException {
+        return instance.writeObject(address, length, graph);
+    }
+    
+    /**
+     * Decodes an object of the specified type from native memory.
+     * @param <T> Expected type of the object.
+     * @param c Class of the type.
+     * @param address Address of the first byte to read.
+     * @param length Number of bytes available at the address.
+     * @return Object of type T.
+     * @throws AmqpIoException
+     */
+    public static <T> T deserialize(Class<T> c, long address, int length) throws AmqpIoException {
+        return (T)instance.readObject(c, address, length);
+    }
+    
+    /**
+     * Decodes an object from the buffer into an existing object.
+     * @param <T> Type of the target object.
+     * @param target The object whose members are overwritten.
+     * @param buffer Buffer to read bytes. The buffer's position is
+     * advanced after bytes are read.
+     * @return The target, or a new object if the buffer contains an
+     * object of a different type.
+     * @throws AmqpIoException
+     */
+    public static <T> T deserializeInto(T target, ByteBuffer buffer) throws AmqpIoException {
+        return instance.readInto(target, buffer);
+    }
+    
     /**
      * Encodes an object graph into bytes.
      * @param buffer Buffer to save the bytes. The buffer's position is
@@ -169,12 +297,62 @@ public class AmqpSerializer {
      * @throws AmqpIoException
      */
     public void writeObject(ByteBuffer buffer, Object graph) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
         try {
-            this.customType.writeObject(buffer, graph, new HashSet());
+            AmqpWriter writer = cache.writer(buffer);
+            this.encode(cache, writer, graph);
+            BufferCache.advance(buffer, writer);
         } catch (AmqpIoException ioe) {
             throw ioe;
         } catch (Exception e) {
             throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Encodes an object graph into a writer.
+     * @param writer Writer to save the bytes. The writer's position is
+     * advanced after bytes are written.
+     * @param graph Object to be encoded.
+     * @throws AmqpIoException
+     */
+    public void writeObject(AmqpWriter writer, Object graph) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            this.encode(cache, writer, graph);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Encodes an object graph into native memory, for example memory
+     * allocated off-heap or mapped from a file.
+     * @param address Address of the first byte to write.
+     * @param length Number of bytes available at the address.
+     * @param graph Object to be encoded.
+     * @return The number of bytes written.
+     * @throws AmqpIoException
+     */
+    public int writeObject(long address, int length, Object graph) throws AmqpIoException {
+        checkNative();
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpWriter writer = cache.writer(address, length);
+            this.encode(cache, writer, graph);
+            return writer.position();
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
         }
     }
     
@@ -188,12 +366,408 @@ public class AmqpSerializer {
      * @throws AmqpIoException
      */
     public <T> T readObject(Class c, ByteBuffer buffer) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
         try {
-            return (T)this.customType.readObject(c, buffer);
+            AmqpReader reader = cache.reader(buffer);
+            T obj = (T)this.decode(cache, c, reader);
+            BufferCache.advance(buffer, reader);
+            return obj;
         } catch (AmqpIoException ioe) {
             throw ioe;
         } catch (Exception e) {
             throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Decodes an object of the specified type from a reader.
+     * @param <T> Expected type of the object.
+     * @param c Class of the type.
+     * @param reader Reader of the bytes. The reader's position is
+     * advanced after bytes are read.
+     * @return Object of type T.
+     * @throws AmqpIoException
+     */
+    public <T> T readObject(Class c, AmqpReader reader) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            return (T)this.decode(cache, c, reader);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Decodes an object of the specified type from native memory.
+     * @param <T> Expected type of the object.
+     * @param c Class of the type.
+     * @param address Address of the first byte to read.
+     * @param length Number of bytes available at the address. The
+     * decoder never reads beyond them.
+     * @return Object of type T.
+     * @throws AmqpIoException
+     */
+    public <T> T readObject(Class c, long address, int length) throws AmqpIoException {
+        checkNative();
+        BufferCache cache = BufferCache.acquire();
+        try {
+            return (T)this.decode(cache, c, cache.reader(address, length));
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Decodes an object from the buffer into an existing object. All
+     * members of the target are overwritten. Members absent in the
+     * buffer are reset to their default values. Nested custom type
+     * objects and collections held by the target are reused when the
+     * buffer contains values of the same type. The target type must not
+     * be created by an AmqpCreator constructor or factory.
+     * @param <T> Type of the target object.
+     * @param target The object whose members are overwritten.
+     * @param buffer Buffer to read bytes. The buffer's position is
+     * advanced after bytes are read.
+     * @return The target, or a new object if the buffer contains an
+     * object of a different type.
+     * @throws AmqpIoException
+     */
+    public <T> T readInto(T target, ByteBuffer buffer) throws AmqpIoException {
+        BufferCache cache = BufferCache.acquire();
+        try {
+            AmqpReader reader = cache.reader(buffer);
+            T obj = (T)this.decodeValue(cache, null, target, reader);
+            BufferCache.advance(buffer, reader);
+            return obj;
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        } finally {
+            cache.release();
+        }
+    }
+    
+    /**
+     * Registers a codec that encodes and decodes its class instead of
+     * the built-in encoders. Codecs listed in
+     * META-INF/services/aikexq.amqp.io.AmqpCodec are registered when the
+     * serializer is created; a codec registered here replaces them.
+     * @param codec The codec. It cannot be registered with another
+     * serializer.
+     * @throws AmqpIoException if the class was already encoded or decoded
+     * by this serializer.
+     */
+    public void registerCodec(AmqpCodec<?> codec) throws AmqpIoException {
+        this.customType.registerCodec(codec);
+    }
+    
+    /**
+     * Sets the pool from which the decoder takes objects of a custom type,
+     * instead of creating new ones. Pooled objects have all members
+     * overwritten as in {@link #readInto(Object, ByteBuffer)}.
+     * @param <T> The custom type.
+     * @param c Class of the type.
+     * @param pool The pool, or null to remove the current pool.
+     * @throws AmqpIoException
+     */
+    public <T> void setObjectPool(Class<T> c, AmqpObjectPool<T> pool) throws AmqpIoException {
+        try {
+            this.customType.setObjectPool(c, pool);
+        } catch (AmqpIoException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Sets the size above which a decoded AmqpBinary member is copied
+     * to a temporary file instead of referencing the input. By default
+     * no value is copied.
+     * @param threshold The size in bytes.
+     * @param directory Directory of the files, or null for the default
+     * temporary directory.
+     */
+    public void setSpillThreshold(int threshold, Path directory) {
+        this.customType.setSpillThreshold(threshold, directory);
+    }
+    
+    /**
+     * Sets the cache of encoded bytes of cacheable contract instances.
+     * An instance is found by identity, and an entry is replaced by the
+     * next instance that maps to its slot. A value is cached from the
+     * output it was first written to, unless that output cannot be read
+     * back, as with AmqpGatheringWriter. There is no cache by default.
+     * @param capacity The number of entries, for example 1024, or 0 to
+     * disable caching.
+     * @param maxValueSize The size in bytes above which encoded values
+     * are not cached.
+     * @see AmqpContract#cacheable()
+     */
+    public void setEncodedCache(int capacity, int maxValueSize) {
+        this.customType.setEncodedCache(capacity, maxValueSize);
+    }
+    
+    /**
+     * Removes the cached encoded bytes of an instance of a cacheable
+     * contract, so that it is encoded again the next time it is written.
+     * Call it after changing the instance.
+     * @param obj The instance, or null to remove every entry.
+     */
+    public void invalidate(Object obj) {
+        this.customType.invalidate(obj);
+    }
+    
+    /**
+     * Enables compression of encoded values larger than a threshold. Such
+     * a value is written as a described list whose descriptor is the
+     * symbol "aikexq.amqp.io:deflate", holding the length of the value
+     * and its bytes compressed by Deflater. The value is encoded into the
+     * output in place, unless its codec estimates it above the threshold
+     * or the output cannot be read back; only a value found to exceed the
+     * threshold is moved to a scratch array and compressed into the
+     * output as it is produced. Decoding recognizes this envelope whether
+     * or not compression is enabled, and inflates the value into a
+     * per-thread array.
+     * @param threshold The size in bytes above which values are
+     * compressed, or Integer.MAX_VALUE to disable compression.
+     * @param level The Deflater compression level.
+     */
+    public void setCompression(int threshold, int level) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid threshold " + threshold);
+        }
+        this.compressionLevel = level;
+        this.compressionThreshold = threshold;
+    }
+    
+    /**
+     * Enables an integrity checksum on encoded values, using CRC32C, or
+     * CRC32 on runtimes without it. See {@link #setChecksum(Class)}.
+     * @param enabled True to enable the checksum, false to disable it.
+     */
+    public void setChecksum(boolean enabled) {
+        this.setChecksum(enabled ? ChecksumEnvelope.CRC32C : null);
+    }
+    
+    /**
+     * Sets the checksum written with encoded values. Such a value is
+     * written as a described list whose descriptor is the symbol
+     * "aikexq.amqp.io:checksum", holding the algorithm name, the value,
+     * and a ulong trailer with the checksum of the value's bytes, which
+     * are compressed if compression applies. The checksum is not updated
+     * as the value is written or read: it remains a second pass over the
+     * output range once the value was written to it, and over the input
+     * range once the value was decoded from it. Encoding back-patches the
+     * size headers of lists and maps after their members, so the bytes are
+     * final only when the whole value is, and the java.util.zip checksums
+     * cannot be corrected for a patched window; the pass reads the range
+     * while it is still in the CPU cache. Decoding recognizes this
+     * envelope whether or not a checksum is set. Outputs that cannot be
+     * read back, such as AmqpGatheringWriter, receive a copy of the value
+     * encoded into a per-thread array. Values checked with a class
+     * other than CRC32C, CRC32 or Adler32 can only be decoded by a
+     * serializer set to the same class.
+     * @param type The checksum class, which must have a public no-arg
+     * constructor, or null to disable the checksum.
+     */
+    public void setChecksum(Class<? extends Checksum> type) {
+        if (type != null) {
+            try {
+                type.getDeclaredConstructor().newInstance();
+            } catch (InvocationTargetException e) {
+                throw new IllegalArgumentException("Cannot create checksum " + type.getName(),
+                        e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot create checksum " + type.getName(), e);
+            }
+            byte[] name = ChecksumEnvelope.nameOf(type).getBytes(StandardCharsets.US_ASCII);
+            if (name.length > 255) {
+                throw new IllegalArgumentException("Checksum class name too long " + type.getName());
+            }
+            this.checksumName = name;
+        }
+        this.checksumType = type;
+    }
+    
+    /**
+     * Sets the thresholds of the Flight Recorder events. When a recording
+     * is running, encoding or decoding a value larger than largeValueBytes
+     * emits an aikexq.amqp.io.LargeValue event, and a call taking longer
+     * than slowOperationNanos emits an aikexq.amqp.io.SlowOperation event.
+     * Encoder plan builds always emit aikexq.amqp.io.PlanBuild. Without
+     * a running recording, or on runtimes without jdk.jfr, nothing is
+     * measured.
+     * @param largeValueBytes The size threshold in bytes, default 1 MB.
+     * @param slowOperationNanos The time threshold in nanoseconds,
+     * default 10 ms.
+     */
+    public void setEventThresholds(int largeValueBytes, long slowOperationNanos) {
+        if (largeValueBytes < 0) {
+            throw new IllegalArgumentException("Invalid size threshold " + largeValueBytes);
+        }
+        if (slowOperationNanos < 0) {
+            throw new IllegalArgumentException("Invalid time threshold " + slowOperationNanos);
+        }
+        this.largeValueThreshold = largeValueBytes;
+        this.slowOperationThreshold = slowOperationNanos;
+    }
+    
+    private void encode(BufferCache cache, AmqpWriter writer, Object graph) throws Exception {
+        if (!CodecEvents.recording) {
+            this.encodeValue(cache, writer, graph);
+            return;
+        }
+        long start = System.nanoTime();
+        int position = writer.position();
+        this.encodeValue(cache, writer, graph);
+        this.onEvent("encode", graph == null ? null : graph.getClass(),
+                writer.position() - position, System.nanoTime() - start);
+    }
+    
+    private void encodeValue(BufferCache cache, AmqpWriter writer, Object graph) throws Exception {
+        Class<? extends Checksum> type = this.checksumType;
+        if (type == null) {
+            this.encodeBody(cache, writer, graph);
+        } else if (writer.readable()) {
+            int sizePos = ChecksumEnvelope.begin(writer, this.checksumName);
+            int start = writer.position();
+            this.encodeBody(cache, writer, graph);
+            ChecksumEnvelope.end(writer, sizePos, start, cache.checksum(type), cache.chunk());
+        } else {
+            ByteArrayWriter copy = cache.copy();
+            copy.truncate(0);
+            int sizePos = ChecksumEnvelope.begin(copy, this.checksumName);
+            int start = copy.position();
+            this.encodeBody(cache, copy, graph);
+            ChecksumEnvelope.end(copy, sizePos, start, cache.checksum(type), cache.chunk());
+            writer.put(copy.array(), 0, copy.position());
+        }
+    }
+    
+    private void encodeBody(BufferCache cache, AmqpWriter writer, Object graph) throws Exception {
+        int threshold = this.compressionThreshold;
+        if (threshold == Integer.MAX_VALUE) {
+            this.customType.writeObject(writer, graph, cache.path());
+            return;
+        }
+        ByteArrayWriter scratch = cache.scratch();
+        if (writer.readable() && this.customType.estimateSize(graph) <= threshold) {
+            // most values stay below the threshold, so they are encoded in
+            // place and only a larger one is moved out to be deflated
+            int start = writer.position();
+            try {
+                this.customType.writeObject(writer, graph, cache.path());
+            } catch (BufferOverflowException e) {
+                // the value may still fit once deflated
+                writer.truncate(start);
+                this.customType.writeObject(scratch, graph, cache.path());
+                this.encodeScratch(cache, writer, scratch, threshold);
+                return;
+            }
+            int length = writer.position() - start;
+            if (length > threshold) {
+                scratch.put(writer, start, length);
+                writer.truncate(start);
+                DeflateEnvelope.write(writer, scratch.array(), length,
+                        cache.deflater(this.compressionLevel), cache.chunk());
+            }
+            return;
+        }
+        this.customType.writeObject(scratch, graph, cache.path());
+        this.encodeScratch(cache, writer, scratch, threshold);
+    }
+    
+    private void encodeScratch(BufferCache cache, AmqpWriter writer, ByteArrayWriter scratch,
+            int threshold) {
+        int length = scratch.position();
+        if (length > threshold) {
+            DeflateEnvelope.write(writer, scratch.array(), length,
+                    cache.deflater(this.compressionLevel), cache.chunk());
+        } else {
+            writer.put(scratch.array(), 0, length);
+        }
+    }
+    
+    CustomType getCustomType() {
+        return this.customType;
+    }
+    
+    Class<? extends Checksum> getChecksumType() {
+        return this.checksumType;
+    }
+    
+    private Object decode(BufferCache cache, Class c, AmqpReader reader) throws Exception {
+        if (!CodecEvents.recording) {
+            return this.decodeValue(cache, c, null, reader);
+        }
+        long start = System.nanoTime();
+        int position = reader.position();
+        Object value = this.decodeValue(cache, c, null, reader);
+        this.onEvent("decode", c, reader.position() - position, System.nanoTime() - start);
+        return value;
+    }
+    
+    /**
+     * Reads a value written by encode, opening its checksum and
+     * compression envelopes, if any.
+     * @param target The object to read into, or null to create one.
+     */
+    Object decodeValue(BufferCache cache, Class c, Object target, AmqpReader reader)
+            throws Exception {
+        if (!ChecksumEnvelope.matches(reader)) {
+            return this.decodeBody(cache, c, target, reader);
+        }
+        ChecksumEnvelope envelope = ChecksumEnvelope.open(reader, cache, this.checksumType);
+        Object value;
+        try {
+            value = this.decodeBody(cache, c, target, envelope.value());
+        } catch (Exception e) {
+            envelope.verify(e);
+            throw e;
+        }
+        envelope.verify();
+        return value;
+    }
+    
+    private Object decodeBody(BufferCache cache, Class c, Object target, AmqpReader reader)
+            throws Exception {
+        if (DeflateEnvelope.matches(reader)) {
+            reader = DeflateEnvelope.read(reader, cache);
+        }
+        return target == null
+                ? this.customType.readObject(c, reader)
+                : this.customType.readInto(target, reader);
+    }
+    
+    private void onEvent(String operation, Class c, int size, long duration) {
+        boolean large = size > this.largeValueThreshold;
+        boolean slow = duration > this.slowOperationThreshold;
+        if (large || slow) {
+            String descriptor = c == null ? null : this.customType.getDescriptor(c);
+            if (large) {
+                CodecEvents.instance.largeValue(operation, c, descriptor, size);
+            }
+            if (slow) {
+                CodecEvents.instance.slowOperation(operation, c, descriptor, size, duration);
+            }
+        }
+    }
+    
+    private static void checkNative() {
+        if (!UnsafeAccess.supportsNative()) {
+            throw new AmqpIoException("Native memory access is not supported on this platform");
         }
     }
 }
@@ -0,0 +1,215 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * Destination of encoded bytes for AmqpSerializer. Multi-byte values are
+ * written in network byte order. Positions are relative to where the
+ * writer started. Writers are created by the wrap methods, or by
+ * extending this class for other kinds of storage.
+ */
+public abstract class AmqpWriter {
+    
+    /**
+     * Creates a writer to a byte array.
+     * @param array The array.
+     * @return The writer.
+     */
+    public static AmqpWriter wrap(byte[] array) {
+        return new ByteArrayWriter(array, 0, array.length);
+    }
+    
+    /**
+     * Creates a writer to a range of a byte array.
+     * @param array The array.
+     * @param offset Offset of the first byte to write.
+     * @param length Number of bytes that can be written.
+     * @return The writer.
+     */
+    public static AmqpWriter wrap(byte[] array, int offset, int length) {
+        return new ByteArrayWriter(array, offset, length);
+    }
+    
+    /**
+     * Creates a writer to the space between the position and the limit
+     * of a buffer. The buffer's position is not changed; the number of
+     * bytes written is given by the writer's position.
+     * @param buffer The buffer.
+     * @return The writer.
+     */
+    public static AmqpWriter wrap(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayWriter(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        if (buffer.isDirect() && !buffer.isReadOnly() && UnsafeAccess.supportsNative()) {
+            return new NativeWriter().reset(buffer);
+        }
+        return new ByteBufferWriter(buffer.duplicate().order(ByteOrder.BIG_ENDIAN));
+    }
+
+    /**
+     * Gets the current write position.
+     * @return The number of bytes written so far.
+     */
+    public abstract int position();
+
+    /**
+     * Writes a byte.
+     * @param value The value.
+     */
+    public abstract void put(byte value);
+
+    /**
+     * Writes a 16-bit integer.
+     * @param value The value.
+     */
+    public abstract void putShort(short value);
+
+    /**
+     * Writes a 32-bit integer.
+     * @param value The value.
+     */
+    public abstract void putInt(int value);
+
+    /**
+     * Writes a 32-bit integer at a position already written, for
+     * example a size field that is known only after the value is written.
+     * The current position is not changed.
+     * @param position The position.
+     * @param value The value.
+     */
+    public abstract void putInt(int position, int value);
+
+    /**
+     * Writes a 64-bit integer.
+     * @param value The value.
+     */
+    public abstract void putLong(long value);
+
+    /**
+     * Writes bytes from an array.
+     * @param src The source array.
+     * @param offset Offset of the first byte in the array.
+     * @param length Number of bytes to write.
+     */
+    public abstract void put(byte[] src, int offset, int length);
+
+    /**
+     * Writes a 32-bit floating point number.
+     * @param value The value.
+     */
+    public void putFloat(float value) {
+        this.putInt(Float.floatToRawIntBits(value));
+    }
+
+    /**
+     * Writes a 64-bit floating point number.
+     * @param value The value.
+     */
+    public void putDouble(double value) {
+        this.putLong(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Writes all bytes of an array.
+     * @param src The source array.
+     */
+    public void put(byte[] src) {
+        this.put(src, 0, src.length);
+    }
+    
+    /**
+     * Writes the bytes of a binary value. The length is written by the
+     * caller. By default the bytes are copied into this writer.
+     * @param value The value.
+     * @throws IOException
+     */
+    public void put(AmqpBinary value) throws IOException {
+        value.copyTo(this);
+    }
+    
+    /**
+     * Checks whether bytes already written can be read back with
+     * {@link #get(int, byte[], int, int)}.
+     */
+    boolean readable() {
+        return false;
+    }
+    
+    /**
+     * Copies bytes already written. The current position is not changed.
+     */
+    void get(int position, byte[] dst, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Checks whether a number of bytes can be written with the unchecked
+     * accessors, which then skip the limit check of each value, growing
+     * the writer if it can. Writers without unchecked accessors return
+     * false.
+     * @param size The number of bytes.
+     */
+    boolean ensure(int size) {
+        return false;
+    }
+    
+    void putUnchecked(byte value) {
+        this.put(value);
+    }
+    
+    void putShortUnchecked(short value) {
+        this.putShort(value);
+    }
+    
+    void putIntUnchecked(int value) {
+        this.putInt(value);
+    }
+    
+    void putLongUnchecked(long value) {
+        this.putLong(value);
+    }
+    
+    /**
+     * Moves the position back, discarding the bytes written after it, for
+     * a readable writer.
+     */
+    void truncate(int position) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Feeds bytes already written to a checksum, for a readable writer.
+     */
+    void update(Checksum checksum, int position, int length, byte[] chunk) {
+        while (length > 0) {
+            int n = Math.min(chunk.length, length);
+            this.get(position, chunk, 0, n);
+            checksum.update(chunk, 0, n);
+            position += n;
+            length -= n;
+        }
+    }
+}
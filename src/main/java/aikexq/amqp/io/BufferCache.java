@@ -0,0 +1,228 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-thread readers and writers, so that a call does not allocate one.
+ * A buffer in network byte order is accessed through its backing array
+ * or, if direct, its native memory; any other buffer through its own
+ * get and put methods.
+ */
+class BufferCache {
+    private static final int MAX_SCRATCH = 1024 * 1024;
+    private static final ThreadLocal<BufferCache> cache = new ThreadLocal<BufferCache>() {
+        @Override
+        protected BufferCache initialValue() {
+            return new BufferCache();
+        }
+    };
+    
+    private final ByteBufferWriter bufferWriter = new ByteBufferWriter();
+    private final ByteArrayWriter arrayWriter = new ByteArrayWriter();
+    private final NativeWriter nativeWriter = new NativeWriter();
+    private final ByteBufferReader bufferReader = new ByteBufferReader();
+    private final ByteArrayReader arrayReader = new ByteArrayReader();
+    private final NativeReader nativeReader = new NativeReader();
+    private final ObjectPath path = new ObjectPath();
+    private ByteArrayWriter scratch;
+    private ByteArrayWriter copy;
+    private Deflater deflater;
+    private Inflater inflater;
+    private Checksum checksum;
+    private byte[] chunk;
+    private boolean busy;
+    
+    /**
+     * Gets the cache of the current thread, or a new one if the cache is
+     * in use by an outer call on the same thread.
+     * @return The cache. It must be released after the call.
+     */
+    public static BufferCache acquire() {
+        BufferCache c = cache.get();
+        if (c.busy) {
+            c = new BufferCache();
+        }
+        c.busy = true;
+        return c;
+    }
+    
+    /**
+     * Returns the cache after the call, dropping references to buffers.
+     */
+    public void release() {
+        this.bufferWriter.reset(null);
+        this.arrayWriter.reset(null, 0, 0);
+        this.nativeWriter.reset(null, 0, 0);
+        this.bufferReader.reset(null);
+        this.arrayReader.reset(null, 0, 0);
+        this.nativeReader.reset(null, 0, 0);
+        this.scratch = empty(this.scratch);
+        this.copy = empty(this.copy);
+        this.busy = false;
+    }
+    
+    private static ByteArrayWriter empty(ByteArrayWriter writer) {
+        if (writer == null) {
+            return null;
+        }
+        byte[] array = writer.array();
+        return array.length > MAX_SCRATCH ? null : writer.reset(array, 0, array.length);
+    }
+    
+    public AmqpWriter writer(ByteBuffer buffer) {
+        if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+            if (buffer.hasArray()) {
+                return this.arrayWriter.reset(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            if (isNative(buffer) && !buffer.isReadOnly()) {
+                return this.nativeWriter.reset(buffer);
+            }
+        }
+        return this.bufferWriter.reset(buffer);
+    }
+    
+    public AmqpWriter writer(long address, int length) {
+        return this.nativeWriter.reset(null, address, length);
+    }
+    
+    public AmqpReader reader(ByteBuffer buffer) {
+        if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+            if (buffer.hasArray()) {
+                return this.arrayReader.reset(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            if (isNative(buffer)) {
+                return this.nativeReader.reset(buffer);
+            }
+        }
+        return this.bufferReader.reset(buffer);
+    }
+    
+    public AmqpReader reader(long address, int length) {
+        return this.nativeReader.reset(null, address, length);
+    }
+    
+    /**
+     * Gets a growing writer for encoding a value before it is copied
+     * elsewhere. It is emptied when the cache is released.
+     * @return The writer.
+     */
+    public ByteArrayWriter scratch() {
+        if (this.scratch == null) {
+            this.scratch = new ByteArrayWriter(256);
+        }
+        return this.scratch;
+    }
+    
+    /**
+     * Gets a second growing writer, distinct from the scratch writer, for
+     * a whole value that is copied to an output that cannot be read back.
+     * It is emptied when the cache is released.
+     * @return The writer.
+     */
+    public ByteArrayWriter copy() {
+        if (this.copy == null) {
+            this.copy = new ByteArrayWriter(256);
+        }
+        return this.copy;
+    }
+    
+    public Deflater deflater(int level) {
+        if (this.deflater == null) {
+            this.deflater = new Deflater(level);
+        }
+        this.deflater.setLevel(level);
+        return this.deflater;
+    }
+    
+    public Inflater inflater() {
+        if (this.inflater == null) {
+            this.inflater = new Inflater();
+        }
+        return this.inflater;
+    }
+    
+    /**
+     * Gets a reset checksum of a type, creating it if the type differs
+     * from the last one used on this thread.
+     * @param type The checksum class.
+     * @return The checksum.
+     * @throws Exception
+     */
+    public Checksum checksum(Class<? extends Checksum> type) throws Exception {
+        if (this.checksum == null || this.checksum.getClass() != type) {
+            try {
+                this.checksum = type.getDeclaredConstructor().newInstance();
+            } catch (InvocationTargetException e) {
+                throw new AmqpIoException("Cannot create checksum " + type.getName(), e.getCause());
+            }
+        }
+        this.checksum.reset();
+        return this.checksum;
+    }
+    
+    /**
+     * Gets the empty path for detecting cyclic references while encoding.
+     * @return The path.
+     */
+    public ObjectPath path() {
+        return this.path.reset();
+    }
+    
+    public byte[] chunk() {
+        if (this.chunk == null) {
+            this.chunk = new byte[8192];
+        }
+        return this.chunk;
+    }
+    
+    /**
+     * Moves the buffer position past the bytes written. A writer using
+     * the buffer's own put methods has already moved it.
+     * @param buffer The buffer.
+     * @param writer The writer returned for the buffer.
+     */
+    public static void advance(ByteBuffer buffer, AmqpWriter writer) {
+        if (!(writer instanceof ByteBufferWriter)) {
+            buffer.position(buffer.position() + writer.position());
+        }
+    }
+    
+    /**
+     * Moves the buffer position past the bytes read. A reader using the
+     * buffer's own get methods has already moved it.
+     * @param buffer The buffer.
+     * @param reader The reader returned for the buffer.
+     */
+    public static void advance(ByteBuffer buffer, AmqpReader reader) {
+        if (!(reader instanceof ByteBufferReader)) {
+            buffer.position(buffer.position() + reader.position());
+        }
+    }
+    
+    private static boolean isNative(ByteBuffer buffer) {
+        return buffer.isDirect() && UnsafeAccess.supportsNative();
+    }
+}
@@ -0,0 +1,174 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.Checksum;
+
+/**
+ * Reads from a range of a byte array. Multi-byte values are assembled
+ * with shifts and strings are decoded in place.
+ */
+class ByteArrayReader extends AmqpReader {
+    private byte[] array;
+    private int offset;
+    private int limit;
+    private int position;
+    
+    public ByteArrayReader() {
+    }
+    
+    public ByteArrayReader(byte[] array, int offset, int length) {
+        this.reset(array, offset, length);
+    }
+    
+    public ByteArrayReader reset(byte[] array, int offset, int length) {
+        if (array != null && (offset < 0 || length < 0 || offset > array.length - length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.array = array;
+        this.offset = offset;
+        this.limit = offset + length;
+        this.position = offset;
+        return this;
+    }
+    
+    private int next(int size) {
+        int pos = this.position;
+        if (size > this.limit - pos) {
+            throw new BufferUnderflowException();
+        }
+        this.position = pos + size;
+        return pos;
+    }
+
+    @Override
+    public int position() {
+        return this.position - this.offset;
+    }
+
+    @Override
+    public void position(int position) {
+        if (position < 0 || position > this.limit - this.offset) {
+            throw new IllegalArgumentException("Invalid position " + position);
+        }
+        this.position = this.offset + position;
+    }
+
+    @Override
+    public int remaining() {
+        return this.limit - this.position;
+    }
+
+    @Override
+    public byte get() {
+        return this.array[this.next(1)];
+    }
+
+    @Override
+    public byte get(int position) {
+        if (position < 0 || position >= this.limit - this.offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        return this.array[this.offset + position];
+    }
+
+    @Override
+    public short getShort() {
+        int i = this.next(2);
+        byte[] a = this.array;
+        return (short)((a[i] << 8) | (a[i + 1] & 0xff));
+    }
+
+    @Override
+    public int getInt() {
+        return load(this.array, this.next(4));
+    }
+
+    @Override
+    public long getLong() {
+        int i = this.next(8);
+        return ((long)load(this.array, i) << 32) | (load(this.array, i + 4) & 0xffffffffL);
+    }
+
+    @Override
+    public void get(byte[] dst, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > dst.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        System.arraycopy(this.array, this.next(length), dst, offset, length);
+    }
+
+    @Override
+    public ByteBuffer slice(int length) {
+        this.require(length);
+        return ByteBuffer.wrap(this.array, this.next(length), length).slice();
+    }
+
+    @Override
+    public String getString(int length, Charset charset) {
+        this.require(length);
+        return new String(this.array, this.next(length), length, charset);
+    }
+    
+    @Override
+    boolean available(int size) {
+        return size <= this.limit - this.position;
+    }
+    
+    @Override
+    byte getUnchecked() {
+        return this.array[this.position++];
+    }
+    
+    @Override
+    short getShortUnchecked() {
+        int i = this.position;
+        this.position = i + 2;
+        byte[] a = this.array;
+        return (short)((a[i] << 8) | (a[i + 1] & 0xff));
+    }
+    
+    @Override
+    int getIntUnchecked() {
+        int i = this.position;
+        this.position = i + 4;
+        return load(this.array, i);
+    }
+    
+    @Override
+    long getLongUnchecked() {
+        int i = this.position;
+        this.position = i + 8;
+        return ((long)load(this.array, i) << 32) | (load(this.array, i + 4) & 0xffffffffL);
+    }
+    
+    private static int load(byte[] a, int i) {
+        return (a[i] << 24) | ((a[i + 1] & 0xff) << 16) |
+                ((a[i + 2] & 0xff) << 8) | (a[i + 3] & 0xff);
+    }
+    
+    @Override
+    void update(Checksum checksum, int position, int length, byte[] chunk) {
+        if (position < 0 || length < 0 || position > this.limit - this.offset - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        checksum.update(this.array, this.offset + position, length);
+    }
+}
@@ -0,0 +1,227 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.BufferOverflowException;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Writes to a range of a byte array. Multi-byte values are assembled
+ * with shifts, without the order and bounds handling of ByteBuffer.
+ * A writer created with a capacity grows its own array as needed.
+ */
+class ByteArrayWriter extends AmqpWriter {
+    private byte[] array;
+    private int offset;
+    private int limit;
+    private int position;
+    private boolean expandable;
+    
+    public ByteArrayWriter() {
+    }
+    
+    public ByteArrayWriter(int capacity) {
+        this.reset(new byte[capacity], 0, capacity);
+        this.expandable = true;
+    }
+    
+    public ByteArrayWriter(byte[] array, int offset, int length) {
+        this.reset(array, offset, length);
+    }
+    
+    public ByteArrayWriter reset(byte[] array, int offset, int length) {
+        if (array != null && (offset < 0 || length < 0 || offset > array.length - length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.array = array;
+        this.offset = offset;
+        this.limit = offset + length;
+        this.position = offset;
+        return this;
+    }
+    
+    private int next(int size) {
+        int pos = this.position;
+        if (size > this.limit - pos) {
+            this.grow(size);
+        }
+        this.position = pos + size;
+        return pos;
+    }
+    
+    private void grow(int size) {
+        int pos = this.position;
+        if (!this.expandable || size < 0 || pos + size < 0) {
+            throw new BufferOverflowException();
+        }
+        int capacity = Math.max(pos + size, this.array.length * 2);
+        this.array = Arrays.copyOf(this.array, capacity < 0 ? Integer.MAX_VALUE : capacity);
+        this.limit = this.array.length;
+    }
+
+    /**
+     * Gets the array written to.
+     * @return The array.
+     */
+    public byte[] array() {
+        return this.array;
+    }
+
+    @Override
+    public int position() {
+        return this.position - this.offset;
+    }
+
+    @Override
+    public void put(byte value) {
+        int i = this.next(1);
+        this.array[i] = value;
+    }
+
+    @Override
+    public void putShort(short value) {
+        int i = this.next(2);
+        byte[] a = this.array;
+        a[i] = (byte)(value >> 8);
+        a[i + 1] = (byte)value;
+    }
+
+    @Override
+    public void putInt(int value) {
+        int i = this.next(4);
+        store(this.array, i, value);
+    }
+
+    @Override
+    public void putInt(int position, int value) {
+        if (position < 0 || position > this.position - this.offset - 4) {
+            throw new IndexOutOfBoundsException();
+        }
+        store(this.array, this.offset + position, value);
+    }
+
+    @Override
+    public void putLong(long value) {
+        int i = this.next(8);
+        store(this.array, i, (int)(value >> 32));
+        store(this.array, i + 4, (int)value);
+    }
+
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > src.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int i = this.next(length);
+        System.arraycopy(src, offset, this.array, i, length);
+    }
+    
+    @Override
+    boolean ensure(int size) {
+        if (size <= this.limit - this.position) {
+            return true;
+        }
+        if (!this.expandable) {
+            return false;
+        }
+        this.grow(size);
+        return true;
+    }
+    
+    @Override
+    void putUnchecked(byte value) {
+        this.array[this.position++] = value;
+    }
+    
+    @Override
+    void putShortUnchecked(short value) {
+        int i = this.position;
+        this.position = i + 2;
+        byte[] a = this.array;
+        a[i] = (byte)(value >> 8);
+        a[i + 1] = (byte)value;
+    }
+    
+    @Override
+    void putIntUnchecked(int value) {
+        int i = this.position;
+        this.position = i + 4;
+        store(this.array, i, value);
+    }
+    
+    @Override
+    void putLongUnchecked(long value) {
+        int i = this.position;
+        this.position = i + 8;
+        store(this.array, i, (int)(value >> 32));
+        store(this.array, i + 4, (int)value);
+    }
+    
+    @Override
+    boolean readable() {
+        return true;
+    }
+    
+    @Override
+    void get(int position, byte[] dst, int offset, int length) {
+        if (position < 0 || length < 0 || position > this.position - this.offset - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        System.arraycopy(this.array, this.offset + position, dst, offset, length);
+    }
+    
+    @Override
+    void truncate(int position) {
+        if (position < 0 || position > this.position - this.offset) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.position = this.offset + position;
+    }
+    
+    /**
+     * Reserves bytes to be filled in place, growing the array of an
+     * expandable writer if needed.
+     * @return The index of the first reserved byte in the array.
+     */
+    int reserve(int length) {
+        return this.next(length);
+    }
+    
+    /**
+     * Appends bytes already written to a readable writer.
+     */
+    void put(AmqpWriter writer, int position, int length) {
+        int i = this.next(length);
+        writer.get(position, this.array, i, length);
+    }
+    
+    @Override
+    void update(Checksum checksum, int position, int length, byte[] chunk) {
+        if (position < 0 || length < 0 || position > this.position - this.offset - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        checksum.update(this.array, this.offset + position, length);
+    }
+    
+    private static void store(byte[] a, int i, int value) {
+        a[i] = (byte)(value >> 24);
+        a[i + 1] = (byte)(value >> 16);
+        a[i + 2] = (byte)(value >> 8);
+        a[i + 3] = (byte)value;
+    }
+}
@@ -0,0 +1,120 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads from a ByteBuffer through its relative and absolute get methods.
+ */
+class ByteBufferReader extends AmqpReader {
+    private ByteBuffer buffer;
+    private int start;
+    
+    public ByteBufferReader() {
+    }
+    
+    public ByteBufferReader(ByteBuffer buffer) {
+        this.reset(buffer);
+    }
+    
+    public ByteBufferReader reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer == null ? 0 : buffer.position();
+        return this;
+    }
+
+    @Override
+    public int position() {
+        return this.buffer.position() - this.start;
+    }
+
+    @Override
+    public void position(int position) {
+        this.buffer.position(this.start + position);
+    }
+
+    @Override
+    public int remaining() {
+        return this.buffer.remaining();
+    }
+
+    @Override
+    public byte get() {
+        return this.buffer.get();
+    }
+
+    @Override
+    public byte get(int position) {
+        return this.buffer.get(this.start + position);
+    }
+
+    @Override
+    public short getShort() {
+        return this.buffer.getShort();
+    }
+
+    @Override
+    public int getInt() {
+        return this.buffer.getInt();
+    }
+
+    @Override
+    public long getLong() {
+        return this.buffer.getLong();
+    }
+
+    @Override
+    public float getFloat() {
+        return this.buffer.getFloat();
+    }
+
+    @Override
+    public double getDouble() {
+        return this.buffer.getDouble();
+    }
+
+    @Override
+    public void get(byte[] dst, int offset, int length) {
+        this.buffer.get(dst, offset, length);
+    }
+
+    @Override
+    public ByteBuffer slice(int length) {
+        this.require(length);
+        ByteBuffer slice = this.buffer.slice();
+        slice.limit(length);
+        this.buffer.position(this.buffer.position() + length);
+        return slice;
+    }
+
+    @Override
+    public String getString(int length, Charset charset) {
+        if (!this.buffer.hasArray()) {
+            return super.getString(length, charset);
+        }
+        this.require(length);
+        int pos = this.buffer.position();
+        String str = new String(this.buffer.array(),
+                this.buffer.arrayOffset() + pos, length, charset);
+        this.buffer.position(pos + length);
+        return str;
+    }
+}
@@ -0,0 +1,110 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes to a ByteBuffer through its relative and absolute put methods.
+ */
+class ByteBufferWriter extends AmqpWriter {
+    private ByteBuffer buffer;
+    private int start;
+    
+    public ByteBufferWriter() {
+    }
+    
+    public ByteBufferWriter(ByteBuffer buffer) {
+        this.reset(buffer);
+    }
+    
+    public ByteBufferWriter reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer == null ? 0 : buffer.position();
+        return this;
+    }
+
+    @Override
+    public int position() {
+        return this.buffer.position() - this.start;
+    }
+
+    @Override
+    public void put(byte value) {
+        this.buffer.put(value);
+    }
+
+    @Override
+    public void putShort(short value) {
+        this.buffer.putShort(value);
+    }
+
+    @Override
+    public void putInt(int value) {
+        this.buffer.putInt(value);
+    }
+
+    @Override
+    public void putInt(int position, int value) {
+        this.buffer.putInt(this.start + position, value);
+    }
+
+    @Override
+    public void putLong(long value) {
+        this.buffer.putLong(value);
+    }
+
+    @Override
+    public void putFloat(float value) {
+        this.buffer.putFloat(value);
+    }
+
+    @Override
+    public void putDouble(double value) {
+        this.buffer.putDouble(value);
+    }
+
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        this.buffer.put(src, offset, length);
+    }
+    
+    @Override
+    boolean readable() {
+        return true;
+    }
+    
+    @Override
+    void truncate(int position) {
+        if (position < 0 || position > this.position()) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.buffer.position(this.start + position);
+    }
+    
+    @Override
+    void get(int position, byte[] dst, int offset, int length) {
+        if (position < 0 || length < 0 || position > this.position() - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ByteBuffer written = this.buffer.duplicate();
+        written.position(this.start + position);
+        written.get(dst, offset, length);
+    }
+}
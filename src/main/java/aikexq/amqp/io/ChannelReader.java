@@ -0,0 +1,184 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads from a channel through a window of bytes that is refilled as
+ * values are read, so memory does not grow with the stream. Bytes before
+ * the current position are discarded on refill, except for a few that
+ * decoders may step back over. The window only grows for a single
+ * fixed-size value larger than itself.
+ * <p>The length of the stream is unknown, so require does not check
+ * sizes against it; reading past the end throws instead.
+ * {@link #remaining()} returns the number of bytes read ahead, which is
+ * zero only at the end of the stream.</p>
+ */
+class ChannelReader extends AmqpReader {
+    private static final int LOOKBACK = 16;
+    private final ReadableByteChannel channel;
+    private byte[] array;
+    private ByteBuffer window;
+    // position of array[0] in the stream
+    private int base;
+    private int position;
+    private int end;
+    
+    public ChannelReader(ReadableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.array = new byte[Math.max(capacity, 64)];
+        this.window = ByteBuffer.wrap(this.array);
+    }
+    
+    /**
+     * Reads ahead until at least size bytes follow the position.
+     * @return False if the stream ends first.
+     */
+    private boolean fill(int size) {
+        if (this.end - this.position >= size) {
+            return true;
+        }
+        int keep = Math.max(this.base, this.position - LOOKBACK);
+        int valid = this.end - keep;
+        int required = this.position - keep + size;
+        if (required > this.array.length) {
+            byte[] grown = new byte[Math.max(required, this.array.length * 2)];
+            System.arraycopy(this.array, keep - this.base, grown, 0, valid);
+            this.array = grown;
+            this.window = ByteBuffer.wrap(grown);
+        } else if (keep > this.base) {
+            System.arraycopy(this.array, keep - this.base, this.array, 0, valid);
+        }
+        this.base = keep;
+        try {
+            while (this.end - this.position < size) {
+                this.window.limit(this.array.length).position(this.end - this.base);
+                int n = this.channel.read(this.window);
+                if (n < 0) {
+                    return false;
+                }
+                this.end += n;
+            }
+        } catch (IOException e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        }
+        return true;
+    }
+    
+    private int next(int size) {
+        if (!this.fill(size)) {
+            throw new BufferUnderflowException();
+        }
+        int offset = this.position - this.base;
+        this.position += size;
+        return offset;
+    }
+
+    @Override
+    public int position() {
+        return this.position;
+    }
+
+    @Override
+    public void position(int position) {
+        if (position < this.base) {
+            throw new IllegalArgumentException("Position " + position + " was discarded");
+        }
+        while (position > this.end) {
+            // skip without keeping the bytes
+            this.position = this.end;
+            this.base = this.end;
+            if (!this.fill(Math.min(position - this.end, this.array.length))) {
+                throw new BufferUnderflowException();
+            }
+        }
+        this.position = position;
+    }
+
+    @Override
+    public int remaining() {
+        this.fill(1);
+        return this.end - this.position;
+    }
+
+    @Override
+    public void require(int length) {
+        if (length < 0) {
+            throw new AmqpIoException("Invalid value size " + length);
+        }
+    }
+
+    @Override
+    public byte get() {
+        return this.array[this.next(1)];
+    }
+
+    @Override
+    public byte get(int position) {
+        if (position < this.base) {
+            throw new IllegalArgumentException("Position " + position + " was discarded");
+        }
+        if (position >= this.end && !this.fill(position - this.position + 1)) {
+            throw new BufferUnderflowException();
+        }
+        return this.array[position - this.base];
+    }
+
+    @Override
+    public short getShort() {
+        int i = this.next(2);
+        return (short)(((this.array[i] & 0xff) << 8) | (this.array[i + 1] & 0xff));
+    }
+
+    @Override
+    public int getInt() {
+        int i = this.next(4);
+        byte[] a = this.array;
+        return ((a[i] & 0xff) << 24) | ((a[i + 1] & 0xff) << 16)
+                | ((a[i + 2] & 0xff) << 8) | (a[i + 3] & 0xff);
+    }
+
+    @Override
+    public long getLong() {
+        int i = this.next(8);
+        byte[] a = this.array;
+        return ((long)(((a[i] & 0xff) << 24) | ((a[i + 1] & 0xff) << 16)
+                | ((a[i + 2] & 0xff) << 8) | (a[i + 3] & 0xff)) << 32)
+                | ((((a[i + 4] & 0xff) << 24) | ((a[i + 5] & 0xff) << 16)
+                | ((a[i + 6] & 0xff) << 8) | (a[i + 7] & 0xff)) & 0xffffffffL);
+    }
+
+    @Override
+    public void get(byte[] dst, int offset, int length) {
+        while (length > 0) {
+            int chunk = Math.min(length, this.array.length - LOOKBACK);
+            int i = this.next(chunk);
+            System.arraycopy(this.array, i, dst, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+    
+    @Override
+    boolean seekable() {
+        return false;
+    }
+}
@@ -0,0 +1,317 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The integrity envelope: a described list whose descriptor is the
+ * symbol {@value #NAME}, holding the name of the checksum algorithm as a
+ * symbol, the encoded value, and the checksum of the value's bytes as a
+ * ulong trailer. The value may itself be a compression envelope, whose
+ * bytes are then checked as stored.
+ * <p>The checksum is computed over the range of the output the value was
+ * just written to, and verified over the range of the input after the
+ * value was decoded from it, so the bytes are still cached.</p>
+ */
+class ChecksumEnvelope {
+    public static final String NAME = "aikexq.amqp.io:checksum";
+    public static final Class<? extends Checksum> CRC32C;
+    private static final byte[] descriptor;
+    // the ulong format code and the checksum
+    private static final int TRAILER = 9;
+    
+    static {
+        Class<? extends Checksum> c;
+        try {
+            c = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class);
+        } catch (ClassNotFoundException e) {
+            c = CRC32.class;
+        }
+        CRC32C = c;
+        byte[] name = NAME.getBytes(StandardCharsets.US_ASCII);
+        descriptor = new byte[name.length + 3];
+        descriptor[0] = FormatCode._described;
+        descriptor[1] = FormatCode._symbol8;
+        descriptor[2] = (byte)name.length;
+        System.arraycopy(name, 0, descriptor, 3, name.length);
+    }
+    
+    private final AmqpReader reader;
+    private final AmqpReader value;
+    private final Checksum checksum;
+    private final byte[] chunk;
+    private final int start;
+    private final int end;
+    private final long expected;
+    
+    private ChecksumEnvelope(AmqpReader reader, AmqpReader value, Checksum checksum,
+            byte[] chunk, int start, int end, long expected) {
+        this.reader = reader;
+        this.value = value;
+        this.checksum = checksum;
+        this.chunk = chunk;
+        this.start = start;
+        this.end = end;
+        this.expected = expected;
+    }
+    
+    /**
+     * Gets the name of a checksum algorithm as written in envelopes.
+     * @param type The checksum class.
+     * @return The name.
+     */
+    public static String nameOf(Class<? extends Checksum> type) {
+        if (type.getName().equals("java.util.zip.CRC32C")) {
+            return "crc32c";
+        }
+        if (type == CRC32.class) {
+            return "crc32";
+        }
+        if (type == Adler32.class) {
+            return "adler32";
+        }
+        return type.getName();
+    }
+    
+    // only the built-in algorithms and the configured one are created
+    // from a name read from the input
+    private static Class<? extends Checksum> typeOf(String name,
+            Class<? extends Checksum> configured) {
+        if (name.equals("crc32c") && CRC32C != CRC32.class) {
+            return CRC32C;
+        }
+        if (name.equals("crc32")) {
+            return CRC32.class;
+        }
+        if (name.equals("adler32")) {
+            return Adler32.class;
+        }
+        if (configured != null && name.equals(nameOf(configured))) {
+            return configured;
+        }
+        throw new AmqpIoException("Unknown checksum algorithm " + name);
+    }
+    
+    /**
+     * Writes the start of an envelope. The value follows.
+     * @param writer The writer.
+     * @param name Name of the checksum algorithm.
+     * @return Position of the list size, for {@link #end}.
+     */
+    public static int begin(AmqpWriter writer, byte[] name) {
+        writer.put(descriptor);
+        writer.put(FormatCode._list32);
+        int sizePos = writer.position();
+        writer.putInt(0);
+        writer.putInt(3);
+        writer.put(FormatCode._symbol8);
+        writer.put((byte)name.length);
+        writer.put(name);
+        return sizePos;
+    }
+    
+    /**
+     * Checksums the value just written, in place, and completes the
+     * envelope with the trailer.
+     * @param writer The writer, which must be readable.
+     * @param sizePos Position returned by {@link #begin}.
+     * @param start Position of the value.
+     * @param checksum A reset checksum.
+     * @param chunk Array for bytes the writer cannot expose in place.
+     */
+    public static void end(AmqpWriter writer, int sizePos, int start,
+            Checksum checksum, byte[] chunk) {
+        writer.update(checksum, start, writer.position() - start, chunk);
+        writer.put(FormatCode._ulong);
+        writer.putLong(checksum.getValue());
+        writer.putInt(sizePos, writer.position() - sizePos - 4);
+    }
+    
+    /**
+     * Checks whether the reader is positioned at an envelope, without
+     * moving it.
+     * @param reader The reader.
+     * @return True if an envelope follows.
+     */
+    public static boolean matches(AmqpReader reader) {
+        if (reader.remaining() < descriptor.length) {
+            return false;
+        }
+        int pos = reader.position();
+        for (int i = 0; i < descriptor.length; i++) {
+            if (reader.get(pos + i) != descriptor[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Moves the reader past the header of an envelope, to the value.
+     * @param reader The reader positioned at the envelope.
+     * @throws Exception
+     */
+    public static void skip(AmqpReader reader) throws Exception {
+        reader.position(reader.position() + descriptor.length);
+        FormatCode.assertEqual(FormatCode._list32, reader.get());
+        reader.require(reader.getInt());
+        reader.getInt();
+        FormatCode.assertEqual(FormatCode._symbol8, reader.get());
+        int len = reader.get() & 0xff;
+        reader.position(reader.position() + len);
+    }
+    
+    /**
+     * Reads the header of an envelope. The value is then read from
+     * {@link #value()} and checked with {@link #verify()}. A reader that
+     * cannot go back is checked here instead, on a copy of the value.
+     * @param reader The reader positioned at the envelope.
+     * @param cache The buffer cache of the call.
+     * @param configured The checksum class set on the serializer, or null.
+     * @return The envelope.
+     * @throws Exception
+     */
+    public static ChecksumEnvelope open(AmqpReader reader, BufferCache cache,
+            Class<? extends Checksum> configured) throws Exception {
+        reader.position(reader.position() + descriptor.length);
+        FormatCode.assertEqual(FormatCode._list32, reader.get());
+        int size = reader.getInt();
+        reader.require(size);
+        int end = reader.position() + size - TRAILER;
+        int count = reader.getInt();
+        if (count != 3) {
+            throw new AmqpIoException("Invalid checksum envelope count " + count);
+        }
+        FormatCode.assertEqual(FormatCode._symbol8, reader.get());
+        String name = reader.getString(reader.get() & 0xff, StandardCharsets.US_ASCII);
+        int start = reader.position();
+        if (end < start) {
+            throw new AmqpIoException("Invalid checksum envelope size " + size);
+        }
+        Checksum checksum = cache.checksum(typeOf(name, configured));
+        if (!reader.seekable()) {
+            ByteBuffer copy = reader.slice(end - start);
+            ChecksumEnvelope envelope = new ChecksumEnvelope(reader, AmqpReader.wrap(copy),
+                    checksum, cache.chunk(), start, end, readTrailer(reader));
+            checksum.update(copy.array(), copy.arrayOffset(), end - start);
+            envelope.check(null);
+            return envelope;
+        }
+        int pos = reader.position();
+        reader.position(end);
+        long expected = readTrailer(reader);
+        reader.position(pos);
+        return new ChecksumEnvelope(reader, reader, checksum, cache.chunk(), start, end, expected);
+    }
+    
+    private static long readTrailer(AmqpReader reader) throws Exception {
+        FormatCode.assertEqual(FormatCode._ulong, reader.get());
+        return reader.getLong();
+    }
+    
+    /**
+     * Gets the reader of the value.
+     * @return The reader, positioned at the value.
+     */
+    public AmqpReader value() {
+        return this.value;
+    }
+    
+    /**
+     * Checks the value after it was read, and moves the reader past the
+     * envelope.
+     * @throws AmqpIoException if the checksum does not match or the value
+     * does not end where the trailer starts.
+     */
+    public void verify() {
+        if (this.value != this.reader) {
+            return;
+        }
+        if (this.reader.position() != this.end) {
+            this.check(null);
+            throw new AmqpIoException("Value does not fill its checksum envelope");
+        }
+        this.check(null);
+        this.reader.position(this.end + TRAILER);
+    }
+    
+    /**
+     * Checks the value when it was not read to its end, for example after
+     * reading it failed. A checksum mismatch is reported in place of the
+     * error.
+     * @param error The error, or null.
+     * @throws AmqpIoException if the checksum does not match.
+     */
+    public void verify(Exception error) {
+        if (this.value == this.reader) {
+            this.check(error);
+        }
+    }
+    
+    private void check(Exception error) {
+        if (this.value == this.reader) {
+            this.reader.update(this.checksum, this.start, this.end - this.start, this.chunk);
+        }
+        long actual = this.checksum.getValue();
+        if (actual != this.expected) {
+            throw new AmqpIoException("Checksum mismatch: expected " + Long.toHexString(this.expected)
+                    + " but was " + Long.toHexString(actual), error);
+        }
+    }
+    
+    /**
+     * Computes the trailer of a value edited in place again.
+     * @param buffer The buffer holding the envelope at its position.
+     * @param delta The change in size of the value.
+     * @param cache The buffer cache of the call.
+     * @param configured The checksum class set on the serializer, or null.
+     * @throws Exception
+     */
+    public static void reseal(ByteBuffer buffer, int delta, BufferCache cache,
+            Class<? extends Checksum> configured) throws Exception {
+        AmqpReader reader = cache.reader(buffer);
+        int base = buffer.position();
+        int sizePos = descriptor.length + 1;
+        int size = getInt(reader, sizePos) + delta;
+        put(buffer, base + sizePos, size, 4);
+        reader.position(sizePos + 8);
+        FormatCode.assertEqual(FormatCode._symbol8, reader.get());
+        String name = reader.getString(reader.get() & 0xff, StandardCharsets.US_ASCII);
+        int start = reader.position();
+        int end = sizePos + 4 + size - TRAILER;
+        Checksum checksum = cache.checksum(typeOf(name, configured));
+        reader.update(checksum, start, end - start, cache.chunk());
+        put(buffer, base + end + 1, checksum.getValue(), 8);
+    }
+    
+    private static void put(ByteBuffer buffer, int pos, long value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            buffer.put(pos + i, (byte)value);
+            value >>= 8;
+        }
+    }
+    
+    private static int getInt(AmqpReader reader, int pos) {
+        return ((reader.get(pos) & 0xff) << 24) | ((reader.get(pos + 1) & 0xff) << 16)
+                | ((reader.get(pos + 2) & 0xff) << 8) | (reader.get(pos + 3) & 0xff);
+    }
+}
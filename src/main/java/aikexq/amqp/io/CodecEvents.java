@@ -0,0 +1,67 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+/**
+ * Facade over the Flight Recorder events of the serializer. The events
+ * are defined in JfrCodecEvents, which is loaded only if the runtime
+ * provides the jdk.jfr API; otherwise every call is a no-op.
+ * Callers check {@link #recording} before measuring anything, so the
+ * cost without a running recording is one volatile read.
+ */
+abstract class CodecEvents {
+    static final CodecEvents instance = create();
+    static volatile boolean recording;
+    
+    private static CodecEvents create() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return (CodecEvents)Class.forName("aikexq.amqp.io.JfrCodecEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            return new CodecEvents() {
+                @Override
+                void planBuilt(Class type, String descriptor, int fieldCount, int classCount, long duration) {
+                }
+                
+                @Override
+                void largeValue(String operation, Class type, String descriptor, int size) {
+                }
+                
+                @Override
+                void slowOperation(String operation, Class type, String descriptor, int size, long duration) {
+                }
+            };
+        }
+    }
+    
+    /**
+     * An encoder plan was built for a class, together with classCount
+     * classes built in the same session.
+     */
+    abstract void planBuilt(Class type, String descriptor, int fieldCount, int classCount, long duration);
+    
+    /**
+     * A value of size bytes was encoded or decoded.
+     */
+    abstract void largeValue(String operation, Class type, String descriptor, int size);
+    
+    /**
+     * An encode or decode call took longer than the configured threshold.
+     */
+    abstract void slowOperation(String operation, Class type, String descriptor, int size, long duration);
+}
@@ -0,0 +1,203 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Reads from a sequence of ByteBuffers as if they were one, for example
+ * a message spanning several receive buffers, without copying them into
+ * one. Values that fit in one buffer are read from it directly; only
+ * values crossing a boundary are assembled byte by byte.
+ */
+class CompositeReader extends AmqpReader {
+    private final ByteBuffer[] segments;
+    // starts[i] is the position of the first byte of segment i, and
+    // starts[segments.length] is the total length
+    private final int[] starts;
+    private int index;
+    private int position;
+    
+    public CompositeReader(ByteBuffer[] buffers) {
+        this.segments = new ByteBuffer[buffers.length];
+        this.starts = new int[buffers.length + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            this.segments[i] = buffers[i].slice().order(ByteOrder.BIG_ENDIAN);
+            this.starts[i + 1] = this.starts[i] + this.segments[i].remaining();
+        }
+    }
+    
+    /**
+     * Moves to the segment holding the current position and returns the
+     * offset in it of a value of the given size, or -1 if the value
+     * crosses into the next segment.
+     */
+    private int next(int size) {
+        int pos = this.position;
+        if (size > this.starts[this.segments.length] - pos) {
+            throw new BufferUnderflowException();
+        }
+        while (pos >= this.starts[this.index + 1]) {
+            this.index++;
+        }
+        int offset = pos - this.starts[this.index];
+        if (pos + size <= this.starts[this.index + 1]) {
+            this.position = pos + size;
+            return offset;
+        }
+        return -1;
+    }
+    
+    private int segmentOf(int position) {
+        int low = 0;
+        int high = this.segments.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (this.starts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public int position() {
+        return this.position;
+    }
+
+    @Override
+    public void position(int position) {
+        if (position < 0 || position > this.starts[this.segments.length]) {
+            throw new IllegalArgumentException("Invalid position " + position);
+        }
+        this.position = position;
+        this.index = this.segments.length == 0 ? 0 : this.segmentOf(position);
+    }
+
+    @Override
+    public int remaining() {
+        return this.starts[this.segments.length] - this.position;
+    }
+
+    @Override
+    public byte get() {
+        int offset = this.next(1);
+        return this.segments[this.index].get(offset);
+    }
+
+    @Override
+    public byte get(int position) {
+        if (position < 0 || position >= this.starts[this.segments.length]) {
+            throw new IndexOutOfBoundsException();
+        }
+        int i = this.segmentOf(position);
+        return this.segments[i].get(position - this.starts[i]);
+    }
+
+    @Override
+    public short getShort() {
+        int offset = this.next(2);
+        if (offset >= 0) {
+            return this.segments[this.index].getShort(offset);
+        }
+        return (short)((this.get() << 8) | (this.get() & 0xff));
+    }
+
+    @Override
+    public int getInt() {
+        int offset = this.next(4);
+        if (offset >= 0) {
+            return this.segments[this.index].getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (this.get() & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public long getLong() {
+        int offset = this.next(8);
+        if (offset >= 0) {
+            return this.segments[this.index].getLong(offset);
+        }
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (this.get() & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public void get(byte[] dst, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > dst.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.require(length);
+        while (length > 0) {
+            while (this.position >= this.starts[this.index + 1]) {
+                this.index++;
+            }
+            // segments are private slices, so their positions are free to use
+            ByteBuffer segment = this.segments[this.index];
+            int start = this.position - this.starts[this.index];
+            int count = Math.min(length, segment.limit() - start);
+            segment.position(start);
+            segment.get(dst, offset, count);
+            this.position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public ByteBuffer slice(int length) {
+        this.require(length);
+        if (length > 0) {
+            int offset = this.next(length);
+            if (offset >= 0) {
+                ByteBuffer slice = this.segments[this.index].duplicate();
+                slice.limit(offset + length).position(offset);
+                return slice.slice();
+            }
+        }
+        return super.slice(length);
+    }
+
+    @Override
+    public String getString(int length, Charset charset) {
+        this.require(length);
+        if (length > 0) {
+            int offset = this.next(length);
+            ByteBuffer segment = this.segments[this.index];
+            if (offset >= 0 && segment.hasArray()) {
+                return new String(segment.array(), segment.arrayOffset() + offset,
+                        length, charset);
+            }
+            if (offset >= 0) {
+                this.position -= length;
+            }
+        }
+        return super.getString(length, charset);
+    }
+}
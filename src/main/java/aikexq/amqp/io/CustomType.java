@@ -20,247 +20,1810 @@ package aikexq.amqp.io;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.ServiceLoader;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Checksum;
 
 class CustomType {
-    private final ConcurrentHashMap<Class, Encoder> customEncoders;
+    // a map owned by this instance, rather than a ClassValue, so that the
+    // encoders, which reference this instance, do not pin it to classes
+    private final ConcurrentHashMap<Class, Encoder> encoders;
+    private final ConcurrentHashMap<Class, AmqpCodec> codecs;
+    private final Object buildLock;
+    private volatile Path spillDirectory;
+    private volatile int spillThreshold = Integer.MAX_VALUE;
+    private volatile EncodedCache encodedCache;
     
     public CustomType() {
-        this.customEncoders = new ConcurrentHashMap();
+        this.encoders = new ConcurrentHashMap<>();
+        this.codecs = new ConcurrentHashMap<>();
+        this.buildLock = new Object();
+        for (AmqpCodec codec : ServiceLoader.load(AmqpCodec.class)) {
+            this.registerCodec(codec);
+        }
+    }
+    
+    /**
+     * Published for classes without an encoder, so that looking them up
+     * again does not take the build lock.
+     */
+    private static final Encoder UNSUPPORTED = new Encoder() {
+        @Override
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public Object read(AmqpReader buffer) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) {
+            throw new UnsupportedOperationException();
+        }
+    };
+    
+    /**
+     * The layout of a custom type as encoded: its descriptor and its
+     * members in encoding order.
+     */
+    public static class Plan {
+        public final String name;
+        public final int version;
+        public final byte[] descriptor;
+        public final boolean map;
+        public final String[] names;
+        public final byte[][] keys;
+        public final int[] orders;
+        public final Class[] types;
+        private final CompositEncoder encoder;
+        
+        private Plan(CompositEncoder encoder) {
+            this.encoder = encoder;
+            this.name = encoder.name;
+            this.version = encoder.version;
+            this.descriptor = encoder.descriptor;
+            this.map = encoder instanceof CompositMapEncoder;
+            int count = encoder.fields.length;
+            this.names = new String[count];
+            this.keys = new byte[count][];
+            this.orders = new int[count];
+            this.types = new Class[count];
+            for (int i = 0; i < count; i++) {
+                this.names[i] = encoder.fields[i].name;
+                this.keys[i] = this.names[i].getBytes(StandardCharsets.UTF_8);
+                this.orders[i] = encoder.fields[i].order;
+                this.types[i] = encoder.fields[i].field.getType();
+            }
+        }
+        
+        /**
+         * Gets the index of a member by name.
+         * @param name The member name.
+         * @return The index, or -1 if there is no such member.
+         */
+        public int indexOf(String name) {
+            for (int i = 0; i < this.names.length; i++) {
+                if (this.names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * Gets the index of a member by its order.
+         * @param order The order of the member.
+         * @return The index, or -1 if there is no such member.
+         */
+        public int indexOfOrder(int order) {
+            for (int i = 0; i < this.orders.length; i++) {
+                if (this.orders[i] == order) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * Gets the names of the list items of a version of the type,
+         * including members removed since. Items of a newer version past
+         * its known members have no name.
+         * @param version The version.
+         * @return The names in list order.
+         */
+        public String[] layout(int version) {
+            return this.encoder.translation(version).names;
+        }
+        
+        /**
+         * Opens an encoded value of the type for reading its members in
+         * place. Values of other versions of the type are opened with the
+         * layout of their version. Checksum and compression envelopes are opened first; the
+         * checksum is verified by the caller through the returned value.
+         * @param reader The reader, positioned at the value.
+         * @param cache The buffer cache of the call.
+         * @param checksum The checksum class set on the serializer, or null.
+         * @param inflate False to reject compressed values, for callers
+         * that change the bytes in place.
+         * @return The value positioned at its first member, or null if the
+         * value is not of this type.
+         * @throws Exception
+         */
+        public Value open(AmqpReader reader, BufferCache cache,
+                Class<? extends Checksum> checksum, boolean inflate) throws Exception {
+            if (!ChecksumEnvelope.matches(reader)) {
+                return this.openBody(reader, cache, null, inflate);
+            }
+            ChecksumEnvelope envelope = ChecksumEnvelope.open(reader, cache, checksum);
+            try {
+                return this.openBody(envelope.value(), cache, envelope, inflate);
+            } catch (Exception e) {
+                envelope.verify(e);
+                throw e;
+            }
+        }
+        
+        private Value openBody(AmqpReader reader, BufferCache cache, ChecksumEnvelope envelope,
+                boolean inflate) throws Exception {
+            if (DeflateEnvelope.matches(reader)) {
+                if (!inflate) {
+                    throw new AmqpIoException("Compressed values cannot be edited");
+                }
+                reader = DeflateEnvelope.read(reader, cache);
+            }
+            if (reader.get() != FormatCode._described) {
+                return null;
+            }
+            Translation translation = this.readDescriptor(reader);
+            if (translation == null) {
+                return null;
+            }
+            int body = reader.position();
+            byte code = reader.get();
+            int count;
+            if (code == FormatCode._list0) {
+                count = 0;
+            } else if (code == (this.map ? FormatCode._map8 : FormatCode._list8)) {
+                reader.require(reader.get() & 0xff);
+                count = reader.get() & 0xff;
+            } else if (code == (this.map ? FormatCode._map32 : FormatCode._list32)) {
+                reader.require(reader.getInt());
+                count = reader.getInt();
+            } else {
+                throw new AmqpIoException("Invalid format code " + code + " for the members of "
+                        + this.name);
+            }
+            return new Value(this, translation, reader, envelope, body,
+                    this.map ? count / 2 : count);
+        }
+        
+        /**
+         * Reads a descriptor and finds the translation of the version of
+         * the type it names.
+         * @return The translation, or null if it names another type.
+         */
+        private Translation readDescriptor(AmqpReader reader) throws Exception {
+            byte code = reader.get();
+            int len;
+            if (code == FormatCode._symbol8) {
+                len = reader.get() & 0xff;
+            } else if (code == FormatCode._symbol32) {
+                len = reader.getInt();
+            } else {
+                reader.position(reader.position() - 1);
+                PrimitiveType.skipObject(reader);
+                return null;
+            }
+            reader.require(len);
+            int pos = reader.position();
+            reader.position(pos + len);
+            return this.encoder.translationOf(reader, pos, len);
+        }
+        
+        /**
+         * Gets the length of the type name in a descriptor.
+         * @return The length before a ":vN" version suffix, or len if the
+         * descriptor has none.
+         */
+        static int baseLength(AmqpReader reader, int pos, int len) {
+            int digits = 0;
+            while (digits < 9 && digits < len && isDigit(reader.get(pos + len - 1 - digits))) {
+                digits++;
+            }
+            if (digits > 0 && len - digits >= 2 &&
+                reader.get(pos + len - digits - 1) == 'v' &&
+                reader.get(pos + len - digits - 2) == ':') {
+                return len - digits - 2;
+            }
+            return len;
+        }
+        
+        /**
+         * Gets the version in a descriptor.
+         * @param baseLength The length of the type name, as returned by
+         * {@link #baseLength}.
+         * @return The version, or 0 if the descriptor has no suffix.
+         */
+        static int versionOf(AmqpReader reader, int pos, int baseLength, int len) {
+            int version = 0;
+            for (int i = baseLength + 2; i < len; i++) {
+                version = version * 10 + reader.get(pos + i) - '0';
+            }
+            return version;
+        }
+        
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+        
+        /**
+         * Reads a string or symbol map key.
+         * @param reader The reader, positioned at the key. It is moved
+         * past the key.
+         * @return The length of the key, whose bytes precede the reader's
+         * position, or -1 if the key is of another type.
+         * @throws Exception
+         */
+        public static int readKey(AmqpReader reader) throws Exception {
+            byte code = reader.get();
+            int len;
+            if (code == FormatCode._symbol8 || code == FormatCode._string8) {
+                len = reader.get() & 0xff;
+            } else if (code == FormatCode._symbol32 || code == FormatCode._string32) {
+                len = reader.getInt();
+            } else {
+                reader.position(reader.position() - 1);
+                PrimitiveType.skipObject(reader);
+                return -1;
+            }
+            reader.require(len);
+            reader.position(reader.position() + len);
+            return len;
+        }
+        
+        /**
+         * Reads a map key and compares it with the UTF-8 bytes of a name.
+         * Keys other than strings and symbols do not match.
+         * @param reader The reader, positioned at the key. It is moved
+         * past the key.
+         * @param key The name.
+         * @return True if the key is the name.
+         * @throws Exception
+         */
+        public static boolean matchesKey(AmqpReader reader, byte[] key) throws Exception {
+            int len = readKey(reader);
+            return len == key.length && equals(reader, reader.position() - len, key, 0, len);
+        }
+        
+        private static boolean equals(AmqpReader reader, int pos, byte[] bytes, int offset,
+                int len) {
+            for (int i = 0; i < len; i++) {
+                if (reader.get(pos + i) != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * An encoded value opened by {@link Plan#open}.
+         */
+        public static class Value {
+            private final Plan plan;
+            private final Translation translation;
+            private final ChecksumEnvelope envelope;
+            // the reader of the members, which is not the reader of the
+            // value if the value was inflated
+            public final AmqpReader reader;
+            // position of the format code of the members
+            public final int body;
+            // number of members encoded
+            public final int count;
+            private final int first;
+            
+            private Value(Plan plan, Translation translation, AmqpReader reader,
+                    ChecksumEnvelope envelope, int body, int count) {
+                this.plan = plan;
+                this.translation = translation;
+                this.reader = reader;
+                this.envelope = envelope;
+                this.body = body;
+                this.count = count;
+                this.first = reader.position();
+            }
+            
+            /**
+             * Positions the reader at a member.
+             * @param member Index of the member.
+             * @return True if the member is encoded, false if it is absent.
+             * @throws Exception
+             */
+            public boolean seek(int member) throws Exception {
+                Plan p = this.plan;
+                if (member < 0 || member >= p.names.length) {
+                    throw new AmqpIoException("Invalid member index " + member);
+                }
+                AmqpReader r = this.reader;
+                r.position(this.first);
+                if (!p.map) {
+                    int position = this.translation.positions[member];
+                    if (position < 0 || position >= this.count) {
+                        return false;
+                    }
+                    for (int i = 0; i < position; i++) {
+                        PrimitiveType.skipObject(r);
+                    }
+                    return true;
+                }
+                byte[] key = p.keys[member];
+                for (int i = 0; i < this.count; i++) {
+                    if (matchesKey(r, key)) {
+                        return true;
+                    }
+                    PrimitiveType.skipObject(r);
+                }
+                return false;
+            }
+            
+            /**
+             * Gets the member at a list position in the version of the
+             * value.
+             * @param position The list position.
+             * @return The index of the member, or -1 if the item is a
+             * member removed since or unknown.
+             */
+            public int member(int position) {
+                int[] slots = this.translation.slots;
+                return position < slots.length ? slots[position] : -1;
+            }
+            
+            /**
+             * Verifies the checksum of the value, if it has one, whether
+             * or not it was read to its end.
+             * @throws AmqpIoException if the checksum does not match.
+             */
+            public void verify() {
+                if (this.envelope != null) {
+                    this.envelope.verify(null);
+                }
+            }
+            
+            /**
+             * Verifies the checksum of the value after reading it failed.
+             * A checksum mismatch is reported in place of the error.
+             * @param error The error.
+             */
+            public void verify(Exception error) {
+                if (this.envelope != null) {
+                    this.envelope.verify(error);
+                }
+            }
+        }
     }
     
+    private static final int OBJECT = 0;
+    private static final int REUSABLE = 1;
+    private static final int BOOLEAN = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int INT = 5;
+    private static final int LONG = 6;
+    private static final int FLOAT = 7;
+    private static final int DOUBLE = 8;
+    private static final int CHAR = 9;
+    private static final int DATE = 10;
+    private static final int TIMESTAMP = 11;
+    
+    private static final Comparator<FieldInfo> ORDER = new Comparator<FieldInfo>() {
+        @Override
+        public int compare(FieldInfo f1, FieldInfo f2) {
+            return f1.order  - f2.order;
+        }
+    };
+    
     private static class FieldInfo {
         public String name;
         public int order;
         public Field field;
         public Encoder encoder;
+        public boolean typed;
+        public int kind;
+        public int since;
+        public int until = Integer.MAX_VALUE;
         
-        public FieldInfo(String name, int order, Field field, Encoder encoder) {
+        public FieldInfo(String name, int order, Field field, Encoder encoder, boolean typed) {
             this.name = name;
             this.order = order;
             this.field = field;
             this.encoder = encoder;
+            this.typed = typed;
+            this.kind = kindOf(field.getType(), encoder);
+        }
+        
+        /**
+         * Gets the size of the widest encoding of a member of a fixed
+         * width kind, including its format code, or 0 for other kinds.
+         */
+        public static int widthOf(int kind) {
+            switch (kind) {
+                case BOOLEAN:
+                case BYTE:
+                    return 2;
+                case SHORT:
+                    return 3;
+                case INT:
+                case FLOAT:
+                case CHAR:
+                    return 5;
+                case LONG:
+                case DOUBLE:
+                case TIMESTAMP:
+                    return 9;
+                default:
+                    return 0;
+            }
+        }
+        
+        private static int kindOf(Class c, Encoder encoder) {
+            if (c == Boolean.TYPE) {
+                return BOOLEAN;
+            } else if (c == Byte.TYPE) {
+                return BYTE;
+            } else if (c == Short.TYPE) {
+                return SHORT;
+            } else if (c == Integer.TYPE) {
+                return INT;
+            } else if (c == Long.TYPE) {
+                return LONG;
+            } else if (c == Float.TYPE) {
+                return FLOAT;
+            } else if (c == Double.TYPE) {
+                return DOUBLE;
+            } else if (c == Character.TYPE) {
+                return CHAR;
+            } else if (c == Date.class) {
+                return DATE;
+            } else if (encoder instanceof ReusingEncoder) {
+                return REUSABLE;
+            } else {
+                return OBJECT;
+            }
+        }
+    }
+    
+    /**
+     * An encoder that can decode into an existing object instead of
+     * creating a new one.
+     */
+    private interface ReusingEncoder extends Encoder {
+        /**
+         * Reads a value, reusing the target object if possible.
+         * @param buffer The buffer.
+         * @param target The object to reuse, or null.
+         * @return The target if it was reused, otherwise a new object.
+         * @throws Exception
+         */
+        Object read(AmqpReader buffer, Object target) throws Exception;
+    }
+    
+    private static class EnumEncoder implements Encoder {
+        private final Class c;
+        private final Object[] constants;
+        
+        public EnumEncoder(Class c) {
+            this.c = c;
+            this.constants = c.getEnumConstants();
+        }
+
+        @Override
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            if (obj == null) {
+                buffer.put(FormatCode._null);
+                return;
+            }
+            PrimitiveType.writeInt(buffer, ((Enum)obj).ordinal());
+        }
+
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object read(AmqpReader buffer) throws Exception {
+            byte code = buffer.get();
+            if (code == FormatCode._null) {
+                return null;
+            }
+            return this.readRaw(buffer, code);
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            int ordinal = PrimitiveType.readInt(buffer, formatCode);
+            if (ordinal >= 0 && ordinal < this.constants.length) {
+                return this.constants[ordinal];
+            }
+            throw new AmqpIoException(c.getName() + ": ordinal out of range " + ordinal);
+        }
+    }
+    
+    private static class CodecEncoder implements Encoder {
+        private final AmqpCodec codec;
+        
+        public CodecEncoder(AmqpCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            if (obj == null) {
+                buffer.put(FormatCode._null);
+                return;
+            }
+            this.codec.encode(buffer, obj, path);
+        }
+
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object read(AmqpReader buffer) throws Exception {
+            if (buffer.get(buffer.position()) == FormatCode._null) {
+                buffer.get();
+                return null;
+            }
+            return this.codec.decode(buffer);
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            if (formatCode == FormatCode._null) {
+                return null;
+            }
+            // the codec reads the whole value, constructor included
+            buffer.position(buffer.position() - 1);
+            return this.codec.decode(buffer);
+        }
+    }
+    
+    private static class BinaryEncoder implements Encoder {
+        private final CustomType customType;
+        
+        public BinaryEncoder(CustomType customType) {
+            this.customType = customType;
+        }
+
+        @Override
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            if (obj == null) {
+                buffer.put(FormatCode._null);
+                return;
+            }
+            buffer.put(FormatCode._binary32);
+            this.writeRaw(buffer, obj, path);
+        }
+
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            AmqpBinary binary = (AmqpBinary)obj;
+            buffer.putInt(binary.length());
+            buffer.put(binary);
+        }
+
+        @Override
+        public Object read(AmqpReader buffer) throws Exception {
+            byte code = buffer.get();
+            if (code == FormatCode._null) {
+                return null;
+            }
+            return this.readRaw(buffer, code);
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            int len;
+            if (formatCode == FormatCode._binary8) {
+                len = buffer.get() & 0xff;
+            } else {
+                FormatCode.assertEqual(FormatCode._binary32, formatCode);
+                len = buffer.getInt();
+            }
+            if (len > this.customType.spillThreshold) {
+                return AmqpBinary.spill(buffer, len, this.customType.spillDirectory);
+            }
+            return AmqpBinary.of(buffer.slice(len));
+        }
+    }
+    
+    /**
+     * Maps the list positions of a contract version to members. The
+     * translation of a version is built when a value of it is first read.
+     */
+    private static class Translation {
+        public final CompositEncoder encoder;
+        public final int version;
+        // member index of each list position, or -1 to skip the item
+        public final int[] slots;
+        // list position of each member, or -1 if it is absent
+        public final int[] positions;
+        // member name of each list position
+        public final String[] names;
+        
+        public Translation(CompositEncoder encoder, int version, int[] slots, int[] positions,
+                String[] names) {
+            this.encoder = encoder;
+            this.version = version;
+            this.slots = slots;
+            this.positions = positions;
+            this.names = names;
+        }
+    }
+    
+    private static abstract class CompositEncoder implements ReusingEncoder {
+        private static final int MAX_TRANSLATIONS = 64;
+        
+        public final String name;
+        public final String symbol;
+        protected final Class type;
+        protected final int version;
+        protected final byte[] descriptor;
+        protected final byte[] nameBytes;
+        protected CustomType customType;
+        protected InstanceCreator creator;
+        protected FieldInfo[] fields;
+        protected FieldInfo[] retired;
+        protected Translation current;
+        protected volatile Translation[] translations;
+        protected Map<String, Encoder> knownTypes;
+        protected SymbolTable knownNames;
+        protected CompositEncoder[] known;
+        protected volatile AmqpObjectPool pool;
+        protected boolean cacheable;
+        
+        public CompositEncoder(Class type, String name, int version) {
+            this.type = type;
+            this.name = name;
+            this.version = version;
+            this.symbol = version == 0 ? name : name + ":v" + version;
+            this.descriptor = encodeSymbol(this.symbol);
+            this.nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        }
+        
+        public void init(CustomType customType, InstanceCreator creator,
+                FieldInfo[] fields, FieldInfo[] retired, Map<String, Encoder> knownTypes) {
+            this.customType = customType;
+            this.creator = creator;
+            this.fields = fields;
+            this.retired = retired;
+            int[] identity = new int[fields.length];
+            String[] names = new String[fields.length];
+            for (int i = 0; i < identity.length; i++) {
+                identity[i] = i;
+                names[i] = fields[i].name;
+            }
+            this.current = new Translation(this, this.version, identity, identity, names);
+            this.translations = new Translation[] { this.current };
+            this.knownTypes = knownTypes;
+            String[] known = knownTypes.keySet().toArray(new String[knownTypes.size()]);
+            this.known = new CompositEncoder[known.length];
+            for (int i = 0; i < known.length; i++) {
+                this.known[i] = (CompositEncoder)knownTypes.get(known[i]);
+            }
+            this.knownNames = new SymbolTable(known);
+        }
+        
+        public void setPool(AmqpObjectPool pool) {
+            if (pool != null && this.creator.takesValues()) {
+                throw new AmqpIoException(this.type.getName() +
+                        ": instances created by a creator cannot be pooled");
+            }
+            this.pool = pool;
+        }
+        
+        /**
+         * Reads the members of the value into the target, or into a new
+         * object if the target is null. When reading into a target, every
+         * member is overwritten, including members absent in the buffer.
+         */
+        protected abstract Object readRaw(AmqpReader buffer, byte formatCode,
+                Object target, Translation translation) throws Exception;
+        
+        @Override
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            EncodedCache cache = this.cacheable ? this.customType.encodedCache : null;
+            if (cache != null) {
+                byte[] bytes = cache.get(obj);
+                if (bytes != null) {
+                    buffer.put(bytes, 0, bytes.length);
+                    return;
+                }
+            }
+            int start = buffer.position();
+            buffer.put(FormatCode._described);
+            buffer.put(this.descriptor);
+            this.writeRaw(buffer, obj, path);
+            if (cache != null) {
+                cache.put(obj, buffer, start);
+            }
+        }
+        
+        @Override
+        public Object read(AmqpReader buffer) throws Exception {
+            return this.read(buffer, null);
+        }
+        
+        @Override
+        public Object read(AmqpReader buffer, Object target) throws Exception {
+            byte code = buffer.get();
+            if (code == FormatCode._null) {
+                return null;
+            }
+            FormatCode.assertEqual(code, FormatCode._described);
+            Translation translation = this.resolve(buffer);
+            CompositEncoder encoder = translation.encoder;
+            byte formatCode = buffer.get();
+            if (target != null && target.getClass() == encoder.type &&
+                !encoder.creator.takesValues()) {
+                return encoder.readRaw(buffer, formatCode, target, translation);
+            }
+            return encoder.readPooled(buffer, formatCode, translation);
+        }
+        
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return this.readPooled(buffer, formatCode, this.current);
+        }
+        
+        private Object readPooled(AmqpReader buffer, byte formatCode,
+                Translation translation) throws Exception {
+            AmqpObjectPool p = this.pool;
+            return this.readRaw(buffer, formatCode, p == null ? null : p.acquire(), translation);
+        }
+        
+        /**
+         * Reads the descriptor and finds the translation of the type and
+         * version it names.
+         */
+        private Translation resolve(AmqpReader buffer) throws Exception {
+            int start = buffer.position();
+            int len = readSymbolLength(buffer);
+            buffer.require(len);
+            int pos = buffer.position();
+            if (pos - start + len == this.descriptor.length) {
+                int i = 0;
+                while (i < len && buffer.get(pos + i) == this.descriptor[pos - start + i]) {
+                    i++;
+                }
+                if (i == len) {
+                    buffer.position(pos + len);
+                    return this.current;
+                }
+            }
+            int baseLen = Plan.baseLength(buffer, pos, len);
+            int version = Plan.versionOf(buffer, pos, baseLen, len);
+            // an unversioned name ending like a version is matched whole
+            for (int attempt = 0; attempt < 2; attempt++) {
+                int n = attempt == 0 ? len : baseLen;
+                int v = attempt == 0 ? 0 : version;
+                if (n == this.nameBytes.length && matches(buffer, pos, this.nameBytes)) {
+                    buffer.position(pos + len);
+                    return this.translation(v);
+                }
+                int index = this.knownNames.find(buffer, pos, n);
+                if (index >= 0) {
+                    buffer.position(pos + len);
+                    return this.known[index].translation(v);
+                }
+                if (baseLen == len) {
+                    break;
+                }
+            }
+            buffer.position(start);
+            throw new Exception("Unknown type name " + readSymbol(buffer));
+        }
+        
+        /**
+         * Finds the translation of the version of this type a descriptor
+         * names, without looking at the types it knows.
+         * @return The translation, or null if it names another type.
+         */
+        private Translation translationOf(AmqpReader buffer, int pos, int len) {
+            byte[] name = this.nameBytes;
+            if (len == name.length && matches(buffer, pos, name)) {
+                return this.translation(0);
+            }
+            int baseLen = Plan.baseLength(buffer, pos, len);
+            if (baseLen != len && baseLen == name.length && matches(buffer, pos, name)) {
+                return this.translation(Plan.versionOf(buffer, pos, baseLen, len));
+            }
+            return null;
+        }
+        
+        private static boolean matches(AmqpReader buffer, int pos, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(pos + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Gets the translation of a version, building it on first use.
+         */
+        private Translation translation(int version) {
+            Translation[] cached = this.translations;
+            for (Translation t : cached) {
+                if (t.version == version) {
+                    return t;
+                }
+            }
+            synchronized (this) {
+                cached = this.translations;
+                for (Translation t : cached) {
+                    if (t.version == version) {
+                        return t;
+                    }
+                }
+                Translation t = this.translate(version);
+                if (cached.length < MAX_TRANSLATIONS) {
+                    Translation[] copy = Arrays.copyOf(cached, cached.length + 1);
+                    copy[cached.length] = t;
+                    this.translations = copy;
+                }
+                return t;
+            }
+        }
+        
+        /**
+         * Lays out the members of a version in order, including members
+         * removed since, and maps each list position to a current member.
+         * Members of versions newer than this one are assumed to follow
+         * the known members.
+         */
+        private Translation translate(int version) {
+            ArrayList<FieldInfo> layout = new ArrayList<>();
+            for (FieldInfo field : this.fields) {
+                if (field.since <= version && version < field.until) {
+                    layout.add(field);
+                }
+            }
+            for (FieldInfo field : this.retired) {
+                if (field.since <= version && version < field.until) {
+                    layout.add(field);
+                }
+            }
+            Collections.sort(layout, ORDER);
+            int[] slots = new int[layout.size()];
+            int[] positions = new int[this.fields.length];
+            String[] names = new String[slots.length];
+            Arrays.fill(positions, -1);
+            for (int p = 0; p < slots.length; p++) {
+                slots[p] = -1;
+                names[p] = layout.get(p).name;
+                for (int i = 0; i < this.fields.length; i++) {
+                    if (this.fields[i] == layout.get(p)) {
+                        slots[p] = i;
+                        positions[i] = p;
+                    }
+                }
+            }
+            return new Translation(this, version, slots, positions, names);
+        }
+        
+        protected void writeMember(AmqpWriter buffer, FieldInfo field, Object obj,
+                ObjectPath path) throws Exception {
+            Field f = field.field;
+            switch (field.kind) {
+                case BOOLEAN:
+                    PrimitiveType.writeBoolean(buffer, f.getBoolean(obj));
+                    break;
+                case BYTE:
+                    PrimitiveType.writeByte(buffer, f.getByte(obj));
+                    break;
+                case SHORT:
+                    PrimitiveType.writeShort(buffer, f.getShort(obj));
+                    break;
+                case INT:
+                    PrimitiveType.writeInt(buffer, f.getInt(obj));
+                    break;
+                case LONG:
+                    PrimitiveType.writeLong(buffer, f.getLong(obj));
+                    break;
+                case FLOAT:
+                    PrimitiveType.writeFloat(buffer, f.getFloat(obj));
+                    break;
+                case DOUBLE:
+                    PrimitiveType.writeDouble(buffer, f.getDouble(obj));
+                    break;
+                case CHAR:
+                    PrimitiveType.writeChar(buffer, f.getChar(obj));
+                    break;
+                case TIMESTAMP:
+                    PrimitiveType.writeTimestamp(buffer, f.getLong(obj));
+                    break;
+                default:
+                    this.customType.writeField(buffer, field, f.get(obj), path);
+                    break;
+            }
+        }
+        
+        protected void readMember(AmqpReader buffer, FieldInfo field, Object obj,
+                boolean overwrite) throws Exception {
+            Field f = field.field;
+            if (field.kind == OBJECT) {
+                Object value = field.encoder.read(buffer);
+                if (value != null || overwrite) {
+                    f.set(obj, value);
+                }
+                return;
+            }
+            if (field.kind == REUSABLE) {
+                Object current = overwrite ? f.get(obj) : null;
+                Object value = ((ReusingEncoder)field.encoder).read(buffer, current);
+                if (value != current) {
+                    f.set(obj, value);
+                }
+                return;
+            }
+            this.readMember(buffer, buffer.get(), field, obj, overwrite);
+        }
+        
+        /**
+         * Reads a member of a primitive or date kind whose format code has
+         * been read.
+         */
+        protected void readMember(AmqpReader buffer, byte code, FieldInfo field, Object obj,
+                boolean overwrite) throws Exception {
+            Field f = field.field;
+            if (code == FormatCode._null) {
+                if (overwrite) {
+                    this.clearMember(field, obj);
+                }
+                return;
+            }
+            switch (field.kind) {
+                case BOOLEAN:
+                    f.setBoolean(obj, PrimitiveType.readBoolean(buffer, code));
+                    break;
+                case BYTE:
+                    f.setByte(obj, PrimitiveType.readByte(buffer, code));
+                    break;
+                case SHORT:
+                    f.setShort(obj, PrimitiveType.readShort(buffer, code));
+                    break;
+                case INT:
+                    f.setInt(obj, PrimitiveType.readInt(buffer, code));
+                    break;
+                case LONG:
+                    f.setLong(obj, PrimitiveType.readLong(buffer, code));
+                    break;
+                case FLOAT:
+                    f.setFloat(obj, PrimitiveType.readFloat(buffer, code));
+                    break;
+                case DOUBLE:
+                    f.setDouble(obj, PrimitiveType.readDouble(buffer, code));
+                    break;
+                case CHAR:
+                    f.setChar(obj, PrimitiveType.readChar(buffer, code));
+                    break;
+                case TIMESTAMP:
+                    f.setLong(obj, PrimitiveType.readTimestamp(buffer, code));
+                    break;
+                case DATE:
+                    long time = PrimitiveType.readTimestamp(buffer, code);
+                    Date date = overwrite ? (Date)f.get(obj) : null;
+                    if (date != null) {
+                        date.setTime(time);
+                    } else {
+                        f.set(obj, new Date(time));
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        
+        protected void clearMember(FieldInfo field, Object obj) throws Exception {
+            Field f = field.field;
+            switch (field.kind) {
+                case BOOLEAN:
+                    f.setBoolean(obj, false);
+                    break;
+                case BYTE:
+                    f.setByte(obj, (byte)0);
+                    break;
+                case SHORT:
+                    f.setShort(obj, (short)0);
+                    break;
+                case INT:
+                    f.setInt(obj, 0);
+                    break;
+                case LONG:
+                case TIMESTAMP:
+                    f.setLong(obj, 0L);
+                    break;
+                case FLOAT:
+                    f.setFloat(obj, 0f);
+                    break;
+                case DOUBLE:
+                    f.setDouble(obj, 0d);
+                    break;
+                case CHAR:
+                    f.setChar(obj, (char)0);
+                    break;
+                default:
+                    f.set(obj, null);
+                    break;
+            }
+        }
+        
+        protected static byte[] encodeSymbol(String symbol) {
+            byte[] bytes = symbol.getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 5);
+            if (bytes.length < 256) {
+                buffer.put(FormatCode._symbol8);
+                buffer.put((byte)bytes.length);
+            } else {
+                buffer.put(FormatCode._symbol32);
+                buffer.putInt(bytes.length);
+            }
+            buffer.put(bytes);
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+        
+        protected static String readSymbol(AmqpReader buffer) throws Exception {
+            int len = readSymbolLength(buffer);
+            return PrimitiveType.readString(buffer, len, StandardCharsets.US_ASCII);
+        }
+        
+        protected static int readSymbolLength(AmqpReader buffer) throws Exception {
+            byte formatCode = buffer.get();
+            if (formatCode == FormatCode._symbol8 || formatCode == FormatCode._string8) {
+                return buffer.get() & 0xff;
+            }
+            if (formatCode != FormatCode._symbol32) {
+                FormatCode.assertEqual(formatCode, FormatCode._string32);
+            }
+            return buffer.getInt();
+        }
+        
+        protected static int readCount(AmqpReader buffer, byte formatCode,
+                byte zeroCode, byte smallCode, byte bigCode) throws Exception {
+            int count;
+            if (formatCode == zeroCode) {
+                count = 0;
+            } else if (formatCode == smallCode) {
+                buffer.require(buffer.get() & 0xff);
+                count = buffer.get() & 0xff;
+            } else {
+                FormatCode.assertEqual(formatCode, bigCode);
+                int size = buffer.getInt();
+                buffer.require(size);
+                count = buffer.getInt();
+                // every item takes at least its format code
+                if (count < 0 || count > size) {
+                    throw new AmqpIoException("Count " + count + " exceeds the size " + size);
+                }
+            }
+            return count;
+        }
+    }
+    
+    private static class CompositListEncoder extends CompositEncoder {
+        // the list32 format code, size and count
+        private static final int HEADER = 9;
+        
+        // size of the widest encodings of the fixed-width members from
+        // each member to the end of its run, or 0 for other members
+        private int[] runs;
+        
+        public CompositListEncoder(Class type, String name, int version) {
+            super(type, name, version);
+        }
+        
+        @Override
+        public void init(CustomType customType, InstanceCreator creator,
+                FieldInfo[] fields, FieldInfo[] retired, Map<String, Encoder> knownTypes) {
+            super.init(customType, creator, fields, retired, knownTypes);
+            int[] runs = new int[fields.length];
+            for (int i = fields.length - 1; i >= 0; i--) {
+                int width = FieldInfo.widthOf(fields[i].kind);
+                runs[i] = width == 0 || i == fields.length - 1 ? width : width + runs[i + 1];
+            }
+            this.runs = runs;
+        }
+        
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            // the limit is checked once for the header and each run of
+            // fixed-width members, which are then written unchecked
+            int[] runs = this.runs;
+            boolean reserved = buffer.ensure(HEADER + (runs.length > 0 ? runs[0] : 0));
+            int sizePos = buffer.position() + 1;
+            if (reserved) {
+                buffer.putUnchecked(FormatCode._list32);
+                buffer.putIntUnchecked(0);
+                buffer.putIntUnchecked(this.fields.length);
+            } else {
+                buffer.put(FormatCode._list32);
+                buffer.putInt(0);
+                buffer.putInt(this.fields.length);
+            }
+            for (int i = 0; i < runs.length; i++) {
+                FieldInfo field = this.fields[i];
+                if (runs[i] == 0) {
+                    reserved = false;
+                } else if (!reserved) {
+                    reserved = buffer.ensure(runs[i]);
+                }
+                if (reserved) {
+                    writeFixed(buffer, field, obj);
+                } else {
+                    this.writeMember(buffer, field, obj, path);
+                }
+            }
+            buffer.putInt(sizePos, buffer.position() - sizePos - 4);
+        }
+        
+        private static void writeFixed(AmqpWriter buffer, FieldInfo field, Object obj)
+                throws Exception {
+            Field f = field.field;
+            switch (field.kind) {
+                case BOOLEAN:
+                    buffer.putUnchecked(FormatCode._bool);
+                    buffer.putUnchecked(f.getBoolean(obj) ? (byte)1 : (byte)0);
+                    break;
+                case BYTE:
+                    buffer.putUnchecked(FormatCode._byte);
+                    buffer.putUnchecked(f.getByte(obj));
+                    break;
+                case SHORT:
+                    buffer.putUnchecked(FormatCode._short);
+                    buffer.putShortUnchecked(f.getShort(obj));
+                    break;
+                case INT:
+                    buffer.putUnchecked(FormatCode._int);
+                    buffer.putIntUnchecked(f.getInt(obj));
+                    break;
+                case LONG:
+                    buffer.putUnchecked(FormatCode._long);
+                    buffer.putLongUnchecked(f.getLong(obj));
+                    break;
+                case FLOAT:
+                    buffer.putUnchecked(FormatCode._float);
+                    buffer.putIntUnchecked(Float.floatToRawIntBits(f.getFloat(obj)));
+                    break;
+                case DOUBLE:
+                    buffer.putUnchecked(FormatCode._double);
+                    buffer.putLongUnchecked(Double.doubleToRawLongBits(f.getDouble(obj)));
+                    break;
+                case CHAR:
+                    buffer.putUnchecked(FormatCode._char);
+                    buffer.putIntUnchecked((int)f.getChar(obj) & 0xffff);
+                    break;
+                case TIMESTAMP:
+                    buffer.putUnchecked(FormatCode._timestamp);
+                    buffer.putLongUnchecked(f.getLong(obj));
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        
+        /**
+         * Reads a fixed-width member with the unchecked accessors, within
+         * bytes checked for the widest encodings of its run. Other
+         * encodings are read with the checked accessors.
+         * @return True if the member took no more than its widest
+         * encoding, so that the rest of the run is still checked.
+         */
+        private boolean readFixed(AmqpReader buffer, FieldInfo field, Object obj,
+                boolean overwrite) throws Exception {
+            Field f = field.field;
+            byte code = buffer.getUnchecked();
+            switch (field.kind) {
+                case BOOLEAN:
+                    if (code == FormatCode._bool) {
+                        f.setBoolean(obj, buffer.getUnchecked() != 0);
+                        return true;
+                    }
+                    break;
+                case BYTE:
+                    if (code == FormatCode._byte) {
+                        f.setByte(obj, buffer.getUnchecked());
+                        return true;
+                    }
+                    break;
+                case SHORT:
+                    if (code == FormatCode._short) {
+                        f.setShort(obj, buffer.getShortUnchecked());
+                        return true;
+                    }
+                    break;
+                case INT:
+                    if (code == FormatCode._int) {
+                        f.setInt(obj, buffer.getIntUnchecked());
+                        return true;
+                    }
+                    break;
+                case LONG:
+                    if (code == FormatCode._long) {
+                        f.setLong(obj, buffer.getLongUnchecked());
+                        return true;
+                    }
+                    break;
+                case FLOAT:
+                    if (code == FormatCode._float) {
+                        f.setFloat(obj, Float.intBitsToFloat(buffer.getIntUnchecked()));
+                        return true;
+                    }
+                    break;
+                case DOUBLE:
+                    if (code == FormatCode._double) {
+                        f.setDouble(obj, Double.longBitsToDouble(buffer.getLongUnchecked()));
+                        return true;
+                    }
+                    break;
+                case CHAR:
+                    if (code == FormatCode._char) {
+                        f.setChar(obj, (char)(buffer.getIntUnchecked() & 0xffff));
+                        return true;
+                    }
+                    break;
+                case TIMESTAMP:
+                    if (code == FormatCode._timestamp) {
+                        f.setLong(obj, buffer.getLongUnchecked());
+                        return true;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+            int start = buffer.position() - 1;
+            this.readMember(buffer, code, field, obj, overwrite);
+            return buffer.position() - start <= FieldInfo.widthOf(field.kind);
+        }
+
+        @Override
+        protected Object readRaw(AmqpReader buffer, byte formatCode,
+                Object target, Translation translation) throws Exception {
+            boolean overwrite = target != null;
+            Object[] values = null;
+            Object obj = target;
+            if (obj == null) {
+                if (this.creator.takesValues()) {
+                    values = new Object[this.fields.length];
+                } else {
+                    obj = this.creator.create(null);
+                }
+            }
+            int count = readCount(buffer, formatCode, FormatCode._list0,
+                    FormatCode._list8, FormatCode._list32);
+            int[] slots = translation.slots;
+            // the limit is checked once for each run of fixed-width members
+            // of the current version, as long as they take no more bytes
+            // than their widest encodings
+            int[] runs = translation == this.current && values == null ? this.runs : null;
+            boolean reserved = false;
+            for (int i = 0; i < count; i++) {
+                int index = i < slots.length ? slots[i] : -1;
+                if (index < 0) {
+                    reserved = false;
+                    PrimitiveType.skipObject(buffer);
+                } else if (values != null) {
+                    values[index] = this.fields[index].encoder.read(buffer);
+                } else if (runs == null || runs[index] == 0) {
+                    reserved = false;
+                    this.readMember(buffer, this.fields[index], obj, overwrite);
+                } else {
+                    if (!reserved) {
+                        reserved = buffer.available(runs[index]);
+                    }
+                    if (reserved) {
+                        reserved = this.readFixed(buffer, this.fields[index], obj, overwrite);
+                    } else {
+                        this.readMember(buffer, this.fields[index], obj, overwrite);
+                    }
+                }
+            }
+            if (overwrite) {
+                int[] positions = translation.positions;
+                for (int i = 0; i < this.fields.length; i++) {
+                    if (positions[i] < 0 || positions[i] >= count) {
+                        this.clearMember(this.fields[i], obj);
+                    }
+                }
+            }
+            return values == null ? obj : this.creator.create(values);
+        }
+    }
+    
+    private static class CompositMapEncoder extends CompositEncoder {
+        private SymbolTable symbols;
+        private byte[][] keys;
+        
+        public CompositMapEncoder(Class type, String name, int version) {
+            super(type, name, version);
+        }
+        
+        @Override
+        public void init(CustomType customType, InstanceCreator creator,
+                FieldInfo[] fields, FieldInfo[] retired, Map<String, Encoder> knownTypes) {
+            super.init(customType, creator, fields, retired, knownTypes);
+            String[] names = new String[this.fields.length];
+            this.keys = new byte[this.fields.length][];
+            for (int i = 0; i < this.fields.length; i++) {
+                names[i] = this.fields[i].name;
+                this.keys[i] = encodeSymbol(names[i]);
+            }
+            this.symbols = new SymbolTable(names);
+        }
+        
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            buffer.put(FormatCode._map32);
+            int sizePos = buffer.position();
+            buffer.putInt(0);
+            buffer.putInt(this.fields.length * 2);
+            
+            for (int i = 0; i < this.fields.length; i++) {
+                buffer.put(this.keys[i]);
+                this.writeMember(buffer, this.fields[i], obj, path);
+            }
+            
+            buffer.putInt(sizePos, buffer.position() - sizePos - 4);
+        }
+
+        @Override
+        protected Object readRaw(AmqpReader buffer, byte formatCode,
+                Object target, Translation translation) throws Exception {
+            boolean overwrite = target != null;
+            Object[] values = null;
+            Object obj = target;
+            if (obj == null) {
+                if (this.creator.takesValues()) {
+                    values = new Object[this.fields.length];
+                } else {
+                    obj = this.creator.create(null);
+                }
+            }
+            boolean[] seen = overwrite && this.fields.length > 64
+                    ? new boolean[this.fields.length]
+                    : null;
+            long seenMask = 0;
+            int count = readCount(buffer, formatCode, FormatCode._invalid,
+                    FormatCode._map8, FormatCode._map32);
+            for (int i = 0; i < count / 2; i++) {
+                int len = readSymbolLength(buffer);
+                int pos = buffer.position();
+                int index = this.symbols.find(buffer, pos, len);
+                buffer.position(pos + len);
+                if (index < 0) {
+                    PrimitiveType.skipObject(buffer);
+                } else if (values != null) {
+                    values[index] = this.fields[index].encoder.read(buffer);
+                } else {
+                    this.readMember(buffer, this.fields[index], obj, overwrite);
+                    if (seen != null) {
+                        seen[index] = true;
+                    } else {
+                        seenMask |= 1L << index;
+                    }
+                }
+            }
+            if (overwrite) {
+                for (int i = 0; i < this.fields.length; i++) {
+                    if (seen != null ? !seen[i] : (seenMask & (1L << i)) == 0) {
+                        this.clearMember(this.fields[i], obj);
+                    }
+                }
+            }
+            return values == null ? obj : this.creator.create(values);
         }
     }
     
-    private static class EnumEncoder implements Encoder {
-        private final Class c;
-        private final Object[] constants;
-        private final Encoder intEncoder;
+    private static class ElementEncoder implements ReusingEncoder {
+        private final CustomType customType;
+        private final Class type;
+        private final Encoder encoder;
+        private final boolean generic;
         
-        public EnumEncoder(Class c) {
-            this.c = c;
-            this.constants = c.getEnumConstants();
-            this.intEncoder = PrimitiveType.getEncoder(Integer.TYPE);
+        public ElementEncoder(CustomType customType, Class type,
+                Encoder encoder, boolean generic) {
+            this.customType = customType;
+            this.type = type;
+            this.encoder = encoder;
+            this.generic = generic;
         }
 
         @Override
-        public void write(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
-            this.intEncoder.write(buffer, ((Enum)obj).ordinal(), path);
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            if (obj != null && this.encoder != null &&
+                (this.generic ? this.type.isInstance(obj) : obj.getClass() == this.type)) {
+                this.customType.writeObject(buffer, obj, this.encoder, path);
+            } else {
+                this.customType.writeObject(buffer, obj, path);
+            }
         }
 
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
             throw new UnsupportedOperationException();
         }
 
         @Override
-        public Object read(ByteBuffer buffer) throws Exception {
-            int ordinal = (int)this.intEncoder.read(buffer);
-            if (ordinal < this.constants.length) {
-                return this.constants[ordinal];
+        public Object read(AmqpReader buffer) throws Exception {
+            if (this.encoder == null) {
+                return PrimitiveType.readObject(buffer);
             }
-            throw new AmqpIoException(c.getName() + ": ordinal out of range " + ordinal);
+            return this.encoder.read(buffer);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            throw new UnsupportedOperationException();
+        public Object read(AmqpReader buffer, Object target) throws Exception {
+            if (target != null && this.encoder instanceof ReusingEncoder) {
+                return ((ReusingEncoder)this.encoder).read(buffer, target);
+            }
+            return this.read(buffer);
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            if (this.encoder == null) {
+                Encoder encoder = PrimitiveType.getEncoder(formatCode);
+                if (encoder == null) {
+                    throw new AmqpIoException("Invalid format code " + formatCode);
+                }
+                return encoder.readRaw(buffer, formatCode);
+            }
+            return this.encoder.readRaw(buffer, formatCode);
         }
     }
     
-    private static abstract class CompositEncoder implements Encoder {
-        public final String name;
-        protected final Class type;
-        protected CustomType customType;
-        protected Constructor ctor;
-        protected FieldInfo[] fields;
-        protected Map<String, Encoder> knownTypes;
+    private static class CollectionEncoder implements ReusingEncoder {
+        private static final int OTHER = 0;
+        private static final int ARRAY_LIST = 1;
+        private static final int HASH_SET = 2;
+        private static final int LINKED_HASH_SET = 3;
+        private static final int ARRAY_DEQUE = 4;
         
-        public CompositEncoder(Class type, String name) {
+        private final Class type;
+        private final Class impl;
+        private final ReusingEncoder elementEncoder;
+        private final Constructor ctor;
+        private final int kind;
+        
+        public CollectionEncoder(Class type, ReusingEncoder elementEncoder) throws Exception {
             this.type = type;
-            this.name = name;
+            this.elementEncoder = elementEncoder;
+            Class impl = implementationOf(type);
+            this.impl = impl;
+            if (impl == ArrayList.class) {
+                this.kind = ARRAY_LIST;
+            } else if (impl == HashSet.class) {
+                this.kind = HASH_SET;
+            } else if (impl == LinkedHashSet.class) {
+                this.kind = LINKED_HASH_SET;
+            } else if (impl == ArrayDeque.class) {
+                this.kind = ARRAY_DEQUE;
+            } else {
+                this.kind = OTHER;
+            }
+            if (this.kind == OTHER) {
+                this.ctor = impl.getDeclaredConstructor();
+                this.ctor.setAccessible(true);
+            } else {
+                this.ctor = null;
+            }
         }
         
-        public void init(CustomType customType, Constructor ctor,
-                FieldInfo[] fields, Map<String, Encoder> knownTypes) {
-            this.customType = customType;
-            this.ctor = ctor;
-            this.fields = fields;
-            this.knownTypes = knownTypes;
+        private static Class implementationOf(Class type) {
+            if (!type.isInterface() && (type.getModifiers() & Modifier.ABSTRACT) == 0) {
+                return type;
+            }
+            Class[] candidates = new Class[] {
+                ArrayList.class, HashSet.class, TreeSet.class, ArrayDeque.class };
+            for (Class c : candidates) {
+                if (type.isAssignableFrom(c)) {
+                    return c;
+                }
+            }
+            throw new AmqpIoException("Not supported collection type " + type.getName());
         }
         
-        @Override
-        public void write(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
-            buffer.put(FormatCode._described);
-            writeSymbol(buffer, this.name);
-            this.writeRaw(buffer, obj, path);
+        private Collection newInstance(AmqpReader buffer, int count) throws Exception {
+            int capacity = PrimitiveType.capacity(buffer, count);
+            switch (this.kind) {
+                case ARRAY_LIST:
+                    return new ArrayList(capacity);
+                case HASH_SET:
+                    return new HashSet(hashCapacity(capacity));
+                case LINKED_HASH_SET:
+                    return new LinkedHashSet(hashCapacity(capacity));
+                case ARRAY_DEQUE:
+                    return new ArrayDeque(capacity);
+                default:
+                    return (Collection)this.ctor.newInstance();
+            }
         }
-        
+
         @Override
-        public Object read(ByteBuffer buffer) throws Exception {
-            byte code = buffer.get();
-            FormatCode.assertEqual(code, FormatCode._described);
-            String symbol = readSymbol(buffer);
-            Encoder encoder;
-            if (symbol.equals(this.name)) {
-                encoder = this;
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            if (obj == null) {
+                buffer.put(FormatCode._null);
             } else {
-                encoder = this.knownTypes.get(symbol);
+                this.writeRaw(buffer, obj, path);
             }
-            if (encoder == null) {
-                throw new Exception("Unknown type name " + symbol);
-            }
-            return encoder.readRaw(buffer, buffer.get());
         }
-        
-        protected static void writeSymbol(ByteBuffer buffer, String symbol) {
-            byte[] bytes = symbol.getBytes(StandardCharsets.US_ASCII);
-            if (bytes.length < 256) {
-                buffer.put(FormatCode._symbol8);
-                buffer.put((byte)bytes.length);
+
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            Collection collection = (Collection)obj;
+            buffer.put(FormatCode._list32);
+            int sizePos = buffer.position();
+            buffer.putInt(0);
+            buffer.putInt(collection.size());
+            if (collection instanceof RandomAccess) {
+                // indexed access does not allocate an iterator
+                List list = (List)collection;
+                for (int i = 0; i < list.size(); i++) {
+                    this.elementEncoder.write(buffer, list.get(i), path);
+                }
             } else {
-                buffer.put(FormatCode._symbol32);
-                buffer.putInt(bytes.length);
+                for (Object v : collection) {
+                    this.elementEncoder.write(buffer, v, path);
+                }
             }
-            buffer.put(bytes);
+            buffer.putInt(sizePos, buffer.position() - sizePos - 4);
         }
-        
-        protected static String readSymbol(ByteBuffer buffer) throws Exception {
-            byte formatCode = buffer.get();
-            int len;
-            if (formatCode == FormatCode._symbol8) {
-                len = buffer.get();
-            } else {
-                FormatCode.assertEqual(formatCode, FormatCode._symbol32);
-                len = buffer.getInt();
+
+        @Override
+        public Object read(AmqpReader buffer) throws Exception {
+            byte code = buffer.get();
+            if (code == FormatCode._null) {
+                return null;
             }
-            return PrimitiveType.readString(buffer, len, StandardCharsets.US_ASCII);
+            return this.readRaw(buffer, code);
         }
-        
-        protected static int readCount(ByteBuffer buffer, byte formatCode,
-                byte zeroCode, byte smallCode, byte bigCode) throws Exception {
-            int count;
-            if (formatCode == zeroCode) {
-                count = 0;
-            } else if (formatCode == smallCode) {
-                buffer.get();
-                count = buffer.get();
-            } else {
-                FormatCode.assertEqual(formatCode, bigCode);
-                buffer.getInt();
-                count = buffer.getInt();
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            if (isArray(formatCode)) {
+                int count = PrimitiveType.readArrayCount(buffer, formatCode);
+                return this.readArray(buffer, count, this.newInstance(buffer, count));
             }
-            return count;
+            int count = CompositEncoder.readCount(buffer, formatCode, FormatCode._list0,
+                    FormatCode._list8, FormatCode._list32);
+            Collection collection = this.newInstance(buffer, count);
+            for (int i = 0; i < count; i++) {
+                collection.add(this.elementEncoder.read(buffer));
+            }
+            return collection;
         }
-    }
-    
-    private static class CompositListEncoder extends CompositEncoder {
-        public CompositListEncoder(Class type, String name) {
-            super(type, name);
+        
+        private static boolean isArray(byte formatCode) {
+            return formatCode == FormatCode._array8 || formatCode == FormatCode._array32;
         }
         
-        @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
-            buffer.put(FormatCode._list32);
-            int sizePos = buffer.position();
-            buffer.putInt(0);
-            buffer.putInt(this.fields.length);
-            for (FieldInfo field : this.fields) {
-                Object value = field.field.get(obj);
-                this.customType.writeObject(buffer, value, path);
-            }            
-            buffer.putInt(sizePos, buffer.position() - sizePos + 4);
+        private Collection readArray(AmqpReader buffer, int count,
+                Collection collection) throws Exception {
+            byte code = PrimitiveType.readArrayConstructor(buffer);
+            for (int i = 0; i < count; i++) {
+                collection.add(this.elementEncoder.readRaw(buffer, code));
+            }
+            return collection;
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            Object obj = this.ctor.newInstance();
-            int count = readCount(buffer, formatCode, FormatCode._list0,
+        public Object read(AmqpReader buffer, Object target) throws Exception {
+            if (target == null || target.getClass() != this.impl) {
+                return this.read(buffer);
+            }
+            byte code = buffer.get();
+            if (code == FormatCode._null) {
+                return null;
+            }
+            if (isArray(code)) {
+                int count = PrimitiveType.readArrayCount(buffer, code);
+                Collection collection = (Collection)target;
+                collection.clear();
+                return this.readArray(buffer, count, collection);
+            }
+            int count = CompositEncoder.readCount(buffer, code, FormatCode._list0,
                     FormatCode._list8, FormatCode._list32);
-            for (int i = 0; i < count && i < this.fields.length; i++) {
-                Object v = this.fields[i].encoder.read(buffer);
-                if (v != null) {
-                    this.fields[i].field.set(obj, v);
+            if (this.kind == ARRAY_LIST) {
+                // reuse the elements in place
+                ArrayList list = (ArrayList)target;
+                int size = list.size();
+                for (int i = 0; i < count; i++) {
+                    if (i < size) {
+                        Object current = list.get(i);
+                        Object value = this.elementEncoder.read(buffer, current);
+                        if (value != current) {
+                            list.set(i, value);
+                        }
+                    } else {
+                        list.add(this.elementEncoder.read(buffer));
+                    }
+                }
+                while (list.size() > count) {
+                    list.remove(list.size() - 1);
+                }
+            } else {
+                Collection collection = (Collection)target;
+                collection.clear();
+                for (int i = 0; i < count; i++) {
+                    collection.add(this.elementEncoder.read(buffer));
                 }
             }
-            return obj;
+            return target;
         }
     }
     
-    private static class CompositMapEncoder extends CompositEncoder {
-        private final HashMap<String, Field> fieldMap;
+    private static class MapEncoder implements ReusingEncoder {
+        private static final int OTHER = 0;
+        private static final int HASH_MAP = 1;
+        private static final int LINKED_HASH_MAP = 2;
         
-        public CompositMapEncoder(Class type, String name) {
-            super(type, name);
-            this.fieldMap = new HashMap();
+        private final Class type;
+        private final Class impl;
+        private final Encoder keyEncoder;
+        private final Encoder valueEncoder;
+        private final Constructor ctor;
+        private final int kind;
+        
+        public MapEncoder(Class type, Encoder keyEncoder, Encoder valueEncoder) throws Exception {
+            this.type = type;
+            this.keyEncoder = keyEncoder;
+            this.valueEncoder = valueEncoder;
+            Class impl = implementationOf(type);
+            this.impl = impl;
+            if (impl == HashMap.class) {
+                this.kind = HASH_MAP;
+            } else if (impl == LinkedHashMap.class) {
+                this.kind = LINKED_HASH_MAP;
+            } else {
+                this.kind = OTHER;
+            }
+            if (this.kind == OTHER) {
+                this.ctor = impl.getDeclaredConstructor();
+                this.ctor.setAccessible(true);
+            } else {
+                this.ctor = null;
+            }
         }
         
-        @Override
-        public void init(CustomType customType, Constructor ctor,
-                FieldInfo[] fields, Map<String, Encoder> knownTypes) {
-            super.init(customType, ctor, fields, knownTypes);
-            for (FieldInfo fi : this.fields) {
-                this.fieldMap.put(fi.field.getName(), fi.field);
+        private static Class implementationOf(Class type) {
+            if (!type.isInterface() && (type.getModifiers() & Modifier.ABSTRACT) == 0) {
+                return type;
+            }
+            Class[] candidates = new Class[] {
+                HashMap.class, TreeMap.class, ConcurrentHashMap.class };
+            for (Class c : candidates) {
+                if (type.isAssignableFrom(c)) {
+                    return c;
+                }
             }
+            throw new AmqpIoException("Not supported map type " + type.getName());
         }
         
+        private Map newInstance(AmqpReader buffer, int count) throws Exception {
+            int capacity = PrimitiveType.capacity(buffer, count);
+            switch (this.kind) {
+                case HASH_MAP:
+                    return new HashMap(hashCapacity(capacity));
+                case LINKED_HASH_MAP:
+                    return new LinkedHashMap(hashCapacity(capacity));
+                default:
+                    return (Map)this.ctor.newInstance();
+            }
+        }
+
+        @Override
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            if (obj == null) {
+                buffer.put(FormatCode._null);
+            } else {
+                this.writeRaw(buffer, obj, path);
+            }
+        }
+
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
+            Map<Object, Object> map = (Map)obj;
             buffer.put(FormatCode._map32);
             int sizePos = buffer.position();
             buffer.putInt(0);
-            buffer.putInt(this.fields.length * 2);
-            
-            for (FieldInfo field : this.fields) {
-                Object value = field.field.get(obj);
-                writeSymbol(buffer, field.field.getName());
-                this.customType.writeObject(buffer, value, path);
+            buffer.putInt(map.size() * 2);
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                this.keyEncoder.write(buffer, entry.getKey(), path);
+                this.valueEncoder.write(buffer, entry.getValue(), path);
             }
-            
-            buffer.putInt(sizePos, buffer.position() - sizePos + 4);
+            buffer.putInt(sizePos, buffer.position() - sizePos - 4);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            Object obj = this.ctor.newInstance();
-            int count = readCount(buffer, formatCode, FormatCode._invalid,
-                    FormatCode._map8, FormatCode._map32);
-            for (int i = 0; i < count / 2 && i < this.fields.length; i++) {
-                String symbol = readSymbol(buffer);
-                Object value = this.fields[i].encoder.read(buffer);
-                Field f = this.fieldMap.get(symbol);
-                if (f == null) {
-                    throw new Exception("Field not found " + symbol);
-                }
-                if (value != null) {
-                    f.set(obj, value);
-                }
+        public Object read(AmqpReader buffer) throws Exception {
+            byte code = buffer.get();
+            if (code == FormatCode._null) {
+                return null;
+            }
+            return this.readRaw(buffer, code);
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            int count = CompositEncoder.readCount(buffer, formatCode, FormatCode._invalid,
+                    FormatCode._map8, FormatCode._map32) / 2;
+            return this.readEntries(buffer, count, this.newInstance(buffer, count));
+        }
+
+        @Override
+        public Object read(AmqpReader buffer, Object target) throws Exception {
+            if (target == null || target.getClass() != this.impl) {
+                return this.read(buffer);
+            }
+            byte code = buffer.get();
+            if (code == FormatCode._null) {
+                return null;
+            }
+            int count = CompositEncoder.readCount(buffer, code, FormatCode._invalid,
+                    FormatCode._map8, FormatCode._map32) / 2;
+            Map map = (Map)target;
+            map.clear();
+            return this.readEntries(buffer, count, map);
+        }
+        
+        private Map readEntries(AmqpReader buffer, int count, Map map) throws Exception {
+            for (int i = 0; i < count; i++) {
+                Object k = this.keyEncoder.read(buffer);
+                Object v = this.valueEncoder.read(buffer);
+                map.put(k, v);
             }
-            return obj;
+            return map;
         }
     }
     
-    public void writeObject(ByteBuffer buffer, Object graph, HashSet path) throws Exception {
+    private static int hashCapacity(int count) {
+        return count < 3 ? count + 1 : (int)(count / 0.75f + 1.0f);
+    }
+    
+    public void writeObject(AmqpWriter buffer, Object graph, ObjectPath path) throws Exception {
         if (graph == null) {
             buffer.put(FormatCode._null);
             return;
@@ -268,51 +1831,306 @@ class CustomType {
         if (path.contains(graph)) {
             throw new AmqpIoException("Cyclic object reference not supported");
         }
-        path.add(graph);
         Class c = graph.getClass();
-        Encoder encoder = this.getEncoder(c, null);
+        Encoder encoder = this.getEncoder(c);
         if (encoder == null) {
             throw new AmqpIoException("Not supported type " + c.getName());
         }
+        path.add(graph);
+        encoder.write(buffer, graph, path);
+        path.remove(graph);
+    }
+    
+    private void writeObject(AmqpWriter buffer, Object graph, Encoder encoder,
+            ObjectPath path) throws Exception {
+        if (path.contains(graph)) {
+            throw new AmqpIoException("Cyclic object reference not supported");
+        }
+        path.add(graph);
         encoder.write(buffer, graph, path);
         path.remove(graph);
     }
     
-    public Object readObject(Class c, ByteBuffer buffer) throws Exception {
+    private void writeField(AmqpWriter buffer, FieldInfo field, Object value,
+            ObjectPath path) throws Exception {
+        if (field.typed && value != null) {
+            this.writeObject(buffer, value, field.encoder, path);
+        } else {
+            this.writeObject(buffer, value, path);
+        }
+    }
+    
+    public Object readObject(Class c, AmqpReader buffer) throws Exception {
         if (c.equals(Object.class)) {
             return PrimitiveType.readObject(buffer);
         }
-        Encoder encoder = this.getEncoder(c, new HashMap());
+        Encoder encoder = this.getEncoder(c);
         if (encoder == null) {
             throw new AmqpIoException("Not supported type " + c.getName());
         }
         return encoder.read(buffer);
     }
     
-    private Encoder getEncoder(final Class c,
-            final HashMap<Class, Encoder> inBuild) throws Exception {
-        Encoder encoder;
-        if ((encoder = PrimitiveType.getEncoder(c)) != null) {
-            return encoder;
+    /**
+     * Reads a value whose format code was already read, such as an
+     * element of an array.
+     */
+    public Object readRaw(Class c, AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._null) {
+            return null;
         }
-        if (c.isEnum()) {
-            return new EnumEncoder(c);
+        Encoder encoder = c.equals(Object.class)
+                ? PrimitiveType.getEncoder(formatCode)
+                : this.getEncoder(c);
+        if (encoder == null) {
+            throw new AmqpIoException("Cannot read " + c.getName() + " from format code " + formatCode);
+        }
+        return encoder.readRaw(buffer, formatCode);
+    }
+    
+    public Object readInto(Object target, AmqpReader buffer) throws Exception {
+        return this.getCompositEncoder(target.getClass()).read(buffer, target);
+    }
+    
+    public void setSpillThreshold(int threshold, Path directory) {
+        this.spillDirectory = directory;
+        this.spillThreshold = threshold;
+    }
+    
+    public void setEncodedCache(int capacity, int maxValueSize) {
+        this.encodedCache = capacity > 0 ? new EncodedCache(capacity, maxValueSize) : null;
+    }
+    
+    public void invalidate(Object obj) {
+        EncodedCache cache = this.encodedCache;
+        if (cache != null) {
+            if (obj == null) {
+                cache.clear();
+            } else {
+                cache.invalidate(obj);
+            }
+        }
+    }
+    
+    public void registerCodec(AmqpCodec codec) {
+        Class c = codec.getType();
+        synchronized (this.buildLock) {
+            Encoder encoder = this.encoders.get(c);
+            if (encoder != null && encoder != UNSUPPORTED) {
+                throw new AmqpIoException("Codec of " + c.getName()
+                        + " registered after the type was used");
+            }
+            this.encoders.remove(c);
+            codec.bind(this);
+            this.codecs.put(c, codec);
+        }
+    }
+    
+    /**
+     * Estimates the encoded size of a value from its codec.
+     * @return The size in bytes, or -1 if unknown.
+     */
+    public int estimateSize(Object graph) {
+        AmqpCodec codec = graph == null ? null : this.codecs.get(graph.getClass());
+        return codec == null ? -1 : codec.estimateSize(graph);
+    }
+    
+    public void setObjectPool(Class c, AmqpObjectPool pool) throws Exception {
+        this.getCompositEncoder(c).setPool(pool);
+    }
+    
+    /**
+     * Collects the encoding plans of the custom types reachable from a
+     * class, keyed by descriptor.
+     * @param c The class.
+     * @param plans The map receiving the plans.
+     * @throws Exception
+     */
+    public void collectPlans(Class c, Map<String, Plan> plans) throws Exception {
+        collectPlans(this.getEncoder(c), plans);
+    }
+    
+    private static void collectPlans(Encoder encoder, Map<String, Plan> plans) {
+        if (encoder instanceof ElementEncoder) {
+            collectPlans(((ElementEncoder)encoder).encoder, plans);
+        } else if (encoder instanceof CollectionEncoder) {
+            collectPlans(((CollectionEncoder)encoder).elementEncoder, plans);
+        } else if (encoder instanceof MapEncoder) {
+            collectPlans(((MapEncoder)encoder).keyEncoder, plans);
+            collectPlans(((MapEncoder)encoder).valueEncoder, plans);
+        } else if (encoder instanceof CompositEncoder) {
+            CompositEncoder composite = (CompositEncoder)encoder;
+            if (plans.containsKey(composite.symbol)) {
+                return;
+            }
+            plans.put(composite.symbol, new Plan(composite));
+            for (FieldInfo field : composite.fields) {
+                collectPlans(field.encoder, plans);
+            }
+            for (CompositEncoder known : composite.known) {
+                collectPlans(known, plans);
+            }
+        }
+    }
+    
+    /**
+     * Gets the encoding plan of a custom type.
+     * @param c The class.
+     * @return The plan.
+     * @throws Exception
+     */
+    public Plan getPlan(Class c) throws Exception {
+        return new Plan(this.getCompositEncoder(c));
+    }
+    
+    /**
+     * Gets the descriptor of a custom type, or null if c is not one.
+     */
+    String getDescriptor(Class c) {
+        try {
+            Encoder encoder = this.getEncoder(c);
+            return encoder instanceof CompositEncoder ? ((CompositEncoder)encoder).symbol : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    private CompositEncoder getCompositEncoder(Class c) throws Exception {
+        Encoder encoder = this.getEncoder(c);
+        if (!(encoder instanceof CompositEncoder)) {
+            throw new AmqpIoException("Not a custom type " + c.getName());
         }
-        encoder = customEncoders.get(c);
+        return (CompositEncoder)encoder;
+    }
+    
+    private Encoder getEncoder(final Class c) throws Exception {
+        Encoder encoder = this.encoders.get(c);
         if (encoder == null) {
-            if (inBuild != null) {
-                encoder = inBuild.get(c);
+            // Encoders of classes that reference each other are built in
+            // one session and published together once all are initialized.
+            synchronized (this.buildLock) {
+                long start = System.nanoTime();
+                HashMap<Class, Encoder> inBuild = new HashMap();
+                encoder = this.getEncoder(c, inBuild);
+                // An encoder is published only after it, and every encoder
+                // it references, is fully initialized.
+                for (Map.Entry<Class, Encoder> entry : inBuild.entrySet()) {
+                    this.encoders.put(entry.getKey(),
+                            entry.getValue() == null ? UNSUPPORTED : entry.getValue());
+                }
+                if (CodecEvents.recording && encoder instanceof CompositEncoder) {
+                    CompositEncoder composite = (CompositEncoder)encoder;
+                    CodecEvents.instance.planBuilt(c, composite.symbol, composite.fields.length,
+                            inBuild.size(), System.nanoTime() - start);
+                }
             }
+        }
+        return encoder == UNSUPPORTED ? null : encoder;
+    }
+    
+    private Encoder getEncoder(final Class c,
+            final HashMap<Class, Encoder> inBuild) throws Exception {
+        Encoder encoder = this.encoders.get(c);
+        if (encoder == UNSUPPORTED) {
+            return null;
+        }
+        if (encoder == null) {
+            encoder = inBuild.get(c);
             if (encoder == null) {
                 encoder = createEncoder(c, inBuild);
-                customEncoders.put(c, encoder);
+                inBuild.put(c, encoder);
             }
         }
         return encoder;
     }
     
+    private Encoder getCollectionEncoder(final Type type,
+            final HashMap<Class, Encoder> inBuild) throws Exception {
+        Class c = rawClass(type);
+        Type[] args = type instanceof ParameterizedType
+                ? ((ParameterizedType)type).getActualTypeArguments()
+                : new Type[0];
+        if (Collection.class.isAssignableFrom(c)) {
+            ElementEncoder elementEncoder = args.length == 1
+                    ? this.getElementEncoder(args[0], inBuild)
+                    : null;
+            if (elementEncoder == null) {
+                if (List.class.isAssignableFrom(c)) {
+                    return null;
+                }
+                elementEncoder = new ElementEncoder(this, Object.class, null, false);
+            }
+            return new CollectionEncoder(c, elementEncoder);
+        }
+        if (Map.class.isAssignableFrom(c)) {
+            Encoder keyEncoder = args.length == 2
+                    ? this.getElementEncoder(args[0], inBuild)
+                    : null;
+            Encoder valueEncoder = args.length == 2
+                    ? this.getElementEncoder(args[1], inBuild)
+                    : null;
+            if (keyEncoder == null && valueEncoder == null) {
+                return null;
+            }
+            if (keyEncoder == null) {
+                keyEncoder = new ElementEncoder(this, Object.class, null, false);
+            }
+            if (valueEncoder == null) {
+                valueEncoder = new ElementEncoder(this, Object.class, null, false);
+            }
+            return new MapEncoder(c, keyEncoder, valueEncoder);
+        }
+        return null;
+    }
+    
+    private ElementEncoder getElementEncoder(final Type type,
+            final HashMap<Class, Encoder> inBuild) throws Exception {
+        Class c = rawClass(type);
+        Encoder encoder = this.getCollectionEncoder(type, inBuild);
+        if (encoder != null) {
+            return new ElementEncoder(this, c, encoder, true);
+        }
+        if (c.equals(Object.class)) {
+            return null;
+        }
+        return new ElementEncoder(this, c, this.getEncoder(c, inBuild), false);
+    }
+    
+    private static Class rawClass(Type type) {
+        if (type instanceof Class) {
+            return (Class)type;
+        }
+        if (type instanceof ParameterizedType) {
+            return rawClass(((ParameterizedType)type).getRawType());
+        }
+        if (type instanceof WildcardType) {
+            return rawClass(((WildcardType)type).getUpperBounds()[0]);
+        }
+        if (type instanceof TypeVariable) {
+            return rawClass(((TypeVariable)type).getBounds()[0]);
+        }
+        return Object.class;
+    }
+    
     private Encoder createEncoder(final Class c,
             HashMap<Class, Encoder> inBuild) throws Exception {
+        AmqpCodec codec = this.codecs.get(c);
+        if (codec != null) {
+            return new CodecEncoder(codec);
+        }
+        Encoder primitive = PrimitiveType.getEncoder(c);
+        if (primitive != null) {
+            return primitive;
+        }
+        if (c.isEnum()) {
+            return new EnumEncoder(c);
+        }
+        if (AmqpBinary.class.isAssignableFrom(c)) {
+            return new BinaryEncoder(this);
+        }
+        if (Collection.class.isAssignableFrom(c)) {
+            return this.getCollectionEncoder(c, inBuild);
+        }
         AmqpContract contract = c.isAnnotationPresent(AmqpContract.class)
                 ? (AmqpContract)c.getAnnotation(AmqpContract.class)
                 : null;
@@ -320,12 +2138,11 @@ class CustomType {
                 ? EncodingType.DescribedList
                 : contract.type();
         String name = contract == null ? c.getName() : contract.name();
+        int version = contract == null ? 0 : contract.version();
         CompositEncoder encoder = encoding == EncodingType.DescribedList
-                ? new CompositListEncoder(c, name)
-                : new CompositMapEncoder(c, name);
-        if (inBuild == null) {
-            inBuild = new HashMap();
-        }
+                ? new CompositListEncoder(c, name, version)
+                : new CompositMapEncoder(c, name, version);
+        encoder.cacheable = contract != null && contract.cacheable();
         inBuild.put(c, encoder);
         
         ArrayList<FieldInfo> fields = new ArrayList();
@@ -344,34 +2161,52 @@ class CustomType {
                     (modifiers & Modifier.TRANSIENT) != 0) {
                     continue;
                 }
-                if ((modifiers & Modifier.PUBLIC) == 0) {
+                if ((modifiers & Modifier.PUBLIC) == 0 ||
+                    (modifiers & Modifier.FINAL) != 0) {
                     field.setAccessible(true);
                 }
-                Encoder fieldEncoder = getEncoder(field.getType(), inBuild);
+                if (contract != null && !field.isAnnotationPresent(AmqpMember.class)) {
+                    continue;
+                }
+                Encoder fieldEncoder = getCollectionEncoder(field.getGenericType(), inBuild);
+                boolean typed = fieldEncoder != null;
+                if (field.getType() == Object.class) {
+                    // untyped members are decoded by their format code
+                    fieldEncoder = new ElementEncoder(this, Object.class, null, false);
+                } else if (!typed) {
+                    fieldEncoder = getEncoder(field.getType(), inBuild);
+                }
                 if (contract == null) {
                     fields.add(new FieldInfo(
                             field.getName(),
                             order++,
                             field,
-                            fieldEncoder));
-                } else if (field.isAnnotationPresent(AmqpMember.class)) {
+                            fieldEncoder,
+                            typed));
+                } else {
                     AmqpMember member = (AmqpMember)field.getAnnotation(AmqpMember.class);
-                    fields.add(new FieldInfo(
+                    FieldInfo info = new FieldInfo(
                             "".equals(member.name()) ? field.getName() : member.name(),
                             member.order() >= 0 ? member.order() : order++,
                             field,
-                            fieldEncoder));
+                            fieldEncoder,
+                            typed);
+                    info.since = member.since();
+                    info.until = member.until();
+                    if (member.timestamp()) {
+                        if (field.getType() != Long.TYPE) {
+                            throw new AmqpIoException("Timestamp member " + field.getName()
+                                    + " must be of type long");
+                        }
+                        info.kind = TIMESTAMP;
+                    }
+                    fields.add(info);
                 }
             }
         }
         
         // sort by order
-        Collections.sort(fields, new Comparator<FieldInfo>() {
-            @Override
-            public int compare(FieldInfo f1, FieldInfo f2) {
-                return f1.order  - f2.order;
-            }
-        });
+        Collections.sort(fields, ORDER);
         
         if (encoding == EncodingType.DescribedList) {
             for (int i = 0; i < fields.size() - 1; i++) {
@@ -390,12 +2225,23 @@ class CustomType {
             }
         }
         
-        Constructor ctor = c.getDeclaredConstructor();
-        ctor.setAccessible(true);
-        FieldInfo[] array = fields.toArray(new FieldInfo[fields.size()]);
-        encoder.init(this, ctor, array, knownTypes);
+        // members removed from the current version, or not yet in it,
+        // only describe the layout of other versions
+        ArrayList<FieldInfo> retired = new ArrayList();
+        for (int i = fields.size() - 1; i >= 0; i--) {
+            FieldInfo field = fields.get(i);
+            if (field.since > version || version >= field.until) {
+                retired.add(0, fields.remove(i));
+            }
+        }
         
-        inBuild.remove(c);
+        FieldInfo[] array = fields.toArray(new FieldInfo[fields.size()]);
+        Field[] members = new Field[array.length];
+        for (int i = 0; i < array.length; i++) {
+            members[i] = array[i].field;
+        }
+        encoder.init(this, InstanceCreator.of(c, members), array,
+                retired.toArray(new FieldInfo[retired.size()]), knownTypes);
         
         return encoder;
     }
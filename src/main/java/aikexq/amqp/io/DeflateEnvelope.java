@@ -0,0 +1,176 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression envelope: a described list whose descriptor is the
+ * symbol {@value #NAME}, holding the length of the encoded value as a
+ * uint and the deflated bytes of the value as a binary.
+ */
+class DeflateEnvelope {
+    public static final String NAME = "aikexq.amqp.io:deflate";
+    private static final byte[] descriptor;
+    // the largest expansion deflate can achieve
+    private static final int MAX_RATIO = 1032;
+    
+    static {
+        byte[] name = NAME.getBytes(StandardCharsets.US_ASCII);
+        descriptor = new byte[name.length + 3];
+        descriptor[0] = FormatCode._described;
+        descriptor[1] = FormatCode._symbol8;
+        descriptor[2] = (byte)name.length;
+        System.arraycopy(name, 0, descriptor, 3, name.length);
+    }
+    
+    /**
+     * Writes an encoded value in an envelope. The deflated bytes are
+     * written to the writer as they are produced.
+     * @param writer The writer.
+     * @param value The encoded value.
+     * @param length Length of the encoded value.
+     * @param deflater The deflater to use.
+     * @param chunk Array for the deflated bytes before they are written.
+     */
+    public static void write(AmqpWriter writer, byte[] value, int length,
+            Deflater deflater, byte[] chunk) {
+        writer.put(descriptor);
+        writer.put(FormatCode._list32);
+        int sizePos = writer.position();
+        writer.putInt(0);
+        writer.putInt(2);
+        writer.put(FormatCode._uint);
+        writer.putInt(length);
+        writer.put(FormatCode._binary32);
+        int lengthPos = writer.position();
+        writer.putInt(0);
+        deflater.reset();
+        deflater.setInput(value, 0, length);
+        deflater.finish();
+        int total = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            writer.put(chunk, 0, n);
+            total += n;
+        }
+        writer.putInt(lengthPos, total);
+        writer.putInt(sizePos, writer.position() - sizePos - 4);
+    }
+    
+    /**
+     * Checks whether the reader is positioned at an envelope, without
+     * moving it.
+     * @param reader The reader.
+     * @return True if an envelope follows.
+     */
+    public static boolean matches(AmqpReader reader) {
+        if (reader.remaining() < descriptor.length) {
+            return false;
+        }
+        int pos = reader.position();
+        for (int i = 0; i < descriptor.length; i++) {
+            if (reader.get(pos + i) != descriptor[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Reads an envelope and inflates the value in it. The value is
+     * inflated into the scratch array of the cache and is only valid until
+     * the cache is released.
+     * @param reader The reader positioned at the envelope. It is moved
+     * past the envelope.
+     * @param cache The buffer cache of the call.
+     * @return A reader of the encoded value.
+     * @throws Exception
+     */
+    public static AmqpReader read(AmqpReader reader, BufferCache cache) throws Exception {
+        reader.position(reader.position() + descriptor.length);
+        byte code = reader.get();
+        if (code == FormatCode._list8) {
+            reader.require(reader.get() & 0xff);
+            reader.get();
+        } else {
+            FormatCode.assertEqual(FormatCode._list32, code);
+            reader.require(reader.getInt());
+            reader.getInt();
+        }
+        int length;
+        code = reader.get();
+        if (code == FormatCode._uint) {
+            length = reader.getInt();
+        } else {
+            FormatCode.assertEqual(FormatCode._uintSmall, code);
+            length = reader.get() & 0xff;
+        }
+        int compressed;
+        code = reader.get();
+        if (code == FormatCode._binary8) {
+            compressed = reader.get() & 0xff;
+        } else {
+            FormatCode.assertEqual(FormatCode._binary32, code);
+            compressed = reader.getInt();
+        }
+        if (length < 0 || length > (long)compressed * MAX_RATIO) {
+            throw new AmqpIoException("Invalid compressed value length " + length);
+        }
+        ByteBuffer input = reader.slice(compressed);
+        // one byte more than the length shows a longer value
+        ByteArrayWriter scratch = cache.scratch();
+        int offset = scratch.reserve(length + 1);
+        byte[] value = scratch.array();
+        Inflater inflater = cache.inflater();
+        inflater.reset();
+        boolean inPlace = input.hasArray();
+        if (inPlace) {
+            inflater.setInput(input.array(), input.arrayOffset() + input.position(), compressed);
+        }
+        byte[] chunk = cache.chunk();
+        try {
+            int total = 0;
+            while (!inflater.finished() && total <= length) {
+                if (inflater.needsInput()) {
+                    if (inPlace || !input.hasRemaining()) {
+                        break;
+                    }
+                    // memory without an array is fed through the chunk
+                    int n = Math.min(chunk.length, input.remaining());
+                    input.get(chunk, 0, n);
+                    inflater.setInput(chunk, 0, n);
+                }
+                int n = inflater.inflate(value, offset + total, length + 1 - total);
+                if (n == 0 && !inflater.needsInput()) {
+                    break;
+                }
+                total += n;
+            }
+            if (total != length || !inflater.finished()) {
+                throw new AmqpIoException("Compressed value does not match its length " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new AmqpIoException(e.getMessage(), e);
+        }
+        return new ByteArrayReader(value, offset, length);
+    }
+}
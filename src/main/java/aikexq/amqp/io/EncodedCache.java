@@ -0,0 +1,89 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the encoded bytes of instances of cacheable contracts, keyed by
+ * object identity. The table is direct mapped, so an entry is replaced
+ * by the next object hashing to its slot, and the keys are weak, so a
+ * cached object can still be collected.
+ */
+class EncodedCache {
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final int maxValueSize;
+    
+    public EncodedCache(int capacity, int maxValueSize) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxValueSize = maxValueSize;
+    }
+    
+    private static class Entry extends WeakReference<Object> {
+        public final byte[] bytes;
+        
+        public Entry(Object obj, byte[] bytes) {
+            super(obj);
+            this.bytes = bytes;
+        }
+    }
+    
+    /**
+     * Gets the encoded bytes of an object, or null if not cached.
+     */
+    public byte[] get(Object obj) {
+        Entry entry = this.table.get(this.index(obj));
+        return entry != null && entry.get() == obj ? entry.bytes : null;
+    }
+    
+    /**
+     * Caches the encoded bytes of an object, just written to a writer
+     * from a start position, unless they are too large or the writer
+     * cannot read them back.
+     */
+    public void put(Object obj, AmqpWriter writer, int start) {
+        int length = writer.position() - start;
+        if (length <= this.maxValueSize && writer.readable()) {
+            byte[] bytes = new byte[length];
+            writer.get(start, bytes, 0, length);
+            this.table.set(this.index(obj), new Entry(obj, bytes));
+        }
+    }
+    
+    public void invalidate(Object obj) {
+        int index = this.index(obj);
+        Entry entry = this.table.get(index);
+        if (entry != null && entry.get() == obj) {
+            this.table.compareAndSet(index, entry, null);
+        }
+    }
+    
+    public void clear() {
+        for (int i = 0; i < this.table.length(); i++) {
+            this.table.set(i, null);
+        }
+    }
+    
+    private int index(Object obj) {
+        int h = System.identityHashCode(obj);
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+}
@@ -17,12 +17,10 @@
 
 package aikexq.amqp.io;
 
-import java.nio.ByteBuffer;
-import java.util.HashSet;
 
 interface Encoder {
-    void write(ByteBuffer buffer, Object obj, HashSet path)  throws Exception;
-    void writeRaw(ByteBuffer buffer, Object obj, HashSet path)  throws Exception;
-    Object read(ByteBuffer buffer) throws Exception;
-    Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception;
+    void write(AmqpWriter buffer, Object obj, ObjectPath path)  throws Exception;
+    void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path)  throws Exception;
+    Object read(AmqpReader buffer) throws Exception;
+    Object readRaw(AmqpReader buffer, byte formatCode) throws Exception;
 }
\ No newline at end of file
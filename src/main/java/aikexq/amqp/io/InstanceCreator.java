@@ -0,0 +1,250 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates instances of a custom type on decoding. Depending on the class,
+ * the instance is created by a constructor or static factory annotated
+ * with AmqpCreator, the canonical constructor of a record, the default
+ * constructor, or, if none exists, without running any constructor.
+ */
+abstract class InstanceCreator {
+    private static final Map<Class, Object> defaults = new HashMap<>();
+    private static final Method isRecord;
+    private static final Method getRecordComponents;
+    private static final Method getComponentName;
+    private static final Method getComponentType;
+    
+    static {
+        defaults.put(Boolean.TYPE, false);
+        defaults.put(Byte.TYPE, (byte)0);
+        defaults.put(Short.TYPE, (short)0);
+        defaults.put(Integer.TYPE, 0);
+        defaults.put(Long.TYPE, 0L);
+        defaults.put(Float.TYPE, 0f);
+        defaults.put(Double.TYPE, 0d);
+        defaults.put(Character.TYPE, (char)0);
+        
+        // records are looked up reflectively to run on older runtimes
+        Method[] methods = new Method[4];
+        try {
+            methods[0] = Class.class.getMethod("isRecord");
+            methods[1] = Class.class.getMethod("getRecordComponents");
+            Class component = Class.forName("java.lang.reflect.RecordComponent");
+            methods[2] = component.getMethod("getName");
+            methods[3] = component.getMethod("getType");
+        } catch (Exception e) {
+            methods = new Method[4];
+        }
+        isRecord = methods[0];
+        getRecordComponents = methods[1];
+        getComponentName = methods[2];
+        getComponentType = methods[3];
+    }
+    
+    /**
+     * Returns true if the member values are passed to create.
+     * Otherwise the instance is created first and the members are
+     * set on it.
+     * @return True if the creator takes member values.
+     */
+    public abstract boolean takesValues();
+    
+    /**
+     * Creates an instance.
+     * @param values The member values indexed by member position,
+     * or null if takesValues returns false.
+     * @return The new instance.
+     * @throws Exception
+     */
+    public abstract Object create(Object[] values) throws Exception;
+    
+    /**
+     * Returns true if the member at the position is passed to the
+     * constructor or factory and must not be set on the field.
+     * @param index The member position.
+     * @return True if the member is bound to a parameter.
+     */
+    public boolean isBound(int index) {
+        return false;
+    }
+    
+    public static InstanceCreator of(Class c, Field[] fields) throws Exception {
+        for (Constructor ctor : c.getDeclaredConstructors()) {
+            if (ctor.isAnnotationPresent(AmqpCreator.class)) {
+                ctor.setAccessible(true);
+                return new ExecutableCreator(c, ctor, null, ctor.getParameterTypes(),
+                        sequence(fields.length), fields);
+            }
+        }
+        for (Method method : c.getDeclaredMethods()) {
+            if (method.isAnnotationPresent(AmqpCreator.class)) {
+                if ((method.getModifiers() & Modifier.STATIC) == 0 ||
+                    !c.isAssignableFrom(method.getReturnType())) {
+                    throw new AmqpIoException(c.getName() + ": creator method " +
+                            method.getName() + " must be static and return the type");
+                }
+                method.setAccessible(true);
+                return new ExecutableCreator(c, null, method, method.getParameterTypes(),
+                        sequence(fields.length), fields);
+            }
+        }
+        if (isRecord != null && (Boolean)isRecord.invoke(c)) {
+            Object[] components = (Object[])getRecordComponents.invoke(c);
+            Class[] types = new Class[components.length];
+            int[] slots = new int[components.length];
+            for (int i = 0; i < components.length; i++) {
+                types[i] = (Class)getComponentType.invoke(components[i]);
+                String name = (String)getComponentName.invoke(components[i]);
+                slots[i] = -1;
+                for (int j = 0; j < fields.length; j++) {
+                    if (fields[j].getName().equals(name)) {
+                        slots[i] = j;
+                    }
+                }
+            }
+            Constructor ctor = c.getDeclaredConstructor(types);
+            ctor.setAccessible(true);
+            return new ExecutableCreator(c, ctor, null, types, slots, fields);
+        }
+        try {
+            Constructor ctor = c.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            return new DefaultCreator(ctor);
+        } catch (NoSuchMethodException e) {
+            if (!UnsafeAccess.AVAILABLE) {
+                throw new AmqpIoException(c.getName() + ": no default constructor");
+            }
+            return new AllocatingCreator(c);
+        }
+    }
+    
+    private static int[] sequence(int count) {
+        int[] slots = new int[count];
+        for (int i = 0; i < count; i++) {
+            slots[i] = i;
+        }
+        return slots;
+    }
+    
+    private static class DefaultCreator extends InstanceCreator {
+        private final Constructor ctor;
+        
+        public DefaultCreator(Constructor ctor) {
+            this.ctor = ctor;
+        }
+
+        @Override
+        public boolean takesValues() {
+            return false;
+        }
+
+        @Override
+        public Object create(Object[] values) throws Exception {
+            return this.ctor.newInstance();
+        }
+    }
+    
+    private static class AllocatingCreator extends InstanceCreator {
+        private final Class type;
+        
+        public AllocatingCreator(Class type) {
+            this.type = type;
+        }
+
+        @Override
+        public boolean takesValues() {
+            return false;
+        }
+
+        @Override
+        public Object create(Object[] values) throws Exception {
+            return UnsafeAccess.allocateInstance(this.type);
+        }
+    }
+    
+    private static class ExecutableCreator extends InstanceCreator {
+        private final Constructor ctor;
+        private final Method method;
+        private final Object[] defaultArgs;
+        private final int[] slots;
+        private final boolean[] bound;
+        private final Field[] fields;
+        
+        public ExecutableCreator(Class c, Constructor ctor, Method method,
+                Class[] types, int[] slots, Field[] fields) {
+            this.ctor = ctor;
+            this.method = method;
+            this.slots = slots;
+            this.fields = fields;
+            this.bound = new boolean[fields.length];
+            this.defaultArgs = new Object[types.length];
+            if (types.length != slots.length) {
+                throw new AmqpIoException(c.getName() + ": creator has " + types.length +
+                        " parameters but the type has " + slots.length + " members");
+            }
+            for (int i = 0; i < types.length; i++) {
+                this.defaultArgs[i] = defaults.get(types[i]);
+                if (slots[i] >= 0) {
+                    Class fieldType = fields[slots[i]].getType();
+                    if (!types[i].equals(fieldType) && !types[i].isAssignableFrom(fieldType)) {
+                        throw new AmqpIoException(c.getName() + ": creator parameter " + i +
+                                " does not match member " + fields[slots[i]].getName());
+                    }
+                    this.bound[slots[i]] = true;
+                }
+            }
+        }
+
+        @Override
+        public boolean takesValues() {
+            return true;
+        }
+        
+        @Override
+        public boolean isBound(int index) {
+            return this.bound[index];
+        }
+
+        @Override
+        public Object create(Object[] values) throws Exception {
+            Object[] args = new Object[this.slots.length];
+            for (int i = 0; i < args.length; i++) {
+                Object v = this.slots[i] >= 0 ? values[this.slots[i]] : null;
+                args[i] = v != null ? v : this.defaultArgs[i];
+            }
+            Object obj = this.ctor != null
+                    ? this.ctor.newInstance(args)
+                    : this.method.invoke(null, args);
+            for (int i = 0; i < values.length; i++) {
+                if (!this.bound[i] && values[i] != null) {
+                    this.fields[i].set(obj, values[i]);
+                }
+            }
+            return obj;
+        }
+    }
+}
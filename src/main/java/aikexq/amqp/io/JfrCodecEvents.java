@@ -0,0 +1,169 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events, loaded reflectively by CodecEvents so that
+ * the rest of the library does not depend on the jdk.jfr module.
+ */
+final class JfrCodecEvents extends CodecEvents {
+    
+    JfrCodecEvents() {
+        FlightRecorder.register(PlanBuildEvent.class);
+        FlightRecorder.register(LargeValueEvent.class);
+        FlightRecorder.register(SlowOperationEvent.class);
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+            
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+    
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            if (recording.getState() == RecordingState.RUNNING) {
+                running = true;
+                break;
+            }
+        }
+        CodecEvents.recording = running;
+    }
+    
+    @Override
+    void planBuilt(Class type, String descriptor, int fieldCount, int classCount, long duration) {
+        PlanBuildEvent event = new PlanBuildEvent();
+        if (event.isEnabled()) {
+            event.type = type;
+            event.descriptor = descriptor;
+            event.fieldCount = fieldCount;
+            event.classCount = classCount;
+            event.buildTime = duration;
+            event.commit();
+        }
+    }
+    
+    @Override
+    void largeValue(String operation, Class type, String descriptor, int size) {
+        LargeValueEvent event = new LargeValueEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.type = type;
+            event.descriptor = descriptor;
+            event.size = size;
+            event.commit();
+        }
+    }
+    
+    @Override
+    void slowOperation(String operation, Class type, String descriptor, int size, long duration) {
+        SlowOperationEvent event = new SlowOperationEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.type = type;
+            event.descriptor = descriptor;
+            event.size = size;
+            event.elapsed = duration;
+            event.commit();
+        }
+    }
+    
+    @Name("aikexq.amqp.io.PlanBuild")
+    @Label("AMQP Plan Build")
+    @Category("AMQP IO")
+    @Description("An encoder plan was built for a class")
+    @StackTrace(false)
+    static class PlanBuildEvent extends Event {
+        @Label("Type")
+        Class type;
+        
+        @Label("Descriptor")
+        String descriptor;
+        
+        @Label("Field Count")
+        int fieldCount;
+        
+        @Label("Class Count")
+        @Description("Classes built in the same session")
+        int classCount;
+        
+        @Label("Build Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long buildTime;
+    }
+    
+    @Name("aikexq.amqp.io.LargeValue")
+    @Label("AMQP Large Value")
+    @Category("AMQP IO")
+    @Description("A value above the size threshold was encoded or decoded")
+    static class LargeValueEvent extends Event {
+        @Label("Operation")
+        String operation;
+        
+        @Label("Type")
+        Class type;
+        
+        @Label("Descriptor")
+        String descriptor;
+        
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+    
+    @Name("aikexq.amqp.io.SlowOperation")
+    @Label("AMQP Slow Operation")
+    @Category("AMQP IO")
+    @Description("An encode or decode call took longer than the time threshold")
+    static class SlowOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        
+        @Label("Type")
+        Class type;
+        
+        @Label("Descriptor")
+        String descriptor;
+        
+        @Label("Size")
+        @DataAmount
+        int size;
+        
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+}
@@ -0,0 +1,171 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads from native memory given by an address and a length, such as the
+ * memory of a direct ByteBuffer. Multi-byte values are loaded with one
+ * unaligned access and a byte swap on little-endian platforms. Strings
+ * are decoded after one bulk copy into a reused array. The unchecked
+ * accessors leave the limit check to a caller that checked a whole run
+ * of values with {@link #available}.
+ */
+class NativeReader extends AmqpReader {
+    private Object owner;
+    private int ownerOffset;
+    private long address;
+    private int limit;
+    private int position;
+    
+    public NativeReader() {
+    }
+    
+    public NativeReader(long address, int length) {
+        this.reset(null, address, length);
+    }
+    
+    public NativeReader reset(ByteBuffer buffer) {
+        this.reset(buffer, UnsafeAccess.addressOf(buffer) + buffer.position(),
+                buffer.remaining());
+        this.ownerOffset = buffer.position();
+        return this;
+    }
+    
+    public NativeReader reset(Object owner, long address, int length) {
+        // the owner keeps the memory of a direct buffer reachable
+        this.owner = owner;
+        this.address = address;
+        this.limit = length;
+        this.ownerOffset = 0;
+        this.position = 0;
+        return this;
+    }
+    
+    private long next(int size) {
+        int pos = this.position;
+        if (size > this.limit - pos) {
+            throw new BufferUnderflowException();
+        }
+        this.position = pos + size;
+        return this.address + pos;
+    }
+
+    @Override
+    public int position() {
+        return this.position;
+    }
+
+    @Override
+    public void position(int position) {
+        if (position < 0 || position > this.limit) {
+            throw new IllegalArgumentException("Invalid position " + position);
+        }
+        this.position = position;
+    }
+
+    @Override
+    public int remaining() {
+        return this.limit - this.position;
+    }
+
+    @Override
+    public byte get() {
+        return UnsafeAccess.getByte(this.next(1));
+    }
+
+    @Override
+    public byte get(int position) {
+        if (position < 0 || position >= this.limit) {
+            throw new IndexOutOfBoundsException();
+        }
+        return UnsafeAccess.getByte(this.address + position);
+    }
+
+    @Override
+    public short getShort() {
+        return UnsafeAccess.getShort(this.next(2));
+    }
+
+    @Override
+    public int getInt() {
+        return UnsafeAccess.getInt(this.next(4));
+    }
+
+    @Override
+    public long getLong() {
+        return UnsafeAccess.getLong(this.next(8));
+    }
+
+    @Override
+    public void get(byte[] dst, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > dst.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        UnsafeAccess.copyToArray(this.next(length), dst, offset, length);
+    }
+
+    @Override
+    boolean available(int size) {
+        return size <= this.limit - this.position;
+    }
+    
+    @Override
+    byte getUnchecked() {
+        int pos = this.position;
+        this.position = pos + 1;
+        return UnsafeAccess.getByte(this.address + pos);
+    }
+    
+    @Override
+    short getShortUnchecked() {
+        int pos = this.position;
+        this.position = pos + 2;
+        return UnsafeAccess.getShort(this.address + pos);
+    }
+    
+    @Override
+    int getIntUnchecked() {
+        int pos = this.position;
+        this.position = pos + 4;
+        return UnsafeAccess.getInt(this.address + pos);
+    }
+    
+    @Override
+    long getLongUnchecked() {
+        int pos = this.position;
+        this.position = pos + 8;
+        return UnsafeAccess.getLong(this.address + pos);
+    }
+
+    @Override
+    public ByteBuffer slice(int length) {
+        if (!(this.owner instanceof ByteBuffer)) {
+            return super.slice(length);
+        }
+        this.require(length);
+        int start = this.ownerOffset + this.position;
+        this.next(length);
+        ByteBuffer slice = ((ByteBuffer)this.owner).duplicate();
+        slice.limit(start + length).position(start);
+        return slice.slice();
+    }
+}
@@ -0,0 +1,162 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes to native memory given by an address and a length, such as the
+ * memory of a direct ByteBuffer. Multi-byte values are stored with one
+ * unaligned access and a byte swap on little-endian platforms. Each
+ * write checks the limit with a single comparison, except the unchecked
+ * ones, whose caller checked a whole run of values with {@link #ensure}.
+ */
+class NativeWriter extends AmqpWriter {
+    private Object owner;
+    private long address;
+    private int limit;
+    private int position;
+    
+    public NativeWriter() {
+    }
+    
+    public NativeWriter(long address, int length) {
+        this.reset(null, address, length);
+    }
+    
+    public NativeWriter reset(ByteBuffer buffer) {
+        return this.reset(buffer, UnsafeAccess.addressOf(buffer) + buffer.position(),
+                buffer.remaining());
+    }
+    
+    public NativeWriter reset(Object owner, long address, int length) {
+        // the owner keeps the memory of a direct buffer reachable
+        this.owner = owner;
+        this.address = address;
+        this.limit = length;
+        this.position = 0;
+        return this;
+    }
+    
+    private long next(int size) {
+        int pos = this.position;
+        if (size > this.limit - pos) {
+            throw new BufferOverflowException();
+        }
+        this.position = pos + size;
+        return this.address + pos;
+    }
+
+    @Override
+    public int position() {
+        return this.position;
+    }
+
+    @Override
+    public void put(byte value) {
+        UnsafeAccess.putByte(this.next(1), value);
+    }
+
+    @Override
+    public void putShort(short value) {
+        UnsafeAccess.putShort(this.next(2), value);
+    }
+
+    @Override
+    public void putInt(int value) {
+        UnsafeAccess.putInt(this.next(4), value);
+    }
+
+    @Override
+    public void putInt(int position, int value) {
+        if (position < 0 || position > this.position - 4) {
+            throw new IndexOutOfBoundsException();
+        }
+        UnsafeAccess.putInt(this.address + position, value);
+    }
+
+    @Override
+    public void putLong(long value) {
+        UnsafeAccess.putLong(this.next(8), value);
+    }
+
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > src.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        UnsafeAccess.copyFromArray(src, offset, this.next(length), length);
+    }
+    
+    @Override
+    boolean ensure(int size) {
+        return size <= this.limit - this.position;
+    }
+    
+    @Override
+    void putUnchecked(byte value) {
+        int pos = this.position;
+        this.position = pos + 1;
+        UnsafeAccess.putByte(this.address + pos, value);
+    }
+    
+    @Override
+    void putShortUnchecked(short value) {
+        int pos = this.position;
+        this.position = pos + 2;
+        UnsafeAccess.putShort(this.address + pos, value);
+    }
+    
+    @Override
+    void putIntUnchecked(int value) {
+        int pos = this.position;
+        this.position = pos + 4;
+        UnsafeAccess.putInt(this.address + pos, value);
+    }
+    
+    @Override
+    void putLongUnchecked(long value) {
+        int pos = this.position;
+        this.position = pos + 8;
+        UnsafeAccess.putLong(this.address + pos, value);
+    }
+    
+    @Override
+    boolean readable() {
+        return true;
+    }
+    
+    @Override
+    void truncate(int position) {
+        if (position < 0 || position > this.position) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.position = position;
+    }
+    
+    @Override
+    void get(int position, byte[] dst, int offset, int length) {
+        if (position < 0 || length < 0 || position > this.position - length ||
+            offset < 0 || offset > dst.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        UnsafeAccess.copyToArray(this.address + position, dst, offset, length);
+    }
+}
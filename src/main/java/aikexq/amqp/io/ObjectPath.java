@@ -0,0 +1,64 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+/**
+ * The objects being encoded, from the root to the current one, kept to
+ * detect cyclic references. Objects are compared by identity, so no
+ * hashCode or equals method is called and nothing is allocated once the
+ * path has grown to the depth of the graph.
+ */
+class ObjectPath extends AmqpCodec.Context {
+    private Object[] objects = new Object[16];
+    private int depth;
+    
+    public boolean contains(Object obj) {
+        for (int i = 0; i < this.depth; i++) {
+            if (this.objects[i] == obj) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public void add(Object obj) {
+        if (this.depth == this.objects.length) {
+            Object[] grown = new Object[this.depth * 2];
+            System.arraycopy(this.objects, 0, grown, 0, this.depth);
+            this.objects = grown;
+        }
+        this.objects[this.depth++] = obj;
+    }
+    
+    /**
+     * Removes the object, which is the last one added.
+     */
+    public void remove(Object obj) {
+        this.objects[--this.depth] = null;
+    }
+    
+    /**
+     * Empties the path, which may hold objects if an encoding failed.
+     * @return This path.
+     */
+    public ObjectPath reset() {
+        while (this.depth > 0) {
+            this.objects[--this.depth] = null;
+        }
+        return this;
+    }
+}
@@ -17,19 +17,22 @@
 
 package aikexq.amqp.io;
 
-import java.nio.ByteBuffer;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.UUID;
 
 class PrimitiveType {
-    private static abstract class EncoderImpl implements Encoder {
+    static abstract class EncoderImpl implements Encoder {
         private final byte formatCode;
         
         public EncoderImpl(byte formatCode) {
@@ -37,7 +40,7 @@ class PrimitiveType {
         }
         
         @Override
-        public void write(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
+        public void write(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
             if (obj == null) {
                 buffer.put(FormatCode._null);
             } else {
@@ -47,7 +50,7 @@ class PrimitiveType {
         }
         
         @Override
-        public Object read(ByteBuffer buffer) throws Exception {
+        public Object read(AmqpReader buffer) throws Exception {
             byte code = buffer.get();
             if (code == FormatCode._null) {
                 return null;
@@ -59,143 +62,124 @@ class PrimitiveType {
     
     private static final Encoder nullType = new EncoderImpl(FormatCode._null) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
             FormatCode.assertEqual(FormatCode._null, formatCode);
             return null;
         }
     };
     private static final Encoder boolType = new EncoderImpl(FormatCode._bool) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.put((Boolean)obj ? (byte)1 : (byte)0);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            if (formatCode == FormatCode._boolTrue) {
-                return true;
-            } else if (formatCode == FormatCode._boolFalse) {
-                return false;
-            } else {
-                FormatCode.assertEqual(FormatCode._bool, formatCode);
-                return buffer.get() != 0;
-            }
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readBoolean(buffer, formatCode);
         }
     };
     private static final Encoder byteType = new EncoderImpl(FormatCode._byte) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.put((Byte)obj);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            FormatCode.assertEqual(FormatCode._byte, formatCode);
-            return buffer.get();
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readByte(buffer, formatCode);
         }
     };
     private static final Encoder shortType = new EncoderImpl(FormatCode._short) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.putShort((Short)obj);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            FormatCode.assertEqual(FormatCode._short, formatCode);
-            return buffer.getShort();
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readShort(buffer, formatCode);
         }
     };
     private static final Encoder intType = new EncoderImpl(FormatCode._int) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.putInt((Integer)obj);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            FormatCode.assertEqual(FormatCode._int, formatCode);
-            return buffer.getInt();
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readInt(buffer, formatCode);
         }
     };
     private static final Encoder longType = new EncoderImpl(FormatCode._long) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.putLong((Long)obj);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            if (formatCode == FormatCode._longSmall) {
-                return buffer.get();
-            } else {
-                FormatCode.assertEqual(FormatCode._long, formatCode);
-                return buffer.getLong();
-            }
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readLong(buffer, formatCode);
         }
     };
     private static final Encoder floatType = new EncoderImpl(FormatCode._float) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.putFloat((Float)obj);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            FormatCode.assertEqual(FormatCode._float, formatCode);
-            return buffer.getFloat();
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readFloat(buffer, formatCode);
         }
     };
     private static final Encoder doubleType = new EncoderImpl(FormatCode._double) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.putDouble((Double)obj);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            FormatCode.assertEqual(FormatCode._double, formatCode);
-            return buffer.getDouble();
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readDouble(buffer, formatCode);
         }
     };
     private static final Encoder charType = new EncoderImpl(FormatCode._char) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.putInt((int)(Character)obj & 0xffff);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            FormatCode.assertEqual(FormatCode._char, formatCode);
-            return (char)(buffer.getInt() & 0xffff);
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readChar(buffer, formatCode);
         }
     };
     private static final Encoder timestampType = new EncoderImpl(FormatCode._timestamp) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             buffer.putLong(((Date)obj).getTime());
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
-            FormatCode.assertEqual(FormatCode._timestamp, formatCode);
-            return new Date(buffer.getLong());
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return new Date(readTimestamp(buffer, formatCode));
         }
     };
     private static final Encoder uuidType = new EncoderImpl(FormatCode._uuid) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             UUID uuid = (UUID)obj;
             buffer.putLong(uuid.getMostSignificantBits());
             buffer.putLong(uuid.getLeastSignificantBits());
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
             FormatCode.assertEqual(FormatCode._uuid, formatCode);
             long msb = buffer.getLong();
             long lsb = buffer.getLong();
@@ -204,40 +188,42 @@ class PrimitiveType {
     };
     private static final Encoder binaryType = new EncoderImpl(FormatCode._binary32) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
             byte[] bin = (byte[])obj;
             buffer.putInt(bin.length);
             buffer.put(bin);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
             int len;
             if (formatCode == FormatCode._binary8) {
-                len = buffer.get();
+                len = buffer.get() & 0xFF;
             } else {
                 FormatCode.assertEqual(FormatCode._binary32, formatCode);
                 len = buffer.getInt();
             }
+            buffer.require(len);
             byte[] ret = new byte[len];
-            return buffer.get(ret).array();
+            buffer.get(ret);
+            return ret;
         }
     };
     private static final Encoder stringType = new EncoderImpl(FormatCode._string32) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) {
-            byte[] bytes = ((String)obj).getBytes(StandardCharsets.UTF_8);
-            buffer.putInt(bytes.length);
-            buffer.put(bytes);
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            writeUtf8(buffer, (String)obj);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
             int len;
-            if (formatCode == FormatCode._string8) {
-                len = buffer.get();
+            if (formatCode == FormatCode._string8 || formatCode == FormatCode._symbol8) {
+                len = buffer.get() & 0xFF;
             } else {
-                FormatCode.assertEqual(FormatCode._string32, formatCode);
+                if (formatCode != FormatCode._symbol32) {
+                    FormatCode.assertEqual(FormatCode._string32, formatCode);
+                }
                 len = buffer.getInt();
             }
             return readString(buffer, len, StandardCharsets.UTF_8);
@@ -245,29 +231,38 @@ class PrimitiveType {
     };
     private static final Encoder listType = new EncoderImpl(FormatCode._list32) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
             List list = (List)obj;
             int pos = buffer.position();
             buffer.putInt(0);
             buffer.putInt(list.size());
-            for (Object v : list) {
-                writeObject(buffer, v, path);
+            if (list instanceof RandomAccess) {
+                for (int i = 0; i < list.size(); i++) {
+                    writeObject(buffer, list.get(i), path);
+                }
+            } else {
+                for (Object v : list) {
+                    writeObject(buffer, v, path);
+                }
             }
-            buffer.putInt(pos, buffer.position() - pos);
+            buffer.putInt(pos, buffer.position() - pos - 4);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            if (formatCode == FormatCode._array8 || formatCode == FormatCode._array32) {
+                return arrayType.readRaw(buffer, formatCode);
+            }
             ArrayList list = new ArrayList();
             int count = 0;
             if (formatCode == FormatCode._list0) {
                 // Nothing
             } else if (formatCode == FormatCode._list8) {
-                buffer.get();
-                count = buffer.get();
+                buffer.require(buffer.get() & 0xFF);
+                count = buffer.get() & 0xFF;
             } else {
                 FormatCode.assertEqual(FormatCode._list32, formatCode);
-                buffer.getInt();
+                buffer.require(buffer.getInt());
                 count = buffer.getInt();
             }
             for (int i = 0; i < count; i++) {
@@ -279,7 +274,7 @@ class PrimitiveType {
     };
     private static final Encoder mapType = new EncoderImpl(FormatCode._map32) {
         @Override
-        public void writeRaw(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
             Map map = (Map)obj;
             int pos = buffer.position();
             buffer.putInt(0);
@@ -289,19 +284,19 @@ class PrimitiveType {
                 writeObject(buffer, k, path);
                 writeObject(buffer, v, path);
             }
-            buffer.putInt(pos, buffer.position() - pos);
+            buffer.putInt(pos, buffer.position() - pos - 4);
         }
 
         @Override
-        public Object readRaw(ByteBuffer buffer, byte formatCode) throws Exception {
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
             HashMap map = new HashMap();
             int count = 0;
             if (formatCode == FormatCode._map8) {
-                buffer.get();
-                count = buffer.get();
+                buffer.require(buffer.get() & 0xFF);
+                count = buffer.get() & 0xFF;
             } else {
                 FormatCode.assertEqual(FormatCode._map32, formatCode);
-                buffer.getInt();
+                buffer.require(buffer.getInt());
                 count = buffer.getInt();
             }
             for (int i = 0; i < count; i += 2) {
@@ -313,52 +308,118 @@ class PrimitiveType {
         }
     };
     
-    private static final Encoder[] codecArray = new Encoder[] {
-        null,           // 0
-        nullType,       // 1
-        boolType,       // 2
-        byteType,       // 3
-        shortType,      // 4
-        intType,        // 5
-        longType,       // 6
-        floatType,      // 7
-        doubleType,     // 8
-        charType,       // 9
-        timestampType,  // 10
-        uuidType,       // 11
-        binaryType,     // 12
-        stringType,     // 13
-        listType,       // 14
-        mapType         // 15
-    };
+    private static abstract class DecoderImpl extends EncoderImpl {
+        public DecoderImpl() {
+            super(FormatCode._null);
+        }
+        
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            throw new UnsupportedOperationException();
+        }
+    }
     
-    private static final byte[][] codecIndexTable = new byte[][] {
-        // 0x40:null, 0x41:boolean.true, 0x42:boolean.false, 0x43:uint0, 0x44:ulong0, 0x45:list0
-        new byte[] { 1, 2, 2, 0, 0, 14 },
-        // 0x50:ubyte, 0x51:byte, 0x52:small.uint, 0x53:small.ulong, 0x54:small.int, 0x55:small.long, 0x56:boolean
-        new byte[] { 0, 3, 0, 0, 5, 6, 2 },
-        // 0x60:ushort, 0x61:short
-        new byte[] { 0, 4 },
-        // 0x70:uint, 0x71:int, 0x72:float, 0x73:char, 0x74:decimal32
-        new byte[] { 0, 5, 7, 9, 0 },
-        // 0x80:ulong, 0x81:long, 0x82:double, 0x83:timestamp, 0x84:decimal64
-        new byte[] { 0, 6, 8, 10, 0 },
-        // 0x98:uuid
-        new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 11 },
-        // 0xa0:bin8, 0xa1:str8, 0xa3:sym8
-        new byte[] { 12, 13, 0, 0 },
-        // 0xb0:bin32, 0xb1:str32, 0xb3:sym32
-        new byte[] { 12, 13, 0, 0 },
-        // 0xc0:list8, 0xc1:map8
-        new byte[] { 14, 15 },
-        // 0xd0:list32, 0xd1:map32
-        new byte[] { 14, 15 },
-        // 0xe0:array8
-        new byte[] { 0 },
-        // 0xf0:array32
-        new byte[] { 0 }
+    // AMQP types without a Java counterpart are decoded into the next
+    // wider Java type
+    private static final Encoder ubyteType = new DecoderImpl() {
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readShort(buffer, formatCode);
+        }
+    };
+    private static final Encoder ushortType = new DecoderImpl() {
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readInt(buffer, formatCode);
+        }
     };
+    private static final Encoder ulongType = new DecoderImpl() {
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readLong(buffer, formatCode);
+        }
+    };
+    private static final Encoder decimalType = new EncoderImpl(FormatCode._decimal128) {
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            writeDecimal128(buffer, (BigDecimal)obj);
+        }
 
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return readDecimal(buffer, formatCode);
+        }
+    };
+    private static final Encoder arrayType = new DecoderImpl() {
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            int count = readArrayCount(buffer, formatCode);
+            byte code = readArrayConstructor(buffer);
+            Encoder encoder = getEncoder(code);
+            if (encoder == null) {
+                throw new AmqpIoException("Invalid format code " + code);
+            }
+            ArrayList list = new ArrayList(capacity(buffer, count));
+            for (int i = 0; i < count; i++) {
+                list.add(encoder.readRaw(buffer, code));
+            }
+            return list;
+        }
+    };
+    private static final Encoder describedType = new DecoderImpl() {
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            // without a registered type only the value is kept
+            skipObject(buffer);
+            return readObject(buffer);
+        }
+    };
+    
+    private static final Encoder[] decoders = new Encoder[256];
+    
+    static {
+        decoders[FormatCode._described & 0xff] = describedType;
+        decoders[FormatCode._null & 0xff] = nullType;
+        decoders[FormatCode._bool & 0xff] = boolType;
+        decoders[FormatCode._boolTrue & 0xff] = boolType;
+        decoders[FormatCode._boolFalse & 0xff] = boolType;
+        decoders[FormatCode._ubyte & 0xff] = ubyteType;
+        decoders[FormatCode._ushort & 0xff] = ushortType;
+        decoders[FormatCode._uint & 0xff] = ulongType;
+        decoders[FormatCode._uintSmall & 0xff] = ulongType;
+        decoders[FormatCode._uint0 & 0xff] = ulongType;
+        decoders[FormatCode._ulong & 0xff] = ulongType;
+        decoders[FormatCode._ulongSmall & 0xff] = ulongType;
+        decoders[FormatCode._ulong0 & 0xff] = ulongType;
+        decoders[FormatCode._byte & 0xff] = byteType;
+        decoders[FormatCode._short & 0xff] = shortType;
+        decoders[FormatCode._int & 0xff] = intType;
+        decoders[FormatCode._intSmall & 0xff] = intType;
+        decoders[FormatCode._long & 0xff] = longType;
+        decoders[FormatCode._longSmall & 0xff] = longType;
+        decoders[FormatCode._float & 0xff] = floatType;
+        decoders[FormatCode._double & 0xff] = doubleType;
+        decoders[FormatCode._decimal32 & 0xff] = decimalType;
+        decoders[FormatCode._decimal64 & 0xff] = decimalType;
+        decoders[FormatCode._decimal128 & 0xff] = decimalType;
+        decoders[FormatCode._char & 0xff] = charType;
+        decoders[FormatCode._timestamp & 0xff] = timestampType;
+        decoders[FormatCode._uuid & 0xff] = uuidType;
+        decoders[FormatCode._binary8 & 0xff] = binaryType;
+        decoders[FormatCode._binary32 & 0xff] = binaryType;
+        decoders[FormatCode._string8 & 0xff] = stringType;
+        decoders[FormatCode._string32 & 0xff] = stringType;
+        decoders[FormatCode._symbol8 & 0xff] = stringType;
+        decoders[FormatCode._symbol32 & 0xff] = stringType;
+        decoders[FormatCode._list0 & 0xff] = listType;
+        decoders[FormatCode._list8 & 0xff] = listType;
+        decoders[FormatCode._list32 & 0xff] = listType;
+        decoders[FormatCode._map8 & 0xff] = mapType;
+        decoders[FormatCode._map32 & 0xff] = mapType;
+        decoders[FormatCode._array8 & 0xff] = arrayType;
+        decoders[FormatCode._array32 & 0xff] = arrayType;
+    }
+    
     private static final Map<Class, Encoder> codecMap = new HashMap<>();
     
     static {
@@ -379,9 +440,22 @@ class PrimitiveType {
         codecMap.put(Double.class, doubleType);
         codecMap.put(Character.class, charType);
         codecMap.put(Date.class, timestampType);
+        codecMap.put(BigDecimal.class, decimalType);
         codecMap.put(UUID.class, uuidType);
         codecMap.put(byte[].class, binaryType);
         codecMap.put(String.class, stringType);
+        try {
+            // java.time codecs are defined only if the runtime has them
+            Class.forName("java.time.Instant");
+            Class.forName("aikexq.amqp.io.TimeTypes")
+                    .getDeclaredMethod("register", Map.class).invoke(null, codecMap);
+        } catch (ClassNotFoundException | LinkageError e) {
+            // no java.time on this runtime
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot register java.time codecs", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot register java.time codecs", e);
+        }
     }
     
     public static Encoder getEncoder(Class c) {
@@ -395,31 +469,407 @@ class PrimitiveType {
     }
     
     public static Encoder getEncoder(byte formatCode) {
-        int type = ((formatCode & 0xF0) >> 4) - 4;
-        if (type >= 0 && type < codecIndexTable.length) {
-            int index = formatCode & 0x0F;
-            if (index < codecIndexTable[type].length) {
-                return codecArray[codecIndexTable[type][index]];
+        return decoders[formatCode & 0xff];
+    }
+    
+    public static void writeBoolean(AmqpWriter buffer, boolean value) {
+        buffer.put(FormatCode._bool);
+        buffer.put(value ? (byte)1 : (byte)0);
+    }
+    
+    public static void writeByte(AmqpWriter buffer, byte value) {
+        buffer.put(FormatCode._byte);
+        buffer.put(value);
+    }
+    
+    public static void writeShort(AmqpWriter buffer, short value) {
+        buffer.put(FormatCode._short);
+        buffer.putShort(value);
+    }
+    
+    public static void writeInt(AmqpWriter buffer, int value) {
+        buffer.put(FormatCode._int);
+        buffer.putInt(value);
+    }
+    
+    public static void writeLong(AmqpWriter buffer, long value) {
+        buffer.put(FormatCode._long);
+        buffer.putLong(value);
+    }
+    
+    public static void writeTimestamp(AmqpWriter buffer, long value) {
+        buffer.put(FormatCode._timestamp);
+        buffer.putLong(value);
+    }
+    
+    public static void writeFloat(AmqpWriter buffer, float value) {
+        buffer.put(FormatCode._float);
+        buffer.putFloat(value);
+    }
+    
+    public static void writeDouble(AmqpWriter buffer, double value) {
+        buffer.put(FormatCode._double);
+        buffer.putDouble(value);
+    }
+    
+    public static void writeChar(AmqpWriter buffer, char value) {
+        buffer.put(FormatCode._char);
+        buffer.putInt((int)value & 0xffff);
+    }
+    
+    /**
+     * Writes the 32-bit length and the UTF-8 bytes of a string, encoding
+     * the characters directly into the buffer. As with String.getBytes,
+     * an unpaired surrogate is written as '?'.
+     * @param buffer The buffer.
+     * @param value The string.
+     */
+    public static void writeUtf8(AmqpWriter buffer, String value) {
+        int pos = buffer.position();
+        buffer.putInt(0);
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte)c);
+            } else if (c < 0x800) {
+                buffer.put((byte)(0xc0 | (c >> 6)));
+                buffer.put((byte)(0x80 | (c & 0x3f)));
+            } else if (!Character.isSurrogate(c)) {
+                buffer.put((byte)(0xe0 | (c >> 12)));
+                buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte)(0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                    Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte)(0xf0 | (cp >> 18)));
+                buffer.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte)(0x80 | (cp & 0x3f)));
+            } else {
+                buffer.put((byte)'?');
             }
         }
-        return null;
+        buffer.putInt(pos, buffer.position() - pos - 4);
     }
     
-    public static String readString(ByteBuffer buffer, int len, Charset charset) {
-        String str;
-        if (buffer.hasArray()) {
-            int pos = buffer.position();
-            str = new String(buffer.array(), pos, len, charset);
-            buffer.position(pos + len);
+    public static boolean readBoolean(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._boolTrue) {
+            return true;
+        } else if (formatCode == FormatCode._boolFalse) {
+            return false;
         } else {
-            byte[] bytes = new byte[len];
-            buffer.get(bytes);
-            str = new String(bytes, 0, len, charset);
+            FormatCode.assertEqual(FormatCode._bool, formatCode);
+            return buffer.get() != 0;
         }
-        return str;
     }
     
-    public static Object readObject(ByteBuffer buffer) throws Exception {
+    /**
+     * Reads an integer in any AMQP integer encoding.
+     * @param buffer The buffer.
+     * @param formatCode The format code already read.
+     * @return The value.
+     * @throws Exception
+     */
+    public static long readIntegral(AmqpReader buffer, byte formatCode) throws Exception {
+        switch (formatCode & 0xff) {
+            case 0x43:  // uint0
+            case 0x44:  // ulong0
+                return 0;
+            case 0x50:  // ubyte
+            case 0x52:  // small uint
+            case 0x53:  // small ulong
+                return buffer.get() & 0xff;
+            case 0x51:  // byte
+            case 0x54:  // small int
+            case 0x55:  // small long
+                return buffer.get();
+            case 0x60:  // ushort
+                return buffer.getShort() & 0xffff;
+            case 0x61:  // short
+                return buffer.getShort();
+            case 0x70:  // uint
+                return buffer.getInt() & 0xffffffffL;
+            case 0x71:  // int
+                return buffer.getInt();
+            case 0x80:  // ulong
+                long value = buffer.getLong();
+                if (value < 0) {
+                    throw new AmqpIoException("ulong value exceeds the range of long");
+                }
+                return value;
+            case 0x81:  // long
+                return buffer.getLong();
+            default:
+                throw new AmqpIoException("Format code " + formatCode + " is not an integer");
+        }
+    }
+    
+    private static long checkRange(long value, long min, long max, String type) {
+        if (value < min || value > max) {
+            throw new AmqpIoException("Value " + value + " out of range for " + type);
+        }
+        return value;
+    }
+    
+    public static byte readByte(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._byte) {
+            return buffer.get();
+        }
+        return (byte)checkRange(readIntegral(buffer, formatCode),
+                Byte.MIN_VALUE, Byte.MAX_VALUE, "byte");
+    }
+    
+    public static short readShort(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._short) {
+            return buffer.getShort();
+        }
+        return (short)checkRange(readIntegral(buffer, formatCode),
+                Short.MIN_VALUE, Short.MAX_VALUE, "short");
+    }
+    
+    public static int readInt(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._int) {
+            return buffer.getInt();
+        }
+        return (int)checkRange(readIntegral(buffer, formatCode),
+                Integer.MIN_VALUE, Integer.MAX_VALUE, "int");
+    }
+    
+    public static long readLong(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._long) {
+            return buffer.getLong();
+        }
+        return readIntegral(buffer, formatCode);
+    }
+    
+    public static float readFloat(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._float) {
+            return buffer.getFloat();
+        } else if (formatCode == FormatCode._double) {
+            return (float)buffer.getDouble();
+        }
+        return readIntegral(buffer, formatCode);
+    }
+    
+    public static double readDouble(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._double) {
+            return buffer.getDouble();
+        } else if (formatCode == FormatCode._float) {
+            return buffer.getFloat();
+        }
+        return readIntegral(buffer, formatCode);
+    }
+    
+    public static char readChar(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._char) {
+            return (char)(buffer.getInt() & 0xffff);
+        }
+        return (char)checkRange(readIntegral(buffer, formatCode),
+                Character.MIN_VALUE, Character.MAX_VALUE, "char");
+    }
+    
+    public static long readTimestamp(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._timestamp) {
+            return buffer.getLong();
+        }
+        return readIntegral(buffer, formatCode);
+    }
+    
+    /**
+     * Reads a decimal32, decimal64 or decimal128 value in the binary
+     * integer decimal encoding, or a value in any integer encoding.
+     * @param buffer The buffer.
+     * @param formatCode The format code already read.
+     * @return The value.
+     * @throws Exception
+     */
+    public static BigDecimal readDecimal(AmqpReader buffer, byte formatCode) throws Exception {
+        if (formatCode == FormatCode._decimal32) {
+            return decodeDecimal32(buffer.getInt());
+        } else if (formatCode == FormatCode._decimal64) {
+            return decodeDecimal64(buffer.getLong());
+        } else if (formatCode == FormatCode._decimal128) {
+            long high = buffer.getLong();
+            return decodeDecimal128(high, buffer.getLong());
+        }
+        return BigDecimal.valueOf(readIntegral(buffer, formatCode));
+    }
+    
+    // IEEE 754-2008 decimals in the binary integer decimal encoding. If
+    // the two bits after the sign are 11, the exponent starts two bits
+    // later and the coefficient has 100 as implicit leading bits.
+    
+    private static BigDecimal decodeDecimal32(int bits) {
+        checkFinite(bits >>> 27);
+        int exponent;
+        long coefficient;
+        if (((bits >>> 29) & 0x3) == 0x3) {
+            exponent = (bits >>> 21) & 0xff;
+            coefficient = (bits & 0x1fffff) | 0x800000;
+        } else {
+            exponent = (bits >>> 23) & 0xff;
+            coefficient = bits & 0x7fffff;
+        }
+        return decimal(bits < 0, coefficient > 9999999L ? 0 : coefficient, 101 - exponent);
+    }
+    
+    private static BigDecimal decodeDecimal64(long bits) {
+        checkFinite((int)(bits >>> 59));
+        int exponent;
+        long coefficient;
+        if (((bits >>> 61) & 0x3) == 0x3) {
+            exponent = (int)(bits >>> 51) & 0x3ff;
+            coefficient = (bits & ((1L << 51) - 1)) | (1L << 53);
+        } else {
+            exponent = (int)(bits >>> 53) & 0x3ff;
+            coefficient = bits & ((1L << 53) - 1);
+        }
+        return decimal(bits < 0, coefficient > 9999999999999999L ? 0 : coefficient, 398 - exponent);
+    }
+    
+    private static BigDecimal decodeDecimal128(long high, long low) {
+        checkFinite((int)(high >>> 59));
+        int exponent;
+        BigInteger coefficient;
+        if (((high >>> 61) & 0x3) == 0x3) {
+            // always above the largest coefficient, so non-canonical zero
+            exponent = (int)(high >>> 47) & 0x3fff;
+            coefficient = BigInteger.ZERO;
+        } else if ((high & ((1L << 49) - 1)) == 0 && low >= 0) {
+            // coefficients below 2^63 do not need a BigInteger
+            exponent = (int)(high >>> 49) & 0x3fff;
+            return decimal(high < 0, low, 6176 - exponent);
+        } else {
+            exponent = (int)(high >>> 49) & 0x3fff;
+            byte[] magnitude = new byte[17];
+            long upper = high & ((1L << 49) - 1);
+            for (int i = 0; i < 8; i++) {
+                magnitude[8 - i] = (byte)(upper >>> (i * 8));
+                magnitude[16 - i] = (byte)(low >>> (i * 8));
+            }
+            coefficient = new BigInteger(magnitude);
+            if (coefficient.compareTo(MAX_DECIMAL128) > 0) {
+                coefficient = BigInteger.ZERO;
+            }
+        }
+        BigDecimal value = new BigDecimal(coefficient, 6176 - exponent);
+        return high < 0 ? value.negate() : value;
+    }
+    
+    private static final BigInteger MAX_DECIMAL128 = BigInteger.TEN.pow(34).subtract(BigInteger.ONE);
+    
+    /**
+     * Writes the body of a decimal128 value. Values with more than 34
+     * significant digits are rounded half-even, as IEEE 754 conversion
+     * does.
+     * @param buffer The buffer.
+     * @param value The value.
+     */
+    public static void writeDecimal128(AmqpWriter buffer, BigDecimal value) {
+        if (value.precision() > 34) {
+            value = value.round(MathContext.DECIMAL128);
+        }
+        int exponent = 6176 - value.scale();
+        if (exponent < 0 || exponent > 12287) {
+            throw new AmqpIoException("Exponent out of decimal128 range: " + value);
+        }
+        long high = (long)exponent << 49;
+        long low;
+        if (value.precision() <= 18) {
+            long coefficient = value.unscaledValue().longValue();
+            if (coefficient < 0) {
+                high |= Long.MIN_VALUE;
+                coefficient = -coefficient;
+            }
+            low = coefficient;
+        } else {
+            BigInteger coefficient = value.unscaledValue();
+            if (coefficient.signum() < 0) {
+                high |= Long.MIN_VALUE;
+                coefficient = coefficient.negate();
+            }
+            low = coefficient.longValue();
+            high |= coefficient.shiftRight(64).longValue();
+        }
+        buffer.putLong(high);
+        buffer.putLong(low);
+    }
+    
+    private static void checkFinite(int combination) {
+        if ((combination & 0xf) == 0xf) {
+            throw new AmqpIoException("Infinity and NaN cannot be decoded as BigDecimal");
+        }
+    }
+    
+    private static BigDecimal decimal(boolean negative, long coefficient, int scale) {
+        return BigDecimal.valueOf(negative ? -coefficient : coefficient, scale);
+    }
+    
+    /**
+     * Reads the size and count of an array. The element constructor
+     * follows.
+     * @param buffer The buffer.
+     * @param formatCode array8 or array32.
+     * @return The number of elements.
+     * @throws Exception
+     */
+    public static int readArrayCount(AmqpReader buffer, byte formatCode) throws Exception {
+        int size;
+        int count;
+        if (formatCode == FormatCode._array8) {
+            size = buffer.get() & 0xff;
+            buffer.require(size);
+            count = buffer.get() & 0xff;
+        } else {
+            FormatCode.assertEqual(FormatCode._array32, formatCode);
+            size = buffer.getInt();
+            buffer.require(size);
+            count = buffer.getInt();
+        }
+        // the size includes the count, so it is always the larger one
+        if (count < 0 || count > size) {
+            throw new AmqpIoException("Array count " + count + " exceeds its size " + size);
+        }
+        return count;
+    }
+    
+    /**
+     * Gets the initial capacity of a collection for a number of elements
+     * read from the input. The count is only trusted as far as the
+     * remaining bytes could hold the elements.
+     * @param buffer The buffer, positioned at the first element.
+     * @param count The number of elements.
+     * @return The capacity.
+     */
+    public static int capacity(AmqpReader buffer, int count) {
+        if (count < 0) {
+            throw new AmqpIoException("Invalid element count " + count);
+        }
+        return Math.min(count, buffer.remaining());
+    }
+    
+    /**
+     * Reads the element constructor of an array, skipping the descriptor
+     * of described elements.
+     * @param buffer The buffer.
+     * @return The format code of the elements.
+     * @throws Exception
+     */
+    public static byte readArrayConstructor(AmqpReader buffer) throws Exception {
+        byte code = buffer.get();
+        if (code == FormatCode._described) {
+            skipObject(buffer);
+            code = buffer.get();
+        }
+        return code;
+    }
+    
+    public static String readString(AmqpReader buffer, int len, Charset charset) {
+        return buffer.getString(len, charset);
+    }
+    
+    public static Object readObject(AmqpReader buffer) throws Exception {
         byte code = buffer.get();
         Encoder encoder = getEncoder(code);
         if (encoder == null) {
@@ -428,7 +878,51 @@ class PrimitiveType {
         return encoder.readRaw(buffer, code);
     }
     
-    public static void writeObject(ByteBuffer buffer, Object obj, HashSet path) throws Exception {
+    public static void skipObject(AmqpReader buffer) throws Exception {
+        byte code = buffer.get();
+        if (code == FormatCode._described) {
+            skipObject(buffer);
+            skipObject(buffer);
+            return;
+        }
+        int size;
+        switch ((code & 0xF0) >> 4) {
+            case 0x4:
+                size = 0;
+                break;
+            case 0x5:
+                size = 1;
+                break;
+            case 0x6:
+                size = 2;
+                break;
+            case 0x7:
+                size = 4;
+                break;
+            case 0x8:
+                size = 8;
+                break;
+            case 0x9:
+                size = 16;
+                break;
+            case 0xA:
+            case 0xC:
+            case 0xE:
+                size = buffer.get() & 0xFF;
+                break;
+            case 0xB:
+            case 0xD:
+            case 0xF:
+                size = buffer.getInt();
+                break;
+            default:
+                throw new AmqpIoException("Invalid format code " + code);
+        }
+        buffer.require(size);
+        buffer.position(buffer.position() + size);
+    }
+    
+    public static void writeObject(AmqpWriter buffer, Object obj, ObjectPath path) throws Exception {
         if (obj == null) {
             buffer.put(FormatCode._null);
         } else {
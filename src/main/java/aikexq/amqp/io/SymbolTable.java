@@ -0,0 +1,125 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only perfect hash table over the raw bytes of a fixed set of
+ * symbols. Lookups hash and compare bytes in place in the buffer, so
+ * no String is created for the symbol being looked up.
+ */
+class SymbolTable {
+    private static final int MAX_SEEDS = 256;
+    
+    private final byte[][] keys;
+    private final int[] values;
+    private final int mask;
+    private final int seed;
+    
+    /**
+     * Creates a table that maps each symbol to its index in the array.
+     * @param symbols The symbols. They must be unique.
+     */
+    public SymbolTable(String[] symbols) {
+        byte[][] bytes = new byte[symbols.length][];
+        for (int i = 0; i < symbols.length; i++) {
+            bytes[i] = symbols[i].getBytes(StandardCharsets.US_ASCII);
+            for (int j = 0; j < i; j++) {
+                if (symbols[i].equals(symbols[j])) {
+                    throw new AmqpIoException("Duplicate name " + symbols[i]);
+                }
+            }
+        }
+        
+        int size = 2;
+        while (size < symbols.length * 2) {
+            size <<= 1;
+        }
+        int seed = 1;
+        int[] slots;
+        while ((slots = place(bytes, size, seed)) == null) {
+            if (++seed > MAX_SEEDS) {
+                seed = 1;
+                size <<= 1;
+            }
+        }
+        
+        this.keys = new byte[size][];
+        this.values = new int[size];
+        for (int i = 0; i < bytes.length; i++) {
+            this.keys[slots[i]] = bytes[i];
+            this.values[slots[i]] = i;
+        }
+        this.mask = size - 1;
+        this.seed = seed;
+    }
+    
+    private static int[] place(byte[][] bytes, int size, int seed) {
+        int[] slots = new int[bytes.length];
+        boolean[] used = new boolean[size];
+        for (int i = 0; i < bytes.length; i++) {
+            int h = seed;
+            for (byte b : bytes[i]) {
+                h = mix(h, b);
+            }
+            int slot = finish(h) & (size - 1);
+            if (used[slot]) {
+                return null;
+            }
+            used[slot] = true;
+            slots[i] = slot;
+        }
+        return slots;
+    }
+    
+    /**
+     * Looks up the symbol stored in the buffer. The buffer position is not
+     * changed.
+     * @param buffer The buffer.
+     * @param offset Absolute position of the first byte of the symbol.
+     * @param length Length of the symbol in bytes.
+     * @return The index of the symbol, or -1 if it is not in the table.
+     */
+    public int find(AmqpReader buffer, int offset, int length) {
+        int h = this.seed;
+        for (int i = 0; i < length; i++) {
+            h = mix(h, buffer.get(offset + i));
+        }
+        int slot = finish(h) & this.mask;
+        byte[] key = this.keys[slot];
+        if (key == null || key.length != length) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buffer.get(offset + i)) {
+                return -1;
+            }
+        }
+        return this.values[slot];
+    }
+    
+    private static int mix(int h, byte b) {
+        return (h ^ (b & 0xff)) * 0x01000193;
+    }
+    
+    private static int finish(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,95 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+/**
+ * Codecs of java.time types, registered by PrimitiveType only if the
+ * runtime provides them. Points in time are encoded as AMQP timestamps
+ * in milliseconds since the Unix epoch, so finer precision is dropped.
+ * An OffsetDateTime keeps its instant but not its offset and is decoded
+ * in UTC; a LocalDateTime is taken to be in UTC. A Duration is encoded
+ * as a long number of milliseconds, as AMQP expresses durations.
+ */
+class TimeTypes {
+    private static final Encoder instantType = new PrimitiveType.EncoderImpl(FormatCode._timestamp) {
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            buffer.putLong(((Instant)obj).toEpochMilli());
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return Instant.ofEpochMilli(PrimitiveType.readTimestamp(buffer, formatCode));
+        }
+    };
+    private static final Encoder offsetDateTimeType = new PrimitiveType.EncoderImpl(FormatCode._timestamp) {
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            OffsetDateTime time = (OffsetDateTime)obj;
+            buffer.putLong(toMillis(time.toEpochSecond(), time.getNano()));
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            long millis = PrimitiveType.readTimestamp(buffer, formatCode);
+            return OffsetDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+        }
+    };
+    private static final Encoder localDateTimeType = new PrimitiveType.EncoderImpl(FormatCode._timestamp) {
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            LocalDateTime time = (LocalDateTime)obj;
+            buffer.putLong(toMillis(time.toEpochSecond(ZoneOffset.UTC), time.getNano()));
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            long millis = PrimitiveType.readTimestamp(buffer, formatCode);
+            return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                    (int)Math.floorMod(millis, 1000L) * 1000000, ZoneOffset.UTC);
+        }
+    };
+    private static final Encoder durationType = new PrimitiveType.EncoderImpl(FormatCode._long) {
+        @Override
+        public void writeRaw(AmqpWriter buffer, Object obj, ObjectPath path) {
+            buffer.putLong(((Duration)obj).toMillis());
+        }
+
+        @Override
+        public Object readRaw(AmqpReader buffer, byte formatCode) throws Exception {
+            return Duration.ofMillis(PrimitiveType.readTimestamp(buffer, formatCode));
+        }
+    };
+    
+    static void register(Map<Class, Encoder> codecMap) {
+        codecMap.put(Instant.class, instantType);
+        codecMap.put(OffsetDateTime.class, offsetDateTimeType);
+        codecMap.put(LocalDateTime.class, localDateTimeType);
+        codecMap.put(Duration.class, durationType);
+    }
+    
+    private static long toMillis(long seconds, int nanos) {
+        return Math.addExact(Math.multiplyExact(seconds, 1000L), nanos / 1000000);
+    }
+}
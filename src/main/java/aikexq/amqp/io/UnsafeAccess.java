@@ -0,0 +1,120 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import sun.misc.Unsafe;
+
+/**
+ * Access to sun.misc.Unsafe for native memory and constructor-less
+ * instantiation. All members are usable only if AVAILABLE is true.
+ */
+class UnsafeAccess {
+    public static final boolean AVAILABLE;
+    public static final boolean UNALIGNED;
+    public static final boolean BIG_ENDIAN =
+            ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+    public static final long BYTE_ARRAY_OFFSET;
+    
+    private static final Unsafe unsafe;
+    private static final long addressOffset;
+    
+    static {
+        Unsafe u = null;
+        long offset = -1;
+        long arrayOffset = -1;
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            u = (Unsafe)f.get(null);
+            arrayOffset = u.arrayBaseOffset(byte[].class);
+            offset = u.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (Throwable t) {
+            // not available on this runtime
+        }
+        unsafe = u;
+        addressOffset = offset;
+        BYTE_ARRAY_OFFSET = arrayOffset;
+        AVAILABLE = u != null;
+        String arch = System.getProperty("os.arch", "");
+        UNALIGNED = offset >= 0 && arch.matches("^(i[3-6]86|x86(_64)?|amd64|aarch64|ppc64le|s390x)$");
+    }
+    
+    /**
+     * Returns true if native memory can be accessed directly.
+     * @return True if native memory access is supported.
+     */
+    public static boolean supportsNative() {
+        return UNALIGNED;
+    }
+    
+    public static long addressOf(ByteBuffer buffer) {
+        return unsafe.getLong(buffer, addressOffset);
+    }
+    
+    public static Object allocateInstance(Class c) throws InstantiationException {
+        return unsafe.allocateInstance(c);
+    }
+    
+    public static byte getByte(long address) {
+        return unsafe.getByte(address);
+    }
+    
+    public static short getShort(long address) {
+        short v = unsafe.getShort(address);
+        return BIG_ENDIAN ? v : Short.reverseBytes(v);
+    }
+    
+    public static int getInt(long address) {
+        int v = unsafe.getInt(address);
+        return BIG_ENDIAN ? v : Integer.reverseBytes(v);
+    }
+    
+    public static long getLong(long address) {
+        long v = unsafe.getLong(address);
+        return BIG_ENDIAN ? v : Long.reverseBytes(v);
+    }
+    
+    public static void putByte(long address, byte value) {
+        unsafe.putByte(address, value);
+    }
+    
+    public static void putShort(long address, short value) {
+        unsafe.putShort(address, BIG_ENDIAN ? value : Short.reverseBytes(value));
+    }
+    
+    public static void putInt(long address, int value) {
+        unsafe.putInt(address, BIG_ENDIAN ? value : Integer.reverseBytes(value));
+    }
+    
+    public static void putLong(long address, long value) {
+        unsafe.putLong(address, BIG_ENDIAN ? value : Long.reverseBytes(value));
+    }
+    
+    public static void copyToArray(long address, byte[] dst, int offset, int length) {
+        unsafe.copyMemory(null, address, dst, BYTE_ARRAY_OFFSET + offset, length);
+    }
+    
+    public static void copyFromArray(byte[] src, int offset, long address, int length) {
+        unsafe.copyMemory(src, BYTE_ARRAY_OFFSET + offset, null, address, length);
+    }
+}
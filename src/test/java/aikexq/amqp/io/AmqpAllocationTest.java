@@ -0,0 +1,168 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import junit.framework.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated per operation on the steady-state encode
+ * and decode paths and fails when a change exceeds the budget. Encoding
+ * into a buffer must not allocate; decoding may only allocate the
+ * objects it returns.
+ */
+public class AmqpAllocationTest {
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 20000;
+    
+    private static com.sun.management.ThreadMXBean threads;
+    
+    private final AmqpSerializer serializer = new AmqpSerializer();
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    
+    private interface Operation {
+        void run() throws Exception;
+    }
+    
+    @BeforeClass
+    public static void checkSupport() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+    
+    @Test
+    public void testPrimitives() throws Exception {
+        System.out.println("allocation primitives");
+        Counter c = new Counter();
+        c.count = 12;
+        c.total = 1L << 40;
+        c.rate = 0.5;
+        c.active = true;
+        c.level = 3;
+        this.checkEncode("primitives", c, 0);
+        this.checkDecode("primitives", Counter.class, 64);
+        
+        final Counter target = new Counter();
+        this.check("primitives read into", 0, new Operation() {
+            @Override
+            public void run() throws Exception {
+                buffer.rewind();
+                serializer.readInto(target, buffer);
+            }
+        });
+    }
+    
+    @Test
+    public void testStrings() throws Exception {
+        System.out.println("allocation strings");
+        Address a = new Address();
+        a.hourseStreet = "100 Main St.";
+        a.city = "Big Tree";
+        a.state = "WA";
+        a.zip = "98000";
+        this.checkEncode("strings", a, 0);
+        this.checkDecode("strings", Address.class, 288);
+    }
+    
+    @Test
+    public void testNestedComposites() throws Exception {
+        System.out.println("allocation nested composites");
+        Student s = new Student();
+        s.name = "Ann";
+        s.age = 20;
+        s.dateOfBirth = new Date(0);
+        s.address = new Address();
+        s.address.hourseStreet = "1 Elm St.";
+        s.address.city = "Small Pond";
+        this.checkEncode("nested composites", s, 0);
+        this.checkDecode("nested composites", Student.class, 352);
+    }
+    
+    @Test
+    public void testCollections() throws Exception {
+        System.out.println("allocation collections");
+        Reading r = new Reading();
+        r.count = 3;
+        r.samples = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            r.samples.add(i * 1000);
+        }
+        this.checkEncode("collections", r, 0);
+        this.checkDecode("collections", Reading.class, 480);
+    }
+    
+    @Test
+    public void testCompressed() throws Exception {
+        System.out.println("allocation compressed");
+        Student s = new Student();
+        s.name = "Ann";
+        s.age = 20;
+        s.dateOfBirth = new Date(0);
+        s.address = new Address();
+        s.address.hourseStreet = "1 Elm St.";
+        s.address.city = "Small Pond";
+        // every value is deflated and inflated through the thread's arrays
+        this.serializer.setCompression(0, java.util.zip.Deflater.BEST_SPEED);
+        this.checkEncode("compressed", s, 0);
+        this.checkDecode("compressed", Student.class, 480);
+    }
+    
+    private void checkEncode(String scenario, final Object graph, long budget) throws Exception {
+        this.check(scenario + " encode", budget, new Operation() {
+            @Override
+            public void run() throws Exception {
+                buffer.clear();
+                serializer.writeObject(buffer, graph);
+            }
+        });
+        this.buffer.flip();
+    }
+    
+    private void checkDecode(String scenario, final Class c, long budget) throws Exception {
+        this.check(scenario + " decode", budget, new Operation() {
+            @Override
+            public void run() throws Exception {
+                buffer.rewind();
+                serializer.readObject(c, buffer);
+            }
+        });
+    }
+    
+    private void check(String name, long budget, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        long perOperation = (threads.getThreadAllocatedBytes(thread) - start) / ITERATIONS;
+        System.out.println("  " + name + ": " + perOperation + " B/op, budget " + budget);
+        Assert.assertTrue(name + " allocated " + perOperation + " B/op, budget " + budget,
+                perOperation <= budget);
+    }
+}
@@ -17,13 +17,48 @@
 
 package aikexq.amqp.io;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
 import junit.framework.Assert;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -313,6 +348,1807 @@ public class AmqpSerializerTest {
         Assert.assertEquals(p.price, p2.price);
     }
     
+    @Test
+    public void testGenericCollectionType() throws Exception {
+        System.out.println("type generic collections");
+        Customer c = new Customer();
+        c.name = "Fred";
+        c.addresses = new ArrayList<>();
+        c.addresses.add(this.createAddress("100 Main St.", "Big Tree"));
+        c.addresses.add(null);
+        c.addresses.add(this.createAddress("1 Lake Ave.", "Small Pond"));
+        c.tags = new HashSet<>(Arrays.asList("gold", "early"));
+        c.contacts = new HashMap<>();
+        c.contacts.put("home", this.createAddress("5 Elm St.", "Oak Town"));
+        c.contacts.put("work", null);
+        c.history = new LinkedList<>(Arrays.asList(Category.Food, Category.Sports));
+        c.ratings = new TreeSet<>(Arrays.asList(5, 3, 4));
+        c.routes = new ArrayList<>();
+        c.routes.add(Arrays.asList(this.createAddress("A", "B")));
+        
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        AmqpSerializer.serialize(buffer, c);
+        buffer.flip();
+        
+        Customer c2 = AmqpSerializer.deserialize(Customer.class, buffer);
+        Assert.assertEquals(c.name, c2.name);
+        Assert.assertEquals(3, c2.addresses.size());
+        Assert.assertEquals("Big Tree", c2.addresses.get(0).city);
+        Assert.assertNull(c2.addresses.get(1));
+        Assert.assertEquals("1 Lake Ave.", c2.addresses.get(2).hourseStreet);
+        Assert.assertEquals(HashSet.class, c2.tags.getClass());
+        Assert.assertEquals(c.tags, c2.tags);
+        Assert.assertEquals("Oak Town", c2.contacts.get("home").city);
+        Assert.assertTrue(c2.contacts.containsKey("work"));
+        Assert.assertNull(c2.contacts.get("work"));
+        Assert.assertEquals(LinkedList.class, c2.history.getClass());
+        Assert.assertEquals(c.history, c2.history);
+        Assert.assertEquals(TreeSet.class, c2.ratings.getClass());
+        Assert.assertEquals(c.ratings, c2.ratings);
+        Assert.assertEquals("B", c2.routes.get(0).get(0).city);
+        Assert.assertEquals(0, buffer.remaining());
+    }
+    
+    @Test
+    public void testConcurrentEncoderBuild() throws Exception {
+        System.out.println("concurrent encoder build");
+        final AmqpSerializer serializer = new AmqpSerializer();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[32];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Student s = new Student();
+                        s.name = "s" + id;
+                        s.address = createAddress("street" + id, "city" + id);
+                        Product p = new Product();
+                        p.category = Category.values()[id % Category.values().length];
+                        ByteBuffer buffer = ByteBuffer.allocate(512);
+                        serializer.writeObject(buffer, s);
+                        serializer.writeObject(buffer, p);
+                        buffer.flip();
+                        Person p2 = serializer.readObject(Person.class, buffer);
+                        Product p3 = serializer.readObject(Product.class, buffer);
+                        Assert.assertEquals(s.name, p2.name);
+                        Assert.assertEquals(s.address.city, ((Student)p2).address.city);
+                        Assert.assertEquals(p.category, p3.category);
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertNull(String.valueOf(error.get()), error.get());
+    }
+    
+    @Test
+    public void testReadInto() throws Exception {
+        System.out.println("read into existing object");
+        Student s = new Student();
+        s.name = "Fred";
+        s.age = 20;
+        s.address = this.createAddress("100 Main St.", "Big Tree");
+        s.grades = new ArrayList<>(Arrays.asList(3.5f, 4.0f));
+        
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, s);
+        buffer.flip();
+        
+        Student target = new Student();
+        target.name = "Mike";
+        target.age = 99;
+        target.dateOfBirth = new Date();
+        target.properties = new HashMap();
+        target.address = this.createAddress("1 Lake Ave.", "Small Pond");
+        target.address.zip = "99999";
+        target.grades = new ArrayList<>(Arrays.asList(1.0f, 2.0f, 3.0f));
+        Address address = target.address;
+        List<Float> grades = target.grades;
+        
+        Student s2 = AmqpSerializer.deserializeInto(target, buffer);
+        Assert.assertSame(target, s2);
+        Assert.assertEquals(s.name, s2.name);
+        Assert.assertEquals(s.age, s2.age);
+        Assert.assertNull(s2.dateOfBirth);
+        Assert.assertNull(s2.properties);
+        Assert.assertSame(address, s2.address);
+        Assert.assertEquals("Big Tree", s2.address.city);
+        Assert.assertNull(s2.address.zip);
+        Assert.assertSame(grades, s2.grades);
+        Assert.assertEquals(s.grades, s2.grades);
+    }
+    
+    @Test
+    public void testObjectPool() throws Exception {
+        System.out.println("object pool");
+        final Address pooled = this.createAddress("stale", "stale");
+        pooled.zip = "stale";
+        final int[] acquired = new int[1];
+        AmqpSerializer serializer = new AmqpSerializer();
+        serializer.setObjectPool(Address.class, new AmqpObjectPool<Address>() {
+            @Override
+            public Address acquire() {
+                acquired[0]++;
+                return pooled;
+            }
+        });
+        
+        Student s = new Student();
+        s.name = "Fred";
+        s.address = this.createAddress("100 Main St.", "Big Tree");
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        serializer.writeObject(buffer, s);
+        buffer.flip();
+        
+        Student s2 = serializer.readObject(Student.class, buffer);
+        Assert.assertEquals(1, acquired[0]);
+        Assert.assertSame(pooled, s2.address);
+        Assert.assertEquals("100 Main St.", s2.address.hourseStreet);
+        Assert.assertEquals("Big Tree", s2.address.city);
+        Assert.assertNull(s2.address.zip);
+    }
+    
+    private Address createAddress(String street, String city) {
+        Address a = new Address();
+        a.hourseStreet = street;
+        a.city = city;
+        return a;
+    }
+    
+    @Test
+    public void testContractMapMemberName() throws Exception {
+        System.out.println("type amqp contract map member name");
+        Book b = new Book();
+        b.title = "AMQP";
+        b.authors = Arrays.asList("Fred", "Mike");
+        b.pages = 320;
+        
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, b);
+        buffer.flip();
+        
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        Assert.assertTrue(new String(bytes, "US-ASCII").contains("test:authors"));
+        
+        Book b2 = AmqpSerializer.deserialize(Book.class, buffer);
+        Assert.assertEquals(b.title, b2.title);
+        Assert.assertEquals(b.authors, b2.authors);
+        Assert.assertEquals(b.pages, b2.pages);
+    }
+    
+    @Test
+    public void testContractMapKeyOrder() throws Exception {
+        System.out.println("type amqp contract map key order");
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("price", 18.98);
+        values.put("unknown", Arrays.asList(1, "x", 2.5));
+        values.put("category", Category.Food.ordinal());
+        values.put("extra", null);
+        values.put("name", "cheese");
+        
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.put((byte)0x00);
+        buffer.put((byte)0xa3);
+        buffer.put((byte)"test.amqp:product".length());
+        buffer.put("test.amqp:product".getBytes("US-ASCII"));
+        AmqpSerializer.serialize(buffer, values);
+        buffer.flip();
+        
+        Product p = AmqpSerializer.deserialize(Product.class, buffer);
+        Assert.assertEquals("cheese", p.name);
+        Assert.assertEquals(Category.Food, p.category);
+        Assert.assertEquals(18.98, p.price);
+        Assert.assertEquals(0, buffer.remaining());
+    }
+    
+    @Test
+    public void testCreatorConstructor() throws Exception {
+        System.out.println("type creator constructor");
+        Location l = new Location(47.6, -122.3, "Seattle");
+        
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, l);
+        buffer.flip();
+        
+        Location l2 = AmqpSerializer.deserialize(Location.class, buffer);
+        Assert.assertEquals(l.latitude, l2.latitude);
+        Assert.assertEquals(l.longitude, l2.longitude);
+        Assert.assertEquals(l.label, l2.label);
+    }
+    
+    @Test
+    public void testCreatorFactoryMethod() throws Exception {
+        System.out.println("type creator factory method");
+        Price p = Price.of("EUR", 1999);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, p);
+        buffer.flip();
+        
+        Price p2 = AmqpSerializer.deserialize(Price.class, buffer);
+        Assert.assertEquals(p.currency, p2.currency);
+        Assert.assertEquals(p.cents, p2.cents);
+    }
+    
+    @Test
+    public void testNoDefaultConstructor() throws Exception {
+        System.out.println("type no default constructor");
+        Ticket t = new Ticket("A-100", 42);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, t);
+        buffer.flip();
+        
+        Ticket t2 = AmqpSerializer.deserialize(Ticket.class, buffer);
+        Assert.assertEquals(t.getId(), t2.getId());
+        Assert.assertEquals(t.getSeat(), t2.getSeat());
+        Assert.assertFalse(t2.isConstructed());
+    }
+    
+    @Test
+    public void testDirectBuffer() throws Exception {
+        System.out.println("direct buffer");
+        Student s = new Student();
+        s.name = "Fred";
+        s.age = 20;
+        s.address = this.createAddress("100 Main St.", "Big Tree");
+        s.grades = new ArrayList<>(Arrays.asList(3.5f, 4.0f));
+        
+        ByteBuffer heap = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(heap, s);
+        heap.flip();
+        
+        ByteBuffer direct = ByteBuffer.allocateDirect(512);
+        direct.position(7);
+        AmqpSerializer.serialize(direct, s);
+        Assert.assertEquals(7 + heap.remaining(), direct.position());
+        direct.flip();
+        direct.position(7);
+        Assert.assertEquals(heap, direct);
+        
+        Student s2 = AmqpSerializer.deserialize(Student.class, direct);
+        Assert.assertFalse(direct.hasRemaining());
+        Assert.assertEquals(s.name, s2.name);
+        Assert.assertEquals(s.age, s2.age);
+        Assert.assertEquals("Big Tree", s2.address.city);
+        Assert.assertEquals(s.grades, s2.grades);
+    }
+    
+    @Test
+    public void testNativeMemory() throws Exception {
+        System.out.println("native memory");
+        if (!UnsafeAccess.supportsNative()) {
+            return;
+        }
+        Event e = this.createEvent();
+        ByteBuffer memory = ByteBuffer.allocateDirect(512);
+        long address = UnsafeAccess.addressOf(memory);
+        
+        int size = AmqpSerializer.serialize(address, memory.capacity(), e);
+        Event e2 = AmqpSerializer.deserialize(Event.class, address, size);
+        validate(e, e2);
+        
+        try {
+            AmqpSerializer.deserialize(Event.class, address, size - 1);
+            Assert.fail("read beyond the length");
+        } catch (AmqpIoException ex) {
+            // expected
+        }
+        try {
+            AmqpSerializer.serialize(address, size - 1, e);
+            Assert.fail("write beyond the length");
+        } catch (AmqpIoException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testByteArray() throws Exception {
+        System.out.println("byte array");
+        Event e = this.createEvent();
+        byte[] array = new byte[512];
+        AmqpWriter writer = AmqpWriter.wrap(array, 3, 500);
+        AmqpSerializer.serialize(writer, e);
+        int size = writer.position();
+        
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, e);
+        Assert.assertEquals(buffer.position(), size);
+        Assert.assertEquals(ByteBuffer.wrap(buffer.array(), 0, size),
+                ByteBuffer.wrap(array, 3, size));
+        
+        AmqpReader reader = AmqpReader.wrap(array, 3, size);
+        Event e2 = AmqpSerializer.deserialize(Event.class, reader);
+        Assert.assertEquals(0, reader.remaining());
+        validate(e, e2);
+    }
+    
+    @Test
+    public void testCompositeBuffers() throws Exception {
+        System.out.println("composite buffers");
+        Event e = this.createEvent();
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, e);
+        buffer.flip();
+        int size = buffer.remaining();
+        
+        // split the message at every position, as if received in two reads
+        for (int split = 0; split <= size; split++) {
+            ByteBuffer first = buffer.duplicate();
+            first.limit(split);
+            ByteBuffer second = ByteBuffer.allocateDirect(size - split);
+            ByteBuffer rest = buffer.duplicate();
+            rest.position(split);
+            second.put(rest);
+            second.flip();
+            
+            AmqpReader reader = AmqpReader.wrap(first, second);
+            Event e2 = AmqpSerializer.deserialize(Event.class, reader);
+            Assert.assertEquals(size, reader.position());
+            Assert.assertEquals(0, second.position());
+            validate(e, e2);
+        }
+    }
+    
+    @Test
+    public void testLargeBinary() throws Exception {
+        System.out.println("large binary");
+        byte[] data = new byte[100000];
+        new Random(7).nextBytes(data);
+        Path file = Files.createTempFile("amqp-test", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(data));
+            
+            Attachment a = new Attachment();
+            a.name = "data.bin";
+            a.content = AmqpBinary.of(channel, 0, data.length);
+            AmqpGatheringWriter writer = new AmqpGatheringWriter();
+            AmqpSerializer.serialize(writer, a);
+            ByteBuffer[] buffers = writer.toBuffers();
+            Assert.assertEquals(2, buffers.length);
+            Assert.assertEquals(data.length, buffers[1].remaining());
+            
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            writer.writeTo(Channels.newChannel(output));
+            byte[] bytes = output.toByteArray();
+            Assert.assertEquals(writer.length(), bytes.length);
+            
+            Attachment copy = new Attachment();
+            copy.name = a.name;
+            copy.content = AmqpBinary.of(data);
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+            AmqpSerializer.serialize(buffer, copy);
+            Assert.assertTrue(Arrays.equals(bytes, buffer.array()));
+            
+            Attachment a2 = AmqpSerializer.deserialize(Attachment.class, AmqpReader.wrap(buffers));
+            Assert.assertEquals(a.name, a2.name);
+            Assert.assertTrue(Arrays.equals(data, a2.content.toByteArray()));
+            
+            AmqpSerializer serializer = new AmqpSerializer();
+            serializer.setSpillThreshold(1024, null);
+            Attachment a3 = serializer.readObject(Attachment.class, ByteBuffer.wrap(bytes));
+            Assert.assertTrue(Arrays.equals(data, a3.content.toByteArray()));
+            a3.content.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test
+    public void testCompression() throws Exception {
+        System.out.println("compression");
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 20000) {
+            text.append("the quick brown fox jumps over the lazy dog ");
+        }
+        Student s = new Student();
+        s.name = text.toString();
+        s.age = 20;
+        s.address = this.createAddress("100 Main St.", "Big Tree");
+        
+        ByteBuffer plain = ByteBuffer.allocate(32768);
+        AmqpSerializer.serialize(plain, s);
+        plain.flip();
+        
+        AmqpSerializer serializer = new AmqpSerializer();
+        serializer.setCompression(1024, Deflater.BEST_SPEED);
+        ByteBuffer buffer = ByteBuffer.allocate(32768);
+        serializer.writeObject(buffer, s);
+        buffer.flip();
+        Assert.assertTrue(buffer.remaining() * 5 < plain.remaining());
+        
+        Student s2 = AmqpSerializer.deserialize(Student.class, buffer.duplicate());
+        Assert.assertEquals(s.name, s2.name);
+        Assert.assertEquals(s.age, s2.age);
+        Assert.assertEquals("Big Tree", s2.address.city);
+        
+        Student s3 = serializer.readInto(new Student(), buffer);
+        Assert.assertFalse(buffer.hasRemaining());
+        Assert.assertEquals(s.name, s3.name);
+        
+        // a value too large for the output before it is deflated, and
+        // native memory inflated through the chunk
+        ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+        serializer.writeObject(direct, s);
+        direct.flip();
+        Assert.assertEquals(buffer.limit(), direct.remaining());
+        Student s4 = serializer.readObject(Student.class, direct);
+        Assert.assertEquals(s.name, s4.name);
+        Assert.assertFalse(direct.hasRemaining());
+        
+        // values below the threshold are not compressed
+        s.name = "Fred";
+        ByteBuffer small = ByteBuffer.allocate(512);
+        serializer.writeObject(small, s);
+        ByteBuffer expected = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(expected, s);
+        small.flip();
+        expected.flip();
+        Assert.assertEquals(expected, small);
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        System.out.println("checksum");
+        Student s = new Student();
+        s.name = "Ann";
+        s.age = 21;
+        s.address = this.createAddress("1 Elm St.", "Small Pond");
+        AmqpSerializer serializer = new AmqpSerializer();
+        serializer.setChecksum(true);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        serializer.writeObject(buffer, s);
+        serializer.writeObject(buffer, "next");
+        buffer.flip();
+        
+        // any serializer verifies the trailer while decoding
+        Student s2 = AmqpSerializer.deserialize(Student.class, buffer);
+        Assert.assertEquals("Ann", s2.name);
+        Assert.assertEquals("Small Pond", s2.address.city);
+        Assert.assertEquals("next", serializer.readObject(String.class, buffer));
+        Assert.assertFalse(buffer.hasRemaining());
+        
+        // a flipped bit in the value fails the check
+        buffer.rewind();
+        int pos = buffer.limit() / 3;
+        buffer.put(pos, (byte)(buffer.get(pos) ^ 0x10));
+        try {
+            serializer.readObject(Student.class, buffer);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+        }
+        
+        // the checksum covers the compressed bytes as stored
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 5000) {
+            text.append("the quick brown fox jumps over the lazy dog ");
+        }
+        s.name = text.toString();
+        serializer.setCompression(1024, Deflater.BEST_SPEED);
+        serializer.setChecksum(Adler32.class);
+        ByteBuffer direct = ByteBuffer.allocateDirect(8192);
+        serializer.writeObject(direct, s);
+        direct.flip();
+        Assert.assertTrue(direct.remaining() < 1024);
+        Student s3 = serializer.readInto(new Student(), direct);
+        Assert.assertEquals(s.name, s3.name);
+        Assert.assertFalse(direct.hasRemaining());
+        
+        // other algorithms need the same class on the reader
+        serializer.setCompression(Integer.MAX_VALUE, 0);
+        serializer.setChecksum(Crc8.class);
+        buffer = ByteBuffer.allocate(8192);
+        serializer.writeObject(buffer, s);
+        buffer.flip();
+        Student s4 = serializer.readObject(Student.class, buffer.duplicate());
+        Assert.assertEquals(s.name, s4.name);
+        try {
+            AmqpSerializer.deserialize(Student.class, buffer);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Unknown checksum"));
+        }
+    }
+    
+    public static class Crc8 implements Checksum {
+        private int crc;
+        
+        @Override
+        public void update(int b) {
+            this.crc ^= b & 0xff;
+            for (int i = 0; i < 8; i++) {
+                this.crc = (this.crc & 0x80) != 0 ? ((this.crc << 1) ^ 0x07) & 0xff : this.crc << 1;
+            }
+        }
+        
+        @Override
+        public void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                this.update(b[i]);
+            }
+        }
+        
+        @Override
+        public long getValue() {
+            return this.crc;
+        }
+        
+        @Override
+        public void reset() {
+            this.crc = 0;
+        }
+    }
+    
+    @Test
+    public void testCompactEncodings() throws Exception {
+        System.out.println("compact encodings");
+        byte[] name = "test.amqp:reading".getBytes("US-ASCII");
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        buffer.put(FormatCode._described);
+        buffer.put(FormatCode._symbol8).put((byte)name.length).put(name);
+        buffer.put(FormatCode._list8);
+        int sizePos = buffer.position();
+        buffer.put((byte)0).put((byte)7);
+        buffer.put(FormatCode._intSmall).put((byte)5);
+        buffer.put(FormatCode._uint0);
+        buffer.put(FormatCode._ubyte).put((byte)200);
+        buffer.put(FormatCode._intSmall).put((byte)-2);
+        buffer.put(FormatCode._symbol8).put((byte)2).put((byte)'k').put((byte)'g');
+        buffer.put(FormatCode._array8).put((byte)5).put((byte)3);
+        buffer.put(FormatCode._intSmall).put((byte)1).put((byte)2).put((byte)3);
+        // 1.25 as decimal32: coefficient 125, exponent -2 biased by 101
+        buffer.put(FormatCode._decimal32).putInt((99 << 23) | 125);
+        buffer.put(sizePos, (byte)(buffer.position() - sizePos - 1));
+        buffer.flip();
+        
+        Reading r = AmqpSerializer.deserialize(Reading.class, buffer);
+        Assert.assertEquals(5, r.count);
+        Assert.assertEquals(0L, r.total);
+        Assert.assertEquals(200, r.level);
+        Assert.assertEquals(-2.0, r.ratio);
+        Assert.assertEquals("kg", r.unit);
+        Assert.assertEquals(Arrays.asList(1, 2, 3), r.samples);
+        Assert.assertEquals(new BigDecimal("1.25"), r.value);
+        
+        buffer.clear();
+        buffer.put(FormatCode._ulongSmall).put((byte)0xff);
+        buffer.put(FormatCode._decimal64).putLong((396L << 53) | 314);
+        buffer.put(FormatCode._array8).put((byte)7).put((byte)2);
+        buffer.put(FormatCode._symbol8).put((byte)1).put((byte)'a').put((byte)1).put((byte)'b');
+        buffer.put(FormatCode._uint).putInt(-1);
+        buffer.flip();
+        Assert.assertEquals(255L, AmqpSerializer.deserialize(Object.class, buffer));
+        Assert.assertEquals(new BigDecimal("3.14"),
+                AmqpSerializer.deserialize(Object.class, buffer));
+        Assert.assertEquals(Arrays.asList("a", "b"), AmqpSerializer.deserialize(Object.class, buffer));
+        try {
+            AmqpSerializer.deserialize(Integer.class, buffer);
+            Assert.fail("uint beyond the range of int");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testTimeAndDecimalTypes() throws Exception {
+        System.out.println("time and decimal types");
+        Trade t = new Trade();
+        t.executed = Instant.ofEpochMilli(1700000000123L);
+        t.settled = OffsetDateTime.of(2024, 1, 2, 3, 4, 5, 6000000, ZoneOffset.ofHours(2));
+        t.booked = LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999000000);
+        t.latency = Duration.ofMillis(-1500);
+        t.price = new BigDecimal("-12345678901234567890.123456789");
+        t.received = 1700000000456L;
+        t.fills = Arrays.asList(Instant.ofEpochMilli(1), Instant.ofEpochMilli(2));
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, t);
+        buffer.flip();
+        
+        Trade t2 = AmqpSerializer.deserialize(Trade.class, buffer.duplicate());
+        Assert.assertEquals(t.executed, t2.executed);
+        Assert.assertTrue(t.settled.isEqual(t2.settled));
+        Assert.assertEquals(ZoneOffset.UTC, t2.settled.getOffset());
+        Assert.assertEquals(t.booked, t2.booked);
+        Assert.assertEquals(t.latency, t2.latency);
+        Assert.assertEquals(t.price, t2.price);
+        Assert.assertEquals(t.received, t2.received);
+        Assert.assertEquals(t.fills, t2.fills);
+        
+        // untyped decoding sees timestamps, a long and a decimal128
+        List values = (List)AmqpSerializer.deserialize(Object.class, buffer.duplicate());
+        Assert.assertEquals(new Date(1700000000123L), values.get(0));
+        Assert.assertEquals(-1500L, values.get(3));
+        Assert.assertEquals(t.price, values.get(4));
+        Assert.assertEquals(new Date(1700000000456L), values.get(5));
+        
+        // decimal128 round trips, including coefficients beyond a long
+        // and values rounded to 34 digits
+        String[] decimals = { "0", "-0.00", "1E+6111", "1E-6176", "9999999999999999999999999999999999",
+                "0.000001", "123456789012345678", "-1234567890123456789" };
+        for (String d : decimals) {
+            BigDecimal value = new BigDecimal(d);
+            buffer.clear();
+            AmqpSerializer.serialize(buffer, value);
+            Assert.assertEquals(17, buffer.position());
+            buffer.flip();
+            Assert.assertEquals(value, AmqpSerializer.deserialize(BigDecimal.class, buffer));
+        }
+        buffer.clear();
+        AmqpSerializer.serialize(buffer, new BigDecimal("1.00000000000000000000000000000000005"));
+        buffer.flip();
+        Assert.assertEquals(new BigDecimal("1.000000000000000000000000000000000"),
+                AmqpSerializer.deserialize(BigDecimal.class, buffer));
+        try {
+            AmqpSerializer.serialize(ByteBuffer.allocate(32), new BigDecimal("1E+6112"));
+            Assert.fail("exponent out of range");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testHostileHeaders() throws Exception {
+        System.out.println("hostile headers");
+        // an array32 of ints whose count claims far more elements than
+        // its size could hold
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        buffer.put(FormatCode._array32).putInt(5).putInt(0x7fffffff).put(FormatCode._int);
+        buffer.flip();
+        try {
+            AmqpSerializer.deserialize(Object.class, buffer);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Array count"));
+        }
+        
+        // a list member and a map whose counts do not fit in their sizes
+        byte[] name = "test.amqp:timeline".getBytes("US-ASCII");
+        buffer = ByteBuffer.allocate(64);
+        buffer.put(FormatCode._described).put(FormatCode._symbol8).put((byte)name.length).put(name);
+        buffer.put(FormatCode._list32).putInt(14).putInt(2).put(FormatCode._null);
+        buffer.put(FormatCode._list32).putInt(4).putInt(0x7fffffff);
+        buffer.flip();
+        try {
+            AmqpSerializer.deserialize(Timeline.class, buffer);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Count"));
+        }
+        name = "test.amqp:book".getBytes("US-ASCII");
+        buffer.clear();
+        buffer.put(FormatCode._described).put(FormatCode._symbol8).put((byte)name.length).put(name);
+        buffer.put(FormatCode._map32).putInt(4).putInt(0x7ffffffe);
+        buffer.flip();
+        try {
+            AmqpSerializer.deserialize(Book.class, buffer);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Count"));
+        }
+    }
+    
+    @Test
+    public void testFixedWidthRuns() throws Exception {
+        System.out.println("fixed width runs");
+        // a value filling a direct buffer exactly is written and read
+        // with one limit check per run
+        AmqpSerializer serializer = new AmqpSerializer();
+        Counter c = new Counter();
+        c.count = -1;
+        c.total = 1L << 40;
+        c.rate = 0.5;
+        c.active = true;
+        c.level = -2;
+        ByteBuffer heap = ByteBuffer.allocate(256);
+        AmqpSerializer.serialize(heap, c);
+        int size = heap.position();
+        ByteBuffer exact = ByteBuffer.allocateDirect(size);
+        serializer.writeObject(exact, c);
+        exact.flip();
+        Counter c2 = serializer.readObject(Counter.class, exact);
+        Assert.assertEquals(-1, c2.count);
+        Assert.assertEquals(1L << 40, c2.total);
+        Assert.assertEquals(0.5, c2.rate);
+        Assert.assertTrue(c2.active);
+        Assert.assertEquals(-2, c2.level);
+        try {
+            serializer.writeObject(ByteBuffer.allocateDirect(size - 1), c);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+        
+        // members in other encodings, one wider than the run allows,
+        // are read with the limit checked
+        byte[] name = "test.amqp:counter".getBytes("US-ASCII");
+        ByteBuffer bytes = ByteBuffer.allocate(64);
+        bytes.put(FormatCode._described).put(FormatCode._symbol8).put((byte)name.length).put(name);
+        bytes.put(FormatCode._list32).putInt(28).putInt(5);
+        bytes.put(FormatCode._long).putLong(7);
+        bytes.put(FormatCode._longSmall).put((byte)5);
+        bytes.put(FormatCode._double).putDouble(0.25);
+        bytes.put(FormatCode._boolTrue);
+        bytes.put(FormatCode._short).putShort((short)3);
+        bytes.flip();
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.remaining());
+        direct.put(bytes.duplicate()).flip();
+        c2 = serializer.readObject(Counter.class, direct);
+        Assert.assertEquals(7, c2.count);
+        Assert.assertEquals(5L, c2.total);
+        Assert.assertEquals(0.25, c2.rate);
+        Assert.assertTrue(c2.active);
+        Assert.assertEquals(3, c2.level);
+        
+        // a truncated last member fails instead of reading past the end
+        bytes.putInt(name.length + 4, 26);
+        bytes.limit(bytes.limit() - 2);
+        direct = ByteBuffer.allocateDirect(bytes.remaining());
+        direct.put(bytes).flip();
+        try {
+            serializer.readObject(Counter.class, direct);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testEncodedCache() throws Exception {
+        System.out.println("encoded cache");
+        AmqpSerializer serializer = new AmqpSerializer();
+        serializer.setEncodedCache(1024, 1024);
+        Region r = new Region();
+        r.name = "north";
+        r.center = new Location(60.1, 24.9, "Helsinki");
+        r.fee = Price.of("EUR", 250);
+        ByteBuffer first = ByteBuffer.allocate(256);
+        serializer.writeObject(first, r);
+        first.flip();
+        ByteBuffer second = ByteBuffer.allocate(256);
+        serializer.writeObject(second, r);
+        second.flip();
+        Assert.assertEquals(first, second);
+        Region r2 = serializer.readObject(Region.class, second);
+        Assert.assertEquals("north", r2.name);
+        Assert.assertEquals("Helsinki", r2.center.label);
+        Assert.assertEquals(250, r2.fee.cents);
+        
+        // the cached bytes are written until the instance is invalidated
+        r.name = "south";
+        Assert.assertEquals("north", this.roundTrip(serializer, r).name);
+        serializer.invalidate(r);
+        Assert.assertEquals("south", this.roundTrip(serializer, r).name);
+        r.name = "east";
+        serializer.invalidate(null);
+        Assert.assertEquals("east", this.roundTrip(serializer, r).name);
+        
+        // a value is cached from any output that can be read back
+        r.name = "direct";
+        serializer.invalidate(r);
+        ByteBuffer direct = ByteBuffer.allocateDirect(256);
+        serializer.writeObject(direct, r);
+        r.name = "changed";
+        Assert.assertEquals("direct", this.roundTrip(serializer, r).name);
+        r.name = "east";
+        serializer.invalidate(r);
+        
+        // a cached nested value is copied into a new parent
+        Region other = new Region();
+        other.name = "west";
+        other.center = r.center;
+        Region other2 = this.roundTrip(serializer, other);
+        Assert.assertEquals("west", other2.name);
+        Assert.assertEquals(24.9, other2.center.longitude);
+        Assert.assertNull(other2.fee);
+        
+        // values above the size limit are not cached
+        serializer.setEncodedCache(16, 8);
+        r.name = "up";
+        Assert.assertEquals("up", this.roundTrip(serializer, r).name);
+        r.name = "down";
+        Assert.assertEquals("down", this.roundTrip(serializer, r).name);
+        serializer.setEncodedCache(0, 0);
+        r.name = "left";
+        Assert.assertEquals("left", this.roundTrip(serializer, r).name);
+    }
+    
+    private Region roundTrip(AmqpSerializer serializer, Region r) {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        serializer.writeObject(buffer, r);
+        buffer.flip();
+        return serializer.readObject(Region.class, buffer);
+    }
+    
+    @Test
+    public void testSerializerCollected() throws Exception {
+        System.out.println("serializer collected");
+        AmqpSerializer serializer = new AmqpSerializer();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        serializer.writeObject(buffer, this.createAddress("1 Elm St.", "Small Pond"));
+        serializer.writeObject(buffer, "text");
+        WeakReference<AmqpSerializer> ref = new WeakReference<>(serializer);
+        serializer = null;
+        // encoders built for shared classes must not keep it reachable
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(ref.get());
+    }
+    
+    @Test
+    public void testCodec() throws Exception {
+        System.out.println("codec");
+        // MoneyCodec is discovered through META-INF/services
+        Payment p = new Payment();
+        p.reference = "inv-42";
+        p.amount = new Money(12345, "EUR");
+        p.refunds = Arrays.asList(new Money(-100, "EUR"), null, new Money(-5, "USD"));
+        p.extra = new Money(1, "JPY");
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        AmqpSerializer.serialize(buffer, p);
+        buffer.flip();
+        Payment p2 = AmqpSerializer.deserialize(Payment.class, buffer.duplicate());
+        Assert.assertEquals("inv-42", p2.reference);
+        Assert.assertEquals(p.amount, p2.amount);
+        Assert.assertEquals(p.refunds, p2.refunds);
+        // an untyped member keeps only the described value
+        Assert.assertEquals(Arrays.asList(1L, "JPY"), p2.extra);
+        
+        // a codec registered with one serializer replaces the discovered one
+        AmqpSerializer serializer = new AmqpSerializer();
+        AmqpCodec<Money> codec = new AmqpCodec<Money>(Money.class) {
+            @Override
+            public void encode(AmqpWriter writer, Money value, Context context) throws Exception {
+                writeObject(writer, value.cents() + " " + value.currency(), context);
+            }
+            
+            @Override
+            public Money decode(AmqpReader reader) throws Exception {
+                String s = readString(reader);
+                int space = s.indexOf(' ');
+                return new Money(Long.parseLong(s.substring(0, space)), s.substring(space + 1));
+            }
+        };
+        serializer.registerCodec(codec);
+        buffer.clear();
+        serializer.writeObject(buffer, p);
+        buffer.flip();
+        Payment p3 = serializer.readObject(Payment.class, buffer.duplicate());
+        Assert.assertEquals(p.refunds, p3.refunds);
+        List values = (List)serializer.readObject(Object.class, buffer);
+        Assert.assertEquals("12345 EUR", values.get(1));
+        
+        try {
+            new AmqpSerializer().registerCodec(codec);
+            Assert.fail("codec bound to another serializer");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+        try {
+            serializer.registerCodec(new MoneyCodec());
+            Assert.fail("codec registered after use");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ByteBuffer encoded = new AmqpAsyncSerializer(new AmqpSerializer(), executor)
+                    .writeObjectAsync(p.amount).get();
+            Assert.assertEquals(p.amount, AmqpSerializer.deserialize(Money.class, encoded));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testRecordWriter() throws Exception {
+        System.out.println("record writer");
+        Path file = Files.createTempFile("amqp", ".log");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            final AmqpRecordWriter writer = new AmqpRecordWriter(new AmqpSerializer(), channel,
+                    8, 64, AmqpRecordWriter.WaitStrategy.BLOCK, true);
+            final int producers = 4;
+            final int records = 500;
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] threads = new Thread[producers];
+            for (int t = 0; t < producers; t++) {
+                final int id = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < records; i++) {
+                                writer.write(Arrays.asList(id, i));
+                            }
+                        } catch (Throwable e) {
+                            error.set(e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertNull(error.get());
+            
+            // a record larger than a slot is skipped
+            try {
+                writer.write(new byte[100]);
+                Assert.fail("record larger than a slot");
+            } catch (AmqpIoException e) {
+                // expected
+            }
+            
+            // an interrupt is kept by write and ends the wait of await
+            Thread.currentThread().interrupt();
+            long sequence = writer.write("interrupted");
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+            try {
+                writer.await(sequence);
+            } catch (AmqpIoException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Interrupted"));
+            }
+            Assert.assertTrue(Thread.interrupted());
+            writer.await(writer.write("last"));
+            Assert.assertTrue(writer.getCommitCount() <= producers * records + 3);
+            writer.close();
+            try {
+                writer.write("closed");
+                Assert.fail("writer is closed");
+            } catch (AmqpIoException e) {
+                // expected
+            }
+            
+            AmqpReader reader = AmqpReader.wrap(Files.readAllBytes(file));
+            int[] next = new int[producers];
+            for (int i = 0; i < producers * records; i++) {
+                List value = AmqpSerializer.deserialize(List.class, reader);
+                int id = (Integer)value.get(0);
+                Assert.assertEquals(next[id]++, value.get(1));
+            }
+            Assert.assertEquals("interrupted", AmqpSerializer.deserialize(String.class, reader));
+            Assert.assertEquals("last", AmqpSerializer.deserialize(String.class, reader));
+            Assert.assertEquals(0, reader.remaining());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void testMessageEncoder() throws Exception {
+        System.out.println("message encoder");
+        AmqpSerializer serializer = new AmqpSerializer();
+        AmqpMessageEncoder encoder = new AmqpMessageEncoder(serializer);
+        encoder.setDurable(true);
+        encoder.setTtl(60000);
+        encoder.setMessageId("msg-1");
+        encoder.setSubject("grades");
+        encoder.setContentType("application/amqp");
+        encoder.setCreationTime(1700000000000L);
+        Map<String, Object> annotations = new LinkedHashMap<>();
+        annotations.put("x-opt-partition", 3);
+        encoder.setMessageAnnotations(annotations);
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("tenant", "north");
+        encoder.setApplicationProperties(properties);
+        Student s = new Student();
+        s.name = "Ann";
+        s.grades = Arrays.asList(3.5f, 4f);
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        encoder.encode(buffer, s);
+        buffer.flip();
+        
+        // the sections decode as described values in order
+        Assert.assertEquals(Arrays.asList(true, null, 60000L),
+                AmqpSerializer.deserialize(Object.class, buffer.duplicate()));
+        ByteBuffer sections = buffer.duplicate();
+        AmqpSerializer.deserialize(Object.class, sections);
+        Map ma = (Map)AmqpSerializer.deserialize(Object.class, sections);
+        Assert.assertEquals(3, ma.get("x-opt-partition"));
+        List props = (List)AmqpSerializer.deserialize(Object.class, sections);
+        Assert.assertEquals(10, props.size());
+        Assert.assertEquals("msg-1", props.get(0));
+        Assert.assertEquals("grades", props.get(3));
+        Assert.assertEquals("application/amqp", props.get(6));
+        Assert.assertEquals(new Date(1700000000000L), props.get(9));
+        Assert.assertEquals(properties, AmqpSerializer.deserialize(Object.class, sections));
+        
+        Student s2 = AmqpMessageEncoder.readBody(Student.class, buffer, serializer);
+        Assert.assertEquals("Ann", s2.name);
+        Assert.assertEquals(s.grades, s2.grades);
+        Assert.assertEquals(0, buffer.remaining());
+        
+        // data body and batches
+        encoder.reset();
+        encoder.setBodyType(AmqpMessageEncoder.BodyType.DATA);
+        buffer.clear();
+        encoder.encode(buffer, "hello");
+        buffer.flip();
+        Assert.assertEquals(0x00, buffer.get(0));
+        Assert.assertEquals(0x75, buffer.get(2));
+        Assert.assertEquals("hello", AmqpMessageEncoder.readBody(Object.class, buffer, serializer));
+        
+        encoder.setGroupId("g");
+        buffer.clear();
+        encoder.encodeBatch(buffer, Arrays.asList(1L, "two", null, Arrays.asList(3)));
+        buffer.flip();
+        Assert.assertEquals(Arrays.asList(1L, "two", null, Arrays.asList(3)),
+                AmqpMessageEncoder.readBatch(Object.class, buffer, serializer));
+        Assert.assertEquals(0, buffer.remaining());
+        
+        // symbolic descriptors are recognized as well
+        buffer.clear();
+        byte[] name = "amqp:amqp-value:*".getBytes("US-ASCII");
+        buffer.put(FormatCode._described).put(FormatCode._symbol8).put((byte)name.length).put(name);
+        AmqpSerializer.serialize(buffer, "symbolic");
+        buffer.flip();
+        Assert.assertEquals("symbolic", AmqpMessageEncoder.readBody(String.class, buffer, serializer));
+        try {
+            AmqpMessageEncoder.readBody(Object.class, ByteBuffer.allocate(0), serializer);
+            Assert.fail("no body");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testListIterator() throws Exception {
+        System.out.println("list iterator");
+        AmqpSerializer serializer = new AmqpSerializer();
+        Student s = new Student();
+        s.name = "Ann";
+        s.properties = new HashMap();
+        s.properties.put("k", "v");
+        s.grades = Arrays.asList(3.5f, 4f, 2.5f);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        serializer.writeObject(buffer, s);
+        buffer.flip();
+        AmqpListIterator<Float> grades = AmqpListIterator.ofMember(serializer, Student.class,
+                "grades", Float.class, AmqpReader.wrap(buffer));
+        Assert.assertEquals(3, grades.count());
+        ArrayList<Float> read = new ArrayList<>();
+        while (grades.hasNext()) {
+            read.add(grades.next());
+        }
+        Assert.assertEquals(s.grades, read);
+        s.grades = null;
+        buffer.clear();
+        serializer.writeObject(buffer, s);
+        buffer.flip();
+        Assert.assertFalse(AmqpListIterator.ofMember(serializer, Student.class,
+                "grades", Float.class, AmqpReader.wrap(buffer)).hasNext());
+        
+        // values in checksum and compression envelopes are opened
+        s.grades = Arrays.asList(1f, 2f);
+        AmqpSerializer sealed = new AmqpSerializer();
+        sealed.setChecksum(true);
+        for (int round = 0; round < 2; round++) {
+            buffer.clear();
+            sealed.writeObject(buffer, s);
+            buffer.flip();
+            grades = AmqpListIterator.ofMember(sealed, Student.class, "grades", Float.class,
+                    AmqpReader.wrap(buffer));
+            Assert.assertEquals(2, grades.count());
+            Assert.assertEquals(Float.valueOf(1f), grades.next());
+            Assert.assertEquals(Float.valueOf(2f), grades.next());
+            sealed.setCompression(0, Deflater.BEST_SPEED);
+        }
+        buffer.put(buffer.limit() - 10, (byte)(buffer.get(buffer.limit() - 10) ^ 1));
+        try {
+            AmqpListIterator.ofMember(sealed, Student.class, "grades", Float.class,
+                    AmqpReader.wrap(buffer));
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+        }
+        buffer.clear();
+        serializer.writeObject(buffer, new Person());
+        buffer.flip();
+        try {
+            AmqpListIterator.ofMember(serializer, Student.class, "grades", Float.class,
+                    AmqpReader.wrap(buffer));
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertEquals("Not a value of test.amqp:student", e.getMessage());
+        }
+        
+        // arrays share one element constructor
+        buffer.clear();
+        buffer.put(FormatCode._array8).put((byte)5).put((byte)3).put(FormatCode._intSmall);
+        buffer.put((byte)1).put((byte)-2).put((byte)3);
+        buffer.flip();
+        AmqpListIterator<Object> array = new AmqpListIterator<>(serializer, Object.class,
+                AmqpReader.wrap(buffer));
+        Assert.assertEquals(1, array.next());
+        Assert.assertEquals(-2, array.next());
+        Assert.assertEquals(3, array.next());
+        Assert.assertFalse(array.hasNext());
+        
+        // a long list streamed from a file through a small window
+        final int count = 200000;
+        ArrayList<Object> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(i % 3 == 0 ? "item-" + i : (Object)(long)i);
+        }
+        Path file = Files.createTempFile("amqp", ".list");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer encoded = ByteBuffer.allocate(4 * 1024 * 1024);
+                serializer.writeObject(encoded, list);
+                encoded.flip();
+                channel.write(encoded);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                AmqpListIterator<Object> items = new AmqpListIterator<>(serializer, Object.class,
+                        AmqpReader.wrap(channel, 256));
+                Assert.assertEquals(count, items.count());
+                int i = 0;
+                while (items.hasNext()) {
+                    Assert.assertEquals(list.get(i++), items.next());
+                }
+                Assert.assertEquals(count, i);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                AmqpReader reader = AmqpReader.wrap(channel, 256);
+                Object found = AmqpListSpliterator.stream(
+                        new AmqpListIterator<>(serializer, Object.class, reader))
+                        .filter(new java.util.function.Predicate<Object>() {
+                            @Override
+                            public boolean test(Object o) {
+                                return "item-99".equals(o);
+                            }
+                        })
+                        .findFirst().get();
+                Assert.assertEquals("item-99", found);
+                // nothing after the match was decoded
+                Assert.assertTrue(reader.position() < 2048);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void testParallelDecoder() throws Exception {
+        System.out.println("parallel decoder");
+        AmqpSerializer serializer = new AmqpSerializer();
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            AmqpParallelDecoder decoder = new AmqpParallelDecoder(serializer, pool);
+            final int count = 1000;
+            Timeline timeline = new Timeline();
+            timeline.name = "t";
+            timeline.people = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Person p = new Person();
+                p.name = "p" + i;
+                p.age = i;
+                timeline.people.add(p);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            serializer.writeObject(buffer, timeline);
+            buffer.flip();
+            List<Person> read = decoder.readMember(Timeline.class, "people", Person.class, buffer);
+            Assert.assertEquals(count, read.size());
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals("p" + i, read.get(i).name);
+                Assert.assertEquals(i, read.get(i).age);
+            }
+            Assert.assertEquals(0, buffer.position());
+            Assert.assertTrue(decoder.readMember(Timeline.class, "events", Event.class, buffer).isEmpty());
+            
+            // a batch of values written one after another
+            buffer.clear();
+            for (int i = 0; i < count; i++) {
+                serializer.writeObject(buffer, timeline.people.get(i));
+            }
+            buffer.flip();
+            List<Person> batch = decoder.readBatch(Person.class, buffer);
+            Assert.assertEquals(count, batch.size());
+            Assert.assertEquals(0, buffer.remaining());
+            Assert.assertEquals("p0", batch.get(0).name);
+            Assert.assertEquals("p999", batch.get(999).name);
+            
+            // arrays share one element constructor
+            buffer.clear();
+            buffer.put(FormatCode._array8).put((byte)5).put((byte)3).put(FormatCode._intSmall);
+            buffer.put((byte)1).put((byte)-2).put((byte)3).put((byte)0x7f);
+            buffer.flip();
+            Assert.assertEquals(Arrays.asList(1, -2, 3), decoder.readList(Object.class, buffer));
+            Assert.assertEquals(0x7f, buffer.get());
+            
+            // a truncated list fails the structural pass
+            buffer.clear();
+            serializer.writeObject(buffer, timeline);
+            buffer.flip();
+            buffer.limit(buffer.limit() / 2);
+            try {
+                decoder.readMember(Timeline.class, "people", Person.class, buffer);
+                Assert.fail("should fail");
+            } catch (AmqpIoException e) {
+                Assert.assertEquals(0, buffer.position());
+            }
+            
+            // a count that the bytes cannot hold is rejected before any
+            // allocation
+            buffer.clear();
+            buffer.put(FormatCode._list32).putInt(8).putInt(0x7fffffff).putInt(0);
+            buffer.flip();
+            try {
+                decoder.readList(Object.class, buffer);
+                Assert.fail("should fail");
+            } catch (AmqpIoException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("List count"));
+            }
+            
+            // records written with compression, and with a checksum too
+            AmqpSerializer records = new AmqpSerializer();
+            records.setCompression(0, Deflater.BEST_SPEED);
+            decoder = new AmqpParallelDecoder(records, pool);
+            for (int round = 0; round < 2; round++) {
+                buffer.clear();
+                for (int i = 0; i < 200; i++) {
+                    records.writeObject(buffer, timeline.people.get(i));
+                }
+                buffer.flip();
+                batch = decoder.readBatch(Person.class, buffer);
+                Assert.assertEquals(200, batch.size());
+                Assert.assertEquals(0, buffer.remaining());
+                Assert.assertEquals("p0", batch.get(0).name);
+                Assert.assertEquals(199, batch.get(199).age);
+                
+                // a list member inside the envelopes
+                buffer.clear();
+                records.writeObject(buffer, timeline);
+                buffer.flip();
+                List<Person> people = decoder.readMember(Timeline.class, "people", Person.class,
+                        buffer);
+                Assert.assertEquals(count, people.size());
+                Assert.assertEquals("p999", people.get(999).name);
+                Assert.assertEquals(0, buffer.position());
+                records.setChecksum(true);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testAsync() throws Exception {
+        System.out.println("async");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AmqpAsyncSerializer async = new AmqpAsyncSerializer(new AmqpSerializer(), executor);
+            Student s = new Student();
+            s.name = "Ann";
+            s.age = 19;
+            s.address = this.createAddress("1 Elm St.", "Small Pond");
+            
+            ByteBuffer buffer = async.writeObjectAsync(s).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(0, buffer.position());
+            Student s2 = async.readObjectAsync(Student.class, buffer).get(10, TimeUnit.SECONDS);
+            Assert.assertFalse(buffer.hasRemaining());
+            Assert.assertEquals("Ann", s2.name);
+            Assert.assertEquals("Small Pond", s2.address.city);
+            
+            ByteBuffer target = ByteBuffer.allocate(512);
+            Assert.assertSame(target, async.writeObjectAsync(target, s).get(10, TimeUnit.SECONDS));
+            target.flip();
+            buffer.flip();
+            Assert.assertEquals(buffer, target);
+            
+            try {
+                async.readObjectAsync(Student.class, ByteBuffer.wrap(new byte[] { 0x00 }))
+                    .get(10, TimeUnit.SECONDS);
+                Assert.fail("decoding must fail");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof AmqpIoException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testDecodingProcessor() throws Exception {
+        System.out.println("decoding processor");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final int count = 300;
+            final IdentityHashMap<ByteBuffer, Integer> keys = new IdentityHashMap<>();
+            List<ByteBuffer> buffers = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Reading r = new Reading();
+                r.count = i;
+                r.unit = "k" + (i % 5);
+                ByteBuffer buffer = ByteBuffer.allocate(128);
+                AmqpSerializer.serialize(buffer, r);
+                buffer.flip();
+                buffers.add(buffer);
+                keys.put(buffer, i % 5);
+            }
+            
+            AmqpAsyncSerializer async = new AmqpAsyncSerializer(new AmqpSerializer(), executor);
+            AmqpDecodingProcessor<Reading> processor = async.newDecodingProcessor(Reading.class, 8,
+                new Function<ByteBuffer, Object>() {
+                    @Override
+                    public Object apply(ByteBuffer buffer) {
+                        return keys.get(buffer);
+                    }
+                });
+            
+            final List<Reading> received = Collections.synchronizedList(new ArrayList<Reading>());
+            final CountDownLatch completed = new CountDownLatch(1);
+            processor.subscribe(new Flow.Subscriber<Reading>() {
+                private Flow.Subscription subscription;
+                
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+                
+                @Override
+                public void onNext(Reading item) {
+                    received.add(item);
+                    this.subscription.request(1);
+                }
+                
+                @Override
+                public void onError(Throwable throwable) {
+                    completed.countDown();
+                }
+                
+                @Override
+                public void onComplete() {
+                    completed.countDown();
+                }
+            });
+            
+            SubmissionPublisher<ByteBuffer> source = new SubmissionPublisher<>(executor, 4);
+            source.subscribe(processor);
+            for (ByteBuffer buffer : buffers) {
+                source.submit(buffer);
+            }
+            source.close();
+            
+            Assert.assertTrue(completed.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(count, received.size());
+            int[] last = new int[] { -1, -1, -1, -1, -1 };
+            for (Reading r : received) {
+                int key = r.count % 5;
+                Assert.assertEquals("k" + key, r.unit);
+                Assert.assertTrue("order within a key", r.count > last[key]);
+                last[key] = r.count;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testJsonTranscoder() throws Exception {
+        System.out.println("json transcoder");
+        Reading r = new Reading();
+        r.count = 5;
+        r.total = -7;
+        r.level = 3;
+        r.ratio = 0.5;
+        r.unit = "k\"g\u00e9\n\ud83d\ude00";
+        r.samples = Arrays.asList(1, 2);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        AmqpSerializer.serialize(buffer, r);
+        buffer.flip();
+        
+        AmqpJsonTranscoder transcoder = new AmqpJsonTranscoder();
+        StringBuilder json = new StringBuilder();
+        transcoder.transcode(buffer.duplicate(), json);
+        Assert.assertEquals("{\"$descriptor\":\"test.amqp:reading\",\"$value\":"
+                + "[5,-7,3,0.5,\"k\\\"g\u00e9\\n\ud83d\ude00\",[1,2],null]}", json.toString());
+        
+        transcoder.register(Reading.class);
+        json.setLength(0);
+        transcoder.transcode(buffer.duplicate(), json);
+        String expected = "{\"$descriptor\":\"test.amqp:reading\",\"count\":5,\"total\":-7,"
+                + "\"level\":3,\"ratio\":0.5,\"unit\":\"k\\\"g\u00e9\\n\ud83d\ude00\","
+                + "\"samples\":[1,2],\"value\":null}";
+        Assert.assertEquals(expected, json.toString());
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        transcoder.transcode(buffer, bytes);
+        Assert.assertFalse(buffer.hasRemaining());
+        Assert.assertEquals(expected, new String(bytes.toByteArray(), "UTF-8"));
+        
+        Map<Object, Object> map = new LinkedHashMap<>();
+        map.put(1, new UUID(0x0123456789abcdefL, 0xfedcba9876543210L));
+        map.put("b", new byte[] { 1, 2, 3, 4 });
+        map.put("c", Long.MIN_VALUE);
+        buffer.clear();
+        AmqpSerializer.serialize(buffer, map);
+        buffer.flip();
+        json.setLength(0);
+        transcoder.transcode(buffer, json);
+        Assert.assertEquals("{\"1\":\"01234567-89ab-cdef-fedc-ba9876543210\",\"b\":\"AQIDBA==\","
+                + "\"c\":-9223372036854775808}", json.toString());
+        
+        // nested contracts are registered with the outer one, and
+        // compressed values are inflated
+        Student s = new Student();
+        s.name = "Ann";
+        s.address = this.createAddress("1 Elm St.", "Small Pond");
+        AmqpSerializer serializer = new AmqpSerializer();
+        serializer.setCompression(0, Deflater.BEST_SPEED);
+        buffer.clear();
+        serializer.writeObject(buffer, s);
+        buffer.flip();
+        transcoder = new AmqpJsonTranscoder(serializer);
+        transcoder.register(Student.class);
+        json.setLength(0);
+        transcoder.transcode(buffer, json);
+        Assert.assertTrue(json.toString(), json.toString().startsWith(
+                "{\"$descriptor\":\"test.amqp:student\",\"name\":\"Ann\""));
+        Assert.assertTrue(json.toString(), json.toString().contains(
+                "\"address\":{\"$descriptor\":\"test.amqp:address\",\"hourseStreet\":\"1 Elm St.\""));
+        
+        // checksummed values are verified after they are transcoded
+        serializer.setCompression(Integer.MAX_VALUE, 0);
+        serializer.setChecksum(true);
+        buffer.clear();
+        serializer.writeObject(buffer, r);
+        buffer.flip();
+        transcoder.register(Reading.class);
+        json.setLength(0);
+        transcoder.transcode(buffer.duplicate(), json);
+        Assert.assertEquals(expected, json.toString());
+        int last = buffer.limit() - 10;
+        buffer.put(last, FormatCode._boolTrue);
+        try {
+            transcoder.transcode(buffer, new StringBuilder());
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+        }
+    }
+    
+    @Test
+    public void testEditor() throws Exception {
+        System.out.println("editor");
+        AmqpSerializer serializer = new AmqpSerializer();
+        Reading r = new Reading();
+        r.count = 5;
+        r.total = 10;
+        r.ratio = 0.5;
+        r.unit = "kg";
+        r.samples = new ArrayList<>(Arrays.asList(1, 2));
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        serializer.writeObject(buffer, r);
+        buffer.flip();
+        
+        AmqpEditor editor = new AmqpEditor(serializer, Reading.class);
+        int samples = editor.indexOf("samples");
+        Assert.assertEquals(5, samples);
+        Assert.assertEquals(1, editor.indexOfOrder(2));
+        Assert.assertTrue(editor.setLong(buffer, editor.indexOf("count"), 42));
+        Assert.assertTrue(editor.setLong(buffer, editor.indexOf("total"), Long.MIN_VALUE));
+        Assert.assertTrue(editor.setDouble(buffer, editor.indexOf("ratio"), -1.5));
+        Assert.assertFalse(editor.setLong(buffer, editor.indexOf("value"), 1));
+        try {
+            editor.setLong(buffer, editor.indexOf("unit"), 1);
+            Assert.fail("unit is not an integer");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+        
+        int length = buffer.remaining();
+        Assert.assertTrue(editor.appendElement(buffer, samples, 3));
+        Assert.assertTrue(buffer.remaining() > length);
+        Assert.assertTrue(editor.removeElement(buffer, samples, 0));
+        Assert.assertFalse(editor.removeElement(buffer, samples, 2));
+        
+        Reading r2 = serializer.readObject(Reading.class, buffer.duplicate());
+        Assert.assertEquals(42, r2.count);
+        Assert.assertEquals(Long.MIN_VALUE, r2.total);
+        Assert.assertEquals(-1.5, r2.ratio);
+        Assert.assertEquals(Arrays.asList(2, 3), r2.samples);
+        
+        // no room to grow
+        ByteBuffer exact = ByteBuffer.allocate(buffer.remaining());
+        exact.put(buffer.duplicate()).flip();
+        Assert.assertFalse(editor.appendElement(exact, samples, 4));
+        Assert.assertEquals(buffer, exact);
+        
+        // members of a described map and map entries
+        Book b = new Book();
+        b.title = "Tales";
+        b.authors = new ArrayList<>(Arrays.asList("Ann"));
+        b.pages = 100;
+        buffer.clear();
+        serializer.writeObject(buffer, b);
+        buffer.flip();
+        editor = new AmqpEditor(serializer, Book.class);
+        Assert.assertTrue(editor.setLong(buffer, editor.indexOf("test:pages"), 250));
+        Assert.assertTrue(editor.appendElement(buffer, editor.indexOf("test:authors"), "Bob"));
+        Book b2 = serializer.readObject(Book.class, buffer.duplicate());
+        Assert.assertEquals(250, b2.pages);
+        Assert.assertEquals(Arrays.asList("Ann", "Bob"), b2.authors);
+        Assert.assertEquals("Tales", b2.title);
+        
+        Student s = new Student();
+        s.name = "Ann";
+        s.properties = new HashMap<>();
+        s.properties.put("a", 1);
+        buffer.clear();
+        serializer.writeObject(buffer, s);
+        buffer.flip();
+        editor = new AmqpEditor(serializer, Student.class);
+        int properties = editor.indexOf("properties");
+        Assert.assertTrue(editor.appendEntry(buffer, properties, "b", "two"));
+        Assert.assertTrue(editor.removeEntry(buffer, properties, "a"));
+        Assert.assertFalse(editor.removeEntry(buffer, properties, "c"));
+        Student s2 = serializer.readObject(Student.class, buffer);
+        Assert.assertEquals("Ann", s2.name);
+        Assert.assertEquals(1, s2.properties.size());
+        Assert.assertEquals("two", s2.properties.get("b"));
+        
+        // checksummed values are edited inside the envelope
+        serializer.setChecksum(true);
+        buffer.clear();
+        serializer.writeObject(buffer, r);
+        buffer.flip();
+        editor = new AmqpEditor(serializer, Reading.class);
+        Assert.assertTrue(editor.setLong(buffer, editor.indexOf("count"), 7));
+        Assert.assertTrue(editor.setDouble(buffer, editor.indexOf("ratio"), 2.5));
+        Assert.assertTrue(editor.appendElement(buffer, samples, 4));
+        Assert.assertTrue(editor.removeElement(buffer, samples, 0));
+        r2 = serializer.readObject(Reading.class, buffer);
+        Assert.assertEquals(7, r2.count);
+        Assert.assertEquals(2.5, r2.ratio);
+        Assert.assertEquals(Arrays.asList(2, 4), r2.samples);
+        Assert.assertFalse(buffer.hasRemaining());
+        
+        serializer.setCompression(0, Deflater.BEST_SPEED);
+        buffer.clear();
+        serializer.writeObject(buffer, r);
+        buffer.flip();
+        try {
+            editor.setLong(buffer, editor.indexOf("count"), 1);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertEquals("Compressed values cannot be edited", e.getMessage());
+        }
+    }
+    
+    @Test
+    public void testFilter() throws Exception {
+        System.out.println("filter");
+        AmqpSerializer serializer = new AmqpSerializer();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        Reading r = new Reading();
+        r.count = 12;
+        r.total = 1L << 40;
+        r.ratio = 0.25;
+        r.unit = "kg";
+        serializer.writeObject(buffer, r);
+        buffer.flip();
+        
+        Assert.assertTrue(new AmqpFilter(serializer, Reading.class,
+                AmqpFilter.and(AmqpFilter.gt("count", 10), AmqpFilter.startsWith("unit", "k")))
+                .matches(buffer));
+        Assert.assertEquals(0, buffer.position());
+        Assert.assertFalse(new AmqpFilter(serializer, Reading.class,
+                AmqpFilter.and(AmqpFilter.gt("count", 12), AmqpFilter.startsWith("unit", "k")))
+                .matches(buffer));
+        Assert.assertTrue(new AmqpFilter(serializer, Reading.class,
+                AmqpFilter.or(AmqpFilter.eq("unit", "lb"), AmqpFilter.ge("total", 1L << 40)))
+                .matches(buffer));
+        Assert.assertTrue(new AmqpFilter(serializer, Reading.class,
+                AmqpFilter.and(AmqpFilter.lt("ratio", 0.5), AmqpFilter.eq("count", 12.0),
+                        AmqpFilter.in("count", 3, 12, 7), AmqpFilter.in("unit", "g", "kg"),
+                        AmqpFilter.isNull("value"), AmqpFilter.not(AmqpFilter.isNull("unit"))))
+                .matches(buffer));
+        Assert.assertFalse(new AmqpFilter(serializer, Reading.class,
+                AmqpFilter.or(AmqpFilter.in("unit", "g", "k"), AmqpFilter.ne("unit", "kg"),
+                        AmqpFilter.eq("value", 0)))
+                .matches(buffer));
+        
+        // a value of another type does not match
+        Student s = new Student();
+        s.name = "Ann";
+        ByteBuffer other = ByteBuffer.allocate(256);
+        serializer.writeObject(other, s);
+        other.flip();
+        Assert.assertFalse(new AmqpFilter(serializer, Reading.class,
+                AmqpFilter.isNull("value")).matches(other));
+        
+        Book b = new Book();
+        b.title = "Tales";
+        b.pages = 300;
+        other.clear();
+        serializer.writeObject(other, b);
+        other.flip();
+        Assert.assertTrue(new AmqpFilter(serializer, Book.class,
+                AmqpFilter.and(AmqpFilter.ge("test:pages", 300), AmqpFilter.eq("test:title", "Tales")))
+                .matches(other));
+        try {
+            new AmqpFilter(serializer, Book.class, AmqpFilter.eq("pages", 1));
+            Assert.fail("unknown member");
+        } catch (AmqpIoException e) {
+            // expected
+        }
+        
+        // a checksummed value is verified when it matches
+        serializer.setChecksum(true);
+        buffer.clear();
+        serializer.writeObject(buffer, r);
+        buffer.flip();
+        AmqpFilter count = new AmqpFilter(serializer, Reading.class, AmqpFilter.gt("count", 10));
+        Assert.assertTrue(count.matches(buffer));
+        Assert.assertFalse(new AmqpFilter(serializer, Reading.class,
+                AmqpFilter.eq("unit", "lb")).matches(buffer));
+        Assert.assertEquals(0, buffer.position());
+        int last = buffer.limit() - 10;
+        buffer.put(last, FormatCode._boolTrue);
+        try {
+            count.matches(buffer);
+            Assert.fail("should fail");
+        } catch (AmqpIoException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Checksum mismatch"));
+        }
+    }
+    
+    @Test
+    public void testContractVersions() throws Exception {
+        System.out.println("contract versions");
+        SensorV1 old = new SensorV1();
+        old.id = 7;
+        old.label = "boiler";
+        old.legacy = 99;
+        old.value = -40;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        AmqpSerializer.serialize(buffer, old);
+        buffer.flip();
+        
+        AmqpSerializer serializer = new AmqpSerializer();
+        for (int i = 0; i < 2; i++) {
+            Sensor s = serializer.readObject(Sensor.class, buffer.duplicate());
+            Assert.assertEquals(7L, s.id);
+            Assert.assertEquals("boiler", s.label);
+            Assert.assertEquals(0, s.legacy);
+            Assert.assertEquals(-40L, s.value);
+            Assert.assertEquals("C", s.unit);
+        }
+        
+        // members absent in the older version are reset
+        Sensor target = new Sensor();
+        target.unit = "F";
+        target.legacy = 5;
+        Assert.assertSame(target, serializer.readInto(target, buffer.duplicate()));
+        Assert.assertEquals(-40L, target.value);
+        Assert.assertNull(target.unit);
+        Assert.assertEquals(5, target.legacy);
+        
+        // the current version is written with its own descriptor and
+        // without removed members
+        Sensor s = new Sensor();
+        s.id = 1L << 40;
+        s.label = "tank";
+        s.legacy = 3;
+        s.value = 12;
+        ByteBuffer current = ByteBuffer.allocate(256);
+        serializer.writeObject(current, s);
+        current.flip();
+        Assert.assertTrue(new AmqpFilter(serializer, Sensor.class,
+                AmqpFilter.eq("unit", "C")).matches(current));
+        Sensor s2 = serializer.readObject(Sensor.class, current);
+        Assert.assertEquals(1L << 40, s2.id);
+        Assert.assertEquals(0, s2.legacy);
+        Assert.assertEquals(12L, s2.value);
+        Assert.assertEquals("C", s2.unit);
+        
+        StringBuilder json = new StringBuilder();
+        current.flip();
+        AmqpJsonTranscoder transcoder = new AmqpJsonTranscoder(serializer);
+        transcoder.register(Sensor.class);
+        transcoder.transcode(current, json);
+        Assert.assertEquals("{\"$descriptor\":\"test.amqp:sensor:v3\",\"id\":1099511627776,"
+                + "\"label\":\"tank\",\"value\":12,\"unit\":\"C\"}", json.toString());
+        
+        // values of an older version are filtered, edited and transcoded
+        // with the layout of their version
+        AmqpFilter cold = new AmqpFilter(serializer, Sensor.class,
+                AmqpFilter.and(AmqpFilter.lt("value", 0), AmqpFilter.eq("label", "boiler"),
+                        AmqpFilter.isNull("unit")));
+        Assert.assertTrue(cold.matches(buffer));
+        current.flip();
+        Assert.assertFalse(cold.matches(current));
+        Assert.assertFalse(new AmqpFilter(serializer, Sensor.class,
+                AmqpFilter.eq("value", 99)).matches(buffer));
+        
+        AmqpEditor editor = new AmqpEditor(serializer, Sensor.class);
+        ByteBuffer edited = ByteBuffer.allocate(256);
+        edited.put(buffer.duplicate()).flip();
+        Assert.assertTrue(editor.setLong(edited, editor.indexOf("value"), 21));
+        Assert.assertFalse(editor.setLong(edited, editor.indexOf("unit"), 1));
+        SensorV1 old2 = serializer.readObject(SensorV1.class, edited);
+        Assert.assertEquals(21, old2.value);
+        Assert.assertEquals(99, old2.legacy);
+        
+        json.setLength(0);
+        transcoder.transcode(buffer.duplicate(), json);
+        Assert.assertEquals("{\"$descriptor\":\"test.amqp:sensor:v1\",\"id\":7,"
+                + "\"label\":\"boiler\",\"legacy\":99,\"value\":-40}", json.toString());
+    }
+    
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        System.out.println("flight recorder events");
+        AmqpSerializer serializer = new AmqpSerializer();
+        serializer.setEventThresholds(16, 0);
+        Counter c = new Counter();
+        c.total = 123456789L;
+        c.rate = 2.5;
+        Path file = Files.createTempFile("amqp", ".jfr");
+        jdk.jfr.Recording recording = new jdk.jfr.Recording();
+        try {
+            recording.enable("aikexq.amqp.io.PlanBuild");
+            recording.enable("aikexq.amqp.io.LargeValue");
+            recording.enable("aikexq.amqp.io.SlowOperation");
+            recording.start();
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            serializer.writeObject(buffer, c);
+            buffer.flip();
+            serializer.readObject(Counter.class, buffer);
+            serializer.writeObject(ByteBuffer.allocate(256), 1);
+            recording.stop();
+            recording.dump(file);
+            
+            int plans = 0;
+            int large = 0;
+            int slow = 0;
+            for (jdk.jfr.consumer.RecordedEvent e : jdk.jfr.consumer.RecordingFile.readAllEvents(file)) {
+                String name = e.getEventType().getName();
+                if (name.equals("aikexq.amqp.io.PlanBuild")) {
+                    Assert.assertEquals(Counter.class.getName(), e.getClass("type").getName());
+                    Assert.assertEquals("test.amqp:counter", e.getString("descriptor"));
+                    Assert.assertEquals(5, e.getInt("fieldCount"));
+                    plans++;
+                } else if (name.equals("aikexq.amqp.io.LargeValue")) {
+                    Assert.assertEquals("test.amqp:counter", e.getString("descriptor"));
+                    Assert.assertTrue(e.getInt("size") > 16);
+                    large++;
+                } else if (name.equals("aikexq.amqp.io.SlowOperation")) {
+                    slow++;
+                }
+            }
+            Assert.assertEquals(1, plans);
+            // the integer is below the size threshold
+            Assert.assertEquals(2, large);
+            Assert.assertEquals(3, slow);
+        } finally {
+            recording.close();
+            Files.deleteIfExists(file);
+        }
+        
+        // without a recording nothing is measured
+        Assert.assertFalse(CodecEvents.recording);
+    }
+    
     private void runPrimitiveTest(Object value) throws AmqpIoException {
         System.out.println("type " + (value == null ? "nil" : value.getClass().getName()));
         ByteBuffer buffer = ByteBuffer.allocate(512);
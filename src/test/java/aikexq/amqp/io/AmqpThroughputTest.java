@@ -0,0 +1,236 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Reports throughput and latency of the concurrent paths under load.
+ * The numbers are printed rather than checked, since they depend on the
+ * machine; the tests only fail if records are lost.
+ */
+public class AmqpThroughputTest {
+    private static final int PRODUCERS = 4;
+    private static final int RECORDS = 5000;
+    private static final int LIST_SIZE = 50000;
+    private static final int ROUNDS = 5;
+    private static final int VALUES = 100000;
+    
+    @Test
+    public void testRecordWriter() throws Exception {
+        System.out.println("throughput record writer");
+        for (AmqpRecordWriter.WaitStrategy strategy : AmqpRecordWriter.WaitStrategy.values()) {
+            if (strategy == AmqpRecordWriter.WaitStrategy.SPIN &&
+                    Runtime.getRuntime().availableProcessors() <= PRODUCERS) {
+                System.out.println("  " + strategy + ": skipped, needs a core per thread");
+                continue;
+            }
+            this.runRecordWriter(strategy);
+        }
+    }
+    
+    private void runRecordWriter(AmqpRecordWriter.WaitStrategy strategy) throws Exception {
+        Path file = Files.createTempFile("amqp", ".log");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            final AmqpRecordWriter writer = new AmqpRecordWriter(new AmqpSerializer(), channel,
+                    1024, 256, strategy, true);
+            final Counter record = new Counter();
+            record.count = 7;
+            record.total = 1L << 40;
+            record.rate = 0.25;
+            // each producer waits for its record to be durable, as a
+            // commit log would, so latency includes the group commit
+            final long[][] latencies = new long[PRODUCERS][RECORDS];
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] threads = new Thread[PRODUCERS];
+            for (int t = 0; t < PRODUCERS; t++) {
+                final long[] times = latencies[t];
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < RECORDS; i++) {
+                                long begin = System.nanoTime();
+                                writer.await(writer.write(record));
+                                times[i] = System.nanoTime() - begin;
+                            }
+                        } catch (Throwable e) {
+                            error.set(e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long elapsed = System.nanoTime() - begin;
+            writer.close();
+            Assert.assertNull(error.get());
+            
+            int total = PRODUCERS * RECORDS;
+            long size = channel.size();
+            Assert.assertEquals(0, size % total);
+            long[] all = new long[total];
+            for (int t = 0; t < PRODUCERS; t++) {
+                System.arraycopy(latencies[t], 0, all, t * RECORDS, RECORDS);
+            }
+            Arrays.sort(all);
+            System.out.println(String.format(
+                    "  %s: %.0f records/s, %.1f MB/s, %.1f records per fsync, latency p50 %d us, p99 %d us",
+                    strategy, total * 1e9 / elapsed, size * 1e3 / elapsed,
+                    (double)total / writer.getCommitCount(),
+                    all[total / 2] / 1000, all[total * 99 / 100] / 1000));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void testHeapVersusDirect() throws Exception {
+        System.out.println("throughput heap versus direct");
+        AmqpSerializer serializer = new AmqpSerializer();
+        Counter record = new Counter();
+        record.count = 7;
+        record.total = 1L << 40;
+        record.rate = 0.25;
+        record.active = true;
+        record.level = 3;
+        ByteBuffer heap = ByteBuffer.allocate(VALUES * 64);
+        ByteBuffer direct = ByteBuffer.allocateDirect(VALUES * 64);
+        // warm both paths before timing either
+        this.runBuffer(serializer, record, heap);
+        this.runBuffer(serializer, record, direct);
+        double[] onHeap = this.runBuffer(serializer, record, heap);
+        double[] offHeap = this.runBuffer(serializer, record, direct);
+        System.out.println(String.format("  heap: encode %.1f ns, decode %.1f ns per value",
+                onHeap[0], onHeap[1]));
+        System.out.println(String.format("  direct: encode %.1f ns, decode %.1f ns per value",
+                offHeap[0], offHeap[1]));
+    }
+    
+    private double[] runBuffer(AmqpSerializer serializer, Counter record, ByteBuffer buffer)
+            throws Exception {
+        long encode = Long.MAX_VALUE;
+        long decode = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            buffer.clear();
+            long begin = System.nanoTime();
+            for (int i = 0; i < VALUES; i++) {
+                serializer.writeObject(buffer, record);
+            }
+            encode = Math.min(encode, System.nanoTime() - begin);
+            buffer.flip();
+            long sum = 0;
+            begin = System.nanoTime();
+            for (int i = 0; i < VALUES; i++) {
+                Counter c = serializer.readObject(Counter.class, buffer);
+                sum += c.total;
+            }
+            decode = Math.min(decode, System.nanoTime() - begin);
+            Assert.assertEquals(VALUES * record.total, sum);
+        }
+        return new double[] { (double)encode / VALUES, (double)decode / VALUES };
+    }
+    
+    @Test
+    public void testParallelDecoder() throws Exception {
+        System.out.println("throughput parallel decoder");
+        AmqpSerializer serializer = new AmqpSerializer();
+        Timeline timeline = new Timeline();
+        timeline.people = new ArrayList<>(LIST_SIZE);
+        timeline.events = new ArrayList<>(LIST_SIZE);
+        for (int i = 0; i < LIST_SIZE; i++) {
+            Person p = new Person();
+            p.name = "person-" + i;
+            p.age = i % 100;
+            p.dateOfBirth = new Date(i * 1000L);
+            timeline.people.add(p);
+            Event e = new Event();
+            e.timestamp = new Date(i);
+            e.provider = "provider-" + (i % 10);
+            e.params = Arrays.asList("a", i, 0.5);
+            e.id = (short)i;
+            e.code = i * 31L;
+            e.gain = i / 3.0;
+            timeline.events.add(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024 * 1024);
+        serializer.writeObject(buffer, timeline);
+        buffer.flip();
+        System.out.println(String.format("  timeline of %d people and %d events: %d KB",
+                LIST_SIZE, LIST_SIZE, buffer.remaining() / 1024));
+        this.runParallelDecoder(serializer, buffer, "people", Person.class);
+        this.runParallelDecoder(serializer, buffer, "events", Event.class);
+    }
+    
+    private void runParallelDecoder(AmqpSerializer serializer, ByteBuffer buffer, String member,
+            Class<?> c) throws Exception {
+        long sequential = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long begin = System.nanoTime();
+            AmqpListIterator<?> iterator = AmqpListIterator.ofMember(serializer, Timeline.class,
+                    member, c, AmqpReader.wrap(buffer.duplicate()));
+            int count = 0;
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+            sequential = Math.min(sequential, System.nanoTime() - begin);
+            Assert.assertEquals(LIST_SIZE, count);
+        }
+        System.out.println(String.format("  %s sequential: %.2f ms", member, sequential / 1e6));
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int parallelism = 1; ; parallelism = Math.min(parallelism * 2, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                AmqpParallelDecoder decoder = new AmqpParallelDecoder(serializer, pool);
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long begin = System.nanoTime();
+                    List<?> read = decoder.readMember(Timeline.class, member, c, buffer);
+                    best = Math.min(best, System.nanoTime() - begin);
+                    Assert.assertEquals(LIST_SIZE, read.size());
+                }
+                System.out.println(String.format("  %s parallelism %d: %.2f ms, speedup %.2f",
+                        member, parallelism, best / 1e6, (double)sequential / best));
+            } finally {
+                pool.shutdown();
+            }
+            if (parallelism == cores) {
+                break;
+            }
+        }
+    }
+}
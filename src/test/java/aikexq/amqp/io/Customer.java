@@ -0,0 +1,49 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+
+@AmqpContract(name = "test.amqp:customer")
+public class Customer {
+    @AmqpMember(order = 1)
+    public String name;
+    
+    @AmqpMember(order = 2)
+    public List<Address> addresses;
+
+    @AmqpMember(order = 3)
+    public Set<String> tags;
+
+    @AmqpMember(order = 4)
+    public Map<String, Address> contacts;
+
+    @AmqpMember(order = 5)
+    public LinkedList<Category> history;
+
+    @AmqpMember(order = 6)
+    public SortedSet<Integer> ratings;
+
+    @AmqpMember(order = 7)
+    public List<List<Address>> routes;
+}
@@ -0,0 +1,38 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+@AmqpContract(name = "test.amqp:location", cacheable = true)
+public class Location {
+    @AmqpMember(order = 1)
+    public final double latitude;
+    
+    @AmqpMember(order = 2)
+    public final double longitude;
+
+    @AmqpMember(order = 3)
+    public final String label;
+
+    @AmqpCreator
+    public Location(double latitude, double longitude, String label) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.label = label;
+    }
+}
@@ -0,0 +1,49 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+public final class Money {
+    private final long cents;
+    private final String currency;
+    
+    public Money(long cents, String currency) {
+        this.cents = cents;
+        this.currency = currency;
+    }
+    
+    public long cents() {
+        return this.cents;
+    }
+    
+    public String currency() {
+        return this.currency;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Money)) {
+            return false;
+        }
+        Money other = (Money)obj;
+        return this.cents == other.cents && this.currency.equals(other.currency);
+    }
+    
+    @Override
+    public int hashCode() {
+        return (int)this.cents ^ this.currency.hashCode();
+    }
+}
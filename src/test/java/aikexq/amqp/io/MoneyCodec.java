@@ -0,0 +1,46 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+public class MoneyCodec extends AmqpCodec<Money> {
+    private static final byte[] DESCRIPTOR = descriptor("test.amqp:money");
+    
+    public MoneyCodec() {
+        super(Money.class);
+    }
+    
+    @Override
+    public void encode(AmqpWriter writer, Money value, Context context) {
+        writer.put(DESCRIPTOR);
+        int list = beginList(writer);
+        writeLong(writer, value.cents());
+        writeString(writer, value.currency());
+        endList(writer, list, 2);
+    }
+    
+    @Override
+    public Money decode(AmqpReader reader) throws Exception {
+        skipDescriptor(reader);
+        readListCount(reader);
+        return new Money(readLong(reader), readString(reader));
+    }
+    
+    @Override
+    public int estimateSize(Money value) {
+        return DESCRIPTOR.length + 9 + 9 + 5 + value.currency().length();
+    }
+}
@@ -0,0 +1,39 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+@AmqpContract(name = "test.amqp:price",
+        type = EncodingType.DescribedMap, cacheable = true)
+public class Price {
+    @AmqpMember
+    public final String currency;
+    
+    @AmqpMember
+    public final long cents;
+
+    private Price(String currency, long cents) {
+        this.currency = currency;
+        this.cents = cents;
+    }
+
+    @AmqpCreator
+    public static Price of(String currency, long cents) {
+        return new Price(currency == null ? "USD" : currency, cents);
+    }
+}
@@ -0,0 +1,43 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.util.List;
+
+@AmqpContract(name = "test.amqp:reading")
+public class Reading {
+    @AmqpMember(order = 1)
+    public int count;
+    
+    @AmqpMember(order = 2)
+    public long total;
+    
+    @AmqpMember(order = 3)
+    public short level;
+    
+    @AmqpMember(order = 4)
+    public double ratio;
+    
+    @AmqpMember(order = 5)
+    public String unit;
+    
+    @AmqpMember(order = 6)
+    public List<Integer> samples;
+    
+    @AmqpMember(order = 7)
+    public Object value;
+}
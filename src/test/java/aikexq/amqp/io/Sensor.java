@@ -0,0 +1,35 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+@AmqpContract(name = "test.amqp:sensor", version = 3)
+public class Sensor {
+    @AmqpMember(order = 1)
+    public long id;
+    
+    @AmqpMember(order = 2)
+    public String label;
+    
+    @AmqpMember(order = 3, until = 2)
+    public int legacy;
+    
+    @AmqpMember(order = 4)
+    public long value;
+    
+    @AmqpMember(order = 5, since = 3)
+    public String unit = "C";
+}
@@ -0,0 +1,43 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+
+
+package aikexq.amqp.io;
+
+public class Ticket {
+    private final String id;
+    private final int seat;
+    private transient boolean constructed;
+
+    public Ticket(String id, int seat) {
+        this.id = id;
+        this.seat = seat;
+        this.constructed = true;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public int getSeat() {
+        return this.seat;
+    }
+
+    public boolean isConstructed() {
+        return this.constructed;
+    }
+}
@@ -0,0 +1,48 @@
+//  ------------------------------------------------------------------------------------
+//  Copyright (c) xinchen
+//  All rights reserved. 
+//  
+//  Licensed under the Apache License, Version 2.0 (the ""License""); you may not use this 
+//  file except in compliance with the License. You may obtain a copy of the License at 
+//  http://www.apache.org/licenses/LICENSE-2.0  
+//  
+//  THIS CODE IS PROVIDED *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, 
+//  EITHER EXPRESS OR IMPLIED, INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR 
+//  CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE, MERCHANTABLITY OR 
+//  NON-INFRINGEMENT. 
+// 
+//  See the Apache Version 2.0 License for specific language governing permissions and 
+//  limitations under the License.
+//  ------------------------------------------------------------------------------------
+package aikexq.amqp.io;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+@AmqpContract(name = "test.amqp:trade")
+public class Trade {
+    @AmqpMember(order = 1)
+    public Instant executed;
+    
+    @AmqpMember(order = 2)
+    public OffsetDateTime settled;
+    
+    @AmqpMember(order = 3)
+    public LocalDateTime booked;
+    
+    @AmqpMember(order = 4)
+    public Duration latency;
+    
+    @AmqpMember(order = 5)
+    public BigDecimal price;
+    
+    @AmqpMember(order = 6, timestamp = true)
+    public long received;
+    
+    @AmqpMember(order = 7)
+    public List<Instant> fills;
+}